@@ -0,0 +1,305 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.identityconnectors.framework.api.APIConfiguration;
+import org.identityconnectors.framework.api.ConnectorFacade;
+import org.identityconnectors.framework.api.ConnectorFacadeFactory;
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.AttributeBuilder;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.ResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncDelta;
+import org.identityconnectors.framework.common.objects.SyncResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.identityconnectors.framework.common.objects.filter.Filter;
+import org.identityconnectors.framework.common.objects.filter.FilterBuilder;
+import org.identityconnectors.framework.impl.api.APIConfigurationImpl;
+import org.identityconnectors.framework.impl.api.local.JavaClassProperties;
+import org.identityconnectors.test.common.TestHelpers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks each connector operation against a freshly generated source path, shaped by the parameters below; run
+ * with <tt>mvn -Pbenchmark -DskipTests verify</tt>, see the <tt>benchmark</tt> profile.
+ * <br/>
+ * Accounts have the same layout as {@link TestAccount}: creates and deletes keep adding records to the generated
+ * files, hence results of those are only comparable among runs with the same number of iterations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CSVDirConnectorBenchmark {
+
+    private static final String FILE_PREFIX = "benchmark";
+
+    private static final String MULTIVALUE_SEPARATOR = "|";
+
+    /**
+     * Number of files times records per file: few large files against many small ones.
+     */
+    @Param({ "1x100000", "100x1000" })
+    public String layout;
+
+    /**
+     * Number of distinct last names, as searched for by {@link #searchEquals()}.
+     */
+    @Param({ "10", "10000" })
+    public int cardinality;
+
+    /**
+     * Whether all values are quoted, rather than only the ones requiring so.
+     */
+    @Param({ "false", "true" })
+    public boolean quoted;
+
+    /**
+     * Number of values of the (multivalue) email column.
+     */
+    @Param({ "1", "5" })
+    public int emails;
+
+    @Param({ CSVDirConfiguration.HSQLDB_ENGINE, CSVDirConfiguration.NATIVE_ENGINE })
+    public String engine;
+
+    private File sourceDir;
+
+    private ConnectorFacade facade;
+
+    private int records;
+
+    private Uid existing;
+
+    private int sequence = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        sourceDir = File.createTempFile(FILE_PREFIX, "");
+        if (!sourceDir.delete() || !sourceDir.mkdir()) {
+            throw new IOException("Could not create " + sourceDir.getAbsolutePath());
+        }
+
+        final String[] shape = layout.split("x");
+        final int files = Integer.parseInt(shape[0]);
+        final int rows = Integer.parseInt(shape[1]);
+        records = files * rows;
+
+        for (int i = 0; i < files; i++) {
+            final Writer writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(new File(sourceDir, FILE_PREFIX + i + ".csv")), "UTF-8"));
+            try {
+                for (int j = 0; j < rows; j++) {
+                    writer.write(toLine(createAccount(i * rows + j)));
+                    writer.write('\n');
+                }
+            } finally {
+                writer.close();
+            }
+        }
+        existing = new Uid("accountid" + records / 2 + ";firstname");
+
+        final CSVDirConfiguration conf = createConfiguration();
+        final APIConfiguration impl = TestHelpers.createTestConfiguration(CSVDirConnector.class, conf);
+        ((APIConfigurationImpl) impl).
+                setConfigurationProperties(JavaClassProperties.createConfigurationProperties(conf));
+        facade = ConnectorFacadeFactory.getInstance().newInstance(impl);
+    }
+
+    @TearDown
+    public void tearDown() {
+        ConnectorFacadeFactory.getInstance().dispose();
+        delete(sourceDir);
+    }
+
+    private CSVDirConfiguration createConfiguration() {
+        final CSVDirConfiguration conf = new CSVDirConfiguration();
+        conf.setFileMask(FILE_PREFIX + ".*\\.csv");
+        conf.setSourcePath(sourceDir.getPath());
+        conf.setKeyColumnNames(new String[] { TestAccountsValue.ACCOUNTID, TestAccountsValue.FIRSTNAME });
+        conf.setDeleteColumnName(TestAccountsValue.DELETED);
+        conf.setPasswordColumnName(TestAccountsValue.PASSWORD);
+        conf.setStatusColumn(TestAccountsValue.STATUS);
+        conf.setQuotationRequired(quoted);
+        conf.setIgnoreHeader(false);
+        conf.setKeyseparator(";");
+        conf.setMultivalueSeparator(MULTIVALUE_SEPARATOR);
+        conf.setEngine(engine);
+        conf.setFields(new String[] {
+            TestAccountsValue.ACCOUNTID,
+            TestAccountsValue.FIRSTNAME,
+            TestAccountsValue.LASTNAME,
+            TestAccountsValue.EMAIL,
+            TestAccountsValue.CHANGE_NUMBER,
+            TestAccountsValue.PASSWORD,
+            TestAccountsValue.DELETED,
+            TestAccountsValue.STATUS });
+        conf.validate();
+        return conf;
+    }
+
+    private TestAccount createAccount(final int index) {
+        final StringBuilder email = new StringBuilder();
+        for (int i = 0; i < emails; i++) {
+            if (i > 0) {
+                email.append(MULTIVALUE_SEPARATOR);
+            }
+            email.append("account").append(index).append('.').append(i).append("@test.org");
+        }
+
+        return new TestAccount(
+                "accountid" + index,
+                "firstname",
+                "lastname" + index % cardinality,
+                email.toString(),
+                String.valueOf(index),
+                "password",
+                "false",
+                "true");
+    }
+
+    private String toLine(final TestAccount account) {
+        if (!quoted) {
+            return account.toLine(TestAccountsValue.FIELD_DELIMITER, TestAccountsValue.TEXT_QUALIFIER);
+        }
+
+        final String[] values = {
+            account.getAccountId(), account.getFirstName(), account.getLastName(), account.getEmail(),
+            account.getChangeNumber(), account.getPassword(), account.getDeleted(), account.getStatus() };
+        final StringBuilder line = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                line.append(TestAccountsValue.FIELD_DELIMITER);
+            }
+            line.append(TestAccountsValue.TEXT_QUALIFIER).append(values[i]).append(TestAccountsValue.TEXT_QUALIFIER);
+        }
+        return line.toString();
+    }
+
+    private Set<Attribute> toAttributes(final TestAccount account) {
+        final Set<Attribute> attributes = new HashSet<Attribute>();
+        attributes.add(new Name(account.getAccountId() + ";" + account.getFirstName()));
+        attributes.add(AttributeBuilder.build(TestAccountsValue.ACCOUNTID, account.getAccountId()));
+        attributes.add(AttributeBuilder.build(TestAccountsValue.FIRSTNAME, account.getFirstName()));
+        attributes.add(AttributeBuilder.build(TestAccountsValue.LASTNAME, account.getLastName()));
+        attributes.add(AttributeBuilder.build(TestAccountsValue.EMAIL,
+                (Object[]) account.getEmail().split("\\" + MULTIVALUE_SEPARATOR)));
+        return attributes;
+    }
+
+    private static void delete(final File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    @Benchmark
+    public int searchAll() {
+        return search(null);
+    }
+
+    @Benchmark
+    public int searchEquals() {
+        return search(FilterBuilder.equalTo(AttributeBuilder.build(TestAccountsValue.LASTNAME, "lastname1")));
+    }
+
+    private int search(final Filter filter) {
+        final int[] count = new int[1];
+        facade.search(ObjectClass.ACCOUNT, filter, new ResultsHandler() {
+
+            @Override
+            public boolean handle(final ConnectorObject object) {
+                count[0]++;
+                return true;
+            }
+        }, null);
+        return count[0];
+    }
+
+    @Benchmark
+    public ConnectorObject getObject() {
+        return facade.getObject(ObjectClass.ACCOUNT, existing, null);
+    }
+
+    @Benchmark
+    public Uid create() {
+        return facade.create(ObjectClass.ACCOUNT, toAttributes(createAccount(records + sequence++)), null);
+    }
+
+    @Benchmark
+    public Uid update() {
+        final Set<Attribute> attributes = new HashSet<Attribute>();
+        attributes.add(AttributeBuilder.build(TestAccountsValue.LASTNAME, "lastname" + sequence++ % cardinality));
+        return facade.update(ObjectClass.ACCOUNT, existing, attributes, null);
+    }
+
+    /**
+     * Deletes an account created beforehand, so that the number of live accounts stays the same.
+     *
+     * @return uid of the deleted account
+     */
+    @Benchmark
+    public Uid createAndDelete() {
+        final Uid uid = facade.create(ObjectClass.ACCOUNT, toAttributes(createAccount(records + sequence++)), null);
+        facade.delete(ObjectClass.ACCOUNT, uid, null);
+        return uid;
+    }
+
+    @Benchmark
+    public int sync() {
+        final int[] count = new int[1];
+        facade.sync(ObjectClass.ACCOUNT, new SyncToken(0), new SyncResultsHandler() {
+
+            @Override
+            public boolean handle(final SyncDelta delta) {
+                count[0]++;
+                return true;
+            }
+        }, null);
+        return count[0];
+    }
+}
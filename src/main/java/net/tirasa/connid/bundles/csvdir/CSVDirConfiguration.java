@@ -16,6 +16,7 @@
 package net.tirasa.connid.bundles.csvdir;
 
 import java.nio.charset.Charset;
+import net.tirasa.connid.bundles.csvdir.database.CSVReader;
 import org.identityconnectors.common.StringUtil;
 import org.identityconnectors.framework.spi.AbstractConfiguration;
 import org.identityconnectors.framework.spi.ConfigurationProperty;
@@ -25,6 +26,31 @@ import org.identityconnectors.framework.spi.ConfigurationProperty;
  */
 public class CSVDirConfiguration extends AbstractConfiguration {
 
+    /**
+     * Read CSV files through HSQLDB text tables.
+     */
+    public static final String HSQLDB_ENGINE = "hsqldb";
+
+    /**
+     * Read CSV files by streaming them, without HSQLDB.
+     */
+    public static final String NATIVE_ENGINE = "native";
+
+    /**
+     * Return all the records read, duplicate keys included.
+     */
+    public static final String DEDUP_NONE = "none";
+
+    /**
+     * Return, for each key, the record read first (files being read by name).
+     */
+    public static final String DEDUP_FIRST = "first";
+
+    /**
+     * Return, for each key, the record read from the most recently modified file.
+     */
+    public static final String DEDUP_NEWEST = "newest";
+
     private String keyseparator = ",";
 
     private String multivalueSeparator;
@@ -104,6 +130,90 @@ public class CSVDirConfiguration extends AbstractConfiguration {
      */
     private String defaultStatusValue = "true";
 
+    /**
+     * Engine used to search and synchronize: 'hsqldb' (default) or 'native'.
+     */
+    private String engine = HSQLDB_ENGINE;
+
+    /**
+     * How records with the same key found in different files are merged: 'none', 'first' (default) or 'newest'.
+     */
+    private String dedupPolicy = DEDUP_FIRST;
+
+    /**
+     * Maximum number of records sorted in memory, beyond which sorted runs are spilled to temporary files.
+     */
+    private int sortBufferSize = 100000;
+
+    /**
+     * Specify if sync must return changed records only, by comparing them with the ones read by the previous sync.
+     */
+    private Boolean rowLevelSync = Boolean.FALSE;
+
+    /**
+     * Specify if sync must assume files to be append-only, returning only records appended since the previous sync.
+     */
+    private Boolean tailSync = Boolean.FALSE;
+
+    /**
+     * Seconds between listings of the source path when tracking changes in memory, 0 (default) to list it for every
+     * operation.
+     */
+    private int reconcileInterval = 0;
+
+    /**
+     * Number of threads reading files in parallel with the native engine, 1 (default) to read them one at a time.
+     */
+    private int scanThreads = 1;
+
+    /**
+     * Size, in bytes, above which files are split into chunks parsed in parallel, when more than one scan thread is
+     * configured; default is 64 MB.
+     */
+    private int scanChunkSize = 64 * 1024 * 1024;
+
+    /**
+     * Specify if the native engine must read files through memory-mapped regions rather than buffered streams.
+     */
+    private Boolean memoryMapped = Boolean.FALSE;
+
+    /**
+     * Number of records after which creates go to a new file, 0 (default) for no limit.
+     */
+    private int rotationMaxRows = 0;
+
+    /**
+     * Size, in bytes, after which creates go to a new file, 0 (default) for no limit.
+     */
+    private long rotationMaxBytes = 0L;
+
+    /**
+     * Age, in seconds, after which creates go to a new file, 0 (default) for no limit.
+     */
+    private int rotationMaxAge = 0;
+
+    /**
+     * Number of bucket files created accounts are spread across by key hash, 0 (default) to disable.
+     */
+    private int partitions = 0;
+
+    /**
+     * Whether deletes are logged as tombstones rather than rewriting files: requires the native engine and cannot be
+     * combined with row level or tail sync, which only look for changes in the CSV files themselves.
+     */
+    private Boolean tombstones = Boolean.FALSE;
+
+    /**
+     * Number of tombstones triggering a background compaction.
+     */
+    private int compactionThreshold = 1000;
+
+    /**
+     * Whether the key index of each file, or its key filter for encodings not read natively, is persisted to a
+     * sidecar file, so that it is not rebuilt after restart.
+     */
+    private Boolean persistentKeyIndex = Boolean.FALSE;
+
     @ConfigurationProperty(displayMessageKey = "sourcePath.display",
             helpMessageKey = "sourcePath.help", required = true, order = 1)
     public String getSourcePath() {
@@ -237,6 +347,126 @@ public class CSVDirConfiguration extends AbstractConfiguration {
         return statusColumn;
     }
 
+    @ConfigurationProperty(displayMessageKey = "engine.display",
+            helpMessageKey = "engine.help", required = false, order = 18)
+    public String getEngine() {
+        return engine;
+    }
+
+    public boolean isNativeEngine() {
+        return NATIVE_ENGINE.equalsIgnoreCase(engine);
+    }
+
+    @ConfigurationProperty(displayMessageKey = "dedupPolicy.display",
+            helpMessageKey = "dedupPolicy.help", required = false, order = 19)
+    public String getDedupPolicy() {
+        return dedupPolicy;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "sortBufferSize.display",
+            helpMessageKey = "sortBufferSize.help", required = false, order = 20)
+    public int getSortBufferSize() {
+        return sortBufferSize;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "rowLevelSync.display",
+            helpMessageKey = "rowLevelSync.help", required = false, order = 21)
+    public Boolean getRowLevelSync() {
+        return rowLevelSync;
+    }
+
+    public boolean isRowLevelSync() {
+        return Boolean.TRUE.equals(rowLevelSync);
+    }
+
+    @ConfigurationProperty(displayMessageKey = "tailSync.display",
+            helpMessageKey = "tailSync.help", required = false, order = 22)
+    public Boolean getTailSync() {
+        return tailSync;
+    }
+
+    public boolean isTailSync() {
+        return Boolean.TRUE.equals(tailSync);
+    }
+
+    @ConfigurationProperty(displayMessageKey = "reconcileInterval.display",
+            helpMessageKey = "reconcileInterval.help", required = false, order = 23)
+    public int getReconcileInterval() {
+        return reconcileInterval;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "scanThreads.display",
+            helpMessageKey = "scanThreads.help", required = false, order = 24)
+    public int getScanThreads() {
+        return scanThreads;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "scanChunkSize.display",
+            helpMessageKey = "scanChunkSize.help", required = false, order = 25)
+    public int getScanChunkSize() {
+        return scanChunkSize;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "memoryMapped.display",
+            helpMessageKey = "memoryMapped.help", required = false, order = 26)
+    public Boolean getMemoryMapped() {
+        return memoryMapped;
+    }
+
+    public boolean isMemoryMapped() {
+        return Boolean.TRUE.equals(memoryMapped);
+    }
+
+    @ConfigurationProperty(displayMessageKey = "rotationMaxRows.display",
+            helpMessageKey = "rotationMaxRows.help", required = false, order = 27)
+    public int getRotationMaxRows() {
+        return rotationMaxRows;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "rotationMaxBytes.display",
+            helpMessageKey = "rotationMaxBytes.help", required = false, order = 28)
+    public long getRotationMaxBytes() {
+        return rotationMaxBytes;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "rotationMaxAge.display",
+            helpMessageKey = "rotationMaxAge.help", required = false, order = 29)
+    public int getRotationMaxAge() {
+        return rotationMaxAge;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "partitions.display",
+            helpMessageKey = "partitions.help", required = false, order = 30)
+    public int getPartitions() {
+        return partitions;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "tombstones.display",
+            helpMessageKey = "tombstones.help", required = false, order = 31)
+    public Boolean getTombstones() {
+        return tombstones;
+    }
+
+    public boolean isTombstones() {
+        return Boolean.TRUE.equals(tombstones);
+    }
+
+    @ConfigurationProperty(displayMessageKey = "compactionThreshold.display",
+            helpMessageKey = "compactionThreshold.help", required = false, order = 32)
+    public int getCompactionThreshold() {
+        return compactionThreshold;
+    }
+
+    @ConfigurationProperty(displayMessageKey = "persistentKeyIndex.display",
+            helpMessageKey = "persistentKeyIndex.help", required = false, order = 33)
+    public Boolean getPersistentKeyIndex() {
+        return persistentKeyIndex;
+    }
+
+    public boolean isPersistentKeyIndex() {
+        return Boolean.TRUE.equals(persistentKeyIndex);
+    }
+
     public void setKeyseparator(final String keyseparator) {
         this.keyseparator = keyseparator;
     }
@@ -313,6 +543,80 @@ public class CSVDirConfiguration extends AbstractConfiguration {
         this.statusColumn = statusColumn;
     }
 
+    public void setEngine(final String engine) {
+        this.engine = StringUtil.isBlank(engine) ? HSQLDB_ENGINE : engine;
+    }
+
+    public void setDedupPolicy(final String dedupPolicy) {
+        this.dedupPolicy = StringUtil.isBlank(dedupPolicy) ? DEDUP_FIRST : dedupPolicy;
+    }
+
+    public void setSortBufferSize(final int sortBufferSize) {
+        this.sortBufferSize = sortBufferSize;
+    }
+
+    public void setRowLevelSync(final Boolean rowLevelSync) {
+        if (rowLevelSync != null) {
+            this.rowLevelSync = rowLevelSync;
+        }
+    }
+
+    public void setTailSync(final Boolean tailSync) {
+        if (tailSync != null) {
+            this.tailSync = tailSync;
+        }
+    }
+
+    public void setReconcileInterval(final int reconcileInterval) {
+        this.reconcileInterval = reconcileInterval;
+    }
+
+    public void setScanThreads(final int scanThreads) {
+        this.scanThreads = scanThreads;
+    }
+
+    public void setScanChunkSize(final int scanChunkSize) {
+        this.scanChunkSize = scanChunkSize;
+    }
+
+    public void setMemoryMapped(final Boolean memoryMapped) {
+        if (memoryMapped != null) {
+            this.memoryMapped = memoryMapped;
+        }
+    }
+
+    public void setRotationMaxRows(final int rotationMaxRows) {
+        this.rotationMaxRows = rotationMaxRows;
+    }
+
+    public void setRotationMaxBytes(final long rotationMaxBytes) {
+        this.rotationMaxBytes = rotationMaxBytes;
+    }
+
+    public void setRotationMaxAge(final int rotationMaxAge) {
+        this.rotationMaxAge = rotationMaxAge;
+    }
+
+    public void setPartitions(final int partitions) {
+        this.partitions = partitions;
+    }
+
+    public void setTombstones(final Boolean tombstones) {
+        if (tombstones != null) {
+            this.tombstones = tombstones;
+        }
+    }
+
+    public void setCompactionThreshold(final int compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    public void setPersistentKeyIndex(final Boolean persistentKeyIndex) {
+        if (persistentKeyIndex != null) {
+            this.persistentKeyIndex = persistentKeyIndex;
+        }
+    }
+
     /**
      * Determine if all the values are valid.
      *
@@ -360,5 +664,61 @@ public class CSVDirConfiguration extends AbstractConfiguration {
         if (StringUtil.isBlank(this.keyseparator)) {
             throw new IllegalArgumentException("File mask must not be blank!");
         }
+        // make sure the engine is known and can read the files..
+        if (!HSQLDB_ENGINE.equalsIgnoreCase(this.engine) && !NATIVE_ENGINE.equalsIgnoreCase(this.engine)) {
+            throw new IllegalArgumentException("Unknown engine " + this.engine);
+        }
+        if (isNativeEngine() && !CSVReader.isSupported(this)) {
+            throw new IllegalArgumentException("Native engine requires an ASCII-compatible encoding, delimiter "
+                    + "and text qualifier");
+        }
+        // make sure the dedup policy is known..
+        if (!DEDUP_NONE.equalsIgnoreCase(this.dedupPolicy) && !DEDUP_FIRST.equalsIgnoreCase(this.dedupPolicy)
+                && !DEDUP_NEWEST.equalsIgnoreCase(this.dedupPolicy)) {
+            throw new IllegalArgumentException("Unknown dedup policy " + this.dedupPolicy);
+        }
+        // make sure the sort buffer can hold at least one record..
+        if (this.sortBufferSize <= 0) {
+            throw new IllegalArgumentException("Sort buffer size must be positive");
+        }
+        // make sure a single sync mode is selected and files can be read from a given offset..
+        if (isTailSync() && isRowLevelSync()) {
+            throw new IllegalArgumentException("Tail sync and row level sync cannot be both enabled");
+        }
+        if (isTailSync() && !CSVReader.isSupported(this)) {
+            throw new IllegalArgumentException("Tail sync requires an ASCII-compatible encoding, delimiter "
+                    + "and text qualifier");
+        }
+        // make sure the reconcile interval makes sense..
+        if (this.reconcileInterval < 0) {
+            throw new IllegalArgumentException("Reconcile interval cannot be negative");
+        }
+        // make sure at least one thread reads files..
+        if (this.scanThreads < 1) {
+            throw new IllegalArgumentException("Scan threads must be at least 1");
+        }
+        // make sure chunks are not empty..
+        if (this.scanChunkSize <= 0) {
+            throw new IllegalArgumentException("Scan chunk size must be positive");
+        }
+        // make sure rotation thresholds make sense..
+        if (this.rotationMaxRows < 0 || this.rotationMaxBytes < 0 || this.rotationMaxAge < 0) {
+            throw new IllegalArgumentException("Rotation thresholds cannot be negative");
+        }
+        // make sure partitions make sense..
+        if (this.partitions < 0) {
+            throw new IllegalArgumentException("Partitions cannot be negative");
+        }
+        // make sure tombstones are skipped by all reads..
+        if (isTombstones() && !isNativeEngine()) {
+            throw new IllegalArgumentException("Tombstones require the native engine");
+        }
+        // tombstoned records are left in files, unchanged until compacted..
+        if (isTombstones() && (isRowLevelSync() || isTailSync())) {
+            throw new IllegalArgumentException("Tombstones cannot be combined with row level or tail sync");
+        }
+        if (this.compactionThreshold <= 0) {
+            throw new IllegalArgumentException("Compaction threshold must be positive");
+        }
     }
 }
@@ -15,29 +15,65 @@
  */
 package net.tirasa.connid.bundles.csvdir;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import net.tirasa.connid.bundles.csvdir.database.CSVReader;
+import net.tirasa.connid.bundles.csvdir.database.CSVWriter;
+import net.tirasa.connid.bundles.csvdir.database.ChangeTracker;
+import net.tirasa.connid.bundles.csvdir.database.Compactor;
+import net.tirasa.connid.bundles.csvdir.database.Deduplicator;
+import net.tirasa.connid.bundles.csvdir.database.FileRewriter;
 import net.tirasa.connid.bundles.csvdir.database.FileSystem;
 import net.tirasa.connid.bundles.csvdir.database.FileToDB;
+import net.tirasa.connid.bundles.csvdir.database.FlightEvent;
+import net.tirasa.connid.bundles.csvdir.database.KeyFilters;
+import net.tirasa.connid.bundles.csvdir.database.KeyIndex;
+import net.tirasa.connid.bundles.csvdir.database.Metrics;
+import net.tirasa.connid.bundles.csvdir.database.Partitioner;
 import net.tirasa.connid.bundles.csvdir.database.QueryCreator;
+import net.tirasa.connid.bundles.csvdir.database.Resharder;
+import net.tirasa.connid.bundles.csvdir.database.RotationPolicy;
+import net.tirasa.connid.bundles.csvdir.database.Row;
+import net.tirasa.connid.bundles.csvdir.database.TombstoneLog;
 import net.tirasa.connid.bundles.csvdir.utilities.Utilities;
 import net.tirasa.connid.bundles.db.common.DatabaseConnection;
 import net.tirasa.connid.bundles.db.common.SQLParam;
 import net.tirasa.connid.bundles.db.common.SQLUtil;
-import org.hsqldb.jdbcDriver;
 import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.framework.common.exceptions.ConnectorException;
 import org.identityconnectors.framework.common.objects.Uid;
 
+/**
+ * Per-operation access to the CSV files, through the long-lived text tables of the matching {@link FileToDB}.
+ * <br/>
+ * Opening a connection grants exclusive access to the underlying catalog until {@link #closeConnection()} is called.
+ */
 public class CSVDirConnection {
 
     /**
@@ -45,17 +81,27 @@ public class CSVDirConnection {
      */
     private static final Log LOG = Log.getLog(CSVDirConnection.class);
 
-    private static final String HSQLDB_JDBC_URL_PREFIX = "jdbc:hsqldb:file:";
-
-    private static final String HSQLDB_DB_NAME = "csvdir_db";
+    private static final String UNION_ALIAS = "USER_EX";
 
-    private final String viewname;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
 
-    private final String query;
+    /**
+     * Runs background compactions, one at a time.
+     */
+    private static final ExecutorService COMPACTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
 
-    private final String jdbcUrl;
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "csvdir-compactor");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
 
-    private final Set<String> tables = new HashSet<String>();
+    /**
+     * Source paths with a compaction scheduled.
+     */
+    private static final Set<String> COMPACTIONS = Collections.synchronizedSet(new HashSet<String>());
 
     private final Connection conn;
 
@@ -65,22 +111,42 @@ public class CSVDirConnection {
 
     private final FileToDB fileToDB;
 
+    /**
+     * Rewrites single records of files for update and delete, <tt>null</tt> unless the native engine is configured:
+     * HSQLDB runs the DML otherwise.
+     */
+    private final FileRewriter rewriter;
+
+    /**
+     * Tells the bucket file owning each key, <tt>null</tt> if files are not partitioned.
+     */
+    private final Partitioner partitioner;
+
+    /**
+     * Log of deleted records, <tt>null</tt> if deletes rewrite files right away.
+     */
+    private final TombstoneLog tombstones;
+
+    /**
+     * Recorded when closing, if enabled.
+     */
+    private final FlightEvent event = FlightEvent.begin(FlightEvent.CONNECTION);
+
+    private boolean closed = false;
+
     private CSVDirConnection(final CSVDirConfiguration conf)
             throws ClassNotFoundException, SQLException {
 
         this.conf = conf;
         this.fileSystem = new FileSystem(conf);
 
-        Class.forName(jdbcDriver.class.getName());
-        this.jdbcUrl = HSQLDB_JDBC_URL_PREFIX + conf.getSourcePath() + File.separator
-                + HSQLDB_DB_NAME + ";shutdown=false";
-        this.conn = DriverManager.getConnection(jdbcUrl, "sa", "");
-        this.conn.setAutoCommit(true);
-
-        this.viewname = "USER_EX" + Utilities.randomNumber();
-        this.query = "SELECT * FROM " + viewname;
-
-        this.fileToDB = new FileToDB(this);
+        this.rewriter = conf.isNativeEngine() ? new FileRewriter(conf) : null;
+        this.partitioner = conf.getPartitions() > 0 ? new Partitioner(conf) : null;
+        this.tombstones = TombstoneLog.getInstance(conf);
+        this.fileToDB = FileToDB.getInstance(conf);
+        this.conn = fileToDB.getConn();
+        // last, as nothing releases the lock if this constructor fails
+        this.fileToDB.lock();
     }
 
     public static CSVDirConnection openConnection(
@@ -90,25 +156,230 @@ public class CSVDirConnection {
         return new CSVDirConnection(configuration);
     }
 
+    /**
+     * Declares a new user of the text tables bound for the given configuration, of its change tracker and of the
+     * {@link Metrics} of its source path, to be paired with {@link #release(CSVDirConfiguration)}.
+     *
+     * @param configuration configuration
+     */
+    public static void acquire(final CSVDirConfiguration configuration) {
+        FileToDB.acquire(configuration);
+        ChangeTracker.acquire(configuration);
+        Metrics.acquire(configuration);
+    }
+
+    /**
+     * Declares that a user of the text tables bound for the given configuration is gone: text tables are dropped,
+     * the change tracker dropped and metrics unregistered when no users are left.
+     *
+     * @param configuration configuration
+     */
+    public static void release(final CSVDirConfiguration configuration) {
+        Metrics.release(configuration);
+        ChangeTracker.release(configuration);
+        FileToDB.release(configuration);
+    }
+
     public void closeConnection()
             throws SQLException {
 
-        if (this.conn != null) {
+        if (!closed) {
             LOG.ok("Closing connection ...");
 
-            dropTableAndViewIfExists();
-            this.conn.close();
+            closed = true;
+            fileToDB.unlock();
 
-            tables.clear();
+            event.set("sourcePath", conf.getSourcePath()).commit();
         }
     }
 
-    public int insertAccount(final Map<String, String> attributes) {
-        final String tableName = fileToDB.createDbForCreate();
+    /**
+     * Appends the given account to the last modified CSV file, see {@link #insertAccounts(List)}.
+     *
+     * @param attributes account attributes
+     * @return number of inserted accounts
+     * @throws IOException if the CSV file cannot be written
+     */
+    public int insertAccount(final Map<String, String> attributes) throws IOException {
+        return insertAccounts(Collections.singletonList(attributes));
+    }
 
-        tables.add(tableName);
+    /**
+     * Appends the given accounts to the last modified CSV file, with a single buffered write under an exclusive file
+     * lock and without going through HSQLDB: the text table bound to the file, if any, is bound again only when
+     * needed, as for any other change to the file. Keys are expected to be checked beforehand, see
+     * {@link #existingUsers(Collection)}.
+     * <br/>
+     * When a {@link RotationPolicy} is configured, accounts go to new files as soon as the current one would exceed
+     * the configured thresholds; each file gets at least one account. When files are partitioned, each account goes
+     * to its bucket file instead, see {@link Partitioner}.
+     *
+     * @param accounts accounts attributes
+     * @return number of inserted accounts
+     * @throws IOException if the CSV file cannot be written
+     */
+    public int insertAccounts(final List<Map<String, String>> accounts) throws IOException {
+        File file = fileSystem.getLastModifiedCsvFile();
+        if (file == null) {
+            file = new File(conf.getSourcePath(), FileToDB.DEFAULT_PREFIX + Utilities.randomNumber() + ".csv");
+        }
+
+        // convert everything first: nothing is written if any account is invalid
+        final CSVWriter writer = new CSVWriter(conf);
+        final List<String[]> records = new ArrayList<String[]>(accounts.size());
+        final List<byte[]> lines = new ArrayList<byte[]>(accounts.size());
+        for (Map<String, String> attributes : accounts) {
+            final String[] values = writer.toValues(attributes);
+            records.add(values);
+            lines.add(writer.format(values));
+        }
+
+        if (partitioner != null) {
+            final Map<Integer, List<Integer>> byBucket = new TreeMap<Integer, List<Integer>>();
+            for (int i = 0; i < records.size(); i++) {
+                final Integer bucket = partitioner.getBucket(records.get(i));
+                List<Integer> indexes = byBucket.get(bucket);
+                if (indexes == null) {
+                    indexes = new ArrayList<Integer>();
+                    byBucket.put(bucket, indexes);
+                }
+                indexes.add(i);
+            }
+
+            for (Map.Entry<Integer, List<Integer>> entry : byBucket.entrySet()) {
+                final List<String[]> bucketRecords = new ArrayList<String[]>(entry.getValue().size());
+                final List<byte[]> bucketLines = new ArrayList<byte[]>(entry.getValue().size());
+                for (Integer index : entry.getValue()) {
+                    bucketRecords.add(records.get(index));
+                    bucketLines.add(lines.get(index));
+                }
+                append(partitioner.getFile(entry.getKey()), writer, bucketRecords, bucketLines);
+            }
+            return records.size();
+        }
 
-        return execute(QueryCreator.insertQuery(attributes, tableName));
+        final RotationPolicy rotation = new RotationPolicy(conf);
+        if (!rotation.isEnabled()) {
+            append(file, writer, records, lines);
+            return records.size();
+        }
+
+        int from = 0;
+        while (from < records.size()) {
+            long rows = countRecords(file);
+            long bytes = ChangeTracker.length(file);
+            if (rows > 0
+                    && (rotation.isExpired(file) || rotation.isExceeded(rows + 1, bytes + lines.get(from).length))) {
+
+                file = rotation.next(file);
+                rows = 0;
+                bytes = 0;
+            }
+
+            int to = from;
+            do {
+                rows++;
+                bytes += lines.get(to).length;
+                to++;
+            } while (to < records.size() && !rotation.isExceeded(rows + 1, bytes + lines.get(to).length));
+
+            LOG.ok("Appending {0} accounts to {1}", to - from, file.getName());
+            append(file, writer, records.subList(from, to), lines.subList(from, to));
+            from = to;
+        }
+
+        return records.size();
+    }
+
+    private void append(
+            final File file, final CSVWriter writer, final List<String[]> records, final List<byte[]> lines)
+            throws IOException {
+
+        final long[] offsets = new long[lines.size()];
+
+        final FileOutputStream fos = new FileOutputStream(file, true);
+        try {
+            final FileChannel channel = fos.getChannel();
+            final FileLock lock = channel.lock();
+            try {
+                long offset = channel.size();
+
+                final OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), WRITE_BUFFER_SIZE);
+                if (offset == 0 && Boolean.TRUE.equals(conf.getIgnoreHeader())) {
+                    final byte[] header = writer.header();
+                    out.write(header);
+                    offset += header.length;
+                } else if (offset > 0 && !endsWithNewLine(file)) {
+                    final byte[] newLine = CSVWriter.getLineSeparator().getBytes(conf.getEncoding());
+                    out.write(newLine);
+                    offset += newLine.length;
+                }
+
+                for (int i = 0; i < lines.size(); i++) {
+                    offsets[i] = offset;
+                    out.write(lines.get(i));
+                    offset += lines.get(i).length;
+                }
+                out.flush();
+            } finally {
+                lock.release();
+            }
+        } finally {
+            fos.close();
+            fileSystem.touched(file);
+        }
+
+        final KeyIndex keyIndex = fileToDB.getKeyIndex();
+        if (keyIndex != null) {
+            for (int i = 0; i < records.size(); i++) {
+                keyIndex.added(file, keyIndex.getKey(records.get(i)), offsets[i]);
+            }
+        }
+        final KeyFilters keyFilters = fileToDB.getKeyFilters();
+        if (keyFilters != null) {
+            for (String[] record : records) {
+                keyFilters.added(file, keyFilters.getKey(record));
+            }
+        }
+    }
+
+    /**
+     * @param file CSV file, possibly not existing yet
+     * @return number of records in the given file, as far as rotation is concerned
+     * @throws IOException if the file cannot be read
+     */
+    private long countRecords(final File file) throws IOException {
+        if (!file.exists() || file.length() == 0) {
+            return 0L;
+        }
+        if (conf.getRotationMaxRows() <= 0) {
+            // only emptiness matters
+            return 1L;
+        }
+
+        final KeyIndex keyIndex = fileToDB.getKeyIndex();
+        if (keyIndex != null) {
+            return keyIndex.count(file);
+        }
+        try {
+            return countRows(file);
+        } catch (SQLException e) {
+            throw new IOException("Could not count records of " + file.getName(), e);
+        }
+    }
+
+    private static boolean endsWithNewLine(final File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() == 0) {
+                return true;
+            }
+            raf.seek(raf.length() - 1);
+            final int last = raf.read();
+            return last == '\n' || last == '\r';
+        } finally {
+            raf.close();
+        }
     }
 
     public int updateAccount(final Map<String, String> attrToBeReplaced, final Uid uid) {
@@ -117,87 +388,578 @@ public class CSVDirConnection {
             throw new ConnectorException("Empty table");
         }
 
+        final KeyIndex keyIndex = fileToDB.getKeyIndex();
+        final KeyFilters keyFilters = fileToDB.getKeyFilters();
+        final String newKey = keyIndex != null
+                ? keyIndex.getKey(uid.getUidValue(), attrToBeReplaced)
+                : keyFilters == null ? null : keyFilters.getKey(uid.getUidValue(), attrToBeReplaced);
+
+        if (partitioner != null && newKey != null
+                && partitioner.getBucket(newKey) != partitioner.getBucket(uid.getUidValue())) {
+
+            return move(uid, attrToBeReplaced, files);
+        }
+
         int returnValue = 0;
 
-        for (File file : files) {
+        for (File file : getOwningFiles(uid, files)) {
+            if (rewriter != null) {
+                returnValue += rewrite(file, uid, attrToBeReplaced);
+                continue;
+            }
+
             final String tableName = fileToDB.createDbForUpdate(file);
+            // HSQLDB rewrites updated rows at the end of the file
+            final long offset = ChangeTracker.length(file);
 
-            tables.add(tableName);
+            final int updated;
+            try {
+                final List<SQLParam> params = QueryCreator.getParams(attrToBeReplaced);
+                params.addAll(QueryCreator.getKeyParams(uid, conf.getKeyseparator(), conf.getKeyColumnNames()));
+
+                updated = execute(tableName,
+                        QueryCreator.updateQuery(attrToBeReplaced.keySet(), conf.getKeyColumnNames(), tableName),
+                        params);
+            } finally {
+                fileToDB.refresh(tableName);
+                fileSystem.touched(file);
+            }
 
-            returnValue += execute(QueryCreator.updateQuery(
-                    attrToBeReplaced,
-                    uid,
-                    conf.getKeyseparator(),
-                    conf.getKeyColumnNames(),
-                    tableName));
+            if (keyIndex != null && updated > 0) {
+                if (!newKey.equalsIgnoreCase(uid.getUidValue())) {
+                    keyIndex.removed(file, uid.getUidValue());
+                }
+                keyIndex.added(file, newKey, offset);
+            }
+            if (keyFilters != null) {
+                if (updated > 0) {
+                    keyFilters.added(file, newKey);
+                }
+                keyFilters.touched(file);
+            }
+            returnValue += updated;
         }
         return returnValue;
     }
 
+    /**
+     * Moves the record with the given key to the bucket of its new key: the updated record is appended to the new
+     * bucket first and only then removed from the current one, so that a failure in between leaves a duplicate rather
+     * than losing the record.
+     *
+     * @param uid current composite key
+     * @param attributes attributes to be replaced, new key included
+     * @param files all CSV files
+     * @return number of moved records
+     */
+    private int move(final Uid uid, final Map<String, String> attributes, final File[] files) {
+        final String[] fields = conf.getFields();
+
+        final List<Map<String, String>> accounts = new ArrayList<Map<String, String>>();
+        for (File file : getOwningFiles(uid, files)) {
+            final String[] values = read(file, uid);
+            if (values != null) {
+                final Map<String, String> account = new LinkedHashMap<String, String>();
+                for (int i = 0; i < fields.length; i++) {
+                    account.put(fields[i], values[i]);
+                }
+                account.putAll(attributes);
+                accounts.add(account);
+            }
+        }
+        if (accounts.isEmpty()) {
+            return 0;
+        }
+
+        LOG.ok("Moving {0} to another bucket", uid.getUidValue());
+        try {
+            insertAccounts(accounts);
+        } catch (IOException e) {
+            LOG.error(e, "While moving {0}", uid.getUidValue());
+            throw new IllegalStateException(e);
+        }
+        deleteAccount(uid);
+
+        return accounts.size();
+    }
+
+    /**
+     * @param file CSV file
+     * @param uid composite key
+     * @return values of the record with the given key in the given file, positioned as the configured fields;
+     * <tt>null</tt> if not found
+     */
+    private String[] read(final File file, final Uid uid) {
+        final KeyIndex keyIndex = fileToDB.getKeyIndex();
+        try {
+            if (keyIndex != null) {
+                final Row row = (rewriter == null ? new FileRewriter(conf) : rewriter).find(
+                        file, uid.getUidValue(), keyIndex.getOffset(uid.getUidValue(), file));
+                return row == null ? null : row.getValues();
+            }
+
+            final ResultSet resultSet = csvFile(file, "*", QueryCreator.getWhereClause(conf.getKeyColumnNames()),
+                    QueryCreator.getKeyParams(uid, conf.getKeyseparator(), conf.getKeyColumnNames()), null);
+            try {
+                if (!resultSet.next()) {
+                    return null;
+                }
+                final String[] values = new String[conf.getFields().length];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = resultSet.getString(conf.getFields()[i]);
+                }
+                return values;
+            } finally {
+                resultSet.close();
+            }
+        } catch (IOException e) {
+            LOG.error(e, "While reading {0}", file.getName());
+            throw new IllegalStateException(e);
+        } catch (SQLException e) {
+            LOG.error(e, "While reading {0}", file.getName());
+            throw new IllegalStateException(e);
+        }
+    }
+
     public int deleteAccount(final Uid uid) {
         final File[] files = fileSystem.getAllCsvFiles();
         if (files.length == 0) {
             throw new ConnectorException("Empty table");
         }
 
+        final KeyIndex keyIndex = fileToDB.getKeyIndex();
+        final KeyFilters keyFilters = fileToDB.getKeyFilters();
+
         int returnValue = 0;
 
-        for (File file : files) {
+        for (File file : getOwningFiles(uid, files)) {
+            if (tombstones != null) {
+                returnValue += tombstone(file, uid);
+                continue;
+            }
+            if (rewriter != null) {
+                returnValue += rewrite(file, uid, null);
+                continue;
+            }
+
             final String tableName = fileToDB.createDbForUpdate(file);
 
-            tables.add(tableName);
+            final int deleted;
+            try {
+                deleted = execute(tableName,
+                        QueryCreator.deleteQuery(conf.getKeyColumnNames(), tableName),
+                        QueryCreator.getKeyParams(uid, conf.getKeyseparator(), conf.getKeyColumnNames()));
+            } finally {
+                fileToDB.refresh(tableName);
+                fileSystem.touched(file);
+            }
 
-            returnValue += execute(QueryCreator.deleteQuery(
-                    uid,
-                    conf.getKeyseparator(),
-                    conf.getKeyColumnNames(),
-                    tableName));
+            if (keyIndex != null && deleted > 0) {
+                keyIndex.removed(file, uid.getUidValue());
+            }
+            if (keyFilters != null) {
+                keyFilters.touched(file);
+            }
+            returnValue += deleted;
+        }
 
+        if (tombstones != null) {
+            try {
+                if (tombstones.size() >= conf.getCompactionThreshold()) {
+                    scheduleCompaction(conf);
+                }
+            } catch (IOException e) {
+                LOG.error(e, "While reading tombstones");
+            }
         }
         return returnValue;
     }
 
-    private int execute(final String query) {
-        PreparedStatement stm = null;
+    /**
+     * Logs the record with the given key in the given file as deleted, leaving the file untouched.
+     *
+     * @param file CSV file
+     * @param uid composite key
+     * @return number of deleted records
+     */
+    private int tombstone(final File file, final Uid uid) {
+        final KeyIndex keyIndex = fileToDB.getKeyIndex();
+        try {
+            final Row row = rewriter.find(file, uid.getUidValue(),
+                    keyIndex == null ? KeyIndex.UNKNOWN_OFFSET : keyIndex.getOffset(uid.getUidValue(), file));
+            if (row == null) {
+                return 0;
+            }
+
+            // key index and rewriter are always available with the native engine
+            tombstones.deleted(file, row.getOffset(), keyIndex.getKey(row.getValues()));
+
+            keyIndex.removed(file, uid.getUidValue());
+            return 1;
+        } catch (IOException e) {
+            LOG.error(e, "While logging delete from {0}", file.getName());
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void scheduleCompaction(final CSVDirConfiguration conf) {
+        final String sourcePath = new File(conf.getSourcePath()).getAbsolutePath();
+        if (!COMPACTIONS.add(sourcePath)) {
+            return;
+        }
+
+        LOG.ok("Scheduling compaction of {0}", sourcePath);
+
+        // keeps text tables and key index around until done
+        acquire(conf);
+        COMPACTOR.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                final Metrics.Sample sample = Metrics.start(conf, Metrics.COMPACT);
+                try {
+                    final CSVDirConnection conn = openConnection(conf);
+                    try {
+                        conn.compact();
+                    } finally {
+                        conn.closeConnection();
+                    }
+                } catch (Exception e) {
+                    LOG.error(e, "While compacting {0}", sourcePath);
+                } finally {
+                    sample.stop();
+                    COMPACTIONS.remove(sourcePath);
+                    release(conf);
+                }
+            }
+        });
+    }
+
+    /**
+     * Updates or deletes the record with the given key in the given file, by rewriting only that record.
+     *
+     * @param file CSV file
+     * @param uid composite key
+     * @param attributes attributes to be replaced, <tt>null</tt> to delete the record
+     * @return number of updated or deleted records
+     */
+    private int rewrite(final File file, final Uid uid, final Map<String, String> attributes) {
+        final KeyIndex keyIndex = fileToDB.getKeyIndex();
+        try {
+            final Row row = rewriter.find(file, uid.getUidValue(),
+                    keyIndex == null ? KeyIndex.UNKNOWN_OFFSET : keyIndex.getOffset(uid.getUidValue(), file));
+            if (row == null) {
+                return 0;
+            }
+
+            String[] values = null;
+            byte[] line = null;
+            if (attributes != null) {
+                final CSVWriter writer = new CSVWriter(conf);
+                values = writer.toValues(row.getValues().clone(), attributes);
+                line = writer.format(values);
+            }
+
+            fileToDB.unbind(file);
+            try {
+                rewriter.replace(row, line);
+            } finally {
+                fileSystem.touched(file);
+            }
+
+            final long delta = (line == null ? 0 : line.length) - row.getLength();
+            if (tombstones != null) {
+                tombstones.shifted(file, row.getOffset(), delta);
+            }
+            if (keyIndex != null) {
+                keyIndex.shifted(file, row.getOffset(), delta);
+                keyIndex.removed(file, uid.getUidValue());
+                if (values != null) {
+                    keyIndex.added(file, keyIndex.getKey(values), row.getOffset());
+                }
+            }
+            return 1;
+        } catch (IOException e) {
+            LOG.error(e, "While rewriting {0}", file.getName());
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Tells whether a user with the given key exists in any of the CSV files.
+     *
+     * @param uid composite key
+     * @return whether a user with the given key exists
+     * @throws SQLException if files cannot be queried
+     */
+    public boolean userExists(final String uid) throws SQLException {
+        File[] files = fileSystem.getAllCsvFiles();
+        if (partitioner != null) {
+            final List<File> owning = partitioner.getOwningFiles(uid, files);
+            files = owning.toArray(new File[owning.size()]);
+        }
+
+        final KeyIndex keyIndex = fileToDB.getKeyIndex();
+        if (keyIndex != null) {
+            return !keyIndex.lookup(uid, files).isEmpty();
+        }
+
+        // only query the files which may hold the given key
+        final List<File> candidates = fileToDB.getKeyFilters().lookup(uid, files);
+        if (candidates.isEmpty()) {
+            return false;
+        }
+
+        final ResultSet resultSet = csvFiles(candidates.toArray(new File[candidates.size()]));
+
+        final String[] keys = conf.getKeyColumnNames();
+        final String[] uidKeys = uid.split(conf.getKeyseparator());
+        try {
+            boolean found = false;
+            boolean toBeContinued;
+            while (resultSet.next() && !found) {
+                toBeContinued = true;
+                for (int i = 0; i < keys.length && toBeContinued; i++) {
+                    final String value = resultSet.getString(keys[i]);
+                    if (!value.equalsIgnoreCase(uidKeys[i])) {
+                        toBeContinued = false;
+                    }
+                }
+                found = toBeContinued;
+            }
+
+            return found;
+        } finally {
+            resultSet.close();
+        }
+    }
+
+    /**
+     * Tells which of the given keys already exist in any of the CSV files, looking them all up in a single pass.
+     *
+     * @param uids composite keys
+     * @return the given keys that already exist
+     * @throws SQLException if files cannot be queried
+     */
+    public Set<String> existingUsers(final Collection<String> uids) throws SQLException {
+        final Set<String> existing = new HashSet<String>();
+        final File[] files = fileSystem.getAllCsvFiles();
+
+        final KeyIndex keyIndex = fileToDB.getKeyIndex();
+        if (keyIndex != null) {
+            keyIndex.update(files);
+            for (String uid : uids) {
+                if (!keyIndex.find(uid, files).isEmpty()) {
+                    existing.add(uid);
+                }
+            }
+            return existing;
+        }
+
+        // only query the files which may hold any of the given keys
+        final KeyFilters keyFilters = fileToDB.getKeyFilters();
+        keyFilters.update(files);
+        final Set<File> candidates = new LinkedHashSet<File>();
+        for (String uid : uids) {
+            candidates.addAll(keyFilters.find(uid, files));
+        }
+        if (candidates.isEmpty()) {
+            return existing;
+        }
+
+        // keys are compared ignoring case, as by userExists()
+        final Map<String, String> wanted = new HashMap<String, String>();
+        for (String uid : uids) {
+            wanted.put(uid.toUpperCase(Locale.ENGLISH), uid);
+        }
 
+        final String[] keys = conf.getKeyColumnNames();
+        final ResultSet resultSet = csvFiles(candidates.toArray(new File[candidates.size()]));
+        try {
+            while (resultSet.next() && existing.size() < wanted.size()) {
+                final StringBuilder key = new StringBuilder();
+                for (int i = 0; i < keys.length; i++) {
+                    if (i > 0) {
+                        key.append(conf.getKeyseparator());
+                    }
+                    key.append(resultSet.getString(keys[i]));
+                }
+
+                final String uid = wanted.get(key.toString().toUpperCase(Locale.ENGLISH));
+                if (uid != null) {
+                    existing.add(uid);
+                }
+            }
+        } finally {
+            resultSet.close();
+        }
+
+        return existing;
+    }
+
+    /**
+     * @param uid user key
+     * @param files all CSV files
+     * @return files holding the given user, as told by the partitioner or the key index; files which may hold the
+     * given user, as told by the key filters, if files cannot be read natively
+     */
+    private List<File> getOwningFiles(final Uid uid, final File[] files) {
+        if (partitioner != null) {
+            return partitioner.getOwningFiles(uid.getUidValue(), files);
+        }
+
+        final KeyIndex keyIndex = fileToDB.getKeyIndex();
+        return keyIndex == null
+                ? fileToDB.getKeyFilters().lookup(uid.getUidValue(), files)
+                : keyIndex.lookup(uid.getUidValue(), files);
+    }
+
+    private int execute(final String tableName, final String query, final List<SQLParam> params) {
         LOG.ok("About to execute {0}", query);
         try {
-            stm = conn.prepareStatement(query);
+            final PreparedStatement stm = fileToDB.prepare(tableName, query);
+            SQLUtil.setParams(stm, params);
             return stm.executeUpdate();
         } catch (SQLException e) {
             LOG.error(e, "Error during sql query");
             throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Moves the records of all CSV files to their bucket files, see {@link Resharder}.
+     *
+     * @return number of bucket files written
+     * @throws IOException if any file cannot be read or written
+     */
+    public int reshard() throws IOException {
+        if (partitioner == null) {
+            throw new ConnectorException("No partitions configured");
+        }
+        if (tombstones != null) {
+            // logged records would be moved along otherwise
+            compact();
+        }
+
+        final File[] files = fileSystem.getAllCsvFiles();
+        for (File file : files) {
+            fileToDB.unbind(file);
+        }
+
+        final List<File> buckets;
+        try {
+            buckets = new Resharder(conf).reshard(files);
         } finally {
-            try {
-                if (stm != null) {
-                    stm.close();
+            for (File file : files) {
+                fileSystem.touched(file);
+            }
+        }
+        for (File bucket : buckets) {
+            fileSystem.touched(bucket);
+        }
+
+        final KeyIndex keyIndex = fileToDB.getKeyIndex();
+        if (keyIndex != null) {
+            for (File file : files) {
+                keyIndex.invalidate(file);
+            }
+        }
+        return buckets.size();
+    }
+
+    /**
+     * Removes for good, from all CSV files, the records logged as deleted and the ones flagged through the delete
+     * column, then clears the tombstone log.
+     *
+     * @return number of removed records
+     * @throws IOException if any file cannot be read or written
+     */
+    public int compact() throws IOException {
+        if (!CSVReader.isSupported(conf)) {
+            throw new ConnectorException("Files with encoding " + conf.getEncoding() + " cannot be compacted");
+        }
+
+        final FileRewriter remover = rewriter == null ? new FileRewriter(conf) : rewriter;
+        final Compactor compactor = new Compactor(conf);
+        final KeyIndex keyIndex = fileToDB.getKeyIndex();
+
+        int removed = 0;
+        for (File file : fileSystem.getAllCsvFiles()) {
+            final List<long[]> ranges =
+                    compactor.collect(file, tombstones == null ? null : tombstones.getDeleted(file));
+            if (!ranges.isEmpty()) {
+                fileToDB.unbind(file);
+                try {
+                    remover.remove(file, ranges);
+                } finally {
+                    fileSystem.touched(file);
                 }
-            } catch (SQLException e) {
-                LOG.error(e, "While closing sql statement");
+                if (keyIndex != null) {
+                    keyIndex.invalidate(file);
+                }
+                removed += ranges.size();
             }
         }
+
+        if (tombstones != null) {
+            tombstones.clear();
+        }
+
+        LOG.ok("Compaction removed {0} records", removed);
+        return removed;
     }
 
     public final ResultSet modifiedCsvFiles(final long syncToken) throws SQLException {
-        final List<String> tableNames = fileToDB.createDbForSync(fileSystem.getModifiedCsvFiles(syncToken));
+        return modifiedCsvFiles(syncToken, null);
+    }
 
-        tables.addAll(tableNames);
+    /**
+     * Queries the CSV files modified after the given sync token, in dedup policy order.
+     *
+     * @param syncToken sync token
+     * @param scan key scan to be started with the files queried, if any: records then include
+     * {@link KeyFilters#FILE_COLUMN}
+     * @return all records of the modified files
+     * @throws SQLException if files cannot be queried
+     */
+    public final ResultSet modifiedCsvFiles(final long syncToken, final KeyFilters.Scan scan) throws SQLException {
+        final File[] files = new Deduplicator(conf).order(fileSystem.getModifiedCsvFiles(syncToken));
+        final FlightEvent event = beginQuery(files);
+        final List<String> tableNames = fileToDB.createDbForSync(files);
+        if (scan != null) {
+            scan.start(files, tableNames);
+        }
 
-        return doQuery(conn.prepareStatement(query));
+        try {
+            return doQuery(conn.prepareStatement(query(tableNames, "*", scan != null)));
+        } finally {
+            event.commit();
+        }
     }
 
     public ResultSet allCsvFiles() {
-        final List<String> tableNames = fileToDB.createDbForSync(fileSystem.getAllCsvFiles());
-        tables.addAll(tableNames);
+        return csvFiles(new Deduplicator(conf).order(fileSystem.getAllCsvFiles()));
+    }
+
+    /**
+     * Queries the given CSV files, in the given order.
+     *
+     * @param files CSV files
+     * @return all records of the given files
+     */
+    private ResultSet csvFiles(final File[] files) {
+        final FlightEvent event = beginQuery(files);
+        final List<String> tableNames = fileToDB.createDbForSync(files);
 
         PreparedStatement stmt = null;
         try {
-            stmt = conn.prepareStatement(query);
+            stmt = conn.prepareStatement(query(tableNames, "*"));
             return doQuery(stmt);
         } catch (SQLException ex) {
             LOG.error(ex, "Error during sql query");
             throw new IllegalStateException(ex);
         } finally {
+            event.commit();
             if (stmt != null) {
                 try {
                     stmt.close();
@@ -209,13 +971,58 @@ public class CSVDirConnection {
     }
 
     public ResultSet allCsvFiles(final String where, final List<SQLParam> params) {
-        final List<String> tableNames = fileToDB.createDbForSync(fileSystem.getAllCsvFiles());
-        tables.addAll(tableNames);
+        return allCsvFiles("*", where, params);
+    }
+
+    /**
+     * Same as {@link #allCsvFiles(String, String, List, KeyFilters.Scan, List)}, without key scan.
+     *
+     * @param selectList columns to be returned
+     * @param where where clause, if any
+     * @param params where clause parameters
+     * @return matching records
+     */
+    public ResultSet allCsvFiles(final String selectList, final String where, final List<SQLParam> params) {
+        return allCsvFiles(selectList, where, params, null, null);
+    }
+
+    /**
+     * Queries all CSV files, in dedup policy order.
+     *
+     * @param selectList columns to be returned
+     * @param where where clause, if any
+     * @param params where clause parameters
+     * @param scan key scan to be started with the files queried, if any: records then include
+     * {@link KeyFilters#FILE_COLUMN}
+     * @param queried if not <tt>null</tt>, filled with the files queried, at the position told by
+     * {@link KeyFilters#FILE_COLUMN} (<tt>null</tt> if no file is bound there): records then include it
+     * @return matching records
+     */
+    public ResultSet allCsvFiles(final String selectList, final String where, final List<SQLParam> params,
+            final KeyFilters.Scan scan, final List<File> queried) {
+
+        final File[] files = new Deduplicator(conf).order(fileSystem.getAllCsvFiles());
+        final FlightEvent event = beginQuery(files);
+        final List<String> tableNames = fileToDB.createDbForSync(files);
+        if (scan != null) {
+            scan.start(files, tableNames);
+        }
+        if (queried != null) {
+            queried.clear();
+            queried.addAll(Collections.<File>nCopies(tableNames.size(), null));
+            for (File file : files) {
+                final int position = tableNames.indexOf(fileToDB.createDbForUpdate(file));
+                if (position != -1) {
+                    queried.set(position, file);
+                }
+            }
+        }
 
         PreparedStatement stmt = null;
         try {
             stmt = conn.prepareStatement(
-                    query + (where != null && !where.isEmpty()
+                    query(tableNames, selectList, scan != null || queried != null)
+                    + (where != null && !where.isEmpty()
                     ? " WHERE " + where : ""));
 
             SQLUtil.setParams(stmt, params);
@@ -225,6 +1032,7 @@ public class CSVDirConnection {
             LOG.error(e, "Error during sql query");
             throw new IllegalStateException(e);
         } finally {
+            event.commit();
             try {
                 if (stmt != null) {
                     stmt.close();
@@ -235,48 +1043,164 @@ public class CSVDirConnection {
         }
     }
 
-    private ResultSet doQuery(final PreparedStatement stm)
-            throws SQLException {
-
-        LOG.ok("Execute query {0}", stm.toString());
-        return stm.executeQuery();
+    /**
+     * @param files files about to be queried
+     * @return query event, binding included
+     */
+    private static FlightEvent beginQuery(final File[] files) {
+        final FlightEvent event = FlightEvent.begin(FlightEvent.QUERY);
+        if (event.isEnabled()) {
+            long bytes = 0;
+            for (File file : files) {
+                bytes += file.length();
+            }
+            event.set("files", files.length).set("bytes", bytes);
+        }
+        return event;
     }
 
-    private void dropTableAndViewIfExists()
-            throws SQLException {
+    /**
+     * Queries a single CSV file.
+     *
+     * @param file CSV file
+     * @param selectList columns to be returned
+     * @param where where clause, if any
+     * @param params where clause parameters
+     * @param orderBy columns matching records are to be sorted by, <tt>null</tt> for file order
+     * @return matching records
+     */
+    public ResultSet csvFile(
+            final File file, final String selectList, final String where, final List<SQLParam> params,
+            final String orderBy) {
 
-        LOG.ok("Drop view {0}", viewname);
+        final String tableName = bindFileTable(file);
 
-        Statement stmt = null;
+        PreparedStatement stmt = null;
         try {
-            stmt = conn.createStatement();
-            stmt.execute("DROP VIEW " + viewname + " IF EXISTS CASCADE");
+            stmt = conn.prepareStatement(
+                    query(Collections.singletonList(tableName), selectList) + (where != null && !where.isEmpty()
+                    ? " WHERE " + where : "") + (orderBy == null ? "" : " ORDER BY " + orderBy));
+
+            SQLUtil.setParams(stmt, params);
+
+            return doQuery(stmt);
+        } catch (SQLException e) {
+            LOG.error(e, "Error during sql query");
+            throw new IllegalStateException(e);
         } finally {
-            if (stmt != null) {
-                stmt.close();
+            try {
+                if (stmt != null) {
+                    stmt.close();
+                }
+            } catch (SQLException ex) {
+                LOG.error(ex, "While closing sql statement");
             }
         }
+    }
+
+    /**
+     * @param file CSV file
+     * @return number of records in the given file
+     * @throws SQLException if the file cannot be queried
+     */
+    public long countRows(final File file) throws SQLException {
+        return countRows(file, null, null);
+    }
 
-        for (String table : tables) {
-            LOG.ok("Drop table {0}", table);
+    /**
+     * @param file CSV file
+     * @param where where clause, if any
+     * @param params where clause parameters
+     * @return number of records in the given file matching the given where clause
+     * @throws SQLException if the file cannot be queried
+     */
+    public long countRows(final File file, final String where, final List<SQLParam> params) throws SQLException {
+        final PreparedStatement stmt = conn.prepareStatement(
+                query(Collections.singletonList(bindFileTable(file)), "COUNT(*)") + (where != null && !where.isEmpty()
+                ? " WHERE " + where : ""));
+        try {
+            SQLUtil.setParams(stmt, params);
 
+            final ResultSet resultSet = doQuery(stmt);
             try {
-                stmt = conn.createStatement();
-                stmt.execute("DROP TABLE " + table + " IF EXISTS CASCADE");
+                return resultSet.next() ? resultSet.getLong(1) : 0L;
             } finally {
-                if (stmt != null) {
-                    stmt.close();
-                }
+                resultSet.close();
             }
+        } finally {
+            stmt.close();
         }
     }
 
-    public FileSystem getFileSystem() {
-        return fileSystem;
+    private String bindFileTable(final File file) {
+        final String tableName = fileToDB.createDbForUpdate(file);
+        if (tableName == null) {
+            throw new IllegalStateException("Could not bind " + file.getName());
+        }
+        return tableName;
     }
 
-    public String getViewname() {
-        return viewname;
+    /**
+     * Builds the query returning the union of the given text tables: records are returned table after table, in the
+     * given order, duplicates included (see {@link Deduplicator}).
+     *
+     * @param tableNames text tables
+     * @param selectList columns to be returned
+     * @return select statement
+     */
+    private String query(final List<String> tableNames, final String selectList) {
+        return query(tableNames, selectList, false);
+    }
+
+    /**
+     * @param tableNames text tables to be queried, in order
+     * @param selectList columns to be returned
+     * @param marked whether records are to include {@link KeyFilters#FILE_COLUMN}
+     * @return union query of the given tables
+     */
+    private String query(final List<String> tableNames, final String selectList, final boolean marked) {
+        final StringBuilder union = new StringBuilder();
+        for (int i = 0; i < tableNames.size(); i++) {
+            if (union.length() > 0) {
+                union.append(" UNION ALL ");
+            }
+            if (marked) {
+                union.append("SELECT ").append(tableNames.get(i)).append(".*, ").append(i).
+                        append(" AS ").append(KeyFilters.FILE_COLUMN).append(" FROM ").append(tableNames.get(i));
+            } else {
+                union.append("SELECT * FROM ").append(tableNames.get(i));
+            }
+        }
+
+        return "SELECT " + (marked && !"*".equals(selectList) ? selectList + ", " + KeyFilters.FILE_COLUMN
+                : selectList) + " FROM (" + union + ") AS " + UNION_ALIAS;
+    }
+
+    /**
+     * @return new key scan, to be passed along with a full query so that the key filters of the files queried get
+     * built from the records read; <tt>null</tt> if files can be read natively, hence without key filters
+     */
+    public KeyFilters.Scan scanKeys() {
+        final KeyFilters keyFilters = fileToDB.getKeyFilters();
+        return keyFilters == null ? null : keyFilters.scan();
+    }
+
+    private ResultSet doQuery(final PreparedStatement stm)
+            throws SQLException {
+
+        LOG.ok("Execute query {0}", stm.toString());
+        return stm.executeQuery();
+    }
+
+    /**
+     * @return key index, <tt>null</tt> if not available for the current configuration
+     */
+    public KeyIndex getKeyIndex() {
+        return fileToDB.getKeyIndex();
+    }
+
+    public FileSystem getFileSystem() {
+        return fileSystem;
     }
 
     public Connection getConn() {
@@ -286,8 +1210,4 @@ public class CSVDirConnection {
     public CSVDirConfiguration getConf() {
         return conf;
     }
-
-    public Set<String> getTables() {
-        return tables;
-    }
 }
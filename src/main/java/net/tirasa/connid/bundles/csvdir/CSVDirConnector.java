@@ -19,10 +19,14 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import net.tirasa.connid.bundles.csvdir.database.Metrics;
+import net.tirasa.connid.bundles.csvdir.methods.CSVDirBulkCreate;
+import net.tirasa.connid.bundles.csvdir.methods.CSVDirCompact;
 import net.tirasa.connid.bundles.csvdir.methods.CSVDirCreate;
 import net.tirasa.connid.bundles.csvdir.methods.CSVDirDelete;
 import net.tirasa.connid.bundles.csvdir.methods.CSVDirExecuteQuery;
 import net.tirasa.connid.bundles.csvdir.methods.CSVDirFilterTranslator;
+import net.tirasa.connid.bundles.csvdir.methods.CSVDirReshard;
 import net.tirasa.connid.bundles.csvdir.methods.CSVDirSchema;
 import net.tirasa.connid.bundles.csvdir.methods.CSVDirSync;
 import net.tirasa.connid.bundles.csvdir.methods.CSVDirTest;
@@ -40,6 +44,8 @@ import org.identityconnectors.framework.common.objects.OperationOptions;
 import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
 import org.identityconnectors.framework.common.objects.ResultsHandler;
 import org.identityconnectors.framework.common.objects.Schema;
+import org.identityconnectors.framework.common.objects.SearchResult;
+import org.identityconnectors.framework.common.objects.SyncDelta;
 import org.identityconnectors.framework.common.objects.SyncResultsHandler;
 import org.identityconnectors.framework.common.objects.SyncToken;
 import org.identityconnectors.framework.common.objects.Uid;
@@ -49,6 +55,7 @@ import org.identityconnectors.framework.common.objects.filter.FilterTranslator;
 import org.identityconnectors.framework.spi.Configuration;
 import org.identityconnectors.framework.spi.Connector;
 import org.identityconnectors.framework.spi.ConnectorClass;
+import org.identityconnectors.framework.spi.SearchResultsHandler;
 import org.identityconnectors.framework.spi.operations.AuthenticateOp;
 import org.identityconnectors.framework.spi.operations.CreateOp;
 import org.identityconnectors.framework.spi.operations.DeleteOp;
@@ -85,7 +92,7 @@ public class CSVDirConnector implements
      */
     private CSVDirConfiguration configuration;
 
-    private long token = 0L;
+    private SyncToken token = new SyncToken(0L);
 
     @Override
     public final Configuration getConfiguration() {
@@ -102,6 +109,7 @@ public class CSVDirConnector implements
     @Override
     public final void init(final Configuration cfg) {
         configuration = (CSVDirConfiguration) cfg;
+        CSVDirConnection.acquire(configuration);
     }
 
     @Override
@@ -127,12 +135,15 @@ public class CSVDirConnector implements
             final ResultsHandler handler,
             final OperationOptions options) {
 
+        final Metrics.Sample sample = Metrics.start(configuration, Metrics.SEARCH);
         try {
-            new CSVDirExecuteQuery(configuration, oclass, where, handler, options).execute();
+            new CSVDirExecuteQuery(configuration, oclass, where, measured(handler), options).execute();
         } catch (ClassNotFoundException e) {
             throw new ConnectorIOException(e);
         } catch (SQLException e) {
             throw new ConnectorIOException(e);
+        } finally {
+            sample.stop();
         }
     }
 
@@ -143,36 +154,106 @@ public class CSVDirConnector implements
             final SyncResultsHandler handler,
             final OperationOptions options) {
 
+        final Metrics.Sample sample = Metrics.start(configuration, Metrics.SYNC);
         try {
-            token = new CSVDirSync(configuration, objectClass, syncToken, handler, options).execute();
+            token = new CSVDirSync(configuration, objectClass, syncToken, measured(handler), options).execute();
         } catch (ClassNotFoundException e) {
             throw new ConnectorIOException(e);
         } catch (SQLException ex) {
             throw new ConnectorIOException(ex);
+        } finally {
+            sample.stop();
         }
     }
 
     @Override
 
     public final SyncToken getLatestSyncToken(final ObjectClass objectClass) {
-        return new SyncToken(token);
+        return token;
     }
 
     @Override
     public void dispose() {
-        // no actions
+        if (configuration != null) {
+            CSVDirConnection.release(configuration);
+        }
     }
 
     @Override
     public final Uid create(final ObjectClass objectClass, final Set<Attribute> set,
             final OperationOptions options) {
 
+        final Metrics.Sample sample = Metrics.start(configuration, Metrics.CREATE);
         try {
             return new CSVDirCreate(configuration, set).execute();
         } catch (ClassNotFoundException e) {
             throw new ConnectorIOException(e);
         } catch (SQLException e) {
             throw new ConnectorIOException(e);
+        } finally {
+            sample.stop();
+        }
+    }
+
+    /**
+     * Creates the given accounts at once, appending them with a single write: nothing is created if any account is
+     * invalid or already exists.
+     *
+     * @param objectClass object class
+     * @param sets attributes of the accounts to be created
+     * @param options operation options
+     * @return uids of the created accounts, in the given order
+     */
+    public final List<Uid> createAll(final ObjectClass objectClass, final List<Set<Attribute>> sets,
+            final OperationOptions options) {
+
+        final Metrics.Sample sample = Metrics.start(configuration, Metrics.CREATE_ALL);
+        try {
+            return new CSVDirBulkCreate(configuration, sets).execute();
+        } catch (ClassNotFoundException e) {
+            throw new ConnectorIOException(e);
+        } catch (SQLException e) {
+            throw new ConnectorIOException(e);
+        } finally {
+            sample.stop();
+        }
+    }
+
+    /**
+     * Moves the records of all CSV files to the bucket files of the configured partitions: to be run once partitions
+     * are enabled, or their number changed.
+     *
+     * @return number of bucket files written
+     */
+    public final int reshard() {
+        final Metrics.Sample sample = Metrics.start(configuration, Metrics.RESHARD);
+        try {
+            return new CSVDirReshard(configuration).execute();
+        } catch (ClassNotFoundException e) {
+            throw new ConnectorIOException(e);
+        } catch (SQLException e) {
+            throw new ConnectorIOException(e);
+        } finally {
+            sample.stop();
+        }
+    }
+
+    /**
+     * Removes for good the deleted records, either logged as tombstones or flagged through the delete column; this
+     * also happens in the background once the configured number of tombstones is reached.
+     *
+     * @return number of removed records
+     */
+    public final int compact() {
+        final Metrics.Sample sample = Metrics.start(configuration, Metrics.COMPACT);
+        try {
+            return new CSVDirCompact(configuration).execute();
+        } catch (ClassNotFoundException e) {
+            throw new ConnectorIOException(e);
+        } catch (SQLException e) {
+            throw new ConnectorIOException(e);
+        } finally {
+            sample.stop();
         }
     }
 
@@ -180,12 +261,15 @@ public class CSVDirConnector implements
     public final Uid update(final ObjectClass objectClass, final Uid uid,
             final Set<Attribute> attrs, final OperationOptions options) {
 
+        final Metrics.Sample sample = Metrics.start(configuration, Metrics.UPDATE);
         try {
             return new CSVDirUpdate(configuration, uid, attrs).execute();
         } catch (ClassNotFoundException e) {
             throw new ConnectorIOException(e);
         } catch (SQLException e) {
             throw new ConnectorIOException(e);
+        } finally {
+            sample.stop();
         }
     }
 
@@ -193,12 +277,15 @@ public class CSVDirConnector implements
     public final void delete(final ObjectClass objectClass, final Uid uid,
             final OperationOptions options) {
 
+        final Metrics.Sample sample = Metrics.start(configuration, Metrics.DELETE);
         try {
             new CSVDirDelete(configuration, uid).execute();
         } catch (ClassNotFoundException e) {
             throw new ConnectorIOException(e);
         } catch (SQLException e) {
             throw new ConnectorIOException(e);
+        } finally {
+            sample.stop();
         }
     }
 
@@ -262,6 +349,64 @@ public class CSVDirConnector implements
         return res.get(0);
     }
 
+    /**
+     * Wraps the given handler, charging the objects handed over, and the time spent handling them, to the running
+     * operation's {@link Metrics}; paged results are passed through.
+     *
+     * @param handler results handler
+     * @return measured results handler
+     */
+    private static ResultsHandler measured(final ResultsHandler handler) {
+        if (handler instanceof SearchResultsHandler) {
+            return new SearchResultsHandler() {
+
+                @Override
+                public boolean handle(final ConnectorObject object) {
+                    return measure(handler, object);
+                }
+
+                @Override
+                public void handleResult(final SearchResult result) {
+                    ((SearchResultsHandler) handler).handleResult(result);
+                }
+            };
+        }
+
+        return new ResultsHandler() {
+
+            @Override
+            public boolean handle(final ConnectorObject object) {
+                return measure(handler, object);
+            }
+        };
+    }
+
+    private static boolean measure(final ResultsHandler handler, final ConnectorObject object) {
+        final long start = System.nanoTime();
+        try {
+            return handler.handle(object);
+        } finally {
+            Metrics.count(Metrics.ROWS_EMITTED, 1L);
+            Metrics.count(Metrics.HANDLER_TIME, System.nanoTime() - start);
+        }
+    }
+
+    private static SyncResultsHandler measured(final SyncResultsHandler handler) {
+        return new SyncResultsHandler() {
+
+            @Override
+            public boolean handle(final SyncDelta delta) {
+                final long start = System.nanoTime();
+                try {
+                    return handler.handle(delta);
+                } finally {
+                    Metrics.count(Metrics.ROWS_EMITTED, 1L);
+                    Metrics.count(Metrics.HANDLER_TIME, System.nanoTime() - start);
+                }
+            }
+        };
+    }
+
     @Override
     public final void test() {
         LOG.info("Connection test");
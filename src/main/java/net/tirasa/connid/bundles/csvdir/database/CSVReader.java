@@ -0,0 +1,485 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir.database;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import net.tirasa.connid.bundles.csvdir.CSVDirConfiguration;
+
+/**
+ * Buffered CSV tokenizer honoring the configured field delimiter, text qualifier and encoding.
+ * <br/>
+ * Tokenization happens on bytes, hence the configured encoding must be ASCII-compatible (see
+ * {@link #isSupported(CSVDirConfiguration)}): this allows to know the exact byte offset of each record. As for
+ * HSQLDB text tables, empty unquoted values are read as <tt>null</tt> and blank lines are skipped.
+ * <br/>
+ * Values of the current record are kept as slices of a reusable byte array and only decoded when requested, so
+ * that records rejected by a filter do not allocate; files can also be read through memory-mapped regions rather
+ * than buffered streams.
+ * <br/>
+ * Records and bytes read are charged to the current operation's {@link Metrics} when closing.
+ */
+public class CSVReader implements Closeable, CSVRecord {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Largest region mapped in memory: bigger files are read through a buffered stream.
+     */
+    private static final long MAX_MAPPED_SIZE = Integer.MAX_VALUE;
+
+    private final InputStream in;
+
+    /**
+     * Mapped region being read, <tt>null</tt> when reading from {@link #in}.
+     */
+    private final ByteBuffer mapped;
+
+    private final Charset charset;
+
+    private final int delimiter;
+
+    private final int qualifier;
+
+    private final int columns;
+
+    private final byte[] buffer;
+
+    private int pos = 0;
+
+    private int limit = 0;
+
+    /**
+     * Absolute offset of the next byte to read.
+     */
+    private long position;
+
+    private final long startOffset;
+
+    /**
+     * Non-blank records read so far.
+     */
+    private long records = 0;
+
+    /**
+     * Unescaped values of the current record, one after the other.
+     */
+    private byte[] data = new byte[1024];
+
+    private int dataLength = 0;
+
+    private final int[] starts;
+
+    private final int[] ends;
+
+    private final boolean[] present;
+
+    private final String[] decoded;
+
+    /**
+     * Filter values, encoded with the configured charset.
+     */
+    private final Map<String, byte[]> encoded = new IdentityHashMap<String, byte[]>();
+
+    private long recordOffset = -1;
+
+    /**
+     * Columns to be decoded, <tt>null</tt> for all: values of other columns are skipped and returned as
+     * <tt>null</tt>.
+     */
+    private boolean[] projection;
+
+    public CSVReader(final InputStream in, final long offset, final CSVDirConfiguration conf) {
+        this(in, null, offset, conf);
+    }
+
+    private CSVReader(
+            final InputStream in, final ByteBuffer mapped, final long offset, final CSVDirConfiguration conf) {
+
+        this.in = in;
+        this.mapped = mapped;
+        this.buffer = mapped == null ? new byte[BUFFER_SIZE] : null;
+        this.position = offset;
+        this.startOffset = offset;
+        this.charset = Charset.forName(conf.getEncoding());
+        this.delimiter = conf.getFieldDelimiter();
+        this.qualifier = conf.getTextQualifier();
+        this.columns = conf.getFields().length;
+        this.starts = new int[columns];
+        this.ends = new int[columns];
+        this.present = new boolean[columns];
+        this.decoded = new String[columns];
+    }
+
+    /**
+     * Opens the given file for reading from the beginning, skipping the header line if so configured.
+     *
+     * @param file CSV file
+     * @param conf configuration
+     * @return reader
+     * @throws IOException if the file cannot be read
+     */
+    public static CSVReader open(final File file, final CSVDirConfiguration conf) throws IOException {
+        final CSVReader reader = create(file, 0L, conf);
+        if (conf.getIgnoreHeader()) {
+            reader.readRecord();
+        }
+        return reader;
+    }
+
+    /**
+     * Opens the given file for reading from the given byte offset, which must be the beginning of a record; the header
+     * line is skipped, if so configured, when reading from the beginning.
+     *
+     * @param file CSV file
+     * @param offset byte offset
+     * @param conf configuration
+     * @return reader
+     * @throws IOException if the file cannot be read
+     */
+    public static CSVReader open(final File file, final long offset, final CSVDirConfiguration conf)
+            throws IOException {
+
+        if (offset <= 0) {
+            return open(file, conf);
+        }
+        return create(file, offset, conf);
+    }
+
+    private static CSVReader create(final File file, final long offset, final CSVDirConfiguration conf)
+            throws IOException {
+
+        if (conf.isMemoryMapped() && ChangeTracker.length(file) - offset <= MAX_MAPPED_SIZE) {
+            final RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                // the mapping stays valid after the channel is closed
+                final FileChannel channel = raf.getChannel();
+                final long size = Math.max(0L, channel.size() - offset);
+                return new CSVReader(null, channel.map(FileChannel.MapMode.READ_ONLY, offset, size), offset, conf);
+            } finally {
+                raf.close();
+            }
+        }
+
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            in.getChannel().position(offset);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return new CSVReader(in, offset, conf);
+    }
+
+    /**
+     * Tells whether a record may start at the given offset of the given file, e.g. whether the offset is still past
+     * the end of a line: to be checked before resuming reading from an offset recorded earlier, as records before it
+     * may have been rewritten meanwhile.
+     *
+     * @param file CSV file
+     * @param offset byte offset
+     * @return whether the given offset is the beginning of the file, or follows a line terminator
+     * @throws IOException if the file cannot be read
+     */
+    public static boolean isRecordStart(final File file, final long offset) throws IOException {
+        if (offset == 0) {
+            return true;
+        }
+        if (offset < 0 || offset > ChangeTracker.length(file)) {
+            return false;
+        }
+
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(offset - 1);
+            final int previous = raf.read();
+            return previous == '\n' || previous == '\r';
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @param projection flags telling, for each column, whether it is to be decoded; <tt>null</tt> for all
+     */
+    public void setProjection(final boolean[] projection) {
+        this.projection = projection == null ? null : projection.clone();
+    }
+
+    /**
+     * Tells whether the given configuration can be read by this class, e.g. whether the configured encoding is
+     * ASCII-compatible and the field delimiter and text qualifier are ASCII characters.
+     *
+     * @param conf configuration
+     * @return whether the given configuration can be read by this class
+     */
+    public static boolean isSupported(final CSVDirConfiguration conf) {
+        final Charset charset = Charset.forName(conf.getEncoding());
+        if (!charset.canEncode()) {
+            return false;
+        }
+
+        final String probe = "\r\n" + conf.getFieldDelimiter() + conf.getTextQualifier() + " az09";
+        final byte[] encoded = probe.getBytes(charset);
+        if (encoded.length != probe.length()) {
+            return false;
+        }
+        for (int i = 0; i < encoded.length; i++) {
+            if (encoded[i] != probe.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads next non-blank record.
+     *
+     * @return record values, positioned as the configured fields; <tt>null</tt> at end of file
+     * @throws IOException if the underlying stream cannot be read
+     */
+    public String[] next() throws IOException {
+        return advance() ? getValues() : null;
+    }
+
+    /**
+     * Moves to next non-blank record, whose values can then be accessed via this {@link CSVRecord} without being
+     * copied.
+     *
+     * @return <tt>false</tt> at end of file, <tt>true</tt> otherwise
+     * @throws IOException if the underlying stream cannot be read
+     */
+    public boolean advance() throws IOException {
+        boolean found = false;
+        while (!found) {
+            if (peek() == -1) {
+                return false;
+            }
+            found = readRecord();
+        }
+        records++;
+        return true;
+    }
+
+    /**
+     * @return values of the current record, positioned as the configured fields
+     */
+    public String[] getValues() {
+        final String[] values = new String[columns];
+        for (int i = 0; i < columns; i++) {
+            values[i] = getValue(i);
+        }
+        return values;
+    }
+
+    @Override
+    public boolean isNull(final int index) {
+        return index < 0 || index >= columns || !present[index];
+    }
+
+    @Override
+    public String getValue(final int index) {
+        if (isNull(index)) {
+            return null;
+        }
+        if (decoded[index] == null) {
+            decoded[index] = new String(data, starts[index], ends[index] - starts[index], charset);
+        }
+        return decoded[index];
+    }
+
+    @Override
+    public boolean valueEquals(final int index, final String value) {
+        if (isNull(index)) {
+            return false;
+        }
+        if (decoded[index] != null) {
+            return decoded[index].equals(value);
+        }
+
+        byte[] bytes = encoded.get(value);
+        if (bytes == null) {
+            bytes = value.getBytes(charset);
+            encoded.put(value, bytes);
+        }
+        if (bytes.length != ends[index] - starts[index]) {
+            return false;
+        }
+        for (int i = 0, j = starts[index]; i < bytes.length; i++, j++) {
+            if (bytes[i] != data[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return byte offset of the current record
+     */
+    public long getRecordOffset() {
+        return recordOffset;
+    }
+
+    /**
+     * @return byte offset following the current record, line terminator included
+     */
+    public long getOffset() {
+        return position;
+    }
+
+    private boolean readRecord() throws IOException {
+        recordOffset = position;
+        for (int i = 0; i < columns; i++) {
+            present[i] = false;
+            decoded[i] = null;
+        }
+        dataLength = 0;
+
+        int index = 0;
+        int fieldStart = 0;
+
+        boolean blank = true;
+        boolean quoted = false;
+        boolean inQuotes = false;
+
+        boolean endOfRecord = false;
+        while (!endOfRecord) {
+            final int c = read();
+            if (c == -1) {
+                endOfRecord = true;
+            } else if (inQuotes) {
+                if (c == qualifier) {
+                    if (peek() == qualifier) {
+                        append(read());
+                    } else {
+                        inQuotes = false;
+                    }
+                } else {
+                    append(c);
+                }
+            } else if (c == qualifier && dataLength == fieldStart && !quoted) {
+                quoted = true;
+                inQuotes = true;
+                blank = false;
+            } else if (c == delimiter) {
+                setValue(index++, fieldStart, quoted);
+                fieldStart = dataLength;
+                quoted = false;
+                blank = false;
+            } else if (c == '\n') {
+                endOfRecord = true;
+            } else if (c == '\r') {
+                if (peek() == '\n') {
+                    read();
+                }
+                endOfRecord = true;
+            } else {
+                append(c);
+                if (c != ' ' && c != '\t') {
+                    blank = false;
+                }
+            }
+        }
+
+        if (blank) {
+            // empty line, or row deleted by HSQLDB (overwritten with spaces)
+            return false;
+        }
+
+        setValue(index, fieldStart, quoted);
+        return true;
+    }
+
+    private void setValue(final int index, final int fieldStart, final boolean quoted) {
+        if (index < columns && (projection == null || projection[index]) && (dataLength > fieldStart || quoted)) {
+            present[index] = true;
+            starts[index] = fieldStart;
+            ends[index] = dataLength;
+        } else {
+            // value not needed: drop its bytes
+            dataLength = fieldStart;
+        }
+    }
+
+    private void append(final int c) {
+        if (dataLength == data.length) {
+            final byte[] larger = new byte[data.length * 2];
+            System.arraycopy(data, 0, larger, 0, dataLength);
+            data = larger;
+        }
+        data[dataLength++] = (byte) c;
+    }
+
+    private int read() throws IOException {
+        if (mapped != null) {
+            if (!mapped.hasRemaining()) {
+                return -1;
+            }
+            position++;
+            return mapped.get() & 0xFF;
+        }
+
+        if (pos == limit && !fill()) {
+            return -1;
+        }
+        position++;
+        return buffer[pos++] & 0xFF;
+    }
+
+    private int peek() throws IOException {
+        if (mapped != null) {
+            return mapped.hasRemaining() ? mapped.get(mapped.position()) & 0xFF : -1;
+        }
+
+        if (pos == limit && !fill()) {
+            return -1;
+        }
+        return buffer[pos] & 0xFF;
+    }
+
+    private boolean fill() throws IOException {
+        pos = 0;
+        limit = 0;
+
+        int read = 0;
+        while (read == 0) {
+            read = in.read(buffer, 0, buffer.length);
+        }
+        if (read > 0) {
+            limit = read;
+        }
+        return limit > 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        Metrics.count(Metrics.ROWS_SCANNED, records);
+        Metrics.count(Metrics.BYTES_READ, position - startOffset);
+
+        if (in != null) {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir.database;
+
+/**
+ * Values of the record being read, positioned as the configured fields and decoded on demand.
+ */
+public interface CSVRecord {
+
+    /**
+     * @param index column position
+     * @return whether the given column is empty and unquoted, missing or not projected
+     */
+    boolean isNull(int index);
+
+    /**
+     * @param index column position
+     * @return value of the given column, <tt>null</tt> if {@link #isNull(int)}
+     */
+    String getValue(int index);
+
+    /**
+     * Compares the given column to the given value without decoding it.
+     *
+     * @param index column position
+     * @param value value, not <tt>null</tt>
+     * @return whether the given column is not {@link #isNull(int)} and equals the given value
+     */
+    boolean valueEquals(int index, String value);
+}
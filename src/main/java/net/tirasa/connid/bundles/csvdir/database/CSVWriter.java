@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir.database;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Map;
+import net.tirasa.connid.bundles.csvdir.CSVDirConfiguration;
+
+/**
+ * Formats records as CSV lines honoring the configured field delimiter, text qualifier, quoting and encoding, as
+ * HSQLDB text tables would write them: <tt>null</tt> values are written empty and unquoted, text qualifiers within
+ * quoted values are doubled.
+ */
+public class CSVWriter {
+
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+    private final CSVDirConfiguration conf;
+
+    private final ColumnIndex columns;
+
+    private final Charset charset;
+
+    private final StringBuilder line = new StringBuilder();
+
+    public CSVWriter(final CSVDirConfiguration conf) {
+        this.conf = conf;
+        this.columns = new ColumnIndex(conf);
+        this.charset = Charset.forName(conf.getEncoding());
+    }
+
+    public static String getLineSeparator() {
+        return LINE_SEPARATOR;
+    }
+
+    /**
+     * @param attributes values, by column name
+     * @return values positioned as the configured fields
+     * @throws IllegalArgumentException if any of the given columns is not configured
+     */
+    public String[] toValues(final Map<String, String> attributes) {
+        return toValues(new String[columns.size()], attributes);
+    }
+
+    /**
+     * @param values values positioned as the configured fields, to be overwritten
+     * @param attributes values, by column name
+     * @return the given values, overwritten with the given attributes
+     * @throws IllegalArgumentException if any of the given columns is not configured
+     */
+    public String[] toValues(final String[] values, final Map<String, String> attributes) {
+        for (Map.Entry<String, String> entry : attributes.entrySet()) {
+            final int index = columns.indexOf(entry.getKey());
+            if (index == -1) {
+                throw new IllegalArgumentException("Unknown column " + entry.getKey());
+            }
+            values[index] = entry.getValue();
+        }
+        return values;
+    }
+
+    /**
+     * @return header line, with the configured field names
+     */
+    public byte[] header() {
+        final String[] names = new String[columns.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = columns.getName(i);
+        }
+        return format(names);
+    }
+
+    /**
+     * @param values values positioned as the configured fields
+     * @return encoded line, line separator included
+     */
+    public byte[] format(final String[] values) {
+        line.setLength(0);
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                line.append(conf.getFieldDelimiter());
+            }
+            append(values[i]);
+        }
+        line.append(LINE_SEPARATOR);
+
+        return line.toString().getBytes(charset);
+    }
+
+    /**
+     * Writes the given values as a line.
+     *
+     * @param out output stream
+     * @param values values positioned as the configured fields
+     * @return number of bytes written
+     * @throws IOException if the line cannot be written
+     */
+    public int write(final OutputStream out, final String[] values) throws IOException {
+        final byte[] bytes = format(values);
+        out.write(bytes);
+        return bytes.length;
+    }
+
+    private void append(final String value) {
+        if (value == null) {
+            return;
+        }
+
+        final char qualifier = conf.getTextQualifier();
+        if (Boolean.TRUE.equals(conf.getQuotationRequired()) || needsQuotes(value)) {
+            line.append(qualifier);
+            for (int i = 0; i < value.length(); i++) {
+                final char c = value.charAt(i);
+                if (c == qualifier) {
+                    line.append(qualifier);
+                }
+                line.append(c);
+            }
+            line.append(qualifier);
+        } else {
+            line.append(value);
+        }
+    }
+
+    private boolean needsQuotes(final String value) {
+        if (value.length() == 0) {
+            // empty, unquoted values are read as null
+            return true;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == conf.getFieldDelimiter() || c == conf.getTextQualifier() || c == '\r' || c == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+}
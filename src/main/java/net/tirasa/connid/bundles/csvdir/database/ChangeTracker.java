@@ -0,0 +1,260 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir.database;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import net.tirasa.connid.bundles.csvdir.CSVDirConfiguration;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.spi.Connector;
+
+/**
+ * In-memory view of the CSV files matched in a source path, with their size and last modification time, shared by
+ * all the connector instances working on the same source path and file mask.
+ * <br/>
+ * Files written by the connector are refreshed as soon as they are changed; the whole source path is listed again
+ * only when the configured reconcile interval has elapsed, so that changes made by others are eventually seen
+ * without stat-ing every file for every operation.
+ */
+public final class ChangeTracker {
+
+    /**
+     * Setup {@link Connector} based logging.
+     */
+    private static final Log LOG = Log.getLog(ChangeTracker.class);
+
+    private static final Map<String, ChangeTracker> TRACKERS = new HashMap<String, ChangeTracker>();
+
+    private static final Map<String, Integer> REFERENCES = new HashMap<String, Integer>();
+
+    private final File sourcePath;
+
+    private final FileFilter fileFilter;
+
+    private final long reconcileInterval;
+
+    private final Map<String, TrackedFile> files = new HashMap<String, TrackedFile>();
+
+    /**
+     * Names of the files found removed, either when listing the source path again or when told by the connector.
+     */
+    private final Set<String> removed = new HashSet<String>();
+
+    private long lastReconcile = 0L;
+
+    private ChangeTracker(final File sourcePath, final FileFilter fileFilter, final long reconcileInterval) {
+        this.sourcePath = sourcePath;
+        this.fileFilter = fileFilter;
+        this.reconcileInterval = reconcileInterval;
+    }
+
+    /**
+     * @param conf configuration
+     * @param fileFilter filter matching CSV files
+     * @return change tracker for the configured source path and file mask, <tt>null</tt> if change tracking is
+     * disabled
+     */
+    public static ChangeTracker getInstance(final CSVDirConfiguration conf, final FileFilter fileFilter) {
+        if (conf.getReconcileInterval() <= 0) {
+            return null;
+        }
+
+        final String key = getKey(conf);
+
+        synchronized (TRACKERS) {
+            ChangeTracker tracker = TRACKERS.get(key);
+            if (tracker == null) {
+                tracker = new ChangeTracker(new File(conf.getSourcePath()).getAbsoluteFile(), fileFilter,
+                        conf.getReconcileInterval() * 1000L);
+                TRACKERS.put(key, tracker);
+            }
+            return tracker;
+        }
+    }
+
+    /**
+     * Registers one more user (typically a connector instance) of the change tracker for the configured source path
+     * and file mask.
+     *
+     * @param conf configuration
+     */
+    public static void acquire(final CSVDirConfiguration conf) {
+        final String key = getKey(conf);
+
+        synchronized (TRACKERS) {
+            final Integer references = REFERENCES.get(key);
+            REFERENCES.put(key, references == null ? 1 : references + 1);
+        }
+    }
+
+    /**
+     * Unregisters a user of the change tracker for the configured source path and file mask: the change tracker, if
+     * any, is dropped when no users are left.
+     *
+     * @param conf configuration
+     */
+    public static void release(final CSVDirConfiguration conf) {
+        final String key = getKey(conf);
+
+        synchronized (TRACKERS) {
+            final Integer references = REFERENCES.get(key);
+            if (references == null || references <= 1) {
+                REFERENCES.remove(key);
+                TRACKERS.remove(key);
+            } else {
+                REFERENCES.put(key, references - 1);
+            }
+        }
+    }
+
+    private static String getKey(final CSVDirConfiguration conf) {
+        return new File(conf.getSourcePath()).getAbsolutePath()
+                + '|' + conf.getFileMask() + '|' + conf.getReconcileInterval();
+    }
+
+    /**
+     * Tells whether the given file exists, as known to the change tracker for the configured source path and file
+     * mask: files neither tracked nor known as removed, or all files if change tracking is disabled, are looked for
+     * on disk.
+     *
+     * @param conf configuration
+     * @param fileName CSV file name
+     * @return whether the given file exists
+     */
+    public static boolean exists(final CSVDirConfiguration conf, final String fileName) {
+        final ChangeTracker tracker;
+        synchronized (TRACKERS) {
+            tracker = TRACKERS.get(getKey(conf));
+        }
+
+        if (tracker != null) {
+            synchronized (tracker) {
+                if (tracker.files.containsKey(fileName)) {
+                    return true;
+                }
+                if (tracker.removed.contains(fileName)) {
+                    return false;
+                }
+            }
+        }
+        return new File(conf.getSourcePath(), fileName).exists();
+    }
+
+    /**
+     * Size and last modification time of the files returned by {@link #getFiles()} are the ones known to the tracker,
+     * hence possibly stale: byte ranges must be computed from the current size instead.
+     *
+     * @param file file, possibly returned by {@link #getFiles()}
+     * @return current size of the given file
+     */
+    public static long length(final File file) {
+        return file instanceof TrackedFile ? new File(file.getPath()).length() : file.length();
+    }
+
+    /**
+     * @param file file, possibly returned by {@link #getFiles()}
+     * @return current last modification time of the given file
+     * @see #length(File)
+     */
+    public static long lastModified(final File file) {
+        return file instanceof TrackedFile ? new File(file.getPath()).lastModified() : file.lastModified();
+    }
+
+    /**
+     * @return matched files, listing the source path again if the reconcile interval has elapsed; size and last
+     * modification time of the returned files are the ones known to this tracker
+     */
+    public synchronized File[] getFiles() {
+        if (System.currentTimeMillis() - lastReconcile >= reconcileInterval) {
+            reconcile();
+        }
+
+        final Collection<TrackedFile> tracked = files.values();
+        return tracked.toArray(new File[tracked.size()]);
+    }
+
+    /**
+     * Refreshes size and last modification time of the given file, after it was changed or created.
+     *
+     * @param file changed file
+     */
+    public synchronized void touched(final File file) {
+        if (file.isFile() && fileFilter.accept(file)) {
+            files.put(file.getName(), new TrackedFile(file));
+            removed.remove(file.getName());
+        } else if (files.remove(file.getName()) != null) {
+            removed.add(file.getName());
+        }
+    }
+
+    /**
+     * Forces the source path to be listed again on next access.
+     */
+    public synchronized void invalidate() {
+        lastReconcile = 0L;
+    }
+
+    private void reconcile() {
+        final File[] listed = sourcePath.listFiles(fileFilter);
+
+        final Set<String> previous = new HashSet<String>(files.keySet());
+        files.clear();
+        if (listed != null) {
+            for (File file : listed) {
+                files.put(file.getName(), new TrackedFile(file));
+            }
+        }
+        previous.removeAll(files.keySet());
+        removed.addAll(previous);
+        removed.removeAll(files.keySet());
+        lastReconcile = System.currentTimeMillis();
+
+        LOG.ok("Reconciled {0}: {1} files", sourcePath.getPath(), files.size());
+    }
+
+    /**
+     * File whose size and last modification time are the ones read when tracked.
+     */
+    private static final class TrackedFile extends File {
+
+        private static final long serialVersionUID = -3391203522651539245L;
+
+        private final long length;
+
+        private final long lastModified;
+
+        TrackedFile(final File file) {
+            super(file.getPath());
+            this.length = file.length();
+            this.lastModified = file.lastModified();
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public long lastModified() {
+            return lastModified;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir.database;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import net.tirasa.connid.bundles.csvdir.CSVDirConfiguration;
+
+/**
+ * Position of the configured columns in a CSV record; column names are matched case-insensitively, as HSQLDB does.
+ */
+public class ColumnIndex {
+
+    private final String[] names;
+
+    private final Map<String, Integer> positions = new HashMap<String, Integer>();
+
+    private final int[] keys;
+
+    public ColumnIndex(final CSVDirConfiguration conf) {
+        final String[] fields = conf.getFields();
+
+        names = new String[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            names[i] = fields[i].trim();
+            positions.put(names[i].toUpperCase(Locale.ENGLISH), i);
+        }
+
+        final String[] keyColumnNames = conf.getKeyColumnNames();
+        keys = new int[keyColumnNames.length];
+        for (int i = 0; i < keyColumnNames.length; i++) {
+            keys[i] = indexOf(keyColumnNames[i]);
+        }
+    }
+
+    /**
+     * @param name column name
+     * @return position of the given column, -1 if not configured
+     */
+    public final int indexOf(final String name) {
+        if (name == null) {
+            return -1;
+        }
+
+        final Integer position = positions.get(name.trim().toUpperCase(Locale.ENGLISH));
+        return position == null ? -1 : position;
+    }
+
+    public String getName(final int index) {
+        return names[index];
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * @return positions of the key columns
+     */
+    public int[] getKeys() {
+        return keys.clone();
+    }
+
+    /**
+     * @param values record values, positioned as the configured fields
+     * @param separator key separator
+     * @return composite key of the given record
+     */
+    public String getKey(final String[] values, final String separator) {
+        final StringBuilder key = new StringBuilder();
+        for (int i = 0; i < keys.length; i++) {
+            if (i > 0) {
+                key.append(separator);
+            }
+            key.append(values[keys[i]]);
+        }
+        return key.toString();
+    }
+
+    /**
+     * @param key current composite key of the record, <tt>null</tt> for new records
+     * @param attributes attributes written, by column name
+     * @param separator key separator
+     * @return composite key of a record written with the given attributes
+     */
+    public String getKey(final String key, final Map<String, String> attributes, final String separator) {
+        final String[] values = new String[names.length];
+
+        if (key != null) {
+            final String[] keyValues = key.split(separator);
+            for (int i = 0; i < keys.length && i < keyValues.length; i++) {
+                values[keys[i]] = keyValues[i];
+            }
+        }
+
+        for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+            final int index = indexOf(attribute.getKey());
+            if (index != -1) {
+                values[index] = attribute.getValue();
+            }
+        }
+
+        return getKey(values, separator);
+    }
+
+    /**
+     * @param record record
+     * @param separator key separator
+     * @return composite key of the given record
+     */
+    public String getKey(final CSVRecord record, final String separator) {
+        final StringBuilder key = new StringBuilder();
+        for (int i = 0; i < keys.length; i++) {
+            if (i > 0) {
+                key.append(separator);
+            }
+            key.append(record.getValue(keys[i]));
+        }
+        return key.toString();
+    }
+}
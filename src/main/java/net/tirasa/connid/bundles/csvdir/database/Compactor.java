@@ -0,0 +1,77 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import net.tirasa.connid.bundles.csvdir.CSVDirConfiguration;
+
+/**
+ * Tells which records of a CSV file can be removed for good: records logged in the {@link TombstoneLog} and records
+ * soft-deleted through the configured delete column. Removal itself is left to {@link FileRewriter}, which moves
+ * the remaining bytes as they are.
+ */
+public class Compactor {
+
+    private final CSVDirConfiguration conf;
+
+    private final ColumnIndex columns;
+
+    private final int deleteColumn;
+
+    public Compactor(final CSVDirConfiguration conf) {
+        this.conf = conf;
+        this.columns = new ColumnIndex(conf);
+        this.deleteColumn = columns.indexOf(conf.getDeleteColumnName());
+    }
+
+    /**
+     * Finds the records of the given file to be removed.
+     *
+     * @param file CSV file
+     * @param deleted keys of the records logged as deleted in the given file, by offset; <tt>null</tt> if none
+     * @return start (inclusive) and end (exclusive) offsets of the records to be removed, in file order
+     * @throws IOException if the file cannot be read
+     */
+    public List<long[]> collect(final File file, final Map<Long, String> deleted) throws IOException {
+        final List<long[]> ranges = new ArrayList<long[]>();
+
+        final CSVReader reader = CSVReader.open(file, conf);
+        try {
+            while (reader.advance()) {
+                if (isRemoved(reader, deleted)) {
+                    ranges.add(new long[] { reader.getRecordOffset(), reader.getOffset() });
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return ranges;
+    }
+
+    private boolean isRemoved(final CSVReader reader, final Map<Long, String> deleted) {
+        if (deleteColumn != -1 && Boolean.valueOf(reader.getValue(deleteColumn))) {
+            return true;
+        }
+
+        final String key = deleted == null ? null : deleted.get(reader.getRecordOffset());
+        return key != null && key.equals(columns.getKey(reader, conf.getKeyseparator()));
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir.database;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import net.tirasa.connid.bundles.csvdir.CSVDirConfiguration;
+
+/**
+ * Drops, while reading the CSV files in sequence, the records whose key was already returned, according to the
+ * configured dedup policy:
+ * <ul>
+ * <li><tt>none</tt>: all records are returned;</li>
+ * <li><tt>first</tt>: files are read by name, the first record found for each key wins;</li>
+ * <li><tt>newest</tt>: files are read from the most recently modified, the newest record for each key wins.</li>
+ * </ul>
+ * Keys are matched case-insensitively, as {@link KeyIndex} does.
+ */
+public class Deduplicator {
+
+    private static final Comparator<File> BY_NAME = new Comparator<File>() {
+
+        @Override
+        public int compare(final File file1, final File file2) {
+            return file1.getName().compareTo(file2.getName());
+        }
+    };
+
+    private static final Comparator<File> NEWEST_FIRST = new Comparator<File>() {
+
+        @Override
+        public int compare(final File file1, final File file2) {
+            final long lastModified1 = file1.lastModified();
+            final long lastModified2 = file2.lastModified();
+            return lastModified1 == lastModified2
+                    ? BY_NAME.compare(file1, file2)
+                    : lastModified1 > lastModified2 ? -1 : 1;
+        }
+    };
+
+    private final String policy;
+
+    private final Set<String> seen = new HashSet<String>();
+
+    public Deduplicator(final CSVDirConfiguration conf) {
+        this.policy = conf.getDedupPolicy();
+    }
+
+    /**
+     * Sorts the given files in the order they must be read for this policy to apply.
+     *
+     * @param files CSV files
+     * @return sorted copy of the given files
+     */
+    public File[] order(final File[] files) {
+        final File[] ordered = files.clone();
+        if (CSVDirConfiguration.DEDUP_NEWEST.equalsIgnoreCase(policy)) {
+            Arrays.sort(ordered, NEWEST_FIRST);
+        } else if (CSVDirConfiguration.DEDUP_FIRST.equalsIgnoreCase(policy)) {
+            Arrays.sort(ordered, BY_NAME);
+        }
+        return ordered;
+    }
+
+    /**
+     * @param key composite key of the record read
+     * @return whether a record with the same key was already read
+     */
+    public boolean isDuplicate(final String key) {
+        if (CSVDirConfiguration.DEDUP_NONE.equalsIgnoreCase(policy)) {
+            return false;
+        }
+        return !seen.add(key.toUpperCase(Locale.ENGLISH));
+    }
+
+    /**
+     * Records that a record with the given key comes before the ones still to be read, without reading it: for files
+     * whose keys are known otherwise (e.g. unchanged since last sync).
+     *
+     * @param key composite key of the record not read
+     */
+    public void skipped(final String key) {
+        if (!CSVDirConfiguration.DEDUP_NONE.equalsIgnoreCase(policy)) {
+            seen.add(key.toUpperCase(Locale.ENGLISH));
+        }
+    }
+
+    /**
+     * Stateless variant of {@link #isDuplicate(String)}, for reads not starting from the first file (e.g. paged
+     * searches): tells whether a record with the given key is held by a file read before the given one.
+     *
+     * @param key composite key of the record read
+     * @param file file being read
+     * @param ordered all files, as returned by {@link #order(File[])}
+     * @param keyIndex key index, up-to-date with the given files
+     * @return whether a record with the same key is read before
+     */
+    public boolean isShadowed(final String key, final File file, final File[] ordered, final KeyIndex keyIndex) {
+        if (CSVDirConfiguration.DEDUP_NONE.equalsIgnoreCase(policy)) {
+            return false;
+        }
+
+        final List<File> owners = keyIndex.find(key, ordered);
+        return !owners.isEmpty() && !owners.get(0).getName().equals(file.getName());
+    }
+}
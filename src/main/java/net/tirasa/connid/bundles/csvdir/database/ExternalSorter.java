@@ -0,0 +1,262 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir.database;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.spi.Connector;
+
+/**
+ * Sorts records in bounded memory: up to <tt>bufferSize</tt> records are sorted in memory, beyond that sorted runs
+ * are spilled to temporary files and merged back (k-way) when reading.
+ */
+public class ExternalSorter implements Closeable {
+
+    /**
+     * Setup {@link Connector} based logging.
+     */
+    private static final Log LOG = Log.getLog(ExternalSorter.class);
+
+    /**
+     * Maximum number of runs merged at once, to bound open files.
+     */
+    private static final int MERGE_FACTOR = 64;
+
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Comparator<String[]> comparator;
+
+    private final int bufferSize;
+
+    private final List<String[]> buffer = new ArrayList<String[]>();
+
+    private final List<File> runs = new ArrayList<File>();
+
+    public ExternalSorter(final Comparator<String[]> comparator, final int bufferSize) {
+        this.comparator = comparator;
+        this.bufferSize = bufferSize;
+    }
+
+    public void add(final String[] values) throws IOException {
+        buffer.add(values);
+        if (buffer.size() >= bufferSize) {
+            spill();
+        }
+    }
+
+    /**
+     * Feeds the given handler with all the records added so far, sorted.
+     *
+     * @param handler records handler
+     * @return <tt>false</tt> if the handler asked to stop, <tt>true</tt> otherwise
+     * @throws IOException if temporary files cannot be read or written
+     */
+    public boolean sort(final RecordHandler handler) throws IOException {
+        if (runs.isEmpty()) {
+            Collections.sort(buffer, comparator);
+
+            boolean handled = true;
+            for (int i = 0; i < buffer.size() && handled; i++) {
+                handled = handler.handle(buffer.get(i));
+            }
+            return handled;
+        }
+
+        spill();
+        while (runs.size() > MERGE_FACTOR) {
+            final List<File> merged = new ArrayList<File>(runs.subList(0, MERGE_FACTOR));
+            runs.removeAll(merged);
+
+            final File run = createRun();
+            final DataOutputStream out = openRun(run);
+            try {
+                merge(merged, new RunWriter(out));
+            } finally {
+                out.close();
+                delete(merged);
+            }
+        }
+        return merge(runs, handler);
+    }
+
+    private void spill() throws IOException {
+        if (buffer.isEmpty()) {
+            return;
+        }
+
+        Collections.sort(buffer, comparator);
+
+        final File run = createRun();
+        LOG.ok("Spilling {0} sorted records to {1}", buffer.size(), run.getAbsolutePath());
+
+        final DataOutputStream out = openRun(run);
+        try {
+            final RunWriter writer = new RunWriter(out);
+            for (String[] values : buffer) {
+                writer.handle(values);
+            }
+        } finally {
+            out.close();
+        }
+        buffer.clear();
+    }
+
+    private File createRun() throws IOException {
+        final File run = File.createTempFile("csvdir-sort", ".run");
+        runs.add(run);
+        return run;
+    }
+
+    private DataOutputStream openRun(final File run) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), IO_BUFFER_SIZE));
+    }
+
+    private boolean merge(final List<File> toMerge, final RecordHandler handler) throws IOException {
+        final PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(toMerge.size() + 1,
+                new Comparator<RunReader>() {
+
+                    @Override
+                    public int compare(final RunReader reader1, final RunReader reader2) {
+                        return comparator.compare(reader1.current, reader2.current);
+                    }
+                });
+
+        final List<RunReader> readers = new ArrayList<RunReader>(toMerge.size());
+        try {
+            for (File run : toMerge) {
+                final RunReader reader = new RunReader(run);
+                readers.add(reader);
+                if (reader.next()) {
+                    queue.add(reader);
+                }
+            }
+
+            boolean handled = true;
+            while (handled && !queue.isEmpty()) {
+                final RunReader reader = queue.poll();
+                handled = handler.handle(reader.current);
+                if (reader.next()) {
+                    queue.add(reader);
+                }
+            }
+            return handled;
+        } finally {
+            for (RunReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    private void delete(final List<File> files) {
+        for (File file : files) {
+            if (!file.delete()) {
+                LOG.warn("Could not delete {0}", file.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Removes temporary files.
+     */
+    @Override
+    public void close() {
+        buffer.clear();
+        delete(runs);
+        runs.clear();
+    }
+
+    private static final class RunWriter implements RecordHandler {
+
+        private final DataOutputStream out;
+
+        RunWriter(final DataOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public boolean handle(final String[] values) {
+            try {
+                out.writeInt(values.length);
+                for (String value : values) {
+                    if (value == null) {
+                        out.writeInt(-1);
+                    } else {
+                        final byte[] bytes = value.getBytes(UTF8);
+                        out.writeInt(bytes.length);
+                        out.write(bytes);
+                    }
+                }
+                return true;
+            } catch (IOException e) {
+                throw new IllegalStateException("While writing sorted run", e);
+            }
+        }
+    }
+
+    private static final class RunReader implements Closeable {
+
+        private final DataInputStream in;
+
+        private String[] current;
+
+        RunReader(final File run) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), IO_BUFFER_SIZE));
+        }
+
+        boolean next() throws IOException {
+            final int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                current = null;
+                return false;
+            }
+
+            current = new String[length];
+            for (int i = 0; i < length; i++) {
+                final int size = in.readInt();
+                if (size >= 0) {
+                    final byte[] bytes = new byte[size];
+                    in.readFully(bytes);
+                    current[i] = new String(bytes, UTF8);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir.database;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import net.tirasa.connid.bundles.csvdir.CSVDirConfiguration;
+
+/**
+ * Splits a large CSV file into byte ranges starting at record boundaries, so that they can be parsed concurrently.
+ * <br/>
+ * Nominal boundaries every <tt>chunkSize</tt> bytes are moved forward to the next line terminator found outside
+ * quoted values: whether a nominal boundary falls inside a quoted value is told by the parity of the number of text
+ * qualifiers preceding it, counted concurrently for each range. As for RFC 4180, text qualifiers are expected to
+ * only appear around values, or doubled within them.
+ */
+public final class FileChunker {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private FileChunker() {
+        // private constructor for static utility class
+    }
+
+    /**
+     * @param file CSV file
+     * @param conf configuration
+     * @param chunkSize nominal chunk size, in bytes
+     * @param executor executor counting text qualifiers
+     * @return chunk starts, followed by the file length: chunk <tt>i</tt> spans from <tt>result[i]</tt> (included)
+     * to <tt>result[i + 1]</tt> (excluded)
+     * @throws IOException if the file cannot be read
+     */
+    public static long[] split(
+            final File file, final CSVDirConfiguration conf, final long chunkSize, final ExecutorService executor)
+            throws IOException {
+
+        final long length = ChangeTracker.length(file);
+        final int chunks = (int) Math.max(1, (length + chunkSize - 1) / chunkSize);
+        final int qualifier = conf.getTextQualifier();
+
+        // 1. parity of text qualifiers within each nominal chunk
+        final List<Future<Boolean>> parities = new ArrayList<Future<Boolean>>(chunks);
+        for (int i = 0; i < chunks - 1; i++) {
+            final long from = i * chunkSize;
+            parities.add(executor.submit(new Callable<Boolean>() {
+
+                @Override
+                public Boolean call() throws IOException {
+                    return isOdd(file, from, from + chunkSize, qualifier);
+                }
+            }));
+        }
+
+        // 2. nominal boundaries moved to the next record start
+        final long[] starts = new long[chunks + 1];
+        starts[0] = 0L;
+        starts[chunks] = length;
+
+        boolean inQuotes = false;
+        for (int i = 1; i < chunks; i++) {
+            try {
+                inQuotes ^= parities.get(i - 1).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while splitting " + file.getName());
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IllegalStateException("While splitting " + file.getName(), e.getCause());
+            }
+
+            starts[i] = Math.max(starts[i - 1], nextRecord(file, i * chunkSize, inQuotes, qualifier));
+        }
+
+        return starts;
+    }
+
+    private static boolean isOdd(final File file, final long from, final long to, final int qualifier)
+            throws IOException {
+
+        final InputStream in = open(file, from);
+        try {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+
+            boolean odd = false;
+            long remaining = to - from;
+            int read;
+            while (remaining > 0 && (read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                for (int i = 0; i < read; i++) {
+                    if ((buffer[i] & 0xFF) == qualifier) {
+                        odd = !odd;
+                    }
+                }
+                remaining -= read;
+            }
+            return odd;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static long nextRecord(final File file, final long from, final boolean startInQuotes, final int qualifier)
+            throws IOException {
+
+        final InputStream in = open(file, from);
+        try {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+
+            boolean inQuotes = startInQuotes;
+            boolean afterCR = false;
+            long position = from;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                for (int i = 0; i < read; i++, position++) {
+                    final int c = buffer[i] & 0xFF;
+                    if (afterCR) {
+                        return c == '\n' ? position + 1 : position;
+                    }
+                    if (c == qualifier) {
+                        inQuotes = !inQuotes;
+                    } else if (!inQuotes && c == '\n') {
+                        return position + 1;
+                    } else if (!inQuotes && c == '\r') {
+                        afterCR = true;
+                    }
+                }
+            }
+            return position;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static InputStream open(final File file, final long from) throws IOException {
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            in.getChannel().position(from);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return in;
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir.database;
+
+import java.io.File;
+
+/**
+ * Snapshot of path, size and last modification time of a CSV file: two snapshots of the same file differ as soon
+ * as the file content is changed.
+ */
+public final class FileIdentity {
+
+    private final String path;
+
+    private final long size;
+
+    private final long lastModified;
+
+    public FileIdentity(final File file) {
+        this(file.getAbsolutePath(), file.length(), file.lastModified());
+    }
+
+    public FileIdentity(final String path, final long size, final long lastModified) {
+        this.path = path;
+        this.size = size;
+        this.lastModified = lastModified;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof FileIdentity)) {
+            return false;
+        }
+
+        final FileIdentity other = (FileIdentity) obj;
+        return path.equals(other.path) && size == other.size && lastModified == other.lastModified;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = path.hashCode();
+        result = 31 * result + (int) (size ^ (size >>> 32));
+        result = 31 * result + (int) (lastModified ^ (lastModified >>> 32));
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return path + "[size=" + size + ", lastModified=" + lastModified + "]";
+    }
+}
@@ -0,0 +1,208 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir.database;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Collections;
+import java.util.List;
+import net.tirasa.connid.bundles.csvdir.CSVDirConfiguration;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.spi.Connector;
+
+/**
+ * Replaces or removes records of a CSV file without parsing the rest of it: the file is copied to a temporary
+ * sibling, with the bytes around the records moved by the kernel and only the replacing record re-encoded, and the
+ * copy is then renamed over the original.
+ * <br/>
+ * The original file is locked during the copy; the final rename is atomic where the platform allows to rename over
+ * an existing file, otherwise the original is deleted first.
+ */
+public class FileRewriter {
+
+    /**
+     * Setup {@link Connector} based logging.
+     */
+    private static final Log LOG = Log.getLog(FileRewriter.class);
+
+    private static final String TEMP_SUFFIX = ".rewrite";
+
+    private final CSVDirConfiguration conf;
+
+    private final FileScanner scanner;
+
+    private final int[] keys;
+
+    public FileRewriter(final CSVDirConfiguration conf) {
+        this.conf = conf;
+        this.scanner = new FileScanner(conf);
+        this.keys = scanner.getColumns().getKeys();
+    }
+
+    /**
+     * Finds the record with the given key in the given file; keys are matched case-sensitively, as by HSQLDB.
+     *
+     * @param file CSV file
+     * @param uid composite key
+     * @param offset expected offset of the record, or {@link KeyIndex#UNKNOWN_OFFSET} to scan the whole file
+     * @return record, <tt>null</tt> if not found
+     * @throws IOException if the file cannot be read
+     */
+    public Row find(final File file, final String uid, final long offset) throws IOException {
+        final String[] uidKeys = uid.split(conf.getKeyseparator());
+        if (uidKeys.length < keys.length) {
+            return null;
+        }
+
+        if (offset != KeyIndex.UNKNOWN_OFFSET) {
+            final CSVReader reader = CSVReader.open(file, offset, conf);
+            try {
+                if (reader.advance() && reader.getRecordOffset() == offset && matches(reader, uidKeys)) {
+                    return new Row(file, offset, reader.getOffset() - offset, reader.getValues());
+                }
+            } finally {
+                reader.close();
+            }
+            LOG.ok("Record {0} not found at {1} in {2}, scanning", uid, offset, file.getName());
+        }
+
+        RowFilter filter = null;
+        for (int i = 0; i < keys.length; i++) {
+            filter = RowFilter.and(filter, RowFilter.compare(
+                    scanner.getColumns().getName(keys[i]), RowFilter.Operator.EQUALS, uidKeys[i]));
+        }
+
+        final Row[] found = new Row[1];
+        scanner.scan(file, filter, new RowHandler() {
+
+            @Override
+            public boolean handle(final Row row) {
+                found[0] = row;
+                return false;
+            }
+        });
+        return found[0];
+    }
+
+    private boolean matches(final CSVRecord record, final String[] uidKeys) {
+        for (int i = 0; i < keys.length; i++) {
+            if (!record.valueEquals(keys[i], uidKeys[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Replaces the given record with the given bytes.
+     *
+     * @param row record, as found by {@link #find(File, String, long)}
+     * @param replacement new encoded record, line separator included; <tt>null</tt> to remove the record
+     * @throws IOException if the file cannot be rewritten
+     */
+    public void replace(final Row row, final byte[] replacement) throws IOException {
+        LOG.ok("Rewriting {0} at {1}", row.getFile().getName(), row.getOffset());
+
+        rewrite(row.getFile(),
+                Collections.singletonList(new long[] { row.getOffset(), row.getOffset() + row.getLength() }),
+                replacement);
+    }
+
+    /**
+     * Removes the given byte ranges, e.g. whole records, from the given file.
+     *
+     * @param file CSV file
+     * @param ranges start (inclusive) and end (exclusive) offsets of the ranges to remove, sorted and not overlapping
+     * @throws IOException if the file cannot be rewritten
+     */
+    public void remove(final File file, final List<long[]> ranges) throws IOException {
+        LOG.ok("Removing {0} ranges from {1}", ranges.size(), file.getName());
+
+        rewrite(file, ranges, null);
+    }
+
+    private void rewrite(final File file, final List<long[]> ranges, final byte[] replacement) throws IOException {
+        final File temp = new File(file.getParentFile(), file.getName() + TEMP_SUFFIX);
+
+        boolean renamed = false;
+        try {
+            final RandomAccessFile source = new RandomAccessFile(file, "rw");
+            try {
+                final FileChannel in = source.getChannel();
+                final FileLock lock = in.lock();
+                try {
+                    final FileOutputStream fos = new FileOutputStream(temp);
+                    try {
+                        final FileChannel out = fos.getChannel();
+
+                        long position = 0L;
+                        for (long[] range : ranges) {
+                            transfer(in, position, range[0] - position, out);
+                            if (replacement != null) {
+                                final ByteBuffer buffer = ByteBuffer.wrap(replacement);
+                                while (buffer.hasRemaining()) {
+                                    out.write(buffer);
+                                }
+                            }
+                            position = range[1];
+                        }
+                        transfer(in, position, in.size() - position, out);
+
+                        out.force(false);
+                    } finally {
+                        fos.close();
+                    }
+
+                    // atomic, while still holding the lock, where renaming over an open file is allowed
+                    renamed = temp.renameTo(file);
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                source.close();
+            }
+        } catch (IOException e) {
+            if (temp.exists() && !temp.delete()) {
+                LOG.error(e, "Could not delete {0}", temp.getAbsolutePath());
+            }
+            throw e;
+        }
+
+        if (!renamed) {
+            if (!file.delete() || !temp.renameTo(file)) {
+                throw new IOException("Could not replace " + file.getAbsolutePath() + " with " + temp.getName());
+            }
+        }
+    }
+
+    private static void transfer(final FileChannel in, final long position, final long count, final FileChannel out)
+            throws IOException {
+
+        long transferred = 0L;
+        while (transferred < count) {
+            final long done = in.transferTo(position + transferred, count - transferred, out);
+            if (done <= 0) {
+                throw new IOException("Unexpected end of file at " + (position + transferred));
+            }
+            transferred += done;
+        }
+    }
+}
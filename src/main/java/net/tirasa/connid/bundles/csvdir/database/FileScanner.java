@@ -0,0 +1,331 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.tirasa.connid.bundles.csvdir.CSVDirConfiguration;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.spi.Connector;
+
+/**
+ * Native engine: streams the records of CSV files, without going through HSQLDB text tables.
+ * <br/>
+ * When more than one scan thread is configured, files are parsed and filtered by a bounded pool of workers, each
+ * handing records over a bounded queue; the handler is still invoked by the calling thread only, file after file in
+ * the given order, and workers are cancelled as soon as the handler asks to stop.
+ * <br/>
+ * Files larger than the configured chunk size are also split into chunks starting at record boundaries (see
+ * {@link FileChunker}), parsed concurrently and handed over chunk after chunk: records are hence always handled in
+ * the same order as a sequential scan would.
+ * <br/>
+ * Records logged as deleted in the {@link TombstoneLog}, if enabled, are skipped. Records read by workers are
+ * charged to the {@link Metrics} of the calling thread's operation.
+ */
+public class FileScanner {
+
+    /**
+     * Setup {@link Connector} based logging.
+     */
+    private static final Log LOG = Log.getLog(FileScanner.class);
+
+    /**
+     * Records read ahead by each worker.
+     */
+    private static final int QUEUE_SIZE = 1024;
+
+    /**
+     * Marks the end of the records of a file.
+     */
+    private static final Row END = new Row(null, -1L, -1L, new String[0]);
+
+    private static final AtomicInteger THREAD_SEQUENCE = new AtomicInteger();
+
+    private final CSVDirConfiguration conf;
+
+    private final ColumnIndex columns;
+
+    /**
+     * Records deleted but not compacted yet, <tt>null</tt> if tombstones are disabled.
+     */
+    private final TombstoneLog tombstones;
+
+    private boolean[] projection;
+
+    public FileScanner(final CSVDirConfiguration conf) {
+        this.conf = conf;
+        this.columns = new ColumnIndex(conf);
+        this.tombstones = TombstoneLog.getInstance(conf);
+    }
+
+    /**
+     * Restricts the columns decoded from records: the given filter, if any, must only refer to columns read by the
+     * given projection.
+     *
+     * @param projection columns to read, <tt>null</tt> for all
+     */
+    public void setProjection(final Projection projection) {
+        this.projection = projection == null ? null : projection.getRead();
+    }
+
+    public ColumnIndex getColumns() {
+        return columns;
+    }
+
+    /**
+     * Reads the given files, in order, feeding the handler with the records matching the given filter.
+     *
+     * @param files CSV files
+     * @param filter filter, <tt>null</tt> to get all records
+     * @param handler records handler
+     * @return <tt>false</tt> if the handler asked to stop reading, <tt>true</tt> otherwise
+     * @throws IOException if any file cannot be read
+     */
+    public boolean scan(final File[] files, final RowFilter filter, final RowHandler handler) throws IOException {
+        if (conf.getScanThreads() > 1 && (files.length > 1 || hasLargeFiles(files))) {
+            return parallelScan(files, filter, handler);
+        }
+
+        boolean handled = true;
+        for (int i = 0; i < files.length && handled; i++) {
+            handled = scan(files[i], filter, handler);
+        }
+        return handled;
+    }
+
+    private boolean hasLargeFiles(final File[] files) {
+        for (File file : files) {
+            if (ChangeTracker.length(file) > conf.getScanChunkSize()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean parallelScan(final File[] files, final RowFilter filter, final RowHandler handler)
+            throws IOException {
+
+        final ExecutorService executor = Executors.newFixedThreadPool(conf.getScanThreads(), new ThreadFactory() {
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "csvdir-scan-" + THREAD_SEQUENCE.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        final AtomicBoolean cancelled = new AtomicBoolean(false);
+        try {
+            final List<ScanTask> tasks = new ArrayList<ScanTask>(files.length);
+            for (File file : files) {
+                if (ChangeTracker.length(file) > conf.getScanChunkSize()) {
+                    final long[] starts = FileChunker.split(file, conf, conf.getScanChunkSize(), executor);
+                    for (int i = 0; i < starts.length - 1; i++) {
+                        if (starts[i] < starts[i + 1]) {
+                            tasks.add(new ScanTask(file, starts[i], starts[i + 1], filter, cancelled));
+                        }
+                    }
+                } else {
+                    tasks.add(new ScanTask(file, 0L, Long.MAX_VALUE, filter, cancelled));
+                }
+            }
+            LOG.ok("Scanning {0} files in {1} chunks with {2} threads",
+                    files.length, tasks.size(), conf.getScanThreads());
+
+            // tasks are started in submission order, hence the chunk being drained is always being read
+            for (ScanTask task : tasks) {
+                executor.execute(task);
+            }
+
+            boolean handled = true;
+            for (int i = 0; i < tasks.size() && handled; i++) {
+                handled = tasks.get(i).drain(handler);
+            }
+            return handled;
+        } finally {
+            cancelled.set(true);
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Reads the given file, feeding the handler with the records matching the given filter.
+     *
+     * @param file CSV file
+     * @param filter filter, <tt>null</tt> to get all records
+     * @param handler records handler
+     * @return <tt>false</tt> if the handler asked to stop reading, <tt>true</tt> otherwise
+     * @throws IOException if the file cannot be read
+     */
+    public boolean scan(final File file, final RowFilter filter, final RowHandler handler) throws IOException {
+        return scan(file, 0L, filter, handler);
+    }
+
+    /**
+     * Reads the given file from the given byte offset, feeding the handler with the records matching the given
+     * filter.
+     *
+     * @param file CSV file
+     * @param offset byte offset of the first record to read
+     * @param filter filter, <tt>null</tt> to get all records
+     * @param handler records handler
+     * @return <tt>false</tt> if the handler asked to stop reading, <tt>true</tt> otherwise
+     * @throws IOException if the file cannot be read
+     */
+    public boolean scan(final File file, final long offset, final RowFilter filter, final RowHandler handler)
+            throws IOException {
+
+        return scan(file, offset, Long.MAX_VALUE, filter, handler);
+    }
+
+    private boolean scan(
+            final File file, final long offset, final long end, final RowFilter filter, final RowHandler handler)
+            throws IOException {
+
+        LOG.ok("File to scan {0} from {1} to {2}", file.getAbsolutePath(), offset, end);
+
+        final Map<Long, String> deleted = tombstones == null ? null : tombstones.getDeleted(file);
+
+        final CSVReader reader = CSVReader.open(file, offset, conf);
+        reader.setProjection(projection);
+        try {
+            boolean handled = true;
+
+            // values are only copied out of the reader for accepted records
+            while (handled && reader.advance() && reader.getRecordOffset() < end) {
+                if ((deleted == null || !isDeleted(reader, deleted))
+                        && (filter == null || filter.accept(reader, columns))) {
+
+                    handled = handler.handle(new Row(
+                            file,
+                            reader.getRecordOffset(),
+                            reader.getOffset() - reader.getRecordOffset(),
+                            reader.getValues()));
+                }
+            }
+
+            return handled;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private boolean isDeleted(final CSVReader reader, final Map<Long, String> deleted) {
+        final String key = deleted.get(reader.getRecordOffset());
+        return key != null && key.equals(columns.getKey(reader, conf.getKeyseparator()));
+    }
+
+    /**
+     * Reads a file, or a chunk of it, on a worker thread, handing matching records over to the calling thread.
+     */
+    private final class ScanTask implements Runnable {
+
+        private final File file;
+
+        private final long start;
+
+        private final long end;
+
+        private final RowFilter filter;
+
+        private final AtomicBoolean cancelled;
+
+        private final Metrics.Sample sample = Metrics.current();
+
+        private final BlockingQueue<Row> queue = new ArrayBlockingQueue<Row>(QUEUE_SIZE);
+
+        private volatile Exception error;
+
+        ScanTask(
+                final File file, final long start, final long end, final RowFilter filter,
+                final AtomicBoolean cancelled) {
+
+            this.file = file;
+            this.start = start;
+            this.end = end;
+            this.filter = filter;
+            this.cancelled = cancelled;
+        }
+
+        @Override
+        public void run() {
+            Metrics.attach(sample);
+            try {
+                scan(file, start, end, filter, new RowHandler() {
+
+                    @Override
+                    public boolean handle(final Row row) {
+                        return put(row);
+                    }
+                });
+            } catch (Exception e) {
+                error = e;
+            } finally {
+                put(END);
+                Metrics.detach();
+            }
+        }
+
+        private boolean put(final Row row) {
+            try {
+                while (!cancelled.get()) {
+                    if (queue.offer(row, 100, TimeUnit.MILLISECONDS)) {
+                        return true;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return false;
+        }
+
+        /**
+         * Feeds the given handler with the records of this task's file or chunk, as they are read.
+         */
+        boolean drain(final RowHandler handler) throws IOException {
+            try {
+                Row row;
+                while ((row = queue.take()) != END) {
+                    if (!handler.handle(row)) {
+                        return false;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while reading " + file.getName());
+            }
+
+            if (error instanceof IOException) {
+                throw (IOException) error;
+            }
+            if (error != null) {
+                throw new IllegalStateException("While reading " + file.getName(), error);
+            }
+            return true;
+        }
+    }
+}
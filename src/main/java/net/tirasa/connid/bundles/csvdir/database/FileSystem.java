@@ -17,6 +17,8 @@ package net.tirasa.connid.bundles.csvdir.database;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.util.ArrayList;
+import java.util.List;
 import net.tirasa.connid.bundles.csvdir.CSVDirConfiguration;
 
 public class FileSystem {
@@ -27,6 +29,11 @@ public class FileSystem {
 
     private final FileFilter fileFilter;
 
+    /**
+     * Change tracker, <tt>null</tt> if change tracking is disabled.
+     */
+    private final ChangeTracker changeTracker;
+
     private long highestTimeStamp;
 
     public FileSystem(final CSVDirConfiguration conf) {
@@ -39,11 +46,27 @@ public class FileSystem {
                 return isMatched(file);
             }
         };
+        this.changeTracker = ChangeTracker.getInstance(conf, fileFilter);
     }
 
     public final File[] getAllCsvFiles() {
-        final File[] csvFiles = sourcePath.listFiles(fileFilter);
-        return returnNewArrayIfCsvFilesIsEmpty(csvFiles);
+        final File[] csvFiles = changeTracker == null
+                ? returnNewArrayIfCsvFilesIsEmpty(sourcePath.listFiles(fileFilter))
+                : changeTracker.getFiles();
+
+        Metrics.count(Metrics.FILES_LISTED, csvFiles.length);
+        return csvFiles;
+    }
+
+    /**
+     * Notifies that the given file was changed, or created, by the connector.
+     *
+     * @param file changed file
+     */
+    public final void touched(final File file) {
+        if (changeTracker != null) {
+            changeTracker.touched(file);
+        }
     }
 
     public final File getLastModifiedCsvFile() {
@@ -64,13 +87,24 @@ public class FileSystem {
     }
 
     public final File[] getModifiedCsvFiles(final long timeStamp) {
-        final File[] csvFiles = sourcePath.listFiles(new FileFilter() {
-
-            @Override
-            public boolean accept(final File file) {
-                return isMatched(file) && file.lastModified() > timeStamp;
+        final File[] csvFiles;
+        if (changeTracker == null) {
+            csvFiles = sourcePath.listFiles(new FileFilter() {
+
+                @Override
+                public boolean accept(final File file) {
+                    return isMatched(file) && file.lastModified() > timeStamp;
+                }
+            });
+        } else {
+            final List<File> modified = new ArrayList<File>();
+            for (File file : changeTracker.getFiles()) {
+                if (file.lastModified() > timeStamp) {
+                    modified.add(file);
+                }
             }
-        });
+            csvFiles = modified.toArray(new File[modified.size()]);
+        }
 
         for (File file : csvFiles) {
             if (file.lastModified() > highestTimeStamp) {
@@ -78,6 +112,7 @@ public class FileSystem {
             }
         }
 
+        Metrics.count(Metrics.FILES_LISTED, csvFiles.length);
         return returnNewArrayIfCsvFilesIsEmpty(csvFiles);
     }
 
@@ -91,6 +126,7 @@ public class FileSystem {
 
     private boolean isMatched(final File file) {
         return !file.isDirectory()
+                && !TombstoneLog.FILE_NAME.equals(file.getName())
                 && (file.getName().matches(conf.getFileMask())
                 || file.getName().matches(FileToDB.DEFAULT_PREFIX + ".*\\.csv"));
     }
@@ -16,42 +16,243 @@
 package net.tirasa.connid.bundles.csvdir.database;
 
 import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 import net.tirasa.connid.bundles.csvdir.CSVDirConfiguration;
-import net.tirasa.connid.bundles.csvdir.CSVDirConnection;
 import net.tirasa.connid.bundles.csvdir.utilities.Utilities;
+import org.hsqldb.jdbcDriver;
 import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.framework.spi.Connector;
 
+/**
+ * Long-lived HSQLDB catalog of the text tables bound to the CSV files of a source path.
+ * <br/>
+ * One instance is shared by all the connector instances working on the same source path with the same table layout;
+ * text tables are kept alive between operations and a file is bound again only when its {@link FileIdentity}
+ * changes. Instances are reference counted via {@link #acquire(CSVDirConfiguration)} and
+ * {@link #release(CSVDirConfiguration)}: all the text tables are dropped when the last reference is released.
+ * <br/>
+ * Prepared statements are cached per text table, and closed as soon as the table is dropped.
+ */
 public class FileToDB {
 
     public static final String DEFAULT_PREFIX = "DEFAULT";
 
+    /**
+     * Setup {@link Connector} based logging.
+     */
+    private static final Log LOG = Log.getLog(FileToDB.class);
+
+    private static final String HSQLDB_JDBC_URL_PREFIX = "jdbc:hsqldb:file:";
+
+    private static final String HSQLDB_DB_NAME = "csvdir_db";
+
+    private static final String TABLE_PREFIX = "CSV_TABLE";
+
+    private static final AtomicInteger TABLE_SEQUENCE = new AtomicInteger();
+
+    /**
+     * Prepared statements cached per text table.
+     */
+    private static final int MAX_CACHED_STATEMENTS = 16;
+
+    private static final Map<String, FileToDB> INSTANCES = new HashMap<String, FileToDB>();
+
+    private static final Map<String, Integer> REFERENCES = new HashMap<String, Integer>();
+
+    /**
+     * Source paths whose text tables left over by a previous JVM have already been dropped.
+     */
+    private static final Set<String> CLEANED_SOURCE_PATHS = new HashSet<String>();
+
     private final CSVDirConfiguration conf;
 
-    private final CSVDirConnection conn;
+    private final Connection conn;
+
+    private final ReentrantLock lock = new ReentrantLock();
 
-    private final FileSystem fileSystem;
+    /**
+     * Key index of the bound files, <tt>null</tt> if files cannot be read natively.
+     */
+    private final KeyIndex keyIndex;
 
-    public FileToDB(final CSVDirConnection conn) {
-        this.conn = conn;
-        this.conf = conn.getConf();
-        fileSystem = new FileSystem(conf);
+    /**
+     * Key filters of the bound files, <tt>null</tt> if files can be read natively, hence have a key index.
+     */
+    private final KeyFilters keyFilters;
+
+    /**
+     * Bound text tables, by file name.
+     */
+    private final Map<String, BoundTable> boundTables = new HashMap<String, BoundTable>();
+
+    /**
+     * Cached prepared statements, by table name.
+     */
+    private final Map<String, StatementCache> statements = new HashMap<String, StatementCache>();
+
+    private String emptyTable;
+
+    private FileToDB(final CSVDirConfiguration conf)
+            throws ClassNotFoundException, SQLException {
+
+        this.conf = conf;
+
+        Class.forName(jdbcDriver.class.getName());
+        final String jdbcUrl = HSQLDB_JDBC_URL_PREFIX + conf.getSourcePath() + File.separator
+                + HSQLDB_DB_NAME + ";shutdown=false";
+        this.conn = DriverManager.getConnection(jdbcUrl, "sa", "");
+        this.conn.setAutoCommit(true);
+
+        this.keyIndex = CSVReader.isSupported(conf) ? new KeyIndex(conf) : null;
+        this.keyFilters = keyIndex == null ? new KeyFilters(conf, this) : null;
+    }
+
+    private static String getKey(final CSVDirConfiguration conf) {
+        return getSourcePathKey(conf)
+                + '|' + Arrays.toString(conf.getFields())
+                + '|' + Arrays.toString(conf.getKeyColumnNames())
+                + '|' + conf.getKeyseparator()
+                + '|' + conf.getFieldDelimiter()
+                + '|' + conf.getTextQualifier()
+                + '|' + conf.getQuotationRequired()
+                + '|' + conf.getIgnoreHeader()
+                + '|' + conf.getEncoding();
+    }
+
+    private static String getSourcePathKey(final CSVDirConfiguration conf) {
+        return new File(conf.getSourcePath()).getAbsolutePath();
     }
 
     /**
-     * Setup {@link Connector} based logging.
+     * Registers one more user (typically a connector instance) of the catalog matching the given configuration.
+     *
+     * @param conf configuration
      */
-    private static final Log LOG = Log.getLog(FileToDB.class);
+    public static void acquire(final CSVDirConfiguration conf) {
+        final String key = getKey(conf);
 
-    public String createDbForCreate() {
-        File file = fileSystem.getLastModifiedCsvFile();
-        if (file == null) {
-            file = new File(DEFAULT_PREFIX + Utilities.randomNumber() + ".csv");
+        synchronized (INSTANCES) {
+            final Integer references = REFERENCES.get(key);
+            REFERENCES.put(key, references == null ? 1 : references + 1);
         }
-        return bindFileTable(file);
+    }
+
+    /**
+     * Unregisters a user of the catalog matching the given configuration: when no users are left, all text tables
+     * are dropped and the underlying HSQLDB connection is closed.
+     *
+     * @param conf configuration
+     */
+    public static void release(final CSVDirConfiguration conf) {
+        final String key = getKey(conf);
+
+        FileToDB instance = null;
+        synchronized (INSTANCES) {
+            final Integer references = REFERENCES.get(key);
+            if (references == null || references <= 1) {
+                REFERENCES.remove(key);
+                instance = INSTANCES.remove(key);
+            } else {
+                REFERENCES.put(key, references - 1);
+            }
+        }
+
+        if (instance != null) {
+            instance.close();
+        }
+    }
+
+    /**
+     * Returns the catalog matching the given configuration, creating it if not available yet.
+     *
+     * @param conf configuration
+     * @return catalog
+     * @throws ClassNotFoundException if the HSQLDB driver is not available
+     * @throws SQLException if the HSQLDB connection cannot be established
+     */
+    public static FileToDB getInstance(final CSVDirConfiguration conf)
+            throws ClassNotFoundException, SQLException {
+
+        final String key = getKey(conf);
+
+        synchronized (INSTANCES) {
+            FileToDB instance = INSTANCES.get(key);
+            if (instance == null) {
+                instance = new FileToDB(conf);
+
+                if (CLEANED_SOURCE_PATHS.add(getSourcePathKey(conf))) {
+                    instance.dropStaleTables();
+                }
+
+                INSTANCES.put(key, instance);
+            }
+            return instance;
+        }
+    }
+
+    /**
+     * Serializes operations on this catalog; re-entrant, so that nested operations issued by the same thread (e.g.
+     * from a results handler) do not deadlock.
+     */
+    public void lock() {
+        lock.lock();
+    }
+
+    public void unlock() {
+        lock.unlock();
+    }
+
+    public Connection getConn() {
+        return conn;
+    }
+
+    public KeyIndex getKeyIndex() {
+        return keyIndex;
+    }
+
+    public KeyFilters getKeyFilters() {
+        return keyFilters;
+    }
+
+    /**
+     * Returns a prepared statement for the given SQL text, reusing the one prepared earlier if available; the
+     * returned statement must not be closed by callers.
+     *
+     * @param tableName text table the given SQL text refers to
+     * @param sql SQL text
+     * @return prepared statement
+     * @throws SQLException if the statement cannot be prepared
+     */
+    public PreparedStatement prepare(final String tableName, final String sql) throws SQLException {
+        StatementCache cache = statements.get(tableName);
+        if (cache == null) {
+            cache = new StatementCache();
+            statements.put(tableName, cache);
+        }
+
+        PreparedStatement stmt = cache.get(sql);
+        if (stmt == null) {
+            LOG.ok("Preparing {0}", sql);
+            stmt = conn.prepareStatement(sql);
+            cache.put(sql, stmt);
+        }
+        return stmt;
     }
 
     public String createDbForUpdate(final File file) {
@@ -62,6 +263,34 @@ public class FileToDB {
         return bindFileTables(fileToProcess);
     }
 
+    /**
+     * Records the current identity of the file bound to the given table, after it was changed through the table
+     * itself: this avoids binding the file again at next operation.
+     *
+     * @param tableName text table name
+     */
+    public void refresh(final String tableName) {
+        for (Map.Entry<String, BoundTable> entry : boundTables.entrySet()) {
+            if (entry.getValue().name.equals(tableName)) {
+                entry.setValue(new BoundTable(
+                        tableName, new FileIdentity(new File(conf.getSourcePath(), entry.getKey()))));
+            }
+        }
+    }
+
+    /**
+     * Drops the text table bound to the given file, if any: to be called before replacing the file, which HSQLDB
+     * would otherwise keep open.
+     *
+     * @param file CSV file
+     */
+    public void unbind(final File file) {
+        final BoundTable bound = boundTables.remove(file.getName());
+        if (bound != null) {
+            dropTable(bound.name);
+        }
+    }
+
     private StringBuilder createTableHeader(final String tableName) {
         final StringBuilder tableHeader = new StringBuilder();
         for (String field : conf.getFields()) {
@@ -86,8 +315,7 @@ public class FileToDB {
     }
 
     private List<String> bindFileTables(final File[] files) {
-
-        final StringBuilder view = new StringBuilder();
+        pruneBindings();
 
         final List<String> tables = new ArrayList<String>();
 
@@ -96,71 +324,99 @@ public class FileToDB {
 
             if (tableName != null) {
                 tables.add(tableName);
+            }
+        }
 
-                if (view.length() != 0) {
-                    view.append(" UNION ");
-                }
-                view.append("SELECT * FROM ").append(tableName);
+        if (tables.isEmpty()) {
+            final String tableName = getEmptyTable();
+            if (tableName != null) {
+                tables.add(tableName);
             }
         }
 
-        if (view.length() == 0) {
-            try {
-                LOG.ok("Execute: CREATE TEXT TABLE NOENTRIES");
+        return tables;
+    }
 
-                final StringBuilder tableHeader = createTableHeader("NOENTRIES");
+    private String getEmptyTable() {
+        if (emptyTable == null) {
+            final String tableName = nextTableName();
+            try {
                 final StringBuilder createTable = new StringBuilder();
+                createTable.append("CREATE TEXT TABLE ").append(tableName);
+                createTable.append(" (").append(createTableHeader(tableName)).append(") ");
 
-                createTable.delete(0, createTable.length());
-                createTable.append("CREATE TEXT TABLE NOENTRIES");
-                createTable.append(" (").append(tableHeader).append(") ");
+                LOG.ok("Execute: {0}", createTable.toString());
+                execute(createTable.toString());
 
-                // drop if exists
-                conn.getConn().createStatement().execute("DROP TABLE NOENTRIES IF EXISTS CASCADE");
+                emptyTable = tableName;
+            } catch (SQLException e) {
+                LOG.error(e, "While creating table {0}", tableName);
+            }
+        }
 
-                // create noentries table
-                conn.getConn().createStatement().execute(createTable.toString());
+        return emptyTable;
+    }
 
-                tables.add("NOENTRIES");
+    /**
+     * Drops text tables bound to files that have been removed meanwhile.
+     */
+    private void pruneBindings() {
+        for (Iterator<Map.Entry<String, BoundTable>> itor = boundTables.entrySet().iterator(); itor.hasNext();) {
+            final Map.Entry<String, BoundTable> entry = itor.next();
 
-                conn.getConn().createStatement().execute(
-                        "CREATE VIEW "
-                        + conn.getViewname()
-                        + " AS SELECT * FROM NOENTRIES");
-            } catch (SQLException e) {
-                LOG.error(e, "While creating table NOENTRIES");
+            if (!ChangeTracker.exists(conf, entry.getKey())) {
+                LOG.ok("File {0} removed, dropping table {1}", entry.getKey(), entry.getValue().name);
+
+                dropTable(entry.getValue().name);
+                itor.remove();
             }
-        } else {
-            try {
-                view.insert(0, "CREATE VIEW " + conn.getViewname() + " AS ");
+        }
+    }
 
-                LOG.ok("Execute: {0}", view.toString());
-                conn.getConn().createStatement().execute(view.toString());
-            } catch (SQLException e) {
-                LOG.error(e, "While creating view {0}", conn.getViewname());
+    private String bindFileTable(final File file) {
+        final FlightEvent event = FlightEvent.begin(FlightEvent.BIND);
+        if (event.isEnabled()) {
+            event.set("file", file.getName()).set("bytes", file.length());
+        }
+
+        // as known to the change tracker, if the given file comes from it
+        final FileIdentity identity = new FileIdentity(file);
+
+        final BoundTable bound = boundTables.get(file.getName());
+        if (bound != null) {
+            if (bound.identity.equals(identity)) {
+                event.set("bound", false).commit();
+                return bound.name;
             }
+
+            LOG.ok("File {0} changed since bound to {1}, binding again", file.getName(), bound.name);
+
+            dropTable(bound.name);
+            boundTables.remove(file.getName());
         }
 
-        return tables;
+        final String tableName = createTextTable(file);
+        if (tableName != null) {
+            boundTables.put(file.getName(), new BoundTable(tableName, identity));
+        }
+        event.set("bound", tableName != null).commit();
+        return tableName;
     }
 
-    private String bindFileTable(final File file) {
+    private String createTextTable(final File file) {
         LOG.ok("File to load {0}", file.getAbsolutePath());
 
-        final String tableName = "CSV_TABLE" + Utilities.randomNumber();
+        final String tableName = nextTableName();
         try {
-            conn.getConn().createStatement().execute(
-                    "DROP TABLE " + tableName + " IF EXISTS CASCADE");
+            execute("DROP TABLE " + tableName + " IF EXISTS CASCADE");
 
             final StringBuilder tableHeader = createTableHeader(tableName);
 
             final StringBuilder createTable = new StringBuilder();
             final StringBuilder linkTable = new StringBuilder();
 
-            createTable.delete(0, createTable.length());
             createTable.append("CREATE TEXT TABLE ").append(tableName);
             createTable.append(" (").append(tableHeader).append(") ");
-            linkTable.delete(0, createTable.length());
             linkTable.append("SET TABLE ").append(tableName).
                     append(" SOURCE ").
                     append("\"").
@@ -179,15 +435,148 @@ public class FileToDB {
                     append("\"");
 
             LOG.ok("Execute: {0}", createTable.toString());
-            conn.getConn().createStatement().execute(createTable.toString());
+            execute(createTable.toString());
 
             LOG.ok("Execute: {0}", linkTable.toString());
-            conn.getConn().createStatement().execute(linkTable.toString());
+            execute(linkTable.toString());
+
+            // HSQLDB reads the whole file when binding it
+            Metrics.count(Metrics.FILES_BOUND, 1L);
+            Metrics.count(Metrics.BYTES_READ, file.length());
 
             return tableName;
         } catch (SQLException e) {
             LOG.error(e, "While creating text table");
+            dropTable(tableName);
             return null;
         }
     }
+
+    private String nextTableName() {
+        return TABLE_PREFIX + TABLE_SEQUENCE.incrementAndGet();
+    }
+
+    private void execute(final String statement) throws SQLException {
+        Metrics.count(Metrics.DDL_STATEMENTS, 1L);
+
+        final Statement stmt = conn.createStatement();
+        try {
+            stmt.execute(statement);
+        } finally {
+            stmt.close();
+        }
+    }
+
+    private void dropTable(final String tableName) {
+        LOG.ok("Drop table {0}", tableName);
+
+        final StatementCache cache = statements.remove(tableName);
+        if (cache != null) {
+            cache.closeAll();
+        }
+
+        try {
+            execute("DROP TABLE " + tableName + " IF EXISTS CASCADE");
+        } catch (SQLException e) {
+            LOG.error(e, "While dropping table {0}", tableName);
+        }
+    }
+
+    /**
+     * HSQLDB persists text table definitions: drop the ones left over by a previous JVM, not properly disposed.
+     */
+    private void dropStaleTables() {
+        final List<String> stale = new ArrayList<String>();
+        try {
+            final ResultSet resultSet = conn.getMetaData().getTables(null, null, TABLE_PREFIX + "%", null);
+            try {
+                while (resultSet.next()) {
+                    stale.add(resultSet.getString("TABLE_NAME"));
+                }
+            } finally {
+                resultSet.close();
+            }
+        } catch (SQLException e) {
+            LOG.error(e, "While looking for stale tables");
+        }
+
+        for (String tableName : stale) {
+            dropTable(tableName);
+        }
+    }
+
+    private void close() {
+        lock.lock();
+        try {
+            LOG.ok("Closing connection ...");
+
+            for (BoundTable bound : boundTables.values()) {
+                dropTable(bound.name);
+            }
+            boundTables.clear();
+
+            if (emptyTable != null) {
+                dropTable(emptyTable);
+                emptyTable = null;
+            }
+
+            if (keyIndex != null) {
+                keyIndex.close();
+            }
+            if (keyFilters != null) {
+                keyFilters.close();
+            }
+
+            conn.close();
+        } catch (SQLException e) {
+            LOG.error(e, "While closing connection");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static final class StatementCache extends LinkedHashMap<String, PreparedStatement> {
+
+        private static final long serialVersionUID = -2536413375457219734L;
+
+        StatementCache() {
+            super(MAX_CACHED_STATEMENTS, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, PreparedStatement> eldest) {
+            if (size() > MAX_CACHED_STATEMENTS) {
+                close(eldest.getValue());
+                return true;
+            }
+            return false;
+        }
+
+        void closeAll() {
+            for (PreparedStatement stmt : values()) {
+                close(stmt);
+            }
+            clear();
+        }
+
+        private static void close(final PreparedStatement stmt) {
+            try {
+                stmt.close();
+            } catch (SQLException e) {
+                LOG.error(e, "While closing sql statement");
+            }
+        }
+    }
+
+    private static final class BoundTable {
+
+        private final String name;
+
+        private final FileIdentity identity;
+
+        BoundTable(final String name, final FileIdentity identity) {
+            this.name = name;
+            this.identity = identity;
+        }
+    }
 }
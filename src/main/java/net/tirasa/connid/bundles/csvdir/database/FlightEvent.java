@@ -0,0 +1,290 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir.database;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.spi.Connector;
+
+/**
+ * Java Flight Recorder event around a connector hot path, e.g. binding a file or building connector objects, so that
+ * a recording tells which file and which phase dominates.
+ * <br/>
+ * As this bundle is built for JVMs without <tt>jdk.jfr</tt>, event types are defined at runtime via
+ * <tt>jdk.jfr.EventFactory</tt> (Java 11 or later); events are only created while a recording is running, otherwise
+ * {@link #begin(Type)} costs a volatile read. On other JVMs, events are never created.
+ */
+public final class FlightEvent {
+
+    /**
+     * Setup {@link Connector} based logging.
+     */
+    private static final Log LOG = Log.getLog(FlightEvent.class);
+
+    private static final String PREFIX = "net.tirasa.connid.bundles.csvdir.";
+
+    private static final String CATEGORY = "ConnId CSV Directory";
+
+    /**
+     * Connection held, from {@link net.tirasa.connid.bundles.csvdir.CSVDirConnection#openConnection} (catalog lock
+     * wait included) to <tt>closeConnection</tt>.
+     */
+    public static final Type CONNECTION = new Type("Connection", "Connection",
+            new String[] { "sourcePath" }, new Class<?>[] { String.class });
+
+    /**
+     * File bound to a text table, or found already bound.
+     */
+    public static final Type BIND = new Type("Bind", "Bind File",
+            new String[] { "file", "bytes", "bound" }, new Class<?>[] { String.class, long.class, boolean.class });
+
+    /**
+     * Query over the text tables of all, or all modified, files.
+     */
+    public static final Type QUERY = new Type("Query", "Query Files",
+            new String[] { "files", "bytes" }, new Class<?>[] { int.class, long.class });
+
+    /**
+     * Connector objects built from the records of a file, or of a query when the file is not known.
+     */
+    public static final Type BUILD = new Type("BuildObjects", "Build Connector Objects",
+            new String[] { "file", "rows", "bytes" }, new Class<?>[] { String.class, long.class, long.class });
+
+    private static final FlightEvent DISABLED = new FlightEvent(null, null);
+
+    private static volatile boolean recording = false;
+
+    private static Class<?> annotationElementClass;
+
+    private static Class<?> valueDescriptorClass;
+
+    private static Method createFactory;
+
+    private static Method newEvent;
+
+    private static Method eventBegin;
+
+    private static Method eventSet;
+
+    private static Method eventCommit;
+
+    private static Method getRecordings;
+
+    private static Method getState;
+
+    static {
+        try {
+            final Class<?> recorderClass = Class.forName("jdk.jfr.FlightRecorder");
+            final Class<?> listenerClass = Class.forName("jdk.jfr.FlightRecorderListener");
+            final Class<?> eventClass = Class.forName("jdk.jfr.Event");
+            final Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+
+            annotationElementClass = Class.forName("jdk.jfr.AnnotationElement");
+            valueDescriptorClass = Class.forName("jdk.jfr.ValueDescriptor");
+            createFactory = factoryClass.getMethod("create", List.class, List.class);
+            newEvent = factoryClass.getMethod("newEvent");
+            eventBegin = eventClass.getMethod("begin");
+            eventSet = eventClass.getMethod("set", int.class, Object.class);
+            eventCommit = eventClass.getMethod("commit");
+            getRecordings = recorderClass.getMethod("getRecordings");
+            getState = Class.forName("jdk.jfr.Recording").getMethod("getState");
+
+            final Method getFlightRecorder = recorderClass.getMethod("getFlightRecorder");
+            final Object listener = Proxy.newProxyInstance(
+                    FlightEvent.class.getClassLoader(), new Class<?>[] { listenerClass }, new InvocationHandler() {
+
+                @Override
+                public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                    if ("equals".equals(method.getName())) {
+                        return proxy == args[0];
+                    }
+                    if ("hashCode".equals(method.getName())) {
+                        return System.identityHashCode(proxy);
+                    }
+                    if ("toString".equals(method.getName())) {
+                        return FlightEvent.class.getName() + " listener";
+                    }
+
+                    // recorderInitialized or recordingStateChanged
+                    refresh(getFlightRecorder.invoke(null));
+                    return null;
+                }
+            });
+            recorderClass.getMethod("addListener", listenerClass).invoke(null, listener);
+        } catch (Throwable t) {
+            LOG.ok("Flight Recorder not available: {0}", t.toString());
+        }
+    }
+
+    private final Type type;
+
+    private final Object event;
+
+    private FlightEvent(final Type type, final Object event) {
+        this.type = type;
+        this.event = event;
+    }
+
+    private static void refresh(final Object recorder) throws Exception {
+        boolean running = false;
+        for (Object recording : (Collection<?>) getRecordings.invoke(recorder)) {
+            running |= "RUNNING".equals(String.valueOf(getState.invoke(recording)));
+        }
+        recording = running;
+    }
+
+    /**
+     * Starts timing an event of the given type, to be completed via {@link #commit()}.
+     *
+     * @param type event type
+     * @return event, doing nothing unless a recording is running
+     */
+    public static FlightEvent begin(final Type type) {
+        if (!recording) {
+            return DISABLED;
+        }
+
+        final Object event = type.newEvent();
+        if (event == null) {
+            return DISABLED;
+        }
+        try {
+            eventBegin.invoke(event);
+        } catch (Exception e) {
+            LOG.error(e, "While beginning {0}", type.name);
+            return DISABLED;
+        }
+        return new FlightEvent(type, event);
+    }
+
+    /**
+     * @return whether this event will be recorded: to be checked before computing costly values
+     */
+    public boolean isEnabled() {
+        return event != null;
+    }
+
+    /**
+     * @param field field name, as defined by the event type
+     * @param value field value
+     * @return this event
+     */
+    public FlightEvent set(final String field, final Object value) {
+        if (event != null) {
+            try {
+                eventSet.invoke(event, type.indexOf(field), value);
+            } catch (Exception e) {
+                LOG.error(e, "While setting {0} of {1}", field, type.name);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Ends and records this event, subject to the recording settings (e.g. thresholds).
+     */
+    public void commit() {
+        if (event != null) {
+            try {
+                eventCommit.invoke(event);
+            } catch (Exception e) {
+                LOG.error(e, "While committing {0}", type.name);
+            }
+        }
+    }
+
+    /**
+     * Event type, registered with the Flight Recorder when first needed.
+     */
+    public static final class Type {
+
+        private final String name;
+
+        private final String label;
+
+        private final String[] fields;
+
+        private final Class<?>[] types;
+
+        private Object factory;
+
+        private boolean failed = false;
+
+        private Type(final String name, final String label, final String[] fields, final Class<?>[] types) {
+            this.name = name;
+            this.label = label;
+            this.fields = fields;
+            this.types = types;
+        }
+
+        int indexOf(final String field) {
+            for (int i = 0; i < fields.length; i++) {
+                if (fields[i].equals(field)) {
+                    return i;
+                }
+            }
+            throw new IllegalArgumentException("No field " + field + " in " + name);
+        }
+
+        synchronized Object newEvent() {
+            if (factory == null && !failed) {
+                try {
+                    factory = createFactory.invoke(null, annotations(), values());
+                } catch (Exception e) {
+                    failed = true;
+                    LOG.error(e, "While defining event {0}", name);
+                }
+            }
+            if (factory == null) {
+                return null;
+            }
+
+            try {
+                return newEvent.invoke(factory);
+            } catch (Exception e) {
+                LOG.error(e, "While creating event {0}", name);
+                return null;
+            }
+        }
+
+        private List<Object> annotations() throws Exception {
+            final List<Object> annotations = new ArrayList<Object>();
+            annotations.add(annotation("jdk.jfr.Name", PREFIX + name));
+            annotations.add(annotation("jdk.jfr.Label", label));
+            annotations.add(annotation("jdk.jfr.Category", new String[] { CATEGORY }));
+            return annotations;
+        }
+
+        private List<Object> values() throws Exception {
+            final List<Object> values = new ArrayList<Object>();
+            for (int i = 0; i < fields.length; i++) {
+                values.add(valueDescriptorClass.getConstructor(Class.class, String.class).
+                        newInstance(types[i], fields[i]));
+            }
+            return values;
+        }
+
+        private static Object annotation(final String annotationClass, final Object value) throws Exception {
+            return annotationElementClass.getConstructor(Class.class, Object.class).
+                    newInstance(Class.forName(annotationClass), value);
+        }
+    }
+}
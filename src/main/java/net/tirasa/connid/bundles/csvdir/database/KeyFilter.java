@@ -0,0 +1,231 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir.database;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.spi.Connector;
+
+/**
+ * Bloom filter of the keys held by a CSV file: tells whether the file may hold a given key, with no false negatives
+ * and about 1% false positives as long as no more keys than the filter was sized for are added.
+ * <br/>
+ * Filters can be saved to a sidecar file, under the {@value KeyIndexFile#DIRECTORY} directory of the source path,
+ * whose header holds format version, size and last modification time of the CSV file the filter was built from: a
+ * saved filter is only loaded while the CSV file still has the recorded size and last modification time.
+ */
+public final class KeyFilter {
+
+    /**
+     * Setup {@link Connector} based logging.
+     */
+    private static final Log LOG = Log.getLog(KeyFilter.class);
+
+    private static final String SUFFIX = ".bloom";
+
+    private static final int MAGIC = 0x4353424C;
+
+    private static final int VERSION = 1;
+
+    /**
+     * Magic number, version, CSV file size and last modification time, capacity, number of keys and of words.
+     */
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4 + 4 + 4;
+
+    private static final int BITS_PER_KEY = 10;
+
+    private static final int HASHES = 7;
+
+    private final long[] bits;
+
+    /**
+     * Number of keys the filter was sized for.
+     */
+    private final int capacity;
+
+    /**
+     * Number of keys added.
+     */
+    private int count;
+
+    /**
+     * @param capacity expected number of keys
+     */
+    public KeyFilter(final int capacity) {
+        this(new long[(int) Math.max(1L, ((long) Math.max(1, capacity) * BITS_PER_KEY + 63) / 64)], capacity, 0);
+    }
+
+    private KeyFilter(final long[] bits, final int capacity, final int count) {
+        this.bits = bits;
+        this.capacity = Math.max(1, capacity);
+        this.count = count;
+    }
+
+    private static File getFile(final File sourcePath, final String fileName) {
+        return new File(new File(sourcePath, KeyIndexFile.DIRECTORY), fileName + SUFFIX);
+    }
+
+    /**
+     * Loads the saved filter of the given CSV file, if any and still matching the given identity.
+     *
+     * @param sourcePath source path
+     * @param fileName CSV file name
+     * @param identity current identity of the CSV file
+     * @return filter, <tt>null</tt> if missing, stale or unreadable
+     */
+    public static KeyFilter open(final File sourcePath, final String fileName, final FileIdentity identity) {
+        final File file = getFile(sourcePath, fileName);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        try {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    LOG.ok("Ignoring {0}: unknown format", file.getName());
+                    return null;
+                }
+                if (in.readLong() != identity.getSize() || in.readLong() != identity.getLastModified()) {
+                    LOG.ok("Ignoring {0}: {1} changed since saved", file.getName(), fileName);
+                    return null;
+                }
+
+                final int capacity = in.readInt();
+                final int count = in.readInt();
+                final int words = in.readInt();
+                if (words <= 0 || file.length() != HEADER_SIZE + (long) words * 8) {
+                    LOG.ok("Ignoring {0}: truncated", file.getName());
+                    return null;
+                }
+
+                final long[] bits = new long[words];
+                for (int i = 0; i < words; i++) {
+                    bits[i] = in.readLong();
+                }
+
+                LOG.ok("Loaded key filter of {0}", fileName);
+                return new KeyFilter(bits, capacity, count);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            LOG.error(e, "While reading {0}", file.getName());
+            return null;
+        }
+    }
+
+    /**
+     * Saves this filter as the one of the given CSV file, replacing the existing one, if any.
+     *
+     * @param sourcePath source path
+     * @param fileName CSV file name
+     * @param identity identity of the CSV file this filter was built from
+     * @throws IOException if the filter cannot be written
+     */
+    public void write(final File sourcePath, final String fileName, final FileIdentity identity) throws IOException {
+        final File file = getFile(sourcePath, fileName);
+        final File directory = file.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory.getAbsolutePath());
+        }
+
+        final File temp = new File(directory, file.getName() + ".tmp");
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(identity.getSize());
+            out.writeLong(identity.getLastModified());
+            out.writeInt(capacity);
+            out.writeInt(count);
+            out.writeInt(bits.length);
+            for (long word : bits) {
+                out.writeLong(word);
+            }
+        } finally {
+            out.close();
+        }
+
+        if ((file.exists() && !file.delete()) || !temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not replace " + file.getAbsolutePath());
+        }
+        LOG.ok("Saved key filter of {0}", fileName);
+    }
+
+    /**
+     * Removes the saved filter of the given CSV file, if any.
+     *
+     * @param sourcePath source path
+     * @param fileName CSV file name
+     */
+    public static void delete(final File sourcePath, final String fileName) {
+        final File file = getFile(sourcePath, fileName);
+        if (file.exists() && !file.delete()) {
+            LOG.error("Could not delete {0}", file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * @param key normalized composite key
+     */
+    public void add(final String key) {
+        final long hash = KeyIndexFile.hash(key);
+        for (int i = 0; i < HASHES; i++) {
+            final long bit = position(hash, i);
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+        count++;
+    }
+
+    /**
+     * @param key normalized composite key
+     * @return <tt>false</tt> if the given key was never added, <tt>true</tt> if it may have been
+     */
+    public boolean mightContain(final String key) {
+        final long hash = KeyIndexFile.hash(key);
+        for (int i = 0; i < HASHES; i++) {
+            final long bit = position(hash, i);
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return whether twice as many keys as the filter was sized for were added, so that it should be built again
+     */
+    public boolean isSaturated() {
+        return count > 2L * capacity;
+    }
+
+    /**
+     * Double hashing over the two halves of the given 64 bit hash.
+     */
+    private long position(final long hash, final int i) {
+        final long combined = ((int) hash + (long) i * (int) (hash >>> 32)) & Long.MAX_VALUE;
+        return combined % ((long) bits.length * 64);
+    }
+}
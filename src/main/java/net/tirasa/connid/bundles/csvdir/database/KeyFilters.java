@@ -0,0 +1,404 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import net.tirasa.connid.bundles.csvdir.CSVDirConfiguration;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.spi.Connector;
+
+/**
+ * {@link KeyFilter}s of the CSV files, for configurations whose files cannot be read natively, hence without
+ * {@link KeyIndex}: key-targeted operations only bind and query the files whose filter may hold the key.
+ * <br/>
+ * The filter of a file is built from the keys read by the first full {@link Scan} of the file, as run by searches
+ * without filter and by syncs, or else at first lookup, by reading the key columns of its text table; it is built
+ * again only when its {@link FileIdentity} changes behind our back, while keys written by the connector itself are
+ * added incrementally. Keys are matched case-insensitively.
+ * <br/>
+ * When so configured, filters are also saved once built, and again on {@link #close()} if changed meanwhile: files
+ * not looked up yet are then filtered through their saved filter, if still matching, rather than bound.
+ */
+public class KeyFilters {
+
+    /**
+     * Setup {@link Connector} based logging.
+     */
+    private static final Log LOG = Log.getLog(KeyFilters.class);
+
+    /**
+     * Column telling, in the records returned by a {@link Scan}, the position of the text table they were read from.
+     */
+    public static final String FILE_COLUMN = "CSVDIR_FILE";
+
+    private final CSVDirConfiguration conf;
+
+    private final FileToDB fileToDB;
+
+    private final ColumnIndex columns;
+
+    private final File sourcePath;
+
+    private final boolean persistent;
+
+    /**
+     * Filters, by file name.
+     */
+    private final Map<String, KeyFilter> filters = new HashMap<String, KeyFilter>();
+
+    /**
+     * Filtered files, by name, with the identity their filter matches.
+     */
+    private final Map<String, FileIdentity> identities = new HashMap<String, FileIdentity>();
+
+    /**
+     * Filtered files changed since their filter was saved.
+     */
+    private final Set<String> dirty = new HashSet<String>();
+
+    public KeyFilters(final CSVDirConfiguration conf, final FileToDB fileToDB) {
+        this.conf = conf;
+        this.fileToDB = fileToDB;
+        this.columns = new ColumnIndex(conf);
+        this.sourcePath = new File(conf.getSourcePath());
+        this.persistent = conf.isPersistentKeyIndex();
+    }
+
+    /**
+     * Builds the key of the given record.
+     *
+     * @param values record values, positioned as the configured fields
+     * @return composite key
+     */
+    public String getKey(final String[] values) {
+        return columns.getKey(values, conf.getKeyseparator());
+    }
+
+    /**
+     * Builds the key of a record written with the given attributes.
+     *
+     * @param key current composite key of the record, <tt>null</tt> for new records
+     * @param attributes attributes written, by column name
+     * @return composite key
+     */
+    public String getKey(final String key, final Map<String, String> attributes) {
+        return columns.getKey(key, attributes, conf.getKeyseparator());
+    }
+
+    /**
+     * Finds the files, among the given ones, which may hold the given key.
+     *
+     * @param key composite key
+     * @param files candidate files
+     * @return files which may hold the given key, in the given order
+     */
+    public List<File> lookup(final String key, final File[] files) {
+        update(files);
+        return find(key, files);
+    }
+
+    /**
+     * Same as {@link #lookup(String, File[])}, without checking first whether the given files were changed: to be
+     * used for many lookups in a row, after {@link #update(File[])}.
+     *
+     * @param key composite key
+     * @param files candidate files
+     * @return files which may hold the given key, in the given order
+     */
+    public List<File> find(final String key, final File[] files) {
+        final String normalized = normalize(key);
+
+        final List<File> found = new ArrayList<File>();
+        for (File file : files) {
+            final KeyFilter filter = filters.get(file.getName());
+            if (filter == null || filter.mightContain(normalized)) {
+                found.add(file);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Records that a record with the given key was written to the given file by the connector; files not filtered
+     * yet are left to next lookup.
+     *
+     * @param file file
+     * @param key composite key
+     */
+    public void added(final File file, final String key) {
+        final KeyFilter filter = filters.get(file.getName());
+        if (filter != null) {
+            filter.add(normalize(key));
+            if (filter.isSaturated()) {
+                // too many false positives from now on
+                clear(file.getName());
+            } else {
+                touched(file);
+            }
+        }
+    }
+
+    /**
+     * Records that the given file was changed by the connector, the keys written being already known to this
+     * instance; keys removed are left in the filter, which can only tell that a key is not there.
+     *
+     * @param file file
+     */
+    public void touched(final File file) {
+        if (filters.containsKey(file.getName())) {
+            identities.put(file.getName(), new FileIdentity(new File(conf.getSourcePath(), file.getName())));
+            if (persistent) {
+                dirty.add(file.getName());
+            }
+        }
+    }
+
+    /**
+     * Builds, or loads, the filters of the given files, if new or changed since last built, and forgets the files
+     * removed meanwhile.
+     *
+     * @param files files
+     */
+    public void update(final File[] files) {
+        for (Iterator<String> itor = identities.keySet().iterator(); itor.hasNext();) {
+            final String fileName = itor.next();
+            if (!ChangeTracker.exists(conf, fileName)) {
+                itor.remove();
+                filters.remove(fileName);
+                dirty.remove(fileName);
+                if (persistent) {
+                    KeyFilter.delete(sourcePath, fileName);
+                }
+            }
+        }
+
+        for (File file : files) {
+            // as known to the change tracker, if the given files come from it
+            final FileIdentity identity = new FileIdentity(file);
+            if (!identity.equals(identities.get(file.getName())) && !load(file, identity)) {
+                build(file, identity);
+            }
+        }
+    }
+
+    /**
+     * Uses the saved filter of the given file, if available and matching the given identity.
+     */
+    private boolean load(final File file, final FileIdentity identity) {
+        if (!persistent) {
+            return false;
+        }
+
+        clear(file.getName());
+
+        final KeyFilter filter = KeyFilter.open(sourcePath, file.getName(), identity);
+        if (filter == null) {
+            return false;
+        }
+        filters.put(file.getName(), filter);
+        identities.put(file.getName(), identity);
+        return true;
+    }
+
+    private void build(final File file, final FileIdentity identity) {
+        LOG.ok("Building key filter of {0}", file.getName());
+
+        clear(file.getName());
+
+        final String tableName = fileToDB.createDbForUpdate(file);
+        if (tableName == null) {
+            // file not bound: always to be looked at
+            return;
+        }
+
+        final String[] keyColumnNames = conf.getKeyColumnNames();
+        final StringBuilder selectList = new StringBuilder();
+        for (int i = 0; i < keyColumnNames.length; i++) {
+            if (i > 0) {
+                selectList.append(',');
+            }
+            selectList.append(keyColumnNames[i]);
+        }
+
+        final List<String> keys = new ArrayList<String>();
+        try {
+            final ResultSet resultSet = fileToDB.prepare(tableName,
+                    "SELECT " + selectList + " FROM " + tableName).executeQuery();
+            try {
+                while (resultSet.next()) {
+                    final StringBuilder key = new StringBuilder();
+                    for (int i = 0; i < keyColumnNames.length; i++) {
+                        if (i > 0) {
+                            key.append(conf.getKeyseparator());
+                        }
+                        key.append(resultSet.getString(i + 1));
+                    }
+                    keys.add(normalize(key.toString()));
+                }
+            } finally {
+                resultSet.close();
+            }
+        } catch (SQLException e) {
+            LOG.error(e, "While reading keys of {0}", file.getName());
+            throw new IllegalStateException(e);
+        }
+
+        install(file.getName(), identity, keys);
+    }
+
+    private void install(final String fileName, final FileIdentity identity, final List<String> keys) {
+        final KeyFilter filter = new KeyFilter(keys.size());
+        for (String key : keys) {
+            filter.add(key);
+        }
+        filters.put(fileName, filter);
+        identities.put(fileName, identity);
+
+        if (persistent) {
+            save(fileName);
+        }
+    }
+
+    /**
+     * @return new key scan, to be started with the files about to be fully read, so that the filters of the ones not
+     * filtered yet, or changed since, are built without reading them again
+     */
+    public Scan scan() {
+        return new Scan();
+    }
+
+    /**
+     * Keys read by a full scan, by text table: to be fed with each record read, and committed only once all records
+     * were read.
+     */
+    public final class Scan {
+
+        private String[] fileNames = new String[0];
+
+        private FileIdentity[] fileIdentities = new FileIdentity[0];
+
+        private List<String>[] keys = newKeys(0);
+
+        private Scan() {
+        }
+
+        @SuppressWarnings("unchecked")
+        private List<String>[] newKeys(final int tables) {
+            return new List[tables];
+        }
+
+        /**
+         * @param files files about to be scanned
+         * @param tableNames text tables of the given files, in the order they are queried, as told by
+         * {@link KeyFilters#FILE_COLUMN}
+         */
+        public void start(final File[] files, final List<String> tableNames) {
+            fileNames = new String[tableNames.size()];
+            fileIdentities = new FileIdentity[tableNames.size()];
+            keys = newKeys(tableNames.size());
+
+            for (File file : files) {
+                final FileIdentity identity = new FileIdentity(file);
+                if (!identity.equals(identities.get(file.getName()))) {
+                    final int position = tableNames.indexOf(fileToDB.createDbForUpdate(file));
+                    if (position != -1) {
+                        fileNames[position] = file.getName();
+                        fileIdentities[position] = identity;
+                        keys[position] = new ArrayList<String>();
+                    }
+                }
+            }
+        }
+
+        /**
+         * @param resultSet result set positioned on the record read, including {@link KeyFilters#FILE_COLUMN}
+         * @throws SQLException if the result set cannot be read
+         */
+        public void add(final ResultSet resultSet) throws SQLException {
+            final int position = resultSet.getInt(FILE_COLUMN);
+            if (position >= 0 && position < keys.length && keys[position] != null) {
+                final String[] keyColumnNames = conf.getKeyColumnNames();
+                final StringBuilder key = new StringBuilder();
+                for (int i = 0; i < keyColumnNames.length; i++) {
+                    if (i > 0) {
+                        key.append(conf.getKeyseparator());
+                    }
+                    key.append(resultSet.getString(keyColumnNames[i]));
+                }
+                keys[position].add(normalize(key.toString()));
+            }
+        }
+
+        /**
+         * Builds the filters of the files scanned which were not changed meanwhile.
+         */
+        public void commit() {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != null && fileIdentities[i].equals(
+                        new FileIdentity(new File(conf.getSourcePath(), fileNames[i])))) {
+
+                    LOG.ok("Building key filter of {0} from scan", fileNames[i]);
+                    install(fileNames[i], fileIdentities[i], keys[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Saves the filter of the given file; failures are only logged, as the filter can always be built again.
+     */
+    private void save(final String fileName) {
+        try {
+            filters.get(fileName).write(sourcePath, fileName, identities.get(fileName));
+            dirty.remove(fileName);
+        } catch (IOException e) {
+            LOG.error(e, "While saving key filter of {0}", fileName);
+        }
+    }
+
+    /**
+     * Saves the filters of the files changed since built, if so configured.
+     */
+    public void close() {
+        for (String fileName : new ArrayList<String>(dirty)) {
+            if (filters.containsKey(fileName) && identities.containsKey(fileName)) {
+                save(fileName);
+            }
+        }
+        dirty.clear();
+    }
+
+    private void clear(final String fileName) {
+        filters.remove(fileName);
+        identities.remove(fileName);
+        dirty.remove(fileName);
+    }
+
+    private static String normalize(final String key) {
+        return key.toUpperCase(Locale.ENGLISH);
+    }
+}
@@ -0,0 +1,684 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir.database;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import net.tirasa.connid.bundles.csvdir.CSVDirConfiguration;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+import org.identityconnectors.framework.spi.Connector;
+
+/**
+ * In-memory index from the composite key (key columns joined with the configured key separator) to the files, and
+ * records within files, holding it.
+ * <br/>
+ * Files are indexed lazily, at first lookup; a file is indexed again only when its {@link FileIdentity} changes
+ * behind our back, while changes made by the connector itself are recorded incrementally. Keys are matched
+ * case-insensitively.
+ * <br/>
+ * When so configured, the entries of each file are also saved to a {@link KeyIndexFile} once indexed, and again on
+ * {@link #close()} if changed meanwhile: files not indexed yet are then looked up through their sidecar, if still
+ * matching, rather than scanned. Changes made by the connector to such files are kept in an overlay over the sidecar,
+ * merged into it when saved again.
+ */
+public class KeyIndex {
+
+    /**
+     * Setup {@link Connector} based logging.
+     */
+    private static final Log LOG = Log.getLog(KeyIndex.class);
+
+    /**
+     * Offset used for records whose position is not known.
+     */
+    public static final long UNKNOWN_OFFSET = -1L;
+
+    /**
+     * Moves of records kept in the overlay of a file looked up through its sidecar, beyond which the file is scanned
+     * at next lookup instead, as each sidecar lookup applies all of them.
+     */
+    private static final int MAX_SHIFTS = 1024;
+
+    private final CSVDirConfiguration conf;
+
+    private final FileScanner scanner;
+
+    private final ColumnIndex columns;
+
+    private final File sourcePath;
+
+    private final boolean persistent;
+
+    /**
+     * Deleted records, to be skipped when looking up sidecars; <tt>null</tt> if tombstones are disabled.
+     */
+    private final TombstoneLog tombstones;
+
+    /**
+     * Indexed files, by name, with the identity they had once indexed.
+     */
+    private final Map<String, FileIdentity> identities = new HashMap<String, FileIdentity>();
+
+    /**
+     * Record offsets of the keys found in each indexed file, by file name.
+     */
+    private final Map<String, OffsetTable> tables = new HashMap<String, OffsetTable>();
+
+    /**
+     * Indexed files holding each key, by key.
+     */
+    private final Map<String, Set<String>> entries = new HashMap<String, Set<String>>();
+
+    /**
+     * Files looked up through their sidecar, by name.
+     */
+    private final Map<String, KeyIndexFile> mapped = new HashMap<String, KeyIndexFile>();
+
+    /**
+     * Changes made by the connector to the files looked up through their sidecar, by file name.
+     */
+    private final Map<String, Overlay> overlays = new HashMap<String, Overlay>();
+
+    /**
+     * Indexed files changed since their sidecar was saved.
+     */
+    private final Set<String> dirty = new HashSet<String>();
+
+    public KeyIndex(final CSVDirConfiguration conf) {
+        this.conf = conf;
+        this.scanner = new FileScanner(conf);
+        this.columns = scanner.getColumns();
+        this.sourcePath = new File(conf.getSourcePath());
+        this.persistent = conf.isPersistentKeyIndex();
+        this.tombstones = TombstoneLog.getInstance(conf);
+    }
+
+    /**
+     * Builds the key of the given record.
+     *
+     * @param values record values, positioned as the configured fields
+     * @return composite key
+     */
+    public String getKey(final String[] values) {
+        return columns.getKey(values, conf.getKeyseparator());
+    }
+
+    /**
+     * Builds the key of a record written with the given attributes.
+     *
+     * @param key current composite key of the record, <tt>null</tt> for new records
+     * @param attributes attributes written, by column name
+     * @return composite key
+     */
+    public String getKey(final String key, final Map<String, String> attributes) {
+        return columns.getKey(key, attributes, conf.getKeyseparator());
+    }
+
+    /**
+     * Finds the files, among the given ones, holding the given key.
+     *
+     * @param key composite key
+     * @param files candidate files
+     * @return files holding the given key, in the given order
+     */
+    public List<File> lookup(final String key, final File[] files) {
+        update(files);
+        return find(key, files);
+    }
+
+    /**
+     * Same as {@link #lookup(String, File[])}, without checking first whether the given files were changed: to be
+     * used for many lookups in a row, after {@link #update(File[])}.
+     *
+     * @param key composite key
+     * @param files candidate files
+     * @return files holding the given key, in the given order
+     */
+    public List<File> find(final String key, final File[] files) {
+        final List<File> found = new ArrayList<File>();
+
+        final String normalized = normalize(key);
+        final Set<String> fileNames = entries.get(normalized);
+        if (fileNames != null || !mapped.isEmpty()) {
+            for (File file : files) {
+                if ((fileNames != null && fileNames.contains(file.getName()))
+                        || getMappedOffset(normalized, file.getName()) != UNKNOWN_OFFSET) {
+
+                    found.add(file);
+                }
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * Counts the distinct keys held by the given file, indexing it first if needed.
+     *
+     * @param file file
+     * @return number of distinct keys in the given file
+     */
+    public int count(final File file) {
+        update(new File[] { file });
+        final KeyIndexFile sidecar = mapped.get(file.getName());
+        if (sidecar != null) {
+            final Overlay overlay = overlays.get(file.getName());
+            return sidecar.size() + (overlay == null ? 0 : overlay.delta);
+        }
+        final OffsetTable table = tables.get(file.getName());
+        return table == null ? 0 : table.size();
+    }
+
+    /**
+     * @param key composite key
+     * @param file file holding the given key
+     * @return offset of the record with the given key in the given file, {@link #UNKNOWN_OFFSET} if not known
+     */
+    public long getOffset(final String key, final File file) {
+        final OffsetTable table = tables.get(file.getName());
+        final Long offset = table == null ? null : table.get(normalize(key));
+        return offset == null ? getMappedOffset(normalize(key), file.getName()) : offset;
+    }
+
+    /**
+     * @param key normalized composite key
+     * @param fileName file name
+     * @return offset of the record with the given key, as found through the sidecar of the given file;
+     * {@link #UNKNOWN_OFFSET} if not found or if the file is not looked up through its sidecar
+     */
+    private long getMappedOffset(final String key, final String fileName) {
+        final KeyIndexFile sidecar = mapped.get(fileName);
+        if (sidecar == null) {
+            return UNKNOWN_OFFSET;
+        }
+
+        final Overlay overlay = overlays.get(fileName);
+        if (overlay != null) {
+            final Long offset = overlay.added.get(key);
+            if (offset != null) {
+                return offset;
+            }
+            if (overlay.removed.contains(key)) {
+                return UNKNOWN_OFFSET;
+            }
+        }
+
+        final long hash = KeyIndexFile.hash(key);
+        for (int i = sidecar.find(hash); i != -1 && i < sidecar.size() && sidecar.getHash(i) == hash; i++) {
+            final long offset = overlay == null ? sidecar.getOffset(i) : overlay.resolve(sidecar.getOffset(i));
+            if (holds(fileName, key, offset, sidecar.getSpan(i))) {
+                return offset;
+            }
+        }
+        return UNKNOWN_OFFSET;
+    }
+
+    /**
+     * Reads the record at the given offset, telling whether it has the given key and was not deleted meanwhile.
+     */
+    private boolean holds(final String fileName, final String key, final long offset, final int span) {
+        return key.equals(keyAt(fileName, offset, span));
+    }
+
+    /**
+     * Reads the record at the given offset: returns its normalized key, <tt>null</tt> if deleted meanwhile or if no
+     * record starts there.
+     */
+    private String keyAt(final String fileName, final long offset, final int span) {
+        final File file = new File(sourcePath, fileName);
+        try {
+            if (tombstones != null && tombstones.isDeleted(file, offset)) {
+                return null;
+            }
+
+            final byte[] record = new byte[span];
+            final RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                raf.seek(offset);
+                raf.readFully(record);
+            } finally {
+                raf.close();
+            }
+
+            final CSVReader reader = new CSVReader(new ByteArrayInputStream(record), offset, conf);
+            try {
+                return reader.advance() && reader.getRecordOffset() == offset
+                        ? normalize(columns.getKey(reader, conf.getKeyseparator()))
+                        : null;
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            LOG.error(e, "While reading {0} at {1}", fileName, offset);
+            throw new ConnectorIOException(e);
+        }
+    }
+
+    /**
+     * Records that a record with the given key was written to the given file by the connector; files not indexed
+     * yet are left to next lookup.
+     *
+     * @param file file
+     * @param key composite key
+     * @param offset record offset
+     */
+    public void added(final File file, final String key, final long offset) {
+        final Overlay overlay = getOverlay(file.getName());
+        if (overlay != null) {
+            overlay.added(normalize(key), offset);
+            touched(file);
+            return;
+        }
+        if (tables.containsKey(file.getName())) {
+            put(file.getName(), normalize(key), offset);
+            touched(file);
+        }
+    }
+
+    /**
+     * Records that the record with the given key was removed from the given file by the connector.
+     *
+     * @param file file
+     * @param key composite key
+     */
+    public void removed(final File file, final String key) {
+        final Overlay overlay = getOverlay(file.getName());
+        if (overlay != null) {
+            overlay.removed(normalize(key));
+            touched(file);
+            return;
+        }
+
+        final String normalized = normalize(key);
+
+        final Set<String> fileNames = entries.get(normalized);
+        if (fileNames != null) {
+            fileNames.remove(file.getName());
+            if (fileNames.isEmpty()) {
+                entries.remove(normalized);
+            }
+        }
+
+        final OffsetTable table = tables.get(file.getName());
+        if (table != null) {
+            table.remove(normalized);
+        }
+
+        touched(file);
+    }
+
+    /**
+     * Records that the records following the given offset in the given file were moved by the connector.
+     *
+     * @param file file
+     * @param offset offset of the record whose length changed
+     * @param delta number of bytes records following the given offset were moved by
+     */
+    public void shifted(final File file, final long offset, final long delta) {
+        final Overlay overlay = getOverlay(file.getName());
+        if (overlay != null) {
+            if (overlay.shifts.size() < MAX_SHIFTS) {
+                overlay.shift(offset, delta);
+            } else {
+                LOG.ok("Too many records of {0} moved, scanning it at next lookup", file.getName());
+                unmap(file.getName());
+            }
+            return;
+        }
+
+        final OffsetTable table = tables.get(file.getName());
+        if (table != null) {
+            table.shift(offset, delta);
+        }
+    }
+
+    /**
+     * Records that the given file was changed by the connector, the changes being already known to this index.
+     *
+     * @param file file
+     */
+    public void touched(final File file) {
+        if (tables.containsKey(file.getName()) || mapped.containsKey(file.getName())) {
+            identities.put(file.getName(), new FileIdentity(new File(conf.getSourcePath(), file.getName())));
+            if (persistent) {
+                dirty.add(file.getName());
+            }
+        }
+    }
+
+    /**
+     * @param fileName file name
+     * @return overlay of the given file, created if needed; <tt>null</tt> if the file is not looked up through its
+     * sidecar
+     */
+    private Overlay getOverlay(final String fileName) {
+        final KeyIndexFile sidecar = mapped.get(fileName);
+        if (sidecar == null) {
+            return null;
+        }
+
+        Overlay overlay = overlays.get(fileName);
+        if (overlay == null) {
+            overlay = new Overlay(sidecar);
+            overlays.put(fileName, overlay);
+        }
+        return overlay;
+    }
+
+    /**
+     * Stops looking up the given file through its sidecar: the file will be scanned at next lookup.
+     *
+     * @param fileName file name
+     */
+    private void unmap(final String fileName) {
+        mapped.remove(fileName);
+        overlays.remove(fileName);
+        identities.remove(fileName);
+        dirty.remove(fileName);
+    }
+
+    /**
+     * Forgets the given file, which will be indexed again at next lookup.
+     *
+     * @param file file
+     */
+    public void invalidate(final File file) {
+        clear(file.getName());
+    }
+
+    /**
+     * Indexes the given files, if new or changed since last indexed, and forgets the files removed meanwhile.
+     *
+     * @param files files
+     */
+    public void update(final File[] files) {
+        for (Iterator<String> itor = identities.keySet().iterator(); itor.hasNext();) {
+            final String fileName = itor.next();
+            if (!ChangeTracker.exists(conf, fileName)) {
+                removeEntries(fileName);
+                itor.remove();
+                mapped.remove(fileName);
+                overlays.remove(fileName);
+                dirty.remove(fileName);
+                if (persistent) {
+                    KeyIndexFile.delete(sourcePath, fileName);
+                }
+            }
+        }
+
+        for (File file : files) {
+            // as known to the change tracker, if the given files come from it
+            final FileIdentity identity = new FileIdentity(file);
+            if (!identity.equals(identities.get(file.getName())) && !map(file, identity)) {
+                index(file, identity);
+            }
+        }
+    }
+
+    /**
+     * Looks up the given file through its sidecar from now on, if available and matching the given identity.
+     */
+    private boolean map(final File file, final FileIdentity identity) {
+        if (!persistent) {
+            return false;
+        }
+
+        clear(file.getName());
+
+        final KeyIndexFile sidecar = KeyIndexFile.open(sourcePath, file.getName(), identity);
+        if (sidecar == null) {
+            return false;
+        }
+        mapped.put(file.getName(), sidecar);
+        identities.put(file.getName(), identity);
+        return true;
+    }
+
+    private void index(final File file, final FileIdentity identity) {
+        LOG.ok("Indexing keys of {0}", file.getName());
+
+        clear(file.getName());
+
+        final String fileName = file.getName();
+        tables.put(fileName, new OffsetTable());
+        try {
+            scanner.scan(file, null, new RowHandler() {
+
+                @Override
+                public boolean handle(final Row row) {
+                    put(fileName, normalize(getKey(row.getValues())), row.getOffset());
+                    return true;
+                }
+            });
+        } catch (IOException e) {
+            clear(fileName);
+
+            LOG.error(e, "While indexing {0}", fileName);
+            throw new ConnectorIOException(e);
+        }
+        identities.put(fileName, identity);
+
+        if (persistent) {
+            save(fileName);
+        }
+    }
+
+    /**
+     * Saves the entries of the given indexed file to its sidecar; failures are only logged, as the file can always
+     * be scanned again.
+     */
+    private void save(final String fileName) {
+        try {
+            KeyIndexFile.write(sourcePath, fileName, identities.get(fileName), tables.get(fileName).toMap());
+            dirty.remove(fileName);
+        } catch (IOException e) {
+            LOG.error(e, "While saving keys of {0}", fileName);
+        }
+    }
+
+    /**
+     * Saves the sidecar of the given file looked up through its sidecar, merging the changes in its overlay.
+     */
+    private void saveOverlay(final String fileName) {
+        final KeyIndexFile sidecar = mapped.get(fileName);
+        final Overlay overlay = overlays.get(fileName);
+
+        // entries of keys changed since mapped are superseded by the overlay
+        final Map<String, Long> added = overlay.added.toMap();
+        final Set<String> changedKeys = new HashSet<String>(overlay.removed);
+        changedKeys.addAll(added.keySet());
+        final Set<Long> changed = new HashSet<Long>();
+        for (String key : changedKeys) {
+            changed.add(KeyIndexFile.hash(key));
+        }
+
+        final List<long[]> merged = new ArrayList<long[]>(sidecar.size() + added.size());
+        for (int i = 0; i < sidecar.size(); i++) {
+            final long offset = overlay.resolve(sidecar.getOffset(i));
+            // hashes may be shared with unchanged keys: only entries whose record is gone or has a changed key go
+            boolean superseded = false;
+            if (changed.contains(sidecar.getHash(i))) {
+                final String key = keyAt(fileName, offset, sidecar.getSpan(i));
+                superseded = key == null || changedKeys.contains(key);
+            }
+            if (!superseded) {
+                merged.add(new long[] { sidecar.getHash(i), offset });
+            }
+        }
+        for (Map.Entry<String, Long> entry : added.entrySet()) {
+            merged.add(new long[] { KeyIndexFile.hash(entry.getKey()), entry.getValue() });
+        }
+
+        final long[] hashes = new long[merged.size()];
+        final long[] offsets = new long[merged.size()];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = merged.get(i)[0];
+            offsets[i] = merged.get(i)[1];
+        }
+
+        try {
+            KeyIndexFile.write(sourcePath, fileName, identities.get(fileName), hashes, offsets);
+        } catch (IOException e) {
+            LOG.error(e, "While saving keys of {0}", fileName);
+        }
+    }
+
+    /**
+     * Saves the sidecars of the files changed since indexed, if so configured.
+     */
+    public void close() {
+        for (String fileName : new ArrayList<String>(dirty)) {
+            if (tables.containsKey(fileName) && identities.containsKey(fileName)) {
+                save(fileName);
+            } else if (overlays.containsKey(fileName) && identities.containsKey(fileName)) {
+                saveOverlay(fileName);
+            }
+        }
+        dirty.clear();
+        mapped.clear();
+        overlays.clear();
+    }
+
+    private void put(final String fileName, final String key, final long offset) {
+        Set<String> fileNames = entries.get(key);
+        if (fileNames == null) {
+            fileNames = new LinkedHashSet<String>(2);
+            entries.put(key, fileNames);
+        }
+        fileNames.add(fileName);
+
+        OffsetTable table = tables.get(fileName);
+        if (table == null) {
+            table = new OffsetTable();
+            tables.put(fileName, table);
+        }
+        table.put(key, offset);
+    }
+
+    private void clear(final String fileName) {
+        removeEntries(fileName);
+        identities.remove(fileName);
+        mapped.remove(fileName);
+        overlays.remove(fileName);
+        dirty.remove(fileName);
+    }
+
+    private void removeEntries(final String fileName) {
+        final OffsetTable table = tables.remove(fileName);
+        if (table != null) {
+            for (String key : table.keySet()) {
+                final Set<String> fileNames = entries.get(key);
+                if (fileNames != null) {
+                    fileNames.remove(fileName);
+                    if (fileNames.isEmpty()) {
+                        entries.remove(key);
+                    }
+                }
+            }
+        }
+    }
+
+    private static String normalize(final String key) {
+        return key.toUpperCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Changes made by the connector to a file looked up through its sidecar, which is left untouched until saved
+     * again.
+     */
+    private static final class Overlay {
+
+        private final KeyIndexFile sidecar;
+
+        /**
+         * Records written since mapped.
+         */
+        private final OffsetTable added = new OffsetTable();
+
+        /**
+         * Keys removed since mapped, and not written again.
+         */
+        private final Set<String> removed = new HashSet<String>();
+
+        /**
+         * Moves of the records following an offset, in order: offset and number of bytes.
+         */
+        private final List<long[]> shifts = new ArrayList<long[]>();
+
+        /**
+         * Keys added minus keys removed since mapped.
+         */
+        private int delta = 0;
+
+        Overlay(final KeyIndexFile sidecar) {
+            this.sidecar = sidecar;
+        }
+
+        private boolean holds(final String key) {
+            return added.contains(key)
+                    || (!removed.contains(key) && sidecar.find(KeyIndexFile.hash(key)) != -1);
+        }
+
+        void added(final String key, final long offset) {
+            if (!holds(key)) {
+                delta++;
+            }
+            added.put(key, offset);
+            removed.remove(key);
+        }
+
+        void removed(final String key) {
+            if (holds(key)) {
+                delta--;
+            }
+            added.remove(key);
+            removed.add(key);
+        }
+
+        void shift(final long offset, final long bytes) {
+            if (bytes != 0) {
+                shifts.add(new long[] { offset, bytes });
+                added.shift(offset, bytes);
+            }
+        }
+
+        /**
+         * @param offset record offset, as found in the sidecar
+         * @return current record offset
+         */
+        long resolve(final long offset) {
+            long current = offset;
+            for (long[] shift : shifts) {
+                if (current > shift[0]) {
+                    current += shift[1];
+                }
+            }
+            return current;
+        }
+    }
+}
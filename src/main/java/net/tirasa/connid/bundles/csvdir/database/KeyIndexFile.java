@@ -0,0 +1,309 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir.database;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.spi.Connector;
+
+/**
+ * Sidecar file persisting the {@link KeyIndex} entries of a CSV file, under the {@value #DIRECTORY} directory of the
+ * source path; sidecars are memory-mapped, so that a lookup costs a binary search over the mapped entries.
+ * <br/>
+ * A sidecar starts with a header holding format version, size and last modification time of the CSV file once
+ * indexed, and number of entries; entries follow, sorted by key hash: 64 bit hash of the normalized key, record
+ * offset and span, e.g. bytes up to the next indexed record. A sidecar is only opened while the CSV file still has
+ * the recorded size and last modification time; as different keys may share the same hash, matches are to be
+ * checked against the record itself.
+ */
+public final class KeyIndexFile {
+
+    /**
+     * Setup {@link Connector} based logging.
+     */
+    private static final Log LOG = Log.getLog(KeyIndexFile.class);
+
+    /**
+     * Directory holding the sidecars, in the source path; never matched as a CSV file.
+     */
+    public static final String DIRECTORY = ".csvdir-index";
+
+    private static final String SUFFIX = ".keyidx";
+
+    private static final int MAGIC = 0x43534B49;
+
+    private static final int VERSION = 1;
+
+    /**
+     * Magic number, version, CSV file size and last modification time, number of entries.
+     */
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4;
+
+    /**
+     * Key hash, record offset and span.
+     */
+    private static final int ENTRY_SIZE = 8 + 8 + 4;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final ByteBuffer buffer;
+
+    private final int size;
+
+    private KeyIndexFile(final ByteBuffer buffer, final int size) {
+        this.buffer = buffer;
+        this.size = size;
+    }
+
+    private static File getFile(final File sourcePath, final String fileName) {
+        return new File(new File(sourcePath, DIRECTORY), fileName + SUFFIX);
+    }
+
+    /**
+     * @param key normalized composite key
+     * @return 64 bit FNV-1a hash of the given key
+     */
+    public static long hash(final String key) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < key.length(); i++) {
+            final char c = key.charAt(i);
+            hash = (hash ^ (c & 0xFF)) * FNV_PRIME;
+            hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Maps the sidecar of the given CSV file, if any and still matching the given identity.
+     *
+     * @param sourcePath source path
+     * @param fileName CSV file name
+     * @param identity current identity of the CSV file
+     * @return sidecar, <tt>null</tt> if missing, stale or unreadable
+     */
+    public static KeyIndexFile open(final File sourcePath, final String fileName, final FileIdentity identity) {
+        final File file = getFile(sourcePath, fileName);
+        if (!file.isFile() || file.length() < HEADER_SIZE) {
+            return null;
+        }
+        if (file.length() > Integer.MAX_VALUE) {
+            LOG.ok("Ignoring {0}: too large to be mapped", file.getName());
+            return null;
+        }
+
+        try {
+            final RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                // the mapping stays valid after the channel is closed
+                final ByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+                if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                    LOG.ok("Ignoring {0}: unknown format", file.getName());
+                    return null;
+                }
+                if (buffer.getLong(8) != identity.getSize() || buffer.getLong(16) != identity.getLastModified()) {
+                    LOG.ok("Ignoring {0}: {1} changed since indexed", file.getName(), fileName);
+                    return null;
+                }
+
+                final int size = buffer.getInt(24);
+                if (size < 0 || raf.length() != HEADER_SIZE + (long) size * ENTRY_SIZE) {
+                    LOG.ok("Ignoring {0}: truncated", file.getName());
+                    return null;
+                }
+
+                LOG.ok("Mapped {0} keys of {1}", size, fileName);
+                return new KeyIndexFile(buffer, size);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            LOG.error(e, "While reading {0}", file.getName());
+            return null;
+        }
+    }
+
+    /**
+     * Writes the sidecar of the given CSV file, replacing the existing one, if any.
+     *
+     * @param sourcePath source path
+     * @param fileName CSV file name
+     * @param identity identity of the CSV file the given offsets refer to
+     * @param offsets record offsets, by normalized composite key
+     * @throws IOException if the sidecar cannot be written
+     */
+    public static void write(
+            final File sourcePath, final String fileName, final FileIdentity identity, final Map<String, Long> offsets)
+            throws IOException {
+
+        final long[] hashes = new long[offsets.size()];
+        final long[] values = new long[offsets.size()];
+        int index = 0;
+        for (Map.Entry<String, Long> offset : offsets.entrySet()) {
+            hashes[index] = hash(offset.getKey());
+            values[index] = offset.getValue();
+            index++;
+        }
+        write(sourcePath, fileName, identity, hashes, values);
+    }
+
+    /**
+     * Writes the sidecar of the given CSV file, replacing the existing one, if any.
+     *
+     * @param sourcePath source path
+     * @param fileName CSV file name
+     * @param identity identity of the CSV file the given offsets refer to
+     * @param hashes key hashes, see {@link #hash(String)}
+     * @param offsets record offsets, positioned as the given hashes
+     * @throws IOException if the sidecar cannot be written
+     */
+    public static void write(
+            final File sourcePath, final String fileName, final FileIdentity identity,
+            final long[] hashes, final long[] offsets)
+            throws IOException {
+
+        final long[] sorted = offsets.clone();
+        final Entry[] entries = new Entry[offsets.length];
+        for (int i = 0; i < offsets.length; i++) {
+            entries[i] = new Entry(hashes[i], offsets[i]);
+        }
+
+        // span of each record: up to next indexed record, or end of file
+        Arrays.sort(sorted);
+        for (Entry entry : entries) {
+            final int next = Arrays.binarySearch(sorted, entry.offset) + 1;
+            final long end = next < sorted.length ? sorted[next] : identity.getSize();
+            entry.span = (int) Math.min(Integer.MAX_VALUE, Math.max(0L, end - entry.offset));
+        }
+
+        Arrays.sort(entries, new Comparator<Entry>() {
+
+            @Override
+            public int compare(final Entry left, final Entry right) {
+                return left.hash < right.hash ? -1 : left.hash == right.hash ? 0 : 1;
+            }
+        });
+
+        final File file = getFile(sourcePath, fileName);
+        final File directory = file.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory.getAbsolutePath());
+        }
+
+        final File temp = new File(directory, file.getName() + ".tmp");
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(identity.getSize());
+            out.writeLong(identity.getLastModified());
+            out.writeInt(entries.length);
+            for (Entry entry : entries) {
+                out.writeLong(entry.hash);
+                out.writeLong(entry.offset);
+                out.writeInt(entry.span);
+            }
+        } finally {
+            out.close();
+        }
+
+        if ((file.exists() && !file.delete()) || !temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not replace " + file.getAbsolutePath());
+        }
+        LOG.ok("Saved {0} keys of {1}", entries.length, fileName);
+    }
+
+    /**
+     * Removes the sidecar of the given CSV file, if any.
+     *
+     * @param sourcePath source path
+     * @param fileName CSV file name
+     */
+    public static void delete(final File sourcePath, final String fileName) {
+        final File file = getFile(sourcePath, fileName);
+        if (file.exists() && !file.delete()) {
+            LOG.error("Could not delete {0}", file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * @return number of entries, e.g. of distinct keys
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param hash key hash
+     * @return position of the first entry with the given hash, -1 if none; entries with the same hash follow
+     */
+    public int find(final long hash) {
+        int low = 0;
+        int high = size - 1;
+        int found = -1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final long current = getHash(mid);
+            if (current < hash) {
+                low = mid + 1;
+            } else {
+                if (current == hash) {
+                    found = mid;
+                }
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    public long getHash(final int position) {
+        return buffer.getLong(HEADER_SIZE + position * ENTRY_SIZE);
+    }
+
+    public long getOffset(final int position) {
+        return buffer.getLong(HEADER_SIZE + position * ENTRY_SIZE + 8);
+    }
+
+    public int getSpan(final int position) {
+        return buffer.getInt(HEADER_SIZE + position * ENTRY_SIZE + 16);
+    }
+
+    private static final class Entry {
+
+        private final long hash;
+
+        private final long offset;
+
+        private int span;
+
+        Entry(final long hash, final long offset) {
+            this.hash = hash;
+            this.offset = offset;
+        }
+    }
+}
@@ -0,0 +1,368 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir.database;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import net.tirasa.connid.bundles.csvdir.CSVDirConfiguration;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.spi.Connector;
+
+/**
+ * Per-operation timers and counters of all the connector instances working on a source path, registered over JMX
+ * as <tt>net.tirasa.connid.bundles.csvdir:type=Metrics,sourcePath=...</tt> while any of them is initialized.
+ * <br/>
+ * An operation is timed from {@link #start(CSVDirConfiguration, String)} to {@link Sample#stop()}: meanwhile, the
+ * counters incremented via {@link #count(int, long)} by the same thread, or by threads the sample was attached to
+ * (see {@link #attach(Sample)}), are charged to that operation. Nested operations are charged on their own.
+ */
+public final class Metrics implements MetricsMXBean {
+
+    /**
+     * Setup {@link Connector} based logging.
+     */
+    private static final Log LOG = Log.getLog(Metrics.class);
+
+    public static final String DOMAIN = "net.tirasa.connid.bundles.csvdir";
+
+    public static final String SEARCH = "search";
+
+    public static final String SYNC = "sync";
+
+    public static final String CREATE = "create";
+
+    public static final String CREATE_ALL = "createAll";
+
+    public static final String UPDATE = "update";
+
+    public static final String DELETE = "delete";
+
+    public static final String RESHARD = "reshard";
+
+    public static final String COMPACT = "compact";
+
+    /**
+     * Files returned by directory listings.
+     */
+    public static final int FILES_LISTED = 0;
+
+    /**
+     * Files bound to HSQLDB text tables.
+     */
+    public static final int FILES_BOUND = 1;
+
+    /**
+     * Records parsed natively.
+     */
+    public static final int ROWS_SCANNED = 2;
+
+    /**
+     * Objects handed over to results handlers.
+     */
+    public static final int ROWS_EMITTED = 3;
+
+    public static final int BYTES_READ = 4;
+
+    /**
+     * DDL statements issued to HSQLDB, e.g. to bind or drop text tables.
+     */
+    public static final int DDL_STATEMENTS = 5;
+
+    /**
+     * Nanoseconds spent in results handlers.
+     */
+    public static final int HANDLER_TIME = 6;
+
+    private static final int COUNTERS = 7;
+
+    /**
+     * Latency histogram buckets, in powers of two microseconds: the last one goes beyond half an hour.
+     */
+    private static final int BUCKETS = 32;
+
+    private static final Map<String, Metrics> INSTANCES = new HashMap<String, Metrics>();
+
+    private static final Map<String, Integer> REFERENCES = new HashMap<String, Integer>();
+
+    private static final ThreadLocal<Sample> CURRENT = new ThreadLocal<Sample>();
+
+    private final String sourcePath;
+
+    private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<String, Timer>();
+
+    private Metrics(final String sourcePath) {
+        this.sourcePath = sourcePath;
+    }
+
+    private static String getSourcePathKey(final CSVDirConfiguration conf) {
+        return new File(conf.getSourcePath()).getAbsolutePath();
+    }
+
+    /**
+     * @param conf configuration
+     * @return metrics of the configured source path
+     */
+    public static Metrics getInstance(final CSVDirConfiguration conf) {
+        final String key = getSourcePathKey(conf);
+
+        synchronized (INSTANCES) {
+            Metrics instance = INSTANCES.get(key);
+            if (instance == null) {
+                instance = new Metrics(key);
+                INSTANCES.put(key, instance);
+            }
+            return instance;
+        }
+    }
+
+    /**
+     * @param conf configuration
+     * @return name the metrics of the configured source path are registered with
+     */
+    public static ObjectName getObjectName(final CSVDirConfiguration conf) {
+        try {
+            return new ObjectName(DOMAIN + ":type=Metrics,sourcePath=" + ObjectName.quote(getSourcePathKey(conf)));
+        } catch (JMException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Registers one more user (typically a connector instance) of the metrics of the configured source path: these
+     * are registered with the platform MBean server along with the first one.
+     *
+     * @param conf configuration
+     */
+    public static void acquire(final CSVDirConfiguration conf) {
+        final String key = getSourcePathKey(conf);
+        final Metrics instance = getInstance(conf);
+
+        synchronized (INSTANCES) {
+            final Integer references = REFERENCES.get(key);
+            REFERENCES.put(key, references == null ? 1 : references + 1);
+
+            if (references == null) {
+                final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                final ObjectName name = getObjectName(conf);
+                try {
+                    if (!server.isRegistered(name)) {
+                        server.registerMBean(instance, name);
+                    }
+                } catch (JMException e) {
+                    LOG.error(e, "While registering {0}", name);
+                }
+            }
+        }
+    }
+
+    /**
+     * Unregisters a user of the metrics of the configured source path: when no users are left, these are
+     * unregistered from the platform MBean server and discarded.
+     *
+     * @param conf configuration
+     */
+    public static void release(final CSVDirConfiguration conf) {
+        final String key = getSourcePathKey(conf);
+
+        synchronized (INSTANCES) {
+            final Integer references = REFERENCES.get(key);
+            if (references == null || references <= 1) {
+                REFERENCES.remove(key);
+                INSTANCES.remove(key);
+
+                final ObjectName name = getObjectName(conf);
+                try {
+                    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                    if (server.isRegistered(name)) {
+                        server.unregisterMBean(name);
+                    }
+                } catch (JMException e) {
+                    LOG.error(e, "While unregistering {0}", name);
+                }
+            } else {
+                REFERENCES.put(key, references - 1);
+            }
+        }
+    }
+
+    /**
+     * Starts timing the given operation on the configured source path, charging it the counters incremented by the
+     * current thread until {@link Sample#stop()} is called.
+     *
+     * @param conf configuration
+     * @param operation operation name
+     * @return running sample
+     */
+    public static Sample start(final CSVDirConfiguration conf, final String operation) {
+        final Metrics metrics = getInstance(conf);
+
+        Timer timer = metrics.timers.get(operation);
+        if (timer == null) {
+            final Timer created = new Timer();
+            timer = metrics.timers.putIfAbsent(operation, created);
+            if (timer == null) {
+                timer = created;
+            }
+        }
+
+        final Sample sample = new Sample(timer, CURRENT.get());
+        CURRENT.set(sample);
+        return sample;
+    }
+
+    /**
+     * @return sample of the operation being run by the current thread, <tt>null</tt> if none
+     */
+    public static Sample current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Charges the counters incremented by the current thread to the given sample, typically taken by another
+     * thread via {@link #current()}; to be paired with {@link #detach()}.
+     *
+     * @param sample sample, <tt>null</tt> for none
+     */
+    public static void attach(final Sample sample) {
+        if (sample != null) {
+            CURRENT.set(sample);
+        }
+    }
+
+    public static void detach() {
+        CURRENT.remove();
+    }
+
+    /**
+     * Increments the given counter of the operation being run by the current thread, if any.
+     *
+     * @param counter counter, e.g. {@link #ROWS_SCANNED}
+     * @param delta increment
+     */
+    public static void count(final int counter, final long delta) {
+        final Sample sample = CURRENT.get();
+        if (sample != null) {
+            sample.timer.counters.addAndGet(counter, delta);
+        }
+    }
+
+    @Override
+    public String getSourcePath() {
+        return sourcePath;
+    }
+
+    @Override
+    public Map<String, OperationStatistics> getOperations() {
+        final Map<String, OperationStatistics> operations = new TreeMap<String, OperationStatistics>();
+        for (Map.Entry<String, Timer> entry : timers.entrySet()) {
+            operations.put(entry.getKey(), entry.getValue().getStatistics());
+        }
+        return operations;
+    }
+
+    @Override
+    public void reset() {
+        // samples still running are not recorded anymore
+        timers.clear();
+    }
+
+    /**
+     * Running operation.
+     */
+    public static final class Sample {
+
+        private final Timer timer;
+
+        private final Sample previous;
+
+        private final long start = System.nanoTime();
+
+        private boolean stopped = false;
+
+        private Sample(final Timer timer, final Sample previous) {
+            this.timer = timer;
+            this.previous = previous;
+        }
+
+        /**
+         * Records the latency of this operation; the operation being run before, if any, is resumed.
+         */
+        public void stop() {
+            if (stopped) {
+                return;
+            }
+            stopped = true;
+
+            timer.record(System.nanoTime() - start);
+
+            if (CURRENT.get() == this) {
+                if (previous == null) {
+                    CURRENT.remove();
+                } else {
+                    CURRENT.set(previous);
+                }
+            }
+        }
+    }
+
+    private static final class Timer {
+
+        private final AtomicLong count = new AtomicLong();
+
+        private final AtomicLong totalNanos = new AtomicLong();
+
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+        private final AtomicLongArray counters = new AtomicLongArray(COUNTERS);
+
+        void record(final long nanos) {
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+
+            final int bucket = 64 - Long.numberOfLeadingZeros(nanos / 1000L);
+            histogram.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+        }
+
+        OperationStatistics getStatistics() {
+            final long[] buckets = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = histogram.get(i);
+            }
+            final long[] values = new long[COUNTERS];
+            for (int i = 0; i < COUNTERS; i++) {
+                values[i] = counters.get(i);
+            }
+            return new OperationStatistics(count.get(), totalNanos.get(), maxNanos.get(), buckets, values);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir.database;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link Metrics}.
+ */
+public interface MetricsMXBean {
+
+    /**
+     * @return source path the metrics refer to
+     */
+    String getSourcePath();
+
+    /**
+     * @return statistics of each operation run since the last reset, by operation name
+     */
+    Map<String, OperationStatistics> getOperations();
+
+    /**
+     * Discards the statistics collected so far.
+     */
+    void reset();
+}
@@ -0,0 +1,216 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir.database;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Record offsets of the keys held by a file, kept in slots sorted by offset: moving all the records following a given
+ * offset, as done when a record is rewritten with a different length, costs a binary search and an update of a
+ * Fenwick tree holding the shifts, rather than a visit of every key.
+ * <br/>
+ * Offsets are expected to be added in increasing order, as when scanning or appending; offsets added out of order are
+ * sorted at next shift.
+ */
+public final class OffsetTable {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Slot of each key, by normalized key.
+     */
+    private final Map<String, Integer> slots = new HashMap<String, Integer>();
+
+    /**
+     * Key of each slot, <tt>null</tt> if removed.
+     */
+    private String[] keys = new String[INITIAL_CAPACITY];
+
+    /**
+     * Offset of each slot, net of the shifts held by {@link #tree}.
+     */
+    private long[] offsets = new long[INITIAL_CAPACITY];
+
+    /**
+     * Fenwick tree over slots: the prefix sum up to a slot is the shift to be added to its offset.
+     */
+    private long[] tree = new long[INITIAL_CAPACITY + 1];
+
+    /**
+     * Slots in use, removed ones included.
+     */
+    private int used = 0;
+
+    private boolean sorted = true;
+
+    /**
+     * @return number of keys
+     */
+    public int size() {
+        return slots.size();
+    }
+
+    /**
+     * @return normalized keys
+     */
+    public Set<String> keySet() {
+        return slots.keySet();
+    }
+
+    public boolean contains(final String key) {
+        return slots.containsKey(key);
+    }
+
+    /**
+     * @param key normalized composite key
+     * @return offset of the record with the given key, <tt>null</tt> if not held
+     */
+    public Long get(final String key) {
+        final Integer slot = slots.get(key);
+        return slot == null ? null : offset(slot);
+    }
+
+    /**
+     * @param key normalized composite key
+     * @param offset offset of the record with the given key
+     */
+    public void put(final String key, final long offset) {
+        final Integer slot = slots.get(key);
+        if (slot != null) {
+            if (offset(slot) == offset) {
+                return;
+            }
+            remove(key);
+        }
+
+        if (used == keys.length) {
+            rebuild(Math.max(INITIAL_CAPACITY, slots.size() * 2));
+        }
+        if (used > 0 && offset < offset(used - 1)) {
+            sorted = false;
+        }
+
+        keys[used] = key;
+        offsets[used] = offset - prefix(used);
+        slots.put(key, used);
+        used++;
+    }
+
+    /**
+     * @param key normalized composite key
+     */
+    public void remove(final String key) {
+        final Integer slot = slots.remove(key);
+        if (slot != null) {
+            keys[slot] = null;
+        }
+    }
+
+    /**
+     * Moves the records following the given offset.
+     *
+     * @param offset offset of the record whose length changed
+     * @param delta number of bytes records following the given offset were moved by
+     */
+    public void shift(final long offset, final long delta) {
+        if (delta == 0 || used == 0) {
+            return;
+        }
+        if (!sorted) {
+            rebuild(keys.length);
+        }
+
+        // first slot past the given offset: offsets are non-decreasing across slots
+        int low = 0;
+        int high = used;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (offset(mid) > offset) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+
+        for (int i = low + 1; i < tree.length; i += i & -i) {
+            tree[i] += delta;
+        }
+    }
+
+    /**
+     * @return record offsets, by normalized key
+     */
+    public Map<String, Long> toMap() {
+        final Map<String, Long> result = new HashMap<String, Long>(slots.size());
+        for (Map.Entry<String, Integer> entry : slots.entrySet()) {
+            result.put(entry.getKey(), offset(entry.getValue()));
+        }
+        return result;
+    }
+
+    private long offset(final int slot) {
+        return offsets[slot] + prefix(slot);
+    }
+
+    private long prefix(final int slot) {
+        long sum = 0;
+        for (int i = slot + 1; i > 0; i -= i & -i) {
+            sum += tree[i];
+        }
+        return sum;
+    }
+
+    /**
+     * Drops removed slots, applies the shifts and sorts slots by offset.
+     */
+    private void rebuild(final int capacity) {
+        final String[] liveKeys = new String[slots.size()];
+        final long[][] live = new long[slots.size()][];
+        int count = 0;
+        for (int slot = 0; slot < used; slot++) {
+            if (keys[slot] != null) {
+                liveKeys[count] = keys[slot];
+                live[count] = new long[] { offset(slot), count };
+                count++;
+            }
+        }
+        if (!sorted) {
+            Arrays.sort(live, new Comparator<long[]>() {
+
+                @Override
+                public int compare(final long[] left, final long[] right) {
+                    return left[0] < right[0] ? -1 : left[0] == right[0] ? 0 : 1;
+                }
+            });
+        }
+
+        keys = new String[capacity];
+        offsets = new long[capacity];
+        tree = new long[capacity + 1];
+        slots.clear();
+        for (int slot = 0; slot < count; slot++) {
+            keys[slot] = liveKeys[(int) live[slot][1]];
+            offsets[slot] = live[slot][0];
+            slots.put(keys[slot], slot);
+        }
+        used = count;
+        sorted = true;
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir.database;
+
+/**
+ * Snapshot of the statistics collected by {@link Metrics} for an operation.
+ * <br/>
+ * Rows scanned and bytes read refer to the records parsed natively, e.g. by the native engine, the key index or a
+ * rewrite; files read by HSQLDB only count, as bytes read, when bound to a text table.
+ */
+public class OperationStatistics {
+
+    private final long count;
+
+    private final long totalNanos;
+
+    private final long maxNanos;
+
+    private final long[] histogram;
+
+    private final long[] counters;
+
+    public OperationStatistics(
+            final long count, final long totalNanos, final long maxNanos, final long[] histogram,
+            final long[] counters) {
+
+        this.count = count;
+        this.totalNanos = totalNanos;
+        this.maxNanos = maxNanos;
+        this.histogram = histogram.clone();
+        this.counters = counters.clone();
+    }
+
+    /**
+     * @return number of completed runs
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public long getMeanMicros() {
+        return count == 0 ? 0L : totalNanos / count / 1000L;
+    }
+
+    public long getMaxMicros() {
+        return maxNanos / 1000L;
+    }
+
+    /**
+     * @return latency below which half of the runs completed, in microseconds; rounded up to a power of two
+     */
+    public long getMedianMicros() {
+        return percentile(0.5);
+    }
+
+    /**
+     * @return latency below which 90% of the runs completed, in microseconds; rounded up to a power of two
+     */
+    public long getP90Micros() {
+        return percentile(0.9);
+    }
+
+    /**
+     * @return latency below which 99% of the runs completed, in microseconds; rounded up to a power of two
+     */
+    public long getP99Micros() {
+        return percentile(0.99);
+    }
+
+    /**
+     * @return latency histogram: element <tt>i</tt> counts the runs lasting less than <tt>2^i</tt> microseconds and
+     * at least <tt>2^(i-1)</tt>; the last element also counts all the slower runs
+     */
+    public long[] getHistogram() {
+        return histogram.clone();
+    }
+
+    public long getFilesListed() {
+        return counters[Metrics.FILES_LISTED];
+    }
+
+    public long getFilesBound() {
+        return counters[Metrics.FILES_BOUND];
+    }
+
+    public long getRowsScanned() {
+        return counters[Metrics.ROWS_SCANNED];
+    }
+
+    public long getRowsEmitted() {
+        return counters[Metrics.ROWS_EMITTED];
+    }
+
+    public long getBytesRead() {
+        return counters[Metrics.BYTES_READ];
+    }
+
+    public long getDdlStatements() {
+        return counters[Metrics.DDL_STATEMENTS];
+    }
+
+    /**
+     * @return time spent in results handlers, hence outside of the connector, in microseconds
+     */
+    public long getHandlerMicros() {
+        return counters[Metrics.HANDLER_TIME] / 1000L;
+    }
+
+    private long percentile(final double fraction) {
+        final long rank = (long) Math.ceil(count * fraction);
+        long seen = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            seen += histogram[i];
+            if (seen >= rank && seen > 0) {
+                return 1L << i;
+            }
+        }
+        return 0L;
+    }
+}
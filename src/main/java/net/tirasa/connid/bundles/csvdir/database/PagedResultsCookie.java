@@ -0,0 +1,110 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir.database;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import org.identityconnectors.common.Base64;
+
+/**
+ * Position, in a given file, of the first record of the next page of a paged search.
+ * <br/>
+ * For the native engine, the position is the byte offset of the record, which stays valid as long as the file is
+ * only appended to; for HSQLDB, whose text tables are read ordered by key, it is the key of the record, which stays
+ * valid whatever the changes to the file.
+ */
+public final class PagedResultsCookie {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String SEPARATOR = "\n";
+
+    private final String engine;
+
+    private final String fileName;
+
+    private final long offset;
+
+    private final String key;
+
+    /**
+     * @param engine engine reading files
+     * @param file file
+     * @param offset byte offset of the record, for the native engine
+     * @param key composite key of the record, for HSQLDB
+     */
+    public PagedResultsCookie(final String engine, final File file, final long offset, final String key) {
+        this(engine, file.getName(), offset, key);
+    }
+
+    private PagedResultsCookie(final String engine, final String fileName, final long offset, final String key) {
+        this.engine = engine;
+        this.fileName = fileName;
+        this.offset = offset;
+        this.key = key;
+    }
+
+    /**
+     * Decodes a cookie previously returned by {@link #toString()}.
+     *
+     * @param cookie encoded cookie
+     * @return decoded cookie
+     * @throws IllegalArgumentException if the given value is not a valid cookie
+     */
+    public static PagedResultsCookie parse(final String cookie) {
+        try {
+            final String[] parts = new String(Base64.decode(cookie), UTF8).split(SEPARATOR, 4);
+            if (parts.length != 4) {
+                throw new IllegalArgumentException("Invalid paged results cookie: " + cookie);
+            }
+
+            return new PagedResultsCookie(
+                    parts[0],
+                    parts[1],
+                    Long.parseLong(parts[2]),
+                    parts[3].isEmpty() ? null : parts[3]);
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid paged results cookie: " + cookie, e);
+        }
+    }
+
+    /**
+     * @param engine engine reading files
+     * @param file file
+     * @return whether this cookie was issued by the given engine for the given file
+     */
+    public boolean matches(final String engine, final File file) {
+        return this.engine.equalsIgnoreCase(engine) && fileName.equals(file.getName());
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    @Override
+    public String toString() {
+        return Base64.encode((engine + SEPARATOR + fileName + SEPARATOR + offset + SEPARATOR + (key == null ? "" : key))
+                .getBytes(UTF8));
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir.database;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import net.tirasa.connid.bundles.csvdir.CSVDirConfiguration;
+
+/**
+ * Hash-partitioned layout: each record belongs to one of the configured number of bucket files, as told by a stable
+ * hash of its composite key, so that the single file owning a key is known without looking at any file.
+ * <br/>
+ * Keys are hashed once upper-cased, as they are matched case-insensitively; records written before the layout was
+ * enabled are only found once moved to their buckets, see {@link Resharder}.
+ */
+public class Partitioner {
+
+    private static final String BUCKET_PREFIX = FileToDB.DEFAULT_PREFIX + "_BUCKET";
+
+    private final CSVDirConfiguration conf;
+
+    private final int[] keys;
+
+    public Partitioner(final CSVDirConfiguration conf) {
+        if (conf.getPartitions() <= 0) {
+            throw new IllegalArgumentException("No partitions configured");
+        }
+
+        this.conf = conf;
+        this.keys = new ColumnIndex(conf).getKeys();
+    }
+
+    public int getPartitions() {
+        return conf.getPartitions();
+    }
+
+    /**
+     * @param key composite key
+     * @return bucket owning the given key
+     */
+    public int getBucket(final String key) {
+        // String.hashCode() is specified, hence stable across runs and JVMs
+        return (key.toUpperCase(Locale.ENGLISH).hashCode() & Integer.MAX_VALUE) % conf.getPartitions();
+    }
+
+    /**
+     * @param values record values, positioned as the configured fields
+     * @return bucket owning the given record
+     */
+    public int getBucket(final String[] values) {
+        final StringBuilder key = new StringBuilder();
+        for (int i = 0; i < keys.length; i++) {
+            if (i > 0) {
+                key.append(conf.getKeyseparator());
+            }
+            key.append(values[keys[i]]);
+        }
+        return getBucket(key.toString());
+    }
+
+    /**
+     * @param bucket bucket
+     * @return file of the given bucket, possibly not existing yet
+     */
+    public File getFile(final int bucket) {
+        return new File(conf.getSourcePath(), String.format("%s%04d.csv", BUCKET_PREFIX, bucket));
+    }
+
+    /**
+     * @param key composite key
+     * @param files all CSV files
+     * @return the bucket file owning the given key, if among the given files
+     */
+    public List<File> getOwningFiles(final String key, final File[] files) {
+        final String name = getFile(getBucket(key)).getName();
+        for (File file : files) {
+            if (file.getName().equals(name)) {
+                return Collections.singletonList(file);
+            }
+        }
+        return Collections.<File>emptyList();
+    }
+}
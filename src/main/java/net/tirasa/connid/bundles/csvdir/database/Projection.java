@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir.database;
+
+import net.tirasa.connid.bundles.csvdir.CSVDirConfiguration;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.OperationalAttributes;
+import org.identityconnectors.framework.common.objects.Uid;
+
+/**
+ * Columns to be read and returned by a search, according to the requested attributes to get.
+ * <br/>
+ * Returned columns are the ones mapped to requested attributes; read columns are the returned ones plus the ones
+ * required anyway, e.g. key and delete columns or the ones used by filters and sort keys.
+ */
+public class Projection {
+
+    private final ColumnIndex columns;
+
+    private final boolean[] read;
+
+    private final boolean[] returned;
+
+    /**
+     * @param conf configuration
+     * @param columns column positions
+     * @param attributesToGet requested attributes, <tt>null</tt> for all
+     */
+    public Projection(final CSVDirConfiguration conf, final ColumnIndex columns, final String[] attributesToGet) {
+        this.columns = columns;
+        this.read = new boolean[columns.size()];
+        this.returned = new boolean[columns.size()];
+
+        if (attributesToGet == null) {
+            for (int i = 0; i < returned.length; i++) {
+                returned[i] = true;
+                read[i] = true;
+            }
+            return;
+        }
+
+        for (String attribute : attributesToGet) {
+            final int index;
+            if (OperationalAttributes.PASSWORD_NAME.equals(attribute)) {
+                index = columns.indexOf(conf.getPasswordColumnName());
+            } else if (OperationalAttributes.ENABLE_NAME.equals(attribute)) {
+                index = columns.indexOf(conf.getStatusColumn());
+            } else if (Uid.NAME.equals(attribute) || Name.NAME.equals(attribute)) {
+                // built from key columns, always read
+                index = -1;
+            } else {
+                index = columns.indexOf(attribute);
+            }
+
+            if (index != -1) {
+                returned[index] = true;
+                read[index] = true;
+            }
+        }
+
+        for (int key : columns.getKeys()) {
+            read[key] = true;
+        }
+        require(conf.getDeleteColumnName());
+    }
+
+    /**
+     * Marks the given column as to be read, though not returned.
+     *
+     * @param column column name, ignored if not configured
+     */
+    public final void require(final String column) {
+        final int index = columns.indexOf(column);
+        if (index != -1) {
+            read[index] = true;
+        }
+    }
+
+    public boolean isRead(final int index) {
+        return read[index];
+    }
+
+    public boolean isReturned(final int index) {
+        return returned[index];
+    }
+
+    /**
+     * @param column column name
+     * @return whether the given column is to be returned; unknown columns are returned
+     */
+    public boolean isReturned(final String column) {
+        final int index = columns.indexOf(column);
+        return index == -1 || returned[index];
+    }
+
+    /**
+     * @return flags telling, for each column, whether it is to be read
+     */
+    public boolean[] getRead() {
+        return read.clone();
+    }
+
+    /**
+     * @return SQL select list of the columns to be read
+     */
+    public String getSelectList() {
+        final StringBuilder selectList = new StringBuilder();
+
+        boolean all = true;
+        for (int i = 0; i < read.length; i++) {
+            if (read[i]) {
+                if (selectList.length() > 0) {
+                    selectList.append(", ");
+                }
+                selectList.append(columns.getName(i));
+            } else {
+                all = false;
+            }
+        }
+
+        return all ? "*" : selectList.toString();
+    }
+}
@@ -15,26 +15,36 @@
  */
 package net.tirasa.connid.bundles.csvdir.database;
 
+import java.sql.Types;
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import net.tirasa.connid.bundles.csvdir.utilities.QueryTemplate;
 import net.tirasa.connid.bundles.csvdir.utilities.Utilities;
+import net.tirasa.connid.bundles.db.common.SQLParam;
 import org.identityconnectors.framework.common.objects.Uid;
 
+/**
+ * Parameterized DML statements: the SQL text only depends on the table and on the set of columns involved, so that
+ * prepared statements can be reused across records sharing the same shape.
+ */
 public final class QueryCreator {
 
     private QueryCreator() {
         // empty private constructor for utility class
     }
 
-    private static String getWhereClause(final Uid uid, final String keySeparator, final String[] keys) {
+    /**
+     * @param keys key column names
+     * @return clause matching the record with a given composite key, see
+     * {@link #getKeyParams(Uid, String, String[])}
+     */
+    public static String getWhereClause(final String[] keys) {
         final StringBuilder where = new StringBuilder();
 
-        final String[] uidKeys = uid.getUidValue().split(keySeparator);
         for (int i = 0; i < keys.length; i++) {
-            where.append(keys[i]).append("=").append("'").append(uidKeys[i]).append("'");
+            where.append(keys[i]).append("=?");
             if (i < keys.length - 1) {
                 where.append(" AND ");
             }
@@ -43,55 +53,100 @@ public final class QueryCreator {
         return where.toString();
     }
 
-    private static Map<String, String> getKeyValueMap(final Map<String, String> valuesMap) {
-        final Map<String, String> keyValueMap = new LinkedHashMap<String, String>();
-        for (Map.Entry<String, String> entry : valuesMap.entrySet()) {
-            if (entry.getValue() == null) {
-                keyValueMap.put(entry.getKey(), "NULL");
-            } else {
-                keyValueMap.put(entry.getKey(), "'" + entry.getValue() + "'");
-            }
+    public static String updateQuery(final Collection<String> columns, final String[] keys, final String tableName) {
+        final List<String> set = new ArrayList<String>(columns.size());
+        for (String column : columns) {
+            set.add(column + "=?");
         }
 
-        return keyValueMap;
+        final QueryTemplate queryTemplate = new QueryTemplate("UPDATE {0} SET {1} WHERE {2}");
+        return queryTemplate.apply(tableName,
+                Utilities.join(set, ','),
+                getWhereClause(keys));
     }
 
-    public static String insertQuery(final Map<String, String> valuesMap, final String tableName) {
-        final Map<String, String> keyValueMap = getKeyValueMap(valuesMap);
-
-        final QueryTemplate queryTemplate = new QueryTemplate("INSERT INTO {0}({1}) VALUES({2})");
+    public static String deleteQuery(final String[] keys, final String tableName) {
+        final QueryTemplate queryTemplate = new QueryTemplate("DELETE FROM {0} WHERE {1}");
         return queryTemplate.apply(tableName,
-                Utilities.join(keyValueMap.keySet(), ','),
-                Utilities.join(keyValueMap.values(), ','));
+                getWhereClause(keys));
     }
 
-    public static String updateQuery(
-            final Map<String, String> valuesMap,
-            final Uid uid,
-            final String keySeparator,
-            final String[] keys,
-            final String tableName) {
-
-        final Map<String, String> keyValueMap = getKeyValueMap(valuesMap);
-        final List<String> set = new ArrayList<String>(keyValueMap.size());
-        for (Map.Entry<String, String> entry : keyValueMap.entrySet()) {
-            set.add(entry.getKey() + "=" + entry.getValue());
+    /**
+     * @param valuesMap values, by column name
+     * @return parameters for the <tt>SET</tt> clause of {@link #updateQuery(Collection, String[], String)}, in the
+     * iteration order of the given map
+     */
+    public static List<SQLParam> getParams(final Map<String, String> valuesMap) {
+        final List<SQLParam> params = new ArrayList<SQLParam>(valuesMap.size());
+        for (Map.Entry<String, String> entry : valuesMap.entrySet()) {
+            params.add(new SQLParam(entry.getKey(), entry.getValue(), Types.VARCHAR));
         }
+        return params;
+    }
 
-        final QueryTemplate queryTemplate = new QueryTemplate("UPDATE {0} SET {1} WHERE {2}");
-        return queryTemplate.apply(tableName,
-                Utilities.join(set, ','),
-                getWhereClause(uid, keySeparator, keys));
+    /**
+     * @param uid composite key
+     * @param keySeparator key separator
+     * @param keys key column names
+     * @return parameters for the <tt>WHERE</tt> clause of {@link #updateQuery(Collection, String[], String)} and
+     * {@link #deleteQuery(String[], String)}
+     */
+    public static List<SQLParam> getKeyParams(final Uid uid, final String keySeparator, final String[] keys) {
+        final String[] uidKeys = uid.getUidValue().split(keySeparator);
+
+        final List<SQLParam> params = new ArrayList<SQLParam>(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            params.add(new SQLParam(keys[i], i < uidKeys.length ? uidKeys[i] : null, Types.VARCHAR));
+        }
+        return params;
     }
 
-    public static String deleteQuery(
-            final Uid uid,
-            final String keySeparator,
-            final String[] keys,
-            final String tableName) {
+    /**
+     * @param keys key column names
+     * @return where clause matching records whose key, compared column after column, is greater than or equal to
+     * the one given via {@link #getKeyFromParams(String, String, String[])}
+     */
+    public static String keyFromClause(final String[] keys) {
+        final StringBuilder clause = new StringBuilder();
 
-        final QueryTemplate queryTemplate = new QueryTemplate("DELETE FROM {0} WHERE {1}");
-        return queryTemplate.apply(tableName,
-                getWhereClause(uid, keySeparator, keys));
+        // either a key column is greater and all the previous ones are equal, or all are equal
+        for (int i = 0; i <= keys.length; i++) {
+            if (i > 0) {
+                clause.append(" OR ");
+            }
+            clause.append('(');
+            for (int j = 0; j < i && j < keys.length; j++) {
+                clause.append(keys[j]).append("=? AND ");
+            }
+            if (i < keys.length) {
+                clause.append(keys[i]).append(">?");
+            } else {
+                clause.setLength(clause.length() - " AND ".length());
+            }
+            clause.append(')');
+        }
+
+        return clause.toString();
+    }
+
+    /**
+     * @param key composite key
+     * @param keySeparator key separator
+     * @param keys key column names
+     * @return parameters for {@link #keyFromClause(String[])}
+     */
+    public static List<SQLParam> getKeyFromParams(final String key, final String keySeparator, final String[] keys) {
+        final String[] keyValues = key.split(keySeparator);
+
+        final List<SQLParam> params = new ArrayList<SQLParam>();
+        for (int i = 0; i <= keys.length; i++) {
+            for (int j = 0; j < i && j < keys.length; j++) {
+                params.add(new SQLParam(keys[j], j < keyValues.length ? keyValues[j] : null, Types.VARCHAR));
+            }
+            if (i < keys.length) {
+                params.add(new SQLParam(keys[i], i < keyValues.length ? keyValues[i] : null, Types.VARCHAR));
+            }
+        }
+        return params;
     }
 }
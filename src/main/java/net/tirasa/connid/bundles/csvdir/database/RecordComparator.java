@@ -0,0 +1,92 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir.database;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Comparator;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.SortKey;
+import org.identityconnectors.framework.common.objects.Uid;
+
+/**
+ * Orders records according to the given sort keys, as HSQLDB would do with <tt>ORDER BY</tt> on text columns (nulls
+ * first); records with the same sort values are ordered by key, so that the order is total.
+ * <br/>
+ * Sort keys can refer to any configured field, or to {@link Uid#NAME} and {@link Name#NAME} for the key columns.
+ */
+public class RecordComparator implements Comparator<String[]> {
+
+    private final int[] columns;
+
+    private final boolean[] ascending;
+
+    public RecordComparator(final SortKey[] sortKeys, final ColumnIndex columnIndex) {
+        final List<Integer> sortColumns = new ArrayList<Integer>();
+        final List<Boolean> sortAscending = new ArrayList<Boolean>();
+
+        for (SortKey sortKey : sortKeys) {
+            if (Uid.NAME.equals(sortKey.getField()) || Name.NAME.equals(sortKey.getField())) {
+                for (int key : columnIndex.getKeys()) {
+                    sortColumns.add(key);
+                    sortAscending.add(sortKey.isAscendingOrder());
+                }
+            } else {
+                final int column = columnIndex.indexOf(sortKey.getField());
+                if (column == -1) {
+                    throw new IllegalArgumentException("Cannot sort on unknown field " + sortKey.getField());
+                }
+                sortColumns.add(column);
+                sortAscending.add(sortKey.isAscendingOrder());
+            }
+        }
+
+        // tie-breaker
+        for (int key : columnIndex.getKeys()) {
+            sortColumns.add(key);
+            sortAscending.add(Boolean.TRUE);
+        }
+
+        columns = new int[sortColumns.size()];
+        ascending = new boolean[sortColumns.size()];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = sortColumns.get(i);
+            ascending[i] = sortAscending.get(i);
+        }
+    }
+
+    @Override
+    public int compare(final String[] record1, final String[] record2) {
+        int result = 0;
+        for (int i = 0; i < columns.length && result == 0; i++) {
+            final String value1 = record1[columns[i]];
+            final String value2 = record2[columns[i]];
+
+            if (value1 == null) {
+                result = value2 == null ? 0 : -1;
+            } else if (value2 == null) {
+                result = 1;
+            } else {
+                result = value1.compareTo(value2);
+            }
+
+            if (!ascending[i]) {
+                result = -result;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir.database;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import net.tirasa.connid.bundles.csvdir.CSVDirConfiguration;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.spi.Connector;
+
+/**
+ * Redistributes the records of the given files into the bucket files of the configured {@link Partitioner}.
+ * <br/>
+ * Records are streamed, one file after the other, into temporary siblings of the bucket files, which are not picked
+ * up as CSV files; temporary files are then renamed over the bucket files and only then the source files which are
+ * not buckets are removed. Should the process stop midway, records may be found twice, but are never lost.
+ */
+public class Resharder {
+
+    /**
+     * Setup {@link Connector} based logging.
+     */
+    private static final Log LOG = Log.getLog(Resharder.class);
+
+    private static final String TEMP_SUFFIX = ".reshard";
+
+    /**
+     * Smaller than usual, as one buffer is allocated per bucket.
+     */
+    private static final int WRITE_BUFFER_SIZE = 8 * 1024;
+
+    private final CSVDirConfiguration conf;
+
+    private final Partitioner partitioner;
+
+    public Resharder(final CSVDirConfiguration conf) {
+        if (!CSVReader.isSupported(conf)) {
+            throw new IllegalArgumentException("Files with encoding " + conf.getEncoding() + " cannot be resharded");
+        }
+
+        this.conf = conf;
+        this.partitioner = new Partitioner(conf);
+    }
+
+    /**
+     * Moves all records of the given files to their buckets; buckets among the given files are rewritten as well.
+     *
+     * @param files CSV files
+     * @return bucket files written
+     * @throws IOException if any file cannot be read or written
+     */
+    public List<File> reshard(final File[] files) throws IOException {
+        final CSVWriter writer = new CSVWriter(conf);
+
+        final File[] temps = new File[partitioner.getPartitions()];
+        final OutputStream[] outs = new OutputStream[temps.length];
+        long records = 0;
+        boolean written = false;
+        try {
+            for (File file : files) {
+                LOG.ok("Resharding {0}", file.getName());
+
+                final CSVReader reader = CSVReader.open(file, conf);
+                try {
+                    while (reader.advance()) {
+                        final String[] values = reader.getValues();
+                        final int bucket = partitioner.getBucket(values);
+
+                        if (outs[bucket] == null) {
+                            temps[bucket] = new File(partitioner.getFile(bucket).getPath() + TEMP_SUFFIX);
+                            outs[bucket] = new BufferedOutputStream(
+                                    new FileOutputStream(temps[bucket]), WRITE_BUFFER_SIZE);
+                            if (Boolean.TRUE.equals(conf.getIgnoreHeader())) {
+                                outs[bucket].write(writer.header());
+                            }
+                        }
+                        writer.write(outs[bucket], values);
+                        records++;
+                    }
+                } finally {
+                    reader.close();
+                }
+            }
+            close(outs);
+            written = true;
+        } finally {
+            if (!written) {
+                try {
+                    close(outs);
+                } catch (IOException e) {
+                    LOG.error(e, "While closing temporary files");
+                }
+                for (File temp : temps) {
+                    if (temp != null && !temp.delete()) {
+                        LOG.error("Could not remove {0}", temp.getName());
+                    }
+                }
+            }
+        }
+
+        final List<File> buckets = new ArrayList<File>();
+        final Set<String> bucketNames = new HashSet<String>();
+        for (int i = 0; i < temps.length; i++) {
+            if (temps[i] != null) {
+                final File bucket = partitioner.getFile(i);
+                // renaming over an existing file is not allowed on all platforms
+                if (!temps[i].renameTo(bucket) && (!bucket.delete() || !temps[i].renameTo(bucket))) {
+                    throw new IOException("Could not rename " + temps[i].getName() + " to " + bucket.getName());
+                }
+                buckets.add(bucket);
+                bucketNames.add(bucket.getName());
+            }
+        }
+
+        for (File file : files) {
+            if (!bucketNames.contains(file.getName()) && !file.delete()) {
+                throw new IOException("Could not remove " + file.getName());
+            }
+        }
+
+        LOG.ok("Resharded {0} records from {1} files into {2} buckets", records, files.length, buckets.size());
+        return buckets;
+    }
+
+    private static void close(final OutputStream[] outs) throws IOException {
+        IOException error = null;
+        for (OutputStream out : outs) {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+}
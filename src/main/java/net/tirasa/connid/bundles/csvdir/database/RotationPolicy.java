@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir.database;
+
+import java.io.File;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import net.tirasa.connid.bundles.csvdir.CSVDirConfiguration;
+import net.tirasa.connid.bundles.csvdir.utilities.Utilities;
+
+/**
+ * Tells when created accounts must go to a new file rather than to the current one, and how the new file is named.
+ * <br/>
+ * The new file is named after the current one, with a <tt>-yyyyMMddHHmmss</tt> suffix replacing any previous one:
+ * when such name would not be picked up as a CSV file, a default name is used instead. The age of a file is told
+ * by this suffix, hence only files started by rotation are subject to the maximum age.
+ */
+public class RotationPolicy {
+
+    private static final String TIMESTAMP_FORMAT = "yyyyMMddHHmmss";
+
+    /**
+     * Stem, rotation timestamp (if any) and extension of file names.
+     */
+    private static final Pattern FILE_NAME = Pattern.compile("(.*?)(?:-(\\d{14})(?:-\\d+)?)?(\\.[^.]*)?");
+
+    private final CSVDirConfiguration conf;
+
+    public RotationPolicy(final CSVDirConfiguration conf) {
+        this.conf = conf;
+    }
+
+    public boolean isEnabled() {
+        return conf.getRotationMaxRows() > 0 || conf.getRotationMaxBytes() > 0 || conf.getRotationMaxAge() > 0;
+    }
+
+    /**
+     * @param rows number of records a file would hold
+     * @param bytes size a file would have
+     * @return whether a file with the given number of records and size exceeds the configured thresholds
+     */
+    public boolean isExceeded(final long rows, final long bytes) {
+        return (conf.getRotationMaxRows() > 0 && rows > conf.getRotationMaxRows())
+                || (conf.getRotationMaxBytes() > 0 && bytes > conf.getRotationMaxBytes());
+    }
+
+    /**
+     * @param file CSV file
+     * @return whether the given file was started by rotation longer than the configured maximum age ago
+     */
+    public boolean isExpired(final File file) {
+        if (conf.getRotationMaxAge() <= 0) {
+            return false;
+        }
+
+        final Matcher matcher = FILE_NAME.matcher(file.getName());
+        if (!matcher.matches() || matcher.group(2) == null) {
+            return false;
+        }
+
+        try {
+            final Date started = new SimpleDateFormat(TIMESTAMP_FORMAT).parse(matcher.group(2));
+            return System.currentTimeMillis() - started.getTime() > conf.getRotationMaxAge() * 1000L;
+        } catch (ParseException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param file current CSV file
+     * @return new, not existing, CSV file to continue with
+     */
+    public File next(final File file) {
+        final String timestamp = new SimpleDateFormat(TIMESTAMP_FORMAT).format(new Date());
+
+        final Matcher matcher = FILE_NAME.matcher(file.getName());
+        matcher.matches();
+        final String stem = matcher.group(1);
+        final String extension = matcher.group(3) == null ? "" : matcher.group(3);
+
+        String name = stem + "-" + timestamp + extension;
+        for (int i = 1; new File(conf.getSourcePath(), name).exists(); i++) {
+            name = stem + "-" + timestamp + "-" + i + extension;
+        }
+
+        if (!isMatched(name)) {
+            do {
+                name = FileToDB.DEFAULT_PREFIX + Utilities.randomNumber() + "-" + timestamp + ".csv";
+            } while (new File(conf.getSourcePath(), name).exists());
+        }
+
+        return new File(conf.getSourcePath(), name);
+    }
+
+    private boolean isMatched(final String name) {
+        return (conf.getFileMask() != null && name.matches(conf.getFileMask()))
+                || name.matches(FileToDB.DEFAULT_PREFIX + ".*\\.csv");
+    }
+}
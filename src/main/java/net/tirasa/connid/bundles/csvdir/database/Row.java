@@ -0,0 +1,68 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir.database;
+
+import java.io.File;
+
+/**
+ * Record read from a CSV file, with its position in the file.
+ */
+public final class Row {
+
+    private final File file;
+
+    private final long offset;
+
+    private final long length;
+
+    private final String[] values;
+
+    public Row(final File file, final long offset, final long length, final String[] values) {
+        this.file = file;
+        this.offset = offset;
+        this.length = length;
+        this.values = values;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return byte offset of this record in its file
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return length in bytes of this record, line terminator included
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return values, positioned as the configured fields
+     */
+    public String[] getValues() {
+        return values;
+    }
+
+    public String getValue(final int index) {
+        return index < 0 || index >= values.length ? null : values[index];
+    }
+}
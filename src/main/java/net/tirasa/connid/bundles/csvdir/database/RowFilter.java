@@ -0,0 +1,279 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir.database;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Filter evaluated in Java on CSV records, with the same semantics of the SQL where clause built for HSQLDB: any
+ * comparison involving a <tt>null</tt> value is unknown, and unknown records are not accepted.
+ * <br/>
+ * Only the values compared are decoded: equality is checked on the encoded bytes.
+ */
+public abstract class RowFilter {
+
+    public enum Operator {
+
+        EQUALS,
+        GREATER_THAN,
+        GREATER_THAN_OR_EQUAL,
+        LESS_THAN,
+        LESS_THAN_OR_EQUAL,
+        STARTS_WITH,
+        ENDS_WITH,
+        CONTAINS
+
+    }
+
+    public static RowFilter isNull(final String column) {
+        return new IsNull(column);
+    }
+
+    public static RowFilter compare(final String column, final Operator operator, final String value) {
+        return new Comparison(column, operator, value);
+    }
+
+    public static RowFilter and(final RowFilter left, final RowFilter right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        return new And(left, right);
+    }
+
+    /**
+     * @param left left filter, <tt>null</tt> meaning 'accept all'
+     * @param right right filter, <tt>null</tt> meaning 'accept all'
+     * @return disjunction of the given filters
+     */
+    public static RowFilter or(final RowFilter left, final RowFilter right) {
+        if (left == null || right == null) {
+            return null;
+        }
+        return new Or(left, right);
+    }
+
+    public static RowFilter not(final RowFilter filter) {
+        return filter == null ? null : new Not(filter);
+    }
+
+    /**
+     * @param record record
+     * @param columns column positions
+     * @return whether the given record matches this filter
+     */
+    public boolean accept(final CSVRecord record, final ColumnIndex columns) {
+        return Boolean.TRUE.equals(evaluate(record, columns));
+    }
+
+    /**
+     * @return names of the columns this filter refers to
+     */
+    public Set<String> getColumns() {
+        final Set<String> result = new HashSet<String>();
+        addColumns(result);
+        return result;
+    }
+
+    protected abstract void addColumns(Set<String> result);
+
+    /**
+     * @param record record
+     * @param columns column positions
+     * @return <tt>TRUE</tt>, <tt>FALSE</tt> or <tt>null</tt> (unknown)
+     */
+    protected abstract Boolean evaluate(CSVRecord record, ColumnIndex columns);
+
+    private abstract static class ColumnFilter extends RowFilter {
+
+        private final String column;
+
+        protected ColumnFilter(final String column) {
+            this.column = column;
+        }
+
+        @Override
+        protected void addColumns(final Set<String> result) {
+            result.add(column);
+        }
+
+        protected int getIndex(final ColumnIndex columns) {
+            final int index = columns.indexOf(column);
+            if (index == -1) {
+                throw new IllegalArgumentException("Unknown column " + column);
+            }
+            return index;
+        }
+    }
+
+    private static final class IsNull extends ColumnFilter {
+
+        IsNull(final String column) {
+            super(column);
+        }
+
+        @Override
+        protected Boolean evaluate(final CSVRecord record, final ColumnIndex columns) {
+            return record.isNull(getIndex(columns));
+        }
+    }
+
+    private static final class Comparison extends ColumnFilter {
+
+        private final Operator operator;
+
+        private final String value;
+
+        Comparison(final String column, final Operator operator, final String value) {
+            super(column);
+            this.operator = operator;
+            this.value = value;
+        }
+
+        @Override
+        protected Boolean evaluate(final CSVRecord record, final ColumnIndex columns) {
+            final int index = getIndex(columns);
+            if (record.isNull(index) || value == null) {
+                return null;
+            }
+            if (operator == Operator.EQUALS) {
+                return record.valueEquals(index, value);
+            }
+
+            final String actual = record.getValue(index);
+            final boolean result;
+            switch (operator) {
+                case GREATER_THAN:
+                    result = actual.compareTo(value) > 0;
+                    break;
+
+                case GREATER_THAN_OR_EQUAL:
+                    result = actual.compareTo(value) >= 0;
+                    break;
+
+                case LESS_THAN:
+                    result = actual.compareTo(value) < 0;
+                    break;
+
+                case LESS_THAN_OR_EQUAL:
+                    result = actual.compareTo(value) <= 0;
+                    break;
+
+                case STARTS_WITH:
+                    result = actual.startsWith(value);
+                    break;
+
+                case ENDS_WITH:
+                    result = actual.endsWith(value);
+                    break;
+
+                case CONTAINS:
+                default:
+                    result = actual.contains(value);
+            }
+            return result;
+        }
+    }
+
+    private static final class And extends RowFilter {
+
+        private final RowFilter left;
+
+        private final RowFilter right;
+
+        And(final RowFilter left, final RowFilter right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        protected void addColumns(final Set<String> result) {
+            left.addColumns(result);
+            right.addColumns(result);
+        }
+
+        @Override
+        protected Boolean evaluate(final CSVRecord record, final ColumnIndex columns) {
+            final Boolean leftResult = left.evaluate(record, columns);
+            if (Boolean.FALSE.equals(leftResult)) {
+                return Boolean.FALSE;
+            }
+
+            final Boolean rightResult = right.evaluate(record, columns);
+            if (Boolean.FALSE.equals(rightResult)) {
+                return Boolean.FALSE;
+            }
+
+            return leftResult == null || rightResult == null ? null : Boolean.TRUE;
+        }
+    }
+
+    private static final class Or extends RowFilter {
+
+        private final RowFilter left;
+
+        private final RowFilter right;
+
+        Or(final RowFilter left, final RowFilter right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        protected void addColumns(final Set<String> result) {
+            left.addColumns(result);
+            right.addColumns(result);
+        }
+
+        @Override
+        protected Boolean evaluate(final CSVRecord record, final ColumnIndex columns) {
+            final Boolean leftResult = left.evaluate(record, columns);
+            if (Boolean.TRUE.equals(leftResult)) {
+                return Boolean.TRUE;
+            }
+
+            final Boolean rightResult = right.evaluate(record, columns);
+            if (Boolean.TRUE.equals(rightResult)) {
+                return Boolean.TRUE;
+            }
+
+            return leftResult == null || rightResult == null ? null : Boolean.FALSE;
+        }
+    }
+
+    private static final class Not extends RowFilter {
+
+        private final RowFilter filter;
+
+        Not(final RowFilter filter) {
+            this.filter = filter;
+        }
+
+        @Override
+        protected void addColumns(final Set<String> result) {
+            filter.addColumns(result);
+        }
+
+        @Override
+        protected Boolean evaluate(final CSVRecord record, final ColumnIndex columns) {
+            final Boolean result = filter.evaluate(record, columns);
+            return result == null ? null : !result;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir.database;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import org.identityconnectors.common.Base64;
+import org.identityconnectors.framework.common.objects.SortKey;
+
+/**
+ * Last record returned by a sorted paged search: next page starts with the first record following it in sort order.
+ * <br/>
+ * Unlike {@link PagedResultsCookie}, this does not depend on the position of records in files, hence stays valid
+ * when files are changed between pages.
+ */
+public final class SortedPagedResultsCookie {
+
+    private final String sortKeys;
+
+    private final String[] values;
+
+    public SortedPagedResultsCookie(final SortKey[] sortKeys, final String[] values) {
+        this(toString(sortKeys), values);
+    }
+
+    private SortedPagedResultsCookie(final String sortKeys, final String[] values) {
+        this.sortKeys = sortKeys;
+        this.values = values;
+    }
+
+    private static String toString(final SortKey[] sortKeys) {
+        final StringBuilder result = new StringBuilder();
+        for (SortKey sortKey : sortKeys) {
+            result.append(sortKey.getField()).append(sortKey.isAscendingOrder() ? " ASC," : " DESC,");
+        }
+        return result.toString();
+    }
+
+    /**
+     * Decodes a cookie previously returned by {@link #toString()}.
+     *
+     * @param cookie encoded cookie
+     * @return decoded cookie
+     * @throws IllegalArgumentException if the given value is not a valid cookie
+     */
+    public static SortedPagedResultsCookie parse(final String cookie) {
+        try {
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(Base64.decode(cookie)));
+
+            final String sortKeys = in.readUTF();
+            final String[] values = new String[in.readInt()];
+            for (int i = 0; i < values.length; i++) {
+                if (in.readBoolean()) {
+                    values[i] = in.readUTF();
+                }
+            }
+            return new SortedPagedResultsCookie(sortKeys, values);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid paged results cookie: " + cookie, e);
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid paged results cookie: " + cookie, e);
+        }
+    }
+
+    /**
+     * @param sortKeys sort keys
+     * @return whether this cookie was issued for a search sorted by the given keys
+     */
+    public boolean matches(final SortKey[] sortKeys) {
+        return this.sortKeys.equals(toString(sortKeys));
+    }
+
+    public String[] getValues() {
+        return values.clone();
+    }
+
+    @Override
+    public String toString() {
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bytes);
+
+            out.writeUTF(sortKeys);
+            out.writeInt(values.length);
+            for (String value : values) {
+                out.writeBoolean(value != null);
+                if (value != null) {
+                    out.writeUTF(value);
+                }
+            }
+            out.flush();
+
+            return Base64.encode(bytes.toByteArray());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,338 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir.database;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import net.tirasa.connid.bundles.csvdir.CSVDirConfiguration;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.spi.Connector;
+
+/**
+ * Fingerprints of the records read by a row level sync: for each file, its identity (size and last modification
+ * time) and a 64-bit hash of each record, by key.
+ * <br/>
+ * Snapshots are persisted under the {@value KeyIndexFile#DIRECTORY} directory of the source path, one per sync token
+ * and named after the file mask, so that connectors reading different files of the same directory, or syncing from
+ * different tokens, do not share them; only the most recent {@value #MAX_SNAPSHOTS} snapshots are kept.
+ */
+public class SyncSnapshot {
+
+    /**
+     * Setup {@link Connector} based logging.
+     */
+    private static final Log LOG = Log.getLog(SyncSnapshot.class);
+
+    private static final int VERSION = 1;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final String SUFFIX = ".snapshot";
+
+    private static final int MAX_SNAPSHOTS = 8;
+
+    private final File directory;
+
+    private final String prefix;
+
+    private final Map<String, FileEntry> files = new HashMap<String, FileEntry>();
+
+    public SyncSnapshot(final CSVDirConfiguration conf) {
+        this.directory = new File(conf.getSourcePath(), KeyIndexFile.DIRECTORY);
+        this.prefix = "sync-" + Integer.toHexString(conf.getFileMask().hashCode()) + "-";
+    }
+
+    /**
+     * @param token sync token
+     * @return file holding the snapshot taken with the given token
+     */
+    public File getLocation(final long token) {
+        return new File(directory, prefix + token + SUFFIX);
+    }
+
+    /**
+     * Computes the fingerprint of a record, as FNV-1a 64-bit hash of its values.
+     *
+     * @param values record values
+     * @return record fingerprint
+     */
+    public static long fingerprint(final String[] values) {
+        long hash = FNV_OFFSET_BASIS;
+        for (String value : values) {
+            if (value == null) {
+                hash = (hash ^ 0xFF) * FNV_PRIME;
+            } else {
+                for (int i = 0; i < value.length(); i++) {
+                    final char c = value.charAt(i);
+                    hash = (hash ^ (c & 0xFF)) * FNV_PRIME;
+                    hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+                }
+            }
+            // value separator
+            hash = (hash ^ 0xFE) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Loads the snapshot persisted with the given token, if any; none is loaded for token 0, asking for a full resync.
+     *
+     * @param token sync token
+     * @throws IOException if the snapshot cannot be read
+     */
+    public void load(final long token) throws IOException {
+        files.clear();
+        if (token == 0) {
+            return;
+        }
+
+        final File location = getLocation(token);
+        if (!location.isFile()) {
+            LOG.ok("No snapshot found for token {0}, syncing all records", token);
+            return;
+        }
+
+        final DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(location), BUFFER_SIZE));
+        try {
+            if (in.readInt() != VERSION) {
+                LOG.warn("Ignoring snapshot {0} with unknown version", location.getAbsolutePath());
+                return;
+            }
+
+            final int fileCount = in.readInt();
+            for (int i = 0; i < fileCount; i++) {
+                final String fileName = in.readUTF();
+                final long size = in.readLong();
+                final long lastModified = in.readLong();
+
+                final int rowCount = in.readInt();
+                final Map<String, Long> rows = new HashMap<String, Long>(rowCount * 4 / 3 + 1);
+                for (int j = 0; j < rowCount; j++) {
+                    final String key = in.readUTF();
+                    rows.put(key, in.readLong());
+                }
+
+                files.put(fileName, new FileEntry(size, lastModified, rows));
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Persists the snapshot with the given token, removing the oldest snapshots if needed.
+     *
+     * @param token sync token
+     * @throws IOException if the snapshot cannot be written
+     */
+    public void save(final long token) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory.getAbsolutePath());
+        }
+
+        final File location = getLocation(token);
+        final File tmp = new File(directory, location.getName() + ".tmp");
+
+        final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp), BUFFER_SIZE));
+        try {
+            out.writeInt(VERSION);
+            out.writeInt(files.size());
+            for (Map.Entry<String, FileEntry> file : files.entrySet()) {
+                out.writeUTF(file.getKey());
+                out.writeLong(file.getValue().size);
+                out.writeLong(file.getValue().lastModified);
+
+                out.writeInt(file.getValue().rows.size());
+                for (Map.Entry<String, Long> row : file.getValue().rows.entrySet()) {
+                    out.writeUTF(row.getKey());
+                    out.writeLong(row.getValue());
+                }
+            }
+        } finally {
+            out.close();
+        }
+
+        if (location.exists() && !location.delete()) {
+            throw new IOException("Could not replace " + location.getAbsolutePath());
+        }
+        if (!tmp.renameTo(location)) {
+            throw new IOException("Could not rename " + tmp.getAbsolutePath());
+        }
+
+        prune();
+    }
+
+    private void prune() {
+        final File[] snapshots = list();
+        if (snapshots.length <= MAX_SNAPSHOTS) {
+            return;
+        }
+
+        // most recent tokens first
+        Arrays.sort(snapshots, new Comparator<File>() {
+
+            @Override
+            public int compare(final File left, final File right) {
+                final long leftToken = getToken(left);
+                final long rightToken = getToken(right);
+                return leftToken > rightToken ? -1 : leftToken == rightToken ? 0 : 1;
+            }
+        });
+        for (int i = MAX_SNAPSHOTS; i < snapshots.length; i++) {
+            if (!snapshots[i].delete()) {
+                LOG.warn("Could not delete {0}", snapshots[i].getAbsolutePath());
+            }
+        }
+    }
+
+    private long getToken(final File snapshot) {
+        final String name = snapshot.getName();
+        try {
+            return Long.parseLong(name.substring(prefix.length(), name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0L;
+        }
+    }
+
+    private File[] list() {
+        final File[] snapshots = directory.listFiles(new FileFilter() {
+
+            @Override
+            public boolean accept(final File file) {
+                return file.isFile() && file.getName().startsWith(prefix) && file.getName().endsWith(SUFFIX);
+            }
+        });
+        return snapshots == null ? new File[0] : snapshots;
+    }
+
+    /**
+     * Removes all the persisted snapshots.
+     */
+    public void clear() {
+        for (File snapshot : list()) {
+            if (!snapshot.delete()) {
+                LOG.warn("Could not delete {0}", snapshot.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * @param file CSV file
+     * @return whether the given file was changed, or is new, since the snapshot was taken
+     */
+    public boolean isChanged(final File file) {
+        final FileEntry entry = files.get(file.getName());
+        return entry == null || entry.size != file.length() || entry.lastModified != file.lastModified();
+    }
+
+    /**
+     * @return names of the files in this snapshot
+     */
+    public Set<String> getFileNames() {
+        return new HashSet<String>(files.keySet());
+    }
+
+    /**
+     * @param fileName file name
+     * @return record fingerprints of the given file, by key; empty if the file is not in this snapshot
+     */
+    public Map<String, Long> getRows(final String fileName) {
+        final FileEntry entry = files.get(fileName);
+        return entry == null ? new HashMap<String, Long>() : entry.rows;
+    }
+
+    /**
+     * Looks for the given key in all files of this snapshot.
+     *
+     * @param key key
+     * @param excluded file not to be looked into, if any
+     * @return fingerprint of the first record found with the given key, <tt>null</tt> if none
+     */
+    public Long find(final String key, final String excluded) {
+        for (Map.Entry<String, FileEntry> file : files.entrySet()) {
+            if (!file.getKey().equals(excluded)) {
+                final Long fingerprint = file.getValue().rows.get(key);
+                if (fingerprint != null) {
+                    return fingerprint;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param fileName file name
+     * @param size file size before reading it
+     * @param lastModified file last modification time before reading it
+     * @param rows record fingerprints, by key
+     */
+    public void put(final String fileName, final long size, final long lastModified, final Map<String, Long> rows) {
+        files.put(fileName, new FileEntry(size, lastModified, rows));
+    }
+
+    public void remove(final String fileName) {
+        files.remove(fileName);
+    }
+
+    /**
+     * Puts back a record whose removal could not be synced: the given file is then told as changed, so that next sync
+     * reads it again and finds out that the record is gone.
+     *
+     * @param fileName file the record was removed from
+     * @param key key
+     * @param fingerprint fingerprint of the removed record
+     */
+    public void pending(final String fileName, final String key, final long fingerprint) {
+        final FileEntry entry = files.get(fileName);
+        final Map<String, Long> rows = entry == null ? new HashMap<String, Long>() : entry.rows;
+        rows.put(key, fingerprint);
+        files.put(fileName, new FileEntry(-1L, entry == null ? 0L : entry.lastModified, rows));
+    }
+
+    private static final class FileEntry {
+
+        private final long size;
+
+        private final long lastModified;
+
+        private final Map<String, Long> rows;
+
+        FileEntry(final long size, final long lastModified, final Map<String, Long> rows) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.rows = rows;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir.database;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import org.identityconnectors.common.Base64;
+
+/**
+ * Composite sync token for append-only files: for each file, its size and last modification time when synced, the
+ * byte offset up to which records were returned and a checksum of the synced prefix.
+ * <br/>
+ * The checksum covers the first {@link #CHECKSUM_WINDOW} bytes of the synced prefix: if it still matches and the
+ * file did not shrink, the file is assumed to have only grown and sync resumes reading from the synced offset.
+ */
+public final class TailSyncToken {
+
+    public static final int CHECKSUM_WINDOW = 8 * 1024;
+
+    private static final int VERSION = 1;
+
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+    /**
+     * Decodes the given sync token value: values not issued by {@link #toString()}, e.g. timestamps or
+     * <tt>null</tt>, give an empty token, i.e. all files are read from the beginning.
+     *
+     * @param value sync token value
+     * @return decoded token
+     */
+    public static TailSyncToken parse(final Object value) {
+        final TailSyncToken token = new TailSyncToken();
+        if (!(value instanceof String)) {
+            return token;
+        }
+
+        try {
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(Base64.decode((String) value)));
+            if (in.readInt() != VERSION) {
+                return token;
+            }
+
+            final int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                final String fileName = in.readUTF();
+                token.entries.put(fileName, new Entry(in.readLong(), in.readLong(), in.readLong(), in.readLong()));
+            }
+        } catch (IOException e) {
+            token.entries.clear();
+        } catch (RuntimeException e) {
+            token.entries.clear();
+        }
+        return token;
+    }
+
+    /**
+     * @param file CSV file
+     * @return first bytes of the given file, up to {@link #CHECKSUM_WINDOW}
+     * @throws IOException if the file cannot be read
+     */
+    public static byte[] readHead(final File file) throws IOException {
+        final byte[] buffer = new byte[(int) Math.min(CHECKSUM_WINDOW, ChangeTracker.length(file))];
+
+        final InputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < buffer.length) {
+                final int count = in.read(buffer, read, buffer.length - read);
+                if (count == -1) {
+                    break;
+                }
+                read += count;
+            }
+
+            if (read < buffer.length) {
+                final byte[] result = new byte[read];
+                System.arraycopy(buffer, 0, result, 0, read);
+                return result;
+            }
+            return buffer;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @param head first bytes of a file, as returned by {@link #readHead(File)}
+     * @param offset synced offset
+     * @return checksum of the prefix synced up to the given offset
+     */
+    public static long checksum(final byte[] head, final long offset) {
+        final CRC32 crc = new CRC32();
+        crc.update(head, 0, (int) Math.min(head.length, offset));
+        return crc.getValue();
+    }
+
+    /**
+     * Finds the end of the last complete line of the given file, so that a line being written is not read.
+     *
+     * @param file CSV file
+     * @return offset following the last line terminator, 0 if none
+     * @throws IOException if the file cannot be read
+     */
+    public static long endOfLastLine(final File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final byte[] buffer = new byte[CHECKSUM_WINDOW];
+
+            long end = raf.length();
+            while (end > 0) {
+                final long start = Math.max(0, end - buffer.length);
+                final int length = (int) (end - start);
+                raf.seek(start);
+                raf.readFully(buffer, 0, length);
+
+                for (int i = length - 1; i >= 0; i--) {
+                    if (buffer[i] == '\n' || buffer[i] == '\r') {
+                        return start + i + 1;
+                    }
+                }
+                end = start;
+            }
+            return 0L;
+        } finally {
+            raf.close();
+        }
+    }
+
+    public Entry get(final String fileName) {
+        return entries.get(fileName);
+    }
+
+    public void put(final String fileName, final Entry entry) {
+        entries.put(fileName, entry);
+    }
+
+    /**
+     * Removes entries of files not found anymore.
+     *
+     * @param fileNames names of existing files
+     */
+    public void retain(final Collection<String> fileNames) {
+        entries.keySet().retainAll(fileNames);
+    }
+
+    @Override
+    public String toString() {
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bytes);
+
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue().size);
+                out.writeLong(entry.getValue().lastModified);
+                out.writeLong(entry.getValue().offset);
+                out.writeLong(entry.getValue().checksum);
+            }
+            out.flush();
+
+            return Base64.encode(bytes.toByteArray());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static final class Entry {
+
+        private final long size;
+
+        private final long lastModified;
+
+        private final long offset;
+
+        private final long checksum;
+
+        public Entry(final long size, final long lastModified, final long offset, final long checksum) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.offset = offset;
+            this.checksum = checksum;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getChecksum() {
+            return checksum;
+        }
+    }
+}
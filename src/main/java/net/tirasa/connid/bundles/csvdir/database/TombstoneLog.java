@@ -0,0 +1,262 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir.database;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import net.tirasa.connid.bundles.csvdir.CSVDirConfiguration;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.spi.Connector;
+
+/**
+ * Append-only log of the records deleted from the CSV files of a source path, shared by all the connector instances
+ * working on it: deleting a record only appends a line here, while readers skip the logged records on the fly, until
+ * the files are compacted (see {@link Compactor}) and the log is cleared.
+ * <br/>
+ * Records are logged by file, offset and key: a logged record is skipped only if still found at the same offset with
+ * the same key, so that a log left behind by an interrupted compaction, or files changed by others, can never hide
+ * other records. Rewrites moving logged records are logged as well.
+ */
+public final class TombstoneLog {
+
+    /**
+     * Setup {@link Connector} based logging.
+     */
+    private static final Log LOG = Log.getLog(TombstoneLog.class);
+
+    /**
+     * Name of the log file, in the source path; never matched as a CSV file.
+     */
+    public static final String FILE_NAME = ".csvdir-tombstones";
+
+    private static final String DELETED = "D";
+
+    private static final String SHIFTED = "S";
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private static final Map<String, TombstoneLog> LOGS = new HashMap<String, TombstoneLog>();
+
+    private final File file;
+
+    /**
+     * Keys of the logged records, by file name and offset.
+     */
+    private final Map<String, Map<Long, String>> entries = new HashMap<String, Map<Long, String>>();
+
+    private int size = 0;
+
+    /**
+     * Identity of the log file as last read or written, <tt>null</tt> if never read.
+     */
+    private FileIdentity identity;
+
+    private TombstoneLog(final File file) {
+        this.file = file;
+    }
+
+    /**
+     * @param conf configuration
+     * @return tombstone log of the configured source path, <tt>null</tt> if tombstones are disabled
+     */
+    public static TombstoneLog getInstance(final CSVDirConfiguration conf) {
+        if (!conf.isTombstones()) {
+            return null;
+        }
+
+        final File sourcePath = new File(conf.getSourcePath()).getAbsoluteFile();
+        synchronized (LOGS) {
+            TombstoneLog log = LOGS.get(sourcePath.getPath());
+            if (log == null) {
+                log = new TombstoneLog(new File(sourcePath, FILE_NAME));
+                LOGS.put(sourcePath.getPath(), log);
+            }
+            return log;
+        }
+    }
+
+    /**
+     * @return number of logged records
+     * @throws IOException if the log cannot be read
+     */
+    public synchronized int size() throws IOException {
+        refresh();
+        return size;
+    }
+
+    /**
+     * @param csv CSV file
+     * @return keys of the records logged for the given file, by offset; <tt>null</tt> if none
+     * @throws IOException if the log cannot be read
+     */
+    public synchronized Map<Long, String> getDeleted(final File csv) throws IOException {
+        refresh();
+        final Map<Long, String> deleted = entries.get(csv.getName());
+        return deleted == null || deleted.isEmpty() ? null : new HashMap<Long, String>(deleted);
+    }
+
+    /**
+     * Same as checking {@link #getDeleted(File)}, without copying the records logged for the given file.
+     *
+     * @param csv CSV file
+     * @param offset record offset
+     * @return whether the record at the given offset is logged as deleted
+     * @throws IOException if the log cannot be read
+     */
+    public synchronized boolean isDeleted(final File csv, final long offset) throws IOException {
+        refresh();
+        final Map<Long, String> deleted = entries.get(csv.getName());
+        return deleted != null && deleted.containsKey(offset);
+    }
+
+    /**
+     * Logs the given record as deleted.
+     *
+     * @param csv CSV file
+     * @param offset record offset
+     * @param key record key, as found in the file
+     * @throws IOException if the log cannot be written
+     */
+    public synchronized void deleted(final File csv, final long offset, final String key) throws IOException {
+        append(DELETED + '\t' + csv.getName() + '\t' + offset + '\t' + key);
+    }
+
+    /**
+     * Logs that the records following the given offset in the given file were moved.
+     *
+     * @param csv CSV file
+     * @param offset offset of the record whose length changed
+     * @param delta number of bytes records following the given offset were moved by
+     * @throws IOException if the log cannot be written
+     */
+    public synchronized void shifted(final File csv, final long offset, final long delta) throws IOException {
+        refresh();
+
+        final Map<Long, String> deleted = entries.get(csv.getName());
+        boolean affected = false;
+        if (deleted != null && delta != 0) {
+            for (Long logged : deleted.keySet()) {
+                affected |= logged > offset;
+            }
+        }
+        if (affected) {
+            append(SHIFTED + '\t' + csv.getName() + '\t' + offset + '\t' + delta);
+        }
+    }
+
+    /**
+     * Removes the log, once all logged records were removed from files.
+     *
+     * @throws IOException if the log cannot be removed
+     */
+    public synchronized void clear() throws IOException {
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not remove " + file.getAbsolutePath());
+        }
+        entries.clear();
+        size = 0;
+        identity = new FileIdentity(file);
+    }
+
+    private void refresh() throws IOException {
+        final FileIdentity current = new FileIdentity(file);
+        if (current.equals(identity)) {
+            return;
+        }
+
+        LOG.ok("Reading {0}", file.getAbsolutePath());
+
+        entries.clear();
+        size = 0;
+        if (file.exists()) {
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), CHARSET));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    apply(line);
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        identity = current;
+    }
+
+    private void append(final String line) throws IOException {
+        refresh();
+
+        final FileOutputStream fos = new FileOutputStream(file, true);
+        try {
+            final FileChannel channel = fos.getChannel();
+            final FileLock lock = channel.lock();
+            try {
+                final ByteBuffer buffer = ByteBuffer.wrap((line + '\n').getBytes(CHARSET));
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } finally {
+                lock.release();
+            }
+        } finally {
+            fos.close();
+        }
+
+        apply(line);
+        identity = new FileIdentity(file);
+    }
+
+    private void apply(final String line) {
+        final String[] fields = line.split("\t", 4);
+        if (fields.length < 4) {
+            LOG.warn("Ignoring malformed tombstone {0}", line);
+            return;
+        }
+
+        try {
+            Map<Long, String> deleted = entries.get(fields[1]);
+            if (DELETED.equals(fields[0])) {
+                if (deleted == null) {
+                    deleted = new HashMap<Long, String>();
+                    entries.put(fields[1], deleted);
+                }
+                if (deleted.put(Long.valueOf(fields[2]), fields[3]) == null) {
+                    size++;
+                }
+            } else if (SHIFTED.equals(fields[0]) && deleted != null) {
+                final long offset = Long.parseLong(fields[2]);
+                final long delta = Long.parseLong(fields[3]);
+
+                final Map<Long, String> shifted = new HashMap<Long, String>(deleted.size());
+                for (Map.Entry<Long, String> entry : deleted.entrySet()) {
+                    shifted.put(entry.getKey() > offset ? entry.getKey() + delta : entry.getKey(), entry.getValue());
+                }
+                entries.put(fields[1], shifted);
+            }
+        } catch (NumberFormatException e) {
+            LOG.warn("Ignoring malformed tombstone {0}", line);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir.methods;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import net.tirasa.connid.bundles.csvdir.CSVDirConfiguration;
+import net.tirasa.connid.bundles.csvdir.CSVDirConnection;
+import org.identityconnectors.common.StringUtil;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.AttributeUtil;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.identityconnectors.framework.spi.Connector;
+
+/**
+ * Creates many accounts at once: keys are all checked first, then accounts are appended with a single write; nothing
+ * is created if any account is invalid or already exists.
+ */
+public class CSVDirBulkCreate extends CommonOperation {
+
+    /**
+     * Setup {@link Connector} based logging.
+     */
+    private static final Log LOG = Log.getLog(CSVDirBulkCreate.class);
+
+    private final CSVDirConnection conn;
+
+    private final CSVDirConfiguration conf;
+
+    private final List<Set<Attribute>> attrs;
+
+    public CSVDirBulkCreate(
+            final CSVDirConfiguration conf,
+            final List<Set<Attribute>> attrs)
+            throws SQLException, ClassNotFoundException {
+
+        this.conf = conf;
+        this.attrs = attrs;
+        this.conn = CSVDirConnection.openConnection(conf);
+    }
+
+    public List<Uid> execute() {
+        try {
+            return executeImpl();
+        } catch (Exception e) {
+            LOG.error(e, "error during bulk creation");
+            throw new ConnectorException(e);
+        } finally {
+            try {
+                if (conn != null) {
+                    conn.closeConnection();
+                }
+            } catch (SQLException e) {
+                LOG.error(e, "Error closing connections");
+            }
+        }
+    }
+
+    private List<Uid> executeImpl()
+            throws SQLException, IOException {
+
+        final List<Uid> uids = new ArrayList<Uid>(attrs.size());
+        final List<Map<String, String>> accounts = new ArrayList<Map<String, String>>(attrs.size());
+
+        final Set<String> names = new HashSet<String>();
+        for (Set<Attribute> set : attrs) {
+            final Name name = AttributeUtil.getNameFromAttributes(set);
+
+            if (name == null || StringUtil.isBlank(name.getNameValue())) {
+                throw new IllegalArgumentException(
+                        "No Name attribute provided in the attributes");
+            }
+            if (!names.add(name.getNameValue().toUpperCase(Locale.ENGLISH))) {
+                throw new ConnectorException("Duplicate user " + name.getNameValue());
+            }
+
+            accounts.add(getAttributeMap(conf, set, name));
+            uids.add(new Uid(name.getNameValue()));
+        }
+
+        final List<String> keys = new ArrayList<String>(uids.size());
+        for (Uid uid : uids) {
+            keys.add(uid.getUidValue());
+        }
+        final Set<String> existing = conn.existingUsers(keys);
+        if (!existing.isEmpty()) {
+            throw new ConnectorException("User Exists: " + existing);
+        }
+
+        conn.insertAccounts(accounts);
+
+        LOG.ok("Creation of {0} users commited", accounts.size());
+
+        return uids;
+    }
+}
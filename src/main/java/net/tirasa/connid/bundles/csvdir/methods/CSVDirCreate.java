@@ -15,6 +15,7 @@
  */
 package net.tirasa.connid.bundles.csvdir.methods;
 
+import java.io.IOException;
 import java.sql.SQLException;
 import java.util.Set;
 import net.tirasa.connid.bundles.csvdir.CSVDirConfiguration;
@@ -69,7 +70,7 @@ public class CSVDirCreate extends CommonOperation {
     }
 
     private Uid executeImpl()
-            throws SQLException {
+            throws SQLException, IOException {
 
         final Name name = AttributeUtil.getNameFromAttributes(attrs);
 
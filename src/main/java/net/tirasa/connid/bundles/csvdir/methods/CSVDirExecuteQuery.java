@@ -15,14 +15,23 @@
  */
 package net.tirasa.connid.bundles.csvdir.methods;
 
+import java.io.File;
+import java.io.IOException;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.Arrays;
-import java.util.HashSet;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
 import net.tirasa.connid.bundles.csvdir.CSVDirConfiguration;
 import net.tirasa.connid.bundles.csvdir.CSVDirConnection;
+import net.tirasa.connid.bundles.csvdir.database.ColumnIndex;
+import net.tirasa.connid.bundles.csvdir.database.Deduplicator;
+import net.tirasa.connid.bundles.csvdir.database.FileScanner;
+import net.tirasa.connid.bundles.csvdir.database.FileSystem;
+import net.tirasa.connid.bundles.csvdir.database.KeyFilters;
+import net.tirasa.connid.bundles.csvdir.database.Projection;
+import net.tirasa.connid.bundles.csvdir.database.Row;
+import net.tirasa.connid.bundles.csvdir.database.RowFilter;
+import net.tirasa.connid.bundles.csvdir.database.RowHandler;
 import net.tirasa.connid.bundles.db.common.FilterWhereBuilder;
 import net.tirasa.connid.bundles.db.common.SQLParam;
 import org.identityconnectors.common.StringUtil;
@@ -32,7 +41,7 @@ import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
 import org.identityconnectors.framework.common.objects.ObjectClass;
 import org.identityconnectors.framework.common.objects.OperationOptions;
 import org.identityconnectors.framework.common.objects.ResultsHandler;
-import org.identityconnectors.framework.common.objects.Uid;
+import org.identityconnectors.framework.common.objects.SortKey;
 import org.identityconnectors.framework.spi.Connector;
 
 public class CSVDirExecuteQuery extends CommonOperation {
@@ -66,7 +75,12 @@ public class CSVDirExecuteQuery extends CommonOperation {
         this.where = where;
         this.handler = handler;
         this.options = options;
-        this.conn = CSVDirConnection.openConnection(configuration);
+        // the native engine needs the key index to page through files with duplicate keys, unless sorting
+        this.conn = configuration.isNativeEngine()
+                && (!isPaged(options) || isSorted(options)
+                || CSVDirConfiguration.DEDUP_NONE.equalsIgnoreCase(configuration.getDedupPolicy()))
+                ? null
+                : CSVDirConnection.openConnection(configuration);
     }
 
     public void execute() {
@@ -101,8 +115,41 @@ public class CSVDirExecuteQuery extends CommonOperation {
 
         LOG.ok("The ObjectClass and result handler is ok");
 
-        final Set<String> columnNamesToGet = resolveColumnNamesToGet();
-        LOG.ok("Column Names {0} To Get", columnNamesToGet);
+        final Projection projection = createProjection(new ColumnIndex(conf));
+        LOG.ok("Column Names {0} To Get", projection.getSelectList());
+
+        if (isSorted(options)) {
+            try {
+                final CSVDirSortedQuery query =
+                        new CSVDirSortedQuery(conf, conn, where, handler, options.getSortKeys(), projection);
+                if (isPaged(options)) {
+                    query.execute(options.getPageSize(),
+                            options.getPagedResultsCookie(), options.getPagedResultsOffset());
+                } else {
+                    query.execute();
+                }
+            } catch (IOException e) {
+                LOG.error(e, "Sorted search failed");
+                throw new ConnectorIOException(e);
+            }
+            return;
+        }
+
+        if (isPaged(options)) {
+            try {
+                new CSVDirPagedQuery(conf, conn, where, handler, projection, options.getPageSize(),
+                        options.getPagedResultsCookie(), options.getPagedResultsOffset()).execute();
+            } catch (IOException e) {
+                LOG.error(e, "Paged search failed");
+                throw new ConnectorIOException(e);
+            }
+            return;
+        }
+
+        if (conf.isNativeEngine()) {
+            executeNative(projection);
+            return;
+        }
 
         final String whereClause = where == null ? null : where.getWhereClause();
         LOG.ok("Where Clause {0}", whereClause);
@@ -110,19 +157,43 @@ public class CSVDirExecuteQuery extends CommonOperation {
         final List<SQLParam> params = where == null ? null : where.getParams();
         LOG.ok("Where Params {0}", params);
 
+        // searches without filter read all records, hence all keys
+        final KeyFilters.Scan scan = where == null ? conn.scanKeys() : null;
+
+        // files queried, to attribute the connector objects built
+        final List<File> queried = new ArrayList<File>();
+
         ResultSet resultSet = null;
         try {
-            resultSet = conn.allCsvFiles(whereClause, params);
+            resultSet = conn.allCsvFiles(projection.getSelectList(), whereClause, params, scan, queried);
+
+            final Deduplicator deduplicator = new Deduplicator(conf);
+            final BuildBatch batch = new BuildBatch();
 
             boolean handled = true;
 
             while (resultSet.next() && handled) {
+                if (scan != null) {
+                    scan.add(resultSet);
+                }
+
+                if (deduplicator.isDuplicate(
+                        createUid(conf.getKeyColumnNames(), resultSet, conf.getKeyseparator()))) {
+                    continue;
+                }
+
                 if (StringUtil.isBlank(conf.getDeleteColumnName())
                         || !Boolean.valueOf(resultSet.getString(resultSet.findColumn(conf.getDeleteColumnName())))) {
-                    // create the connector object..
-                    handled = handler.handle(buildConnectorObject(conf, resultSet));
+                    // create the connector object, whose record length is not told by HSQLDB..
+                    final int position = resultSet.getInt(KeyFilters.FILE_COLUMN);
+                    batch.built(position >= 0 && position < queried.size() ? queried.get(position) : null, 0L);
+                    handled = handler.handle(buildConnectorObject(conf, resultSet, projection));
                 }
             }
+            batch.commit();
+            if (scan != null && handled) {
+                scan.commit();
+            }
         } catch (final Exception e) {
             LOG.error(e, "Search query failed");
             throw new ConnectorIOException(e);
@@ -138,18 +209,67 @@ public class CSVDirExecuteQuery extends CommonOperation {
         LOG.ok("Query Account commited");
     }
 
-    private Set<String> resolveColumnNamesToGet() {
-        final Set<String> attributesToGet = new HashSet<String>();
-        attributesToGet.add(Uid.NAME);
+    private void executeNative(final Projection projection) {
+        final RowFilter filter = where == null ? null : ((CSVDirFilterWhereBuilder) where).getRowFilter();
+        LOG.ok("Row filter {0}", filter);
 
-        String[] attributes;
-        if (options == null || options.getAttributesToGet() == null) {
-            attributes = conf.getFields();
-        } else {
-            attributes = options.getAttributesToGet();
+        final FileScanner scanner = new FileScanner(conf);
+        scanner.setProjection(projection);
+        final ColumnIndex columns = scanner.getColumns();
+        final int deleteColumn = columns.indexOf(conf.getDeleteColumnName());
+        final Deduplicator deduplicator = new Deduplicator(conf);
+        final BuildBatch batch = new BuildBatch();
+
+        try {
+            scanner.scan(deduplicator.order(new FileSystem(conf).getAllCsvFiles()), filter, new RowHandler() {
+
+                @Override
+                public boolean handle(final Row row) {
+                    if (deduplicator.isDuplicate(createUid(columns, row.getValues(), conf.getKeyseparator()))) {
+                        return true;
+                    }
+                    if (deleteColumn != -1 && Boolean.valueOf(row.getValue(deleteColumn))) {
+                        return true;
+                    }
+                    batch.built(row.getFile(), row.getLength());
+                    return handler.handle(buildConnectorObject(conf, columns, projection, row.getValues()));
+                }
+            });
+            batch.commit();
+        } catch (IOException e) {
+            LOG.error(e, "Search scan failed");
+            throw new ConnectorIOException(e);
+        }
+        LOG.ok("Query Account commited");
+    }
+
+    private static boolean isPaged(final OperationOptions options) {
+        return options != null && options.getPageSize() != null && options.getPageSize() > 0;
+    }
+
+    private static boolean isSorted(final OperationOptions options) {
+        return options != null && options.getSortKeys() != null && options.getSortKeys().length > 0;
+    }
+
+    /**
+     * Columns to read: the ones requested via attributes to get, plus the ones needed by filter and sort keys.
+     */
+    private Projection createProjection(final ColumnIndex columns) {
+        final Projection projection = new Projection(conf, columns,
+                options == null ? null : options.getAttributesToGet());
+
+        final RowFilter filter = where == null ? null : ((CSVDirFilterWhereBuilder) where).getRowFilter();
+        if (filter != null) {
+            for (String column : filter.getColumns()) {
+                projection.require(column);
+            }
+        }
+        if (isSorted(options)) {
+            for (SortKey sortKey : options.getSortKeys()) {
+                projection.require(sortKey.getField());
+            }
         }
 
-        attributesToGet.addAll(Arrays.asList(attributes));
-        return attributesToGet;
+        return projection;
     }
 }
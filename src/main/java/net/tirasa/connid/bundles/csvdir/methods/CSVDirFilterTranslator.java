@@ -18,6 +18,7 @@ package net.tirasa.connid.bundles.csvdir.methods;
 import java.sql.Types;
 import net.tirasa.connid.bundles.csvdir.CSVDirConfiguration;
 import net.tirasa.connid.bundles.csvdir.CSVDirConnector;
+import net.tirasa.connid.bundles.csvdir.database.RowFilter;
 import net.tirasa.connid.bundles.db.common.FilterWhereBuilder;
 import net.tirasa.connid.bundles.db.common.SQLParam;
 import org.identityconnectors.common.StringUtil;
@@ -56,8 +57,8 @@ public class CSVDirFilterTranslator extends AbstractFilterTranslator<FilterWhere
         this.options = options;
     }
 
-    protected FilterWhereBuilder createBuilder() {
-        return new FilterWhereBuilder();
+    protected CSVDirFilterWhereBuilder createBuilder() {
+        return new CSVDirFilterWhereBuilder();
     }
 
     @Override
@@ -90,12 +91,13 @@ public class CSVDirFilterTranslator extends AbstractFilterTranslator<FilterWhere
             return null;
         }
 
-        final FilterWhereBuilder ret = createBuilder();
+        final CSVDirFilterWhereBuilder ret = createBuilder();
         ret.getWhere().append("(");
         if (not) {
             ret.getWhere().append("NOT ");
         }
 
+        RowFilter rowFilter = null;
         for (int i = 0; i < params.length; i++) {
             final SQLParam param = params[i];
             if (i > 0) {
@@ -105,12 +107,16 @@ public class CSVDirFilterTranslator extends AbstractFilterTranslator<FilterWhere
             if (param.getValue() == null) {
                 // Normalize NULLs
                 ret.addNull(param.getName());
+                rowFilter = RowFilter.and(rowFilter, RowFilter.isNull(param.getName()));
             } else {
                 ret.addBind(param, "=");
+                rowFilter = RowFilter.and(rowFilter, RowFilter.compare(
+                        param.getName(), RowFilter.Operator.EQUALS, (String) param.getValue()));
             }
         }
 
         ret.getWhere().append(")");
+        ret.setRowFilter(not ? RowFilter.not(rowFilter) : rowFilter);
 
         return ret;
     }
@@ -128,7 +134,7 @@ public class CSVDirFilterTranslator extends AbstractFilterTranslator<FilterWhere
             return null;
         }
 
-        final FilterWhereBuilder ret = createBuilder();
+        final CSVDirFilterWhereBuilder ret = createBuilder();
 
         ret.getWhere().append("(");
 
@@ -136,6 +142,7 @@ public class CSVDirFilterTranslator extends AbstractFilterTranslator<FilterWhere
             ret.getWhere().append("NOT ");
         }
 
+        RowFilter rowFilter = null;
         for (int i = 0; i < params.length; i++) {
             final SQLParam param = params[i];
             if (i > 0) {
@@ -145,6 +152,10 @@ public class CSVDirFilterTranslator extends AbstractFilterTranslator<FilterWhere
             String value = (String) param.getValue();
 
             // ignore null values
+            if (value != null) {
+                rowFilter = RowFilter.and(rowFilter, RowFilter.compare(
+                        param.getName(), RowFilter.Operator.CONTAINS, value));
+            }
             if (value != null && value instanceof String) {
 
                 //To be sure, this is not already quoted
@@ -161,6 +172,7 @@ public class CSVDirFilterTranslator extends AbstractFilterTranslator<FilterWhere
             }
         }
         ret.getWhere().append(")");
+        ret.setRowFilter(not ? RowFilter.not(rowFilter) : rowFilter);
 
         return ret;
     }
@@ -178,7 +190,7 @@ public class CSVDirFilterTranslator extends AbstractFilterTranslator<FilterWhere
             return null;
         }
 
-        final FilterWhereBuilder ret = createBuilder();
+        final CSVDirFilterWhereBuilder ret = createBuilder();
 
         ret.getWhere().append("(");
 
@@ -186,6 +198,7 @@ public class CSVDirFilterTranslator extends AbstractFilterTranslator<FilterWhere
             ret.getWhere().append("NOT ");
         }
 
+        RowFilter rowFilter = null;
         for (int i = 0; i < params.length; i++) {
             final SQLParam param = params[i];
             if (i > 0) {
@@ -195,6 +208,10 @@ public class CSVDirFilterTranslator extends AbstractFilterTranslator<FilterWhere
             String value = (String) param.getValue();
 
             // ignore null values
+            if (value != null) {
+                rowFilter = RowFilter.and(rowFilter, RowFilter.compare(
+                        param.getName(), RowFilter.Operator.ENDS_WITH, value));
+            }
             if (value != null) {
                 // To be sure, this is not already quoted
                 if (!value.startsWith("%")) {
@@ -207,6 +224,7 @@ public class CSVDirFilterTranslator extends AbstractFilterTranslator<FilterWhere
             }
         }
         ret.getWhere().append(")");
+        ret.setRowFilter(not ? RowFilter.not(rowFilter) : rowFilter);
 
         return ret;
     }
@@ -225,7 +243,7 @@ public class CSVDirFilterTranslator extends AbstractFilterTranslator<FilterWhere
             return null;
         }
 
-        final FilterWhereBuilder ret = createBuilder();
+        final CSVDirFilterWhereBuilder ret = createBuilder();
 
         ret.getWhere().append("(");
 
@@ -233,6 +251,7 @@ public class CSVDirFilterTranslator extends AbstractFilterTranslator<FilterWhere
             ret.getWhere().append("NOT ");
         }
 
+        RowFilter rowFilter = null;
         for (int i = 0; i < params.length; i++) {
             final SQLParam param = params[i];
             if (i > 0) {
@@ -242,6 +261,10 @@ public class CSVDirFilterTranslator extends AbstractFilterTranslator<FilterWhere
             String value = (String) param.getValue();
 
             // ignore null values
+            if (value != null) {
+                rowFilter = RowFilter.and(rowFilter, RowFilter.compare(
+                        param.getName(), RowFilter.Operator.STARTS_WITH, value));
+            }
             if (value != null) {
                 //To be sure, this is not already quoted
                 if (!value.endsWith("%")) {
@@ -255,6 +278,7 @@ public class CSVDirFilterTranslator extends AbstractFilterTranslator<FilterWhere
         }
 
         ret.getWhere().append(")");
+        ret.setRowFilter(not ? RowFilter.not(rowFilter) : rowFilter);
 
         return ret;
     }
@@ -273,10 +297,11 @@ public class CSVDirFilterTranslator extends AbstractFilterTranslator<FilterWhere
             return null;
         }
 
-        final FilterWhereBuilder ret = createBuilder();
+        final CSVDirFilterWhereBuilder ret = createBuilder();
 
         ret.getWhere().append("(");
 
+        RowFilter rowFilter = null;
         for (int i = 0; i < params.length; i++) {
             final SQLParam param = params[i];
             if (i > 0) {
@@ -289,9 +314,12 @@ public class CSVDirFilterTranslator extends AbstractFilterTranslator<FilterWhere
             if (value != null) {
                 final String op = not ? "<=" : ">";
                 ret.addBind(param, op);
+                rowFilter = RowFilter.and(rowFilter, RowFilter.compare(param.getName(),
+                        not ? RowFilter.Operator.LESS_THAN_OR_EQUAL : RowFilter.Operator.GREATER_THAN, value));
             }
         }
         ret.getWhere().append(")");
+        ret.setRowFilter(rowFilter);
 
         return ret;
     }
@@ -311,10 +339,11 @@ public class CSVDirFilterTranslator extends AbstractFilterTranslator<FilterWhere
             return null;
         }
 
-        final FilterWhereBuilder ret = createBuilder();
+        final CSVDirFilterWhereBuilder ret = createBuilder();
 
         ret.getWhere().append("(");
 
+        RowFilter rowFilter = null;
         for (int i = 0; i < params.length; i++) {
             final SQLParam param = params[i];
             if (i > 0) {
@@ -327,10 +356,13 @@ public class CSVDirFilterTranslator extends AbstractFilterTranslator<FilterWhere
             if (value != null) {
                 final String op = not ? "<" : ">=";
                 ret.addBind(param, op);
+                rowFilter = RowFilter.and(rowFilter, RowFilter.compare(param.getName(),
+                        not ? RowFilter.Operator.LESS_THAN : RowFilter.Operator.GREATER_THAN_OR_EQUAL, value));
             }
         }
 
         ret.getWhere().append(")");
+        ret.setRowFilter(rowFilter);
 
         return ret;
     }
@@ -348,10 +380,11 @@ public class CSVDirFilterTranslator extends AbstractFilterTranslator<FilterWhere
             return null;
         }
 
-        final FilterWhereBuilder ret = createBuilder();
+        final CSVDirFilterWhereBuilder ret = createBuilder();
 
         ret.getWhere().append("(");
 
+        RowFilter rowFilter = null;
         for (int i = 0; i < params.length; i++) {
             final SQLParam param = params[i];
             if (i > 0) {
@@ -364,10 +397,13 @@ public class CSVDirFilterTranslator extends AbstractFilterTranslator<FilterWhere
             if (value != null) {
                 final String op = not ? ">=" : "<";
                 ret.addBind(param, op);
+                rowFilter = RowFilter.and(rowFilter, RowFilter.compare(param.getName(),
+                        not ? RowFilter.Operator.GREATER_THAN_OR_EQUAL : RowFilter.Operator.LESS_THAN, value));
             }
         }
 
         ret.getWhere().append(")");
+        ret.setRowFilter(rowFilter);
 
         return ret;
     }
@@ -387,10 +423,11 @@ public class CSVDirFilterTranslator extends AbstractFilterTranslator<FilterWhere
             return null;
         }
 
-        final FilterWhereBuilder ret = createBuilder();
+        final CSVDirFilterWhereBuilder ret = createBuilder();
 
         ret.getWhere().append("(");
 
+        RowFilter rowFilter = null;
         for (int i = 0; i < params.length; i++) {
             final SQLParam param = params[i];
             if (i > 0) {
@@ -403,10 +440,13 @@ public class CSVDirFilterTranslator extends AbstractFilterTranslator<FilterWhere
             if (value != null) {
                 final String op = not ? ">" : "<=";
                 ret.addBind(param, op);
+                rowFilter = RowFilter.and(rowFilter, RowFilter.compare(param.getName(),
+                        not ? RowFilter.Operator.GREATER_THAN : RowFilter.Operator.LESS_THAN_OR_EQUAL, value));
             }
         }
 
         ret.getWhere().append(")");
+        ret.setRowFilter(rowFilter);
 
         return ret;
     }
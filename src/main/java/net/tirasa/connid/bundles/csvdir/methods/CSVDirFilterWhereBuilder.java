@@ -0,0 +1,46 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir.methods;
+
+import net.tirasa.connid.bundles.csvdir.database.RowFilter;
+import net.tirasa.connid.bundles.db.common.FilterWhereBuilder;
+
+/**
+ * Where clause builder carrying, besides the SQL where clause used with HSQLDB, the equivalent {@link RowFilter}
+ * used by the native engine.
+ */
+public class CSVDirFilterWhereBuilder extends FilterWhereBuilder {
+
+    private RowFilter rowFilter;
+
+    @Override
+    public void join(final String operator, final FilterWhereBuilder l, final FilterWhereBuilder r) {
+        super.join(operator, l, r);
+
+        final RowFilter left = ((CSVDirFilterWhereBuilder) l).getRowFilter();
+        final RowFilter right = ((CSVDirFilterWhereBuilder) r).getRowFilter();
+
+        rowFilter = "OR".equals(operator) ? RowFilter.or(left, right) : RowFilter.and(left, right);
+    }
+
+    public RowFilter getRowFilter() {
+        return rowFilter;
+    }
+
+    public void setRowFilter(final RowFilter rowFilter) {
+        this.rowFilter = rowFilter;
+    }
+}
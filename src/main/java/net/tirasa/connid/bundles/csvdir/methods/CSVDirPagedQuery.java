@@ -0,0 +1,353 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir.methods;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import net.tirasa.connid.bundles.csvdir.CSVDirConfiguration;
+import net.tirasa.connid.bundles.csvdir.CSVDirConnection;
+import net.tirasa.connid.bundles.csvdir.database.CSVReader;
+import net.tirasa.connid.bundles.csvdir.database.ChangeTracker;
+import net.tirasa.connid.bundles.csvdir.database.ColumnIndex;
+import net.tirasa.connid.bundles.csvdir.database.Deduplicator;
+import net.tirasa.connid.bundles.csvdir.database.FileScanner;
+import net.tirasa.connid.bundles.csvdir.database.FileSystem;
+import net.tirasa.connid.bundles.csvdir.database.KeyIndex;
+import net.tirasa.connid.bundles.csvdir.database.PagedResultsCookie;
+import net.tirasa.connid.bundles.csvdir.database.Projection;
+import net.tirasa.connid.bundles.csvdir.database.QueryCreator;
+import net.tirasa.connid.bundles.csvdir.database.Row;
+import net.tirasa.connid.bundles.csvdir.database.RowFilter;
+import net.tirasa.connid.bundles.csvdir.database.RowHandler;
+import net.tirasa.connid.bundles.csvdir.utilities.Utilities;
+import net.tirasa.connid.bundles.db.common.FilterWhereBuilder;
+import net.tirasa.connid.bundles.db.common.SQLParam;
+import org.identityconnectors.common.StringUtil;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ResultsHandler;
+import org.identityconnectors.framework.common.objects.SearchResult;
+import org.identityconnectors.framework.spi.Connector;
+import org.identityconnectors.framework.spi.SearchResultsHandler;
+
+/**
+ * Paged search: files are read one after the other, in dedup policy order, and the returned cookie points to the
+ * first record not returned yet, so that next page resumes reading from there without reading previous pages again.
+ * <br/>
+ * The native engine reads each file in order and resumes from the byte offset of that record, as long as the file
+ * was only appended to meanwhile; HSQLDB reads each text table ordered by key and resumes from the key of that
+ * record.
+ * <br/>
+ * Duplicate keys are detected via the {@link KeyIndex}, when available, otherwise within the current page only.
+ */
+public class CSVDirPagedQuery extends CommonOperation {
+
+    /**
+     * Setup {@link Connector} based logging.
+     */
+    private static final Log LOG = Log.getLog(CSVDirPagedQuery.class);
+
+    private final CSVDirConfiguration conf;
+
+    private final CSVDirConnection conn;
+
+    private final FilterWhereBuilder where;
+
+    private final ResultsHandler handler;
+
+    private final Projection projection;
+
+    private final int pageSize;
+
+    private final String cookie;
+
+    private final int toBeSkipped;
+
+    private final Deduplicator deduplicator;
+
+    private KeyIndex keyIndex;
+
+    private File[] files;
+
+    private int returned = 0;
+
+    private int skipped = 0;
+
+    /**
+     * Records matching the filter.
+     */
+    private long matched = 0;
+
+    /**
+     * Records matching the filter, neither duplicate nor deleted.
+     */
+    private long kept = 0;
+
+    private long scannedBytes = 0;
+
+    private boolean stopped = false;
+
+    private PagedResultsCookie next;
+
+    /**
+     * @param conf configuration
+     * @param conn connection, required with HSQLDB; optional with the native engine, used to access the key index
+     * @param where filter
+     * @param handler results handler
+     * @param projection columns to be read and returned
+     * @param pageSize page size
+     * @param cookie cookie returned with the previous page, <tt>null</tt> for the first page
+     * @param pagedResultsOffset 1-based index of the first result to return, when no cookie is given
+     */
+    public CSVDirPagedQuery(
+            final CSVDirConfiguration conf,
+            final CSVDirConnection conn,
+            final FilterWhereBuilder where,
+            final ResultsHandler handler,
+            final Projection projection,
+            final int pageSize,
+            final String cookie,
+            final Integer pagedResultsOffset) {
+
+        this.conf = conf;
+        this.conn = conn;
+        this.where = where;
+        this.handler = handler;
+        this.projection = projection;
+        this.pageSize = pageSize;
+        this.cookie = cookie;
+        this.toBeSkipped = cookie == null && pagedResultsOffset != null && pagedResultsOffset > 1
+                ? pagedResultsOffset - 1 : 0;
+        this.deduplicator = new Deduplicator(conf);
+    }
+
+    public void execute() throws IOException, SQLException {
+        files = deduplicator.order(new FileSystem(conf).getAllCsvFiles());
+
+        int start = 0;
+        PagedResultsCookie previous = null;
+        if (StringUtil.isNotBlank(cookie)) {
+            previous = PagedResultsCookie.parse(cookie);
+
+            start = -1;
+            for (int i = 0; i < files.length && start == -1; i++) {
+                if (previous.matches(conf.getEngine(), files[i])) {
+                    start = i;
+                }
+            }
+            if (start == -1) {
+                throw new IllegalArgumentException(
+                        "Paged results cookie not valid anymore: " + previous.getFileName() + " was removed");
+            }
+            if (conf.isNativeEngine() && !CSVReader.isRecordStart(files[start], previous.getOffset())) {
+                throw new IllegalArgumentException(
+                        "Paged results cookie not valid anymore: " + previous.getFileName() + " was rewritten");
+            }
+        }
+
+        keyIndex = conn == null ? null : conn.getKeyIndex();
+        if (keyIndex != null) {
+            keyIndex.update(files);
+        }
+
+        for (int i = start; i < files.length && !stopped; i++) {
+            if (conf.isNativeEngine()) {
+                scan(files[i], i == start && previous != null ? previous.getOffset() : 0L);
+            } else {
+                query(files[i], i == start && previous != null ? previous.getKey() : null);
+            }
+        }
+
+        final int remaining = next == null ? 0 : estimateRemaining();
+        LOG.ok("Page returned {0} results, about {1} remaining", returned, remaining);
+
+        if (handler instanceof SearchResultsHandler) {
+            ((SearchResultsHandler) handler).handleResult(
+                    new SearchResult(next == null ? null : next.toString(), remaining));
+        }
+    }
+
+    private void scan(final File file, final long offset) throws IOException {
+        final FileScanner scanner = new FileScanner(conf);
+        scanner.setProjection(projection);
+        final ColumnIndex columns = scanner.getColumns();
+        final int deleteColumn = columns.indexOf(conf.getDeleteColumnName());
+        final RowFilter filter = where == null ? null : ((CSVDirFilterWhereBuilder) where).getRowFilter();
+
+        final long[] position = new long[] { offset };
+        scanner.scan(file, offset, filter, new RowHandler() {
+
+            @Override
+            public boolean handle(final Row row) {
+                position[0] = row.getOffset();
+
+                final String[] values = row.getValues();
+                final boolean goOn = onRecord(file, row.getOffset(),
+                        null,
+                        createUid(columns, values, conf.getKeyseparator()),
+                        deleteColumn != -1 && Boolean.valueOf(values[deleteColumn]),
+                        new ObjectBuilder() {
+
+                            @Override
+                            public ConnectorObject build() {
+                                return buildConnectorObject(conf, columns, projection, values);
+                            }
+                        });
+                if (goOn) {
+                    position[0] = row.getOffset() + row.getLength();
+                }
+                return goOn;
+            }
+        });
+
+        scannedBytes += (stopped ? position[0] : ChangeTracker.length(file)) - offset;
+    }
+
+    private void query(final File file, final String fromKey) throws SQLException {
+        final String whereClause = whereClause(fromKey);
+        final List<SQLParam> params = params(fromKey);
+
+        final ResultSet resultSet = conn.csvFile(
+                file, projection.getSelectList(), whereClause, params, Utilities.join(conf.getKeyColumnNames(), ','));
+        try {
+            while (!stopped && resultSet.next()) {
+                final String key = createUid(conf.getKeyColumnNames(), resultSet, conf.getKeyseparator());
+                onRecord(file, 0L, key, key,
+                        StringUtil.isNotBlank(conf.getDeleteColumnName())
+                        && Boolean.valueOf(resultSet.getString(resultSet.findColumn(conf.getDeleteColumnName()))),
+                        new ObjectBuilder() {
+
+                            @Override
+                            public ConnectorObject build() throws SQLException {
+                                return buildConnectorObject(conf, resultSet, projection);
+                            }
+                        });
+            }
+        } finally {
+            resultSet.close();
+        }
+    }
+
+    /**
+     * @param fromKey key of the first record to read, <tt>null</tt> to read from the first one
+     * @return where clause of the filter, restricted to records from the given key, if any
+     */
+    private String whereClause(final String fromKey) {
+        final String whereClause = where == null ? null : where.getWhereClause();
+        if (fromKey == null) {
+            return whereClause;
+        }
+
+        final String keyClause = "(" + QueryCreator.keyFromClause(conf.getKeyColumnNames()) + ")";
+        return StringUtil.isBlank(whereClause) ? keyClause : "(" + whereClause + ") AND " + keyClause;
+    }
+
+    /**
+     * @param fromKey key of the first record to read, <tt>null</tt> to read from the first one
+     * @return parameters of {@link #whereClause(String)}
+     */
+    private List<SQLParam> params(final String fromKey) {
+        final List<SQLParam> params = new ArrayList<SQLParam>();
+        if (where != null && where.getParams() != null) {
+            params.addAll(where.getParams());
+        }
+        if (fromKey != null) {
+            params.addAll(QueryCreator.getKeyFromParams(fromKey, conf.getKeyseparator(), conf.getKeyColumnNames()));
+        }
+        return params;
+    }
+
+    /**
+     * Handles a record matching the filter.
+     *
+     * @return whether reading must go on
+     */
+    private boolean onRecord(
+            final File file,
+            final long position,
+            final String sortKey,
+            final String key,
+            final boolean deleted,
+            final ObjectBuilder builder) {
+
+        matched++;
+
+        final boolean duplicate = keyIndex == null
+                ? deduplicator.isDuplicate(key)
+                : deduplicator.isShadowed(key, file, files, keyIndex);
+        if (duplicate || deleted) {
+            return true;
+        }
+        kept++;
+
+        if (returned == pageSize) {
+            next = new PagedResultsCookie(conf.getEngine(), file, position, sortKey);
+            stopped = true;
+            return false;
+        }
+
+        if (skipped < toBeSkipped) {
+            skipped++;
+            return true;
+        }
+
+        returned++;
+        try {
+            stopped = !handler.handle(builder.build());
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+        return !stopped;
+    }
+
+    /**
+     * Estimates the number of results following the current page, from the ratio between records returned (or to be
+     * returned, duplicate and deleted records excluded) and records read so far: for the native engine, as bytes;
+     * for HSQLDB, as records matching the filter.
+     */
+    private int estimateRemaining() throws SQLException {
+        int index = 0;
+        while (!files[index].getName().equals(next.getFileName())) {
+            index++;
+        }
+
+        long estimate;
+        if (conf.isNativeEngine()) {
+            long remainingBytes = ChangeTracker.length(files[index]) - next.getOffset();
+            for (int i = index + 1; i < files.length; i++) {
+                remainingBytes += ChangeTracker.length(files[i]);
+            }
+            estimate = scannedBytes == 0 ? -1 : remainingBytes * kept / scannedBytes;
+        } else {
+            long remainingMatches = conn.countRows(files[index], whereClause(next.getKey()), params(next.getKey()));
+            for (int i = index + 1; i < files.length; i++) {
+                remainingMatches += conn.countRows(files[i], whereClause(null), params(null));
+            }
+            estimate = matched == 0 ? -1 : remainingMatches * kept / matched;
+        }
+
+        return (int) Math.min(Integer.MAX_VALUE, estimate);
+    }
+
+    private interface ObjectBuilder {
+
+        ConnectorObject build() throws SQLException;
+    }
+}
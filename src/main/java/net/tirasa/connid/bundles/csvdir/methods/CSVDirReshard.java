@@ -0,0 +1,68 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir.methods;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import net.tirasa.connid.bundles.csvdir.CSVDirConfiguration;
+import net.tirasa.connid.bundles.csvdir.CSVDirConnection;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.spi.Connector;
+
+/**
+ * Moves all records to the bucket files of the configured partitions, while holding exclusive access to the files.
+ */
+public class CSVDirReshard extends CommonOperation {
+
+    /**
+     * Setup {@link Connector} based logging.
+     */
+    private static final Log LOG = Log.getLog(CSVDirReshard.class);
+
+    private final CSVDirConnection conn;
+
+    public CSVDirReshard(final CSVDirConfiguration conf)
+            throws SQLException, ClassNotFoundException {
+
+        this.conn = CSVDirConnection.openConnection(conf);
+    }
+
+    public int execute() {
+        try {
+            return executeImpl();
+        } catch (Exception e) {
+            LOG.error(e, "error during reshard");
+            throw new ConnectorException(e);
+        } finally {
+            try {
+                if (conn != null) {
+                    conn.closeConnection();
+                }
+            } catch (SQLException e) {
+                LOG.error(e, "Error closing connections");
+            }
+        }
+    }
+
+    private int executeImpl() throws IOException {
+        final int buckets = conn.reshard();
+
+        LOG.ok("Reshard into {0} bucket files commited", buckets);
+
+        return buckets;
+    }
+}
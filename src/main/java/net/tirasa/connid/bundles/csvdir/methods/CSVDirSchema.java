@@ -24,10 +24,12 @@ import org.identityconnectors.framework.common.objects.AttributeInfo;
 import org.identityconnectors.framework.common.objects.AttributeInfoBuilder;
 import org.identityconnectors.framework.common.objects.Name;
 import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationOptionInfoBuilder;
 import org.identityconnectors.framework.common.objects.OperationalAttributes;
 import org.identityconnectors.framework.common.objects.Schema;
 import org.identityconnectors.framework.common.objects.SchemaBuilder;
 import org.identityconnectors.framework.spi.Connector;
+import org.identityconnectors.framework.spi.operations.SearchOp;
 
 public class CSVDirSchema {
 
@@ -95,6 +97,12 @@ public class CSVDirSchema {
         // set it to object class account..
         bld.defineObjectClass(ObjectClass.ACCOUNT_NAME, attrInfos);
 
+        // paged searches..
+        bld.defineOperationOption(OperationOptionInfoBuilder.buildPageSize(), SearchOp.class);
+        bld.defineOperationOption(OperationOptionInfoBuilder.buildPagedResultsCookie(), SearchOp.class);
+        bld.defineOperationOption(OperationOptionInfoBuilder.buildPagedResultsOffset(), SearchOp.class);
+        bld.defineOperationOption(OperationOptionInfoBuilder.buildSortKeys(), SearchOp.class);
+
         // return the new schema object..
         return bld.build();
     }
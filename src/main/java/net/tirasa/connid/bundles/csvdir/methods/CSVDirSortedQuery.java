@@ -0,0 +1,258 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir.methods;
+
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import net.tirasa.connid.bundles.csvdir.CSVDirConfiguration;
+import net.tirasa.connid.bundles.csvdir.CSVDirConnection;
+import net.tirasa.connid.bundles.csvdir.database.ColumnIndex;
+import net.tirasa.connid.bundles.csvdir.database.Deduplicator;
+import net.tirasa.connid.bundles.csvdir.database.ExternalSorter;
+import net.tirasa.connid.bundles.csvdir.database.FileScanner;
+import net.tirasa.connid.bundles.csvdir.database.FileSystem;
+import net.tirasa.connid.bundles.csvdir.database.Projection;
+import net.tirasa.connid.bundles.csvdir.database.RecordComparator;
+import net.tirasa.connid.bundles.csvdir.database.RecordHandler;
+import net.tirasa.connid.bundles.csvdir.database.Row;
+import net.tirasa.connid.bundles.csvdir.database.RowFilter;
+import net.tirasa.connid.bundles.csvdir.database.RowHandler;
+import net.tirasa.connid.bundles.csvdir.database.SortedPagedResultsCookie;
+import net.tirasa.connid.bundles.db.common.FilterWhereBuilder;
+import net.tirasa.connid.bundles.db.common.SQLParam;
+import org.identityconnectors.common.StringUtil;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.objects.ResultsHandler;
+import org.identityconnectors.framework.common.objects.SearchResult;
+import org.identityconnectors.framework.common.objects.SortKey;
+import org.identityconnectors.framework.spi.Connector;
+import org.identityconnectors.framework.spi.SearchResultsHandler;
+
+/**
+ * Sorted search: records surviving filter, dedup policy and delete column are read in file order, then sorted.
+ * <br/>
+ * Without paging, records are sorted via {@link ExternalSorter}, hence in memory up to the configured sort buffer
+ * size and spilling to temporary files above it. With paging, only the records of the requested page are kept,
+ * and the returned cookie carries the last record returned, so that any page is read in memory bounded by its size.
+ */
+public class CSVDirSortedQuery extends CommonOperation {
+
+    /**
+     * Setup {@link Connector} based logging.
+     */
+    private static final Log LOG = Log.getLog(CSVDirSortedQuery.class);
+
+    private final CSVDirConfiguration conf;
+
+    private final CSVDirConnection conn;
+
+    private final FilterWhereBuilder where;
+
+    private final ResultsHandler handler;
+
+    private final SortKey[] sortKeys;
+
+    private final Projection projection;
+
+    private final ColumnIndex columns;
+
+    private final RecordComparator comparator;
+
+    /**
+     * @param conf configuration
+     * @param conn connection, required with HSQLDB
+     * @param where filter
+     * @param handler results handler
+     * @param sortKeys sort keys
+     * @param projection columns to be read and returned, sort key columns included
+     */
+    public CSVDirSortedQuery(
+            final CSVDirConfiguration conf,
+            final CSVDirConnection conn,
+            final FilterWhereBuilder where,
+            final ResultsHandler handler,
+            final SortKey[] sortKeys,
+            final Projection projection) {
+
+        this.conf = conf;
+        this.conn = conn;
+        this.where = where;
+        this.handler = handler;
+        this.sortKeys = sortKeys;
+        this.projection = projection;
+        this.columns = new ColumnIndex(conf);
+        this.comparator = new RecordComparator(sortKeys, columns);
+    }
+
+    public void execute() throws IOException, SQLException {
+        final ExternalSorter sorter = new ExternalSorter(comparator, conf.getSortBufferSize());
+        try {
+            read(new RecordHandler() {
+
+                @Override
+                public boolean handle(final String[] values) {
+                    try {
+                        sorter.add(values);
+                    } catch (IOException e) {
+                        throw new IllegalStateException("While sorting", e);
+                    }
+                    return true;
+                }
+            });
+
+            sorter.sort(new RecordHandler() {
+
+                @Override
+                public boolean handle(final String[] values) {
+                    return handler.handle(buildConnectorObject(conf, columns, projection, values));
+                }
+            });
+        } finally {
+            sorter.close();
+        }
+    }
+
+    /**
+     * @param pageSize page size
+     * @param cookie cookie returned with the previous page, <tt>null</tt> for the first page
+     * @param pagedResultsOffset 1-based index of the first result to return, when no cookie is given
+     * @throws IOException if any file cannot be read
+     * @throws SQLException if HSQLDB query fails
+     */
+    public void execute(final int pageSize, final String cookie, final Integer pagedResultsOffset)
+            throws IOException, SQLException {
+
+        final String[] previous;
+        if (StringUtil.isBlank(cookie)) {
+            previous = null;
+        } else {
+            final SortedPagedResultsCookie parsed = SortedPagedResultsCookie.parse(cookie);
+            if (!parsed.matches(sortKeys)) {
+                throw new IllegalArgumentException("Paged results cookie was issued for different sort keys");
+            }
+            previous = parsed.getValues();
+        }
+
+        final int toBeSkipped = previous == null && pagedResultsOffset != null && pagedResultsOffset > 1
+                ? pagedResultsOffset - 1 : 0;
+        // one more than needed, to know whether there is a next page
+        final int capacity = toBeSkipped + pageSize + 1;
+
+        // reverse order: head is the record to drop when over capacity
+        final PriorityQueue<String[]> page = new PriorityQueue<String[]>(capacity + 1,
+                Collections.reverseOrder(comparator));
+        final int[] candidates = new int[] { 0 };
+
+        read(new RecordHandler() {
+
+            @Override
+            public boolean handle(final String[] values) {
+                if (previous == null || comparator.compare(values, previous) > 0) {
+                    candidates[0]++;
+                    page.add(values);
+                    if (page.size() > capacity) {
+                        page.poll();
+                    }
+                }
+                return true;
+            }
+        });
+
+        final List<String[]> sorted = new ArrayList<String[]>(page);
+        Collections.sort(sorted, comparator);
+
+        String[] last = null;
+        int returned = 0;
+        boolean handled = true;
+        for (int i = toBeSkipped; i < sorted.size() && returned < pageSize && handled; i++) {
+            last = sorted.get(i);
+            returned++;
+            handled = handler.handle(buildConnectorObject(conf, columns, projection, last));
+        }
+
+        final int remaining = Math.max(0, candidates[0] - toBeSkipped - returned);
+        LOG.ok("Sorted page returned {0} results, {1} remaining", returned, remaining);
+
+        if (handler instanceof SearchResultsHandler) {
+            ((SearchResultsHandler) handler).handleResult(new SearchResult(
+                    remaining == 0 || last == null ? null : new SortedPagedResultsCookie(sortKeys, last).toString(),
+                    remaining));
+        }
+    }
+
+    /**
+     * Reads, in dedup policy order, the records matching the filter which are not duplicates nor deleted.
+     */
+    private void read(final RecordHandler recordHandler) throws IOException, SQLException {
+        final Deduplicator deduplicator = new Deduplicator(conf);
+
+        if (conf.isNativeEngine()) {
+            final FileScanner scanner = new FileScanner(conf);
+            scanner.setProjection(projection);
+            final int deleteColumn = columns.indexOf(conf.getDeleteColumnName());
+            final RowFilter filter = where == null ? null : ((CSVDirFilterWhereBuilder) where).getRowFilter();
+
+            scanner.scan(deduplicator.order(new FileSystem(conf).getAllCsvFiles()), filter, new RowHandler() {
+
+                @Override
+                public boolean handle(final Row row) {
+                    final String[] values = row.getValues();
+                    if (deduplicator.isDuplicate(createUid(columns, values, conf.getKeyseparator()))) {
+                        return true;
+                    }
+                    if (deleteColumn != -1 && Boolean.valueOf(values[deleteColumn])) {
+                        return true;
+                    }
+                    return recordHandler.handle(values);
+                }
+            });
+            return;
+        }
+
+        final String whereClause = where == null ? null : where.getWhereClause();
+        final List<SQLParam> params = where == null ? null : where.getParams();
+
+        final ResultSet resultSet = conn.allCsvFiles(projection.getSelectList(), whereClause, params);
+        try {
+            boolean handled = true;
+            while (handled && resultSet.next()) {
+                if (deduplicator.isDuplicate(
+                        createUid(conf.getKeyColumnNames(), resultSet, conf.getKeyseparator()))) {
+                    continue;
+                }
+
+                if (StringUtil.isBlank(conf.getDeleteColumnName())
+                        || !Boolean.valueOf(resultSet.getString(resultSet.findColumn(conf.getDeleteColumnName())))) {
+
+                    final String[] values = new String[columns.size()];
+                    for (int i = 0; i < values.length; i++) {
+                        if (projection.isRead(i)) {
+                            values[i] = resultSet.getString(columns.getName(i));
+                        }
+                    }
+                    handled = recordHandler.handle(values);
+                }
+            }
+        } finally {
+            resultSet.close();
+        }
+    }
+}
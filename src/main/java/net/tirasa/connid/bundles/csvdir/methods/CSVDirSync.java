@@ -15,10 +15,29 @@
  */
 package net.tirasa.connid.bundles.csvdir.methods;
 
+import java.io.File;
+import java.io.IOException;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import net.tirasa.connid.bundles.csvdir.CSVDirConfiguration;
 import net.tirasa.connid.bundles.csvdir.CSVDirConnection;
+import net.tirasa.connid.bundles.csvdir.database.CSVReader;
+import net.tirasa.connid.bundles.csvdir.database.ChangeTracker;
+import net.tirasa.connid.bundles.csvdir.database.ColumnIndex;
+import net.tirasa.connid.bundles.csvdir.database.Deduplicator;
+import net.tirasa.connid.bundles.csvdir.database.FileScanner;
+import net.tirasa.connid.bundles.csvdir.database.FileSystem;
+import net.tirasa.connid.bundles.csvdir.database.KeyFilters;
+import net.tirasa.connid.bundles.csvdir.database.RecordHandler;
+import net.tirasa.connid.bundles.csvdir.database.Row;
+import net.tirasa.connid.bundles.csvdir.database.RowHandler;
+import net.tirasa.connid.bundles.csvdir.database.SyncSnapshot;
+import net.tirasa.connid.bundles.csvdir.database.TailSyncToken;
 import org.identityconnectors.common.StringUtil;
 import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.framework.common.exceptions.ConnectorException;
@@ -30,6 +49,7 @@ import org.identityconnectors.framework.common.objects.SyncDeltaBuilder;
 import org.identityconnectors.framework.common.objects.SyncDeltaType;
 import org.identityconnectors.framework.common.objects.SyncResultsHandler;
 import org.identityconnectors.framework.common.objects.SyncToken;
+import org.identityconnectors.framework.common.objects.Uid;
 import org.identityconnectors.framework.spi.Connector;
 
 public class CSVDirSync extends CommonOperation {
@@ -39,7 +59,12 @@ public class CSVDirSync extends CommonOperation {
      */
     private static final Log LOG = Log.getLog(CSVDirExecuteQuery.class);
 
-    private static long token = 0L;
+    /**
+     * Tail sync: number of deltas sharing the same encoded token.
+     */
+    private static final int TOKEN_BATCH_SIZE = 1000;
+
+    private long token = 0L;
 
     private final CSVDirConfiguration conf;
 
@@ -65,10 +90,10 @@ public class CSVDirSync extends CommonOperation {
         this.syncToken = syncToken;
         this.handler = handler;
         this.options = options;
-        this.conn = CSVDirConnection.openConnection(conf);
+        this.conn = conf.isNativeEngine() || conf.isTailSync() ? null : CSVDirConnection.openConnection(conf);
     }
 
-    public long execute() {
+    public SyncToken execute() {
         try {
             return executeImpl();
         } catch (Exception e) {
@@ -85,7 +110,7 @@ public class CSVDirSync extends CommonOperation {
         }
     }
 
-    private long executeImpl()
+    private SyncToken executeImpl()
             throws SQLException {
 
         // check objectclass
@@ -103,8 +128,21 @@ public class CSVDirSync extends CommonOperation {
             syncToken = new SyncToken(0);
         }
 
+        if (conf.isTailSync()) {
+            return executeTail();
+        }
+
+        if (conf.isRowLevelSync()) {
+            return new SyncToken(executeRowLevel());
+        }
+
+        if (conf.isNativeEngine()) {
+            return new SyncToken(executeNative());
+        }
+
         try {
-            buildSyncDelta(conn.modifiedCsvFiles(Long.valueOf(syncToken.getValue().toString())), handler);
+            final KeyFilters.Scan scan = conn.scanKeys();
+            buildSyncDelta(conn.modifiedCsvFiles(Long.valueOf(syncToken.getValue().toString()), scan), scan, handler);
 
             token = conn.getFileSystem().getHighestTimeStamp();
         } catch (NumberFormatException e) {
@@ -115,24 +153,351 @@ public class CSVDirSync extends CommonOperation {
             throw new ConnectorIOException(e);
         }
 
+        return new SyncToken(token);
+    }
+
+    private long executeNative() {
+        final FileSystem fileSystem = new FileSystem(conf);
+        final FileScanner scanner = new FileScanner(conf);
+        final ColumnIndex columns = scanner.getColumns();
+        final int deleteColumn = columns.indexOf(conf.getDeleteColumnName());
+        final Deduplicator deduplicator = new Deduplicator(conf);
+
+        try {
+            final File[] files = fileSystem.getModifiedCsvFiles(Long.valueOf(syncToken.getValue().toString()));
+            token = fileSystem.getHighestTimeStamp();
+
+            scanner.scan(deduplicator.order(files), null, new RowHandler() {
+
+                @Override
+                public boolean handle(final Row row) {
+                    if (deduplicator.isDuplicate(createUid(columns, row.getValues(), conf.getKeyseparator()))) {
+                        return true;
+                    }
+
+                    final SyncDeltaBuilder syncDeltaBuilder =
+                            createSyncDelta(buildConnectorObject(conf, columns, row.getValues()));
+                    syncDeltaBuilder.setDeltaType(deleteColumn != -1 && Boolean.valueOf(row.getValue(deleteColumn))
+                            ? SyncDeltaType.DELETE
+                            : SyncDeltaType.CREATE_OR_UPDATE);
+                    return handler.handle(syncDeltaBuilder.build());
+                }
+            });
+        } catch (NumberFormatException e) {
+            LOG.error(e, "error during syncronization");
+            throw new ConnectorIOException(e);
+        } catch (IOException e) {
+            LOG.error(e, "error during syncronization");
+            throw new ConnectorIOException(e);
+        }
+
+        return token;
+    }
+
+    /**
+     * Row level sync: changed files are read and their records compared with the fingerprints taken by the sync
+     * which returned the given token, so that only new records (<tt>CREATE</tt>), changed records (<tt>UPDATE</tt>)
+     * and records not found anymore in any file (<tt>DELETE</tt>) are returned; all records are returned for token 0,
+     * or when the snapshot of the given token is not available anymore.
+     */
+    private long executeRowLevel() {
+        final SyncSnapshot snapshot = new SyncSnapshot(conf);
+        final ColumnIndex columns = new ColumnIndex(conf);
+        final int deleteColumn = columns.indexOf(conf.getDeleteColumnName());
+        final Deduplicator deduplicator = new Deduplicator(conf);
+
+        try {
+            // each sync gets its own snapshot
+            final long previousToken = Long.valueOf(syncToken.getValue().toString());
+            snapshot.load(previousToken);
+            token = Math.max(System.currentTimeMillis(), previousToken + 1);
+
+            final File[] files = deduplicator.order(new FileSystem(conf).getAllCsvFiles());
+
+            final Set<String> removed = snapshot.getFileNames();
+            for (File file : files) {
+                removed.remove(file.getName());
+            }
+
+            final List<ScannedFile> scanned = new ArrayList<ScannedFile>();
+            boolean handled = true;
+            for (int i = 0; i < files.length && handled; i++) {
+                final File file = files[i];
+                if (!snapshot.isChanged(file)) {
+                    // records of unchanged files still shadow the ones read later
+                    for (String key : snapshot.getRows(file.getName()).keySet()) {
+                        deduplicator.skipped(key);
+                    }
+                    continue;
+                }
+
+                final ScannedFile scannedFile = new ScannedFile(file);
+                final Map<String, Long> previous = snapshot.getRows(file.getName());
+
+                handled = read(file, columns, new RecordHandler() {
+
+                    @Override
+                    public boolean handle(final String[] values) {
+                        final String key = createUid(columns, values, conf.getKeyseparator());
+                        final long fingerprint = SyncSnapshot.fingerprint(values);
+                        scannedFile.rows.put(key, fingerprint);
+
+                        if (deduplicator.isDuplicate(key)) {
+                            return true;
+                        }
+
+                        Long old = previous.get(key);
+                        if (old == null) {
+                            // moved from another file?
+                            old = snapshot.find(key, file.getName());
+                        }
+                        if (old != null && old == fingerprint) {
+                            return true;
+                        }
+
+                        final SyncDeltaBuilder syncDeltaBuilder =
+                                createSyncDelta(buildConnectorObject(conf, columns, values));
+                        syncDeltaBuilder.setDeltaType(deleteColumn != -1 && Boolean.valueOf(values[deleteColumn])
+                                ? SyncDeltaType.DELETE
+                                : old == null ? SyncDeltaType.CREATE : SyncDeltaType.UPDATE);
+                        return handler.handle(syncDeltaBuilder.build());
+                    }
+                });
+                scanned.add(scannedFile);
+            }
+
+            if (!handled) {
+                // snapshot not updated: next sync will return again what was not handled
+                snapshot.save(token);
+                return token;
+            }
+
+            // keys not found anymore in changed or removed files..
+            final List<VanishedRow> vanished = new ArrayList<VanishedRow>();
+            for (ScannedFile scannedFile : scanned) {
+                for (Map.Entry<String, Long> row : snapshot.getRows(scannedFile.name).entrySet()) {
+                    if (!scannedFile.rows.containsKey(row.getKey())) {
+                        vanished.add(new VanishedRow(scannedFile.name, row));
+                    }
+                }
+            }
+            for (String fileName : removed) {
+                for (Map.Entry<String, Long> row : snapshot.getRows(fileName).entrySet()) {
+                    vanished.add(new VanishedRow(fileName, row));
+                }
+            }
+
+            for (ScannedFile scannedFile : scanned) {
+                snapshot.put(scannedFile.name, scannedFile.size, scannedFile.lastModified, scannedFile.rows);
+            }
+            for (String fileName : removed) {
+                snapshot.remove(fileName);
+            }
+
+            // ..are deleted, unless found in any other file
+            int i = 0;
+            for (; i < vanished.size() && handled; i++) {
+                if (snapshot.find(vanished.get(i).key, null) == null) {
+                    final SyncDeltaBuilder syncDeltaBuilder = new SyncDeltaBuilder();
+                    syncDeltaBuilder.setObjectClass(ObjectClass.ACCOUNT);
+                    syncDeltaBuilder.setUid(new Uid(vanished.get(i).key));
+                    syncDeltaBuilder.setToken(getLatestSyncToken());
+                    syncDeltaBuilder.setDeltaType(SyncDeltaType.DELETE);
+                    handled = handler.handle(syncDeltaBuilder.build());
+                }
+            }
+            // deletes not handled are returned again by next sync
+            for (; i < vanished.size(); i++) {
+                snapshot.pending(vanished.get(i).fileName, vanished.get(i).key, vanished.get(i).fingerprint);
+            }
+
+            snapshot.save(token);
+        } catch (NumberFormatException e) {
+            LOG.error(e, "error during syncronization");
+            throw new ConnectorIOException(e);
+        } catch (IOException e) {
+            LOG.error(e, "error during syncronization");
+            throw new ConnectorIOException(e);
+        } catch (SQLException e) {
+            LOG.error(e, "error during syncronization");
+            throw new ConnectorIOException(e);
+        }
+
         return token;
     }
 
+    /**
+     * Tail sync: files are assumed to be append-only, so only records following the offset carried by the token for
+     * each file are returned; a file whose synced prefix does not match the token anymore is read again in full.
+     * <br/>
+     * The token is encoded again only for the first delta of each file and then every {@link #TOKEN_BATCH_SIZE}
+     * deltas: the other deltas carry the token of the last encoded one, so that resuming from them returns again at
+     * most a batch of records, while the token returned at the end is exact.
+     */
+    private SyncToken executeTail() {
+        final TailSyncToken tailToken = TailSyncToken.parse(syncToken.getValue());
+        final Deduplicator deduplicator = new Deduplicator(conf);
+
+        try {
+            final File[] files = deduplicator.order(new FileSystem(conf).getAllCsvFiles());
+
+            final List<String> fileNames = new ArrayList<String>(files.length);
+            for (File file : files) {
+                fileNames.add(file.getName());
+            }
+            tailToken.retain(fileNames);
+
+            boolean handled = true;
+            for (int i = 0; i < files.length && handled; i++) {
+                handled = tail(files[i], tailToken, deduplicator);
+            }
+        } catch (IOException e) {
+            LOG.error(e, "error during syncronization");
+            throw new ConnectorIOException(e);
+        }
+
+        return new SyncToken(tailToken.toString());
+    }
+
+    private boolean tail(final File file, final TailSyncToken tailToken, final Deduplicator deduplicator)
+            throws IOException {
+
+        final long size = ChangeTracker.length(file);
+        final long lastModified = ChangeTracker.lastModified(file);
+        final byte[] head = TailSyncToken.readHead(file);
+        final long headChecksum = TailSyncToken.checksum(head, head.length);
+
+        long start = 0L;
+        final TailSyncToken.Entry previous = tailToken.get(file.getName());
+        if (previous != null) {
+            // records before the offset rewritten with a different length move it off a record boundary
+            if (size >= previous.getSize()
+                    && TailSyncToken.checksum(head, previous.getOffset()) == previous.getChecksum()
+                    && CSVReader.isRecordStart(file, previous.getOffset())) {
+                start = previous.getOffset();
+            } else {
+                LOG.ok("File {0} was rewritten, reading it from the beginning", file.getName());
+            }
+        }
+
+        // do not read a line being written
+        final long end = TailSyncToken.endOfLastLine(file);
+        if (start >= end) {
+            return true;
+        }
+        LOG.ok("Reading {0} from {1} to {2}", file.getName(), start, end);
+
+        final FileScanner scanner = new FileScanner(conf);
+        final ColumnIndex columns = scanner.getColumns();
+        final int deleteColumn = columns.indexOf(conf.getDeleteColumnName());
+
+        final boolean[] stopped = new boolean[] { false };
+        // record not completely written yet: the token stays on its first byte
+        final boolean[] incomplete = new boolean[] { false };
+        scanner.scan(file, start, null, new RowHandler() {
+
+            private SyncToken batchToken;
+
+            private int batched;
+
+            @Override
+            public boolean handle(final Row row) {
+                final long next = row.getOffset() + row.getLength();
+                if (next > end) {
+                    incomplete[0] = true;
+                    return false;
+                }
+                tailToken.put(file.getName(), new TailSyncToken.Entry(size, lastModified, next,
+                        next >= head.length ? headChecksum : TailSyncToken.checksum(head, next)));
+
+                if (deduplicator.isDuplicate(createUid(columns, row.getValues(), conf.getKeyseparator()))) {
+                    return true;
+                }
+
+                final SyncDeltaBuilder syncDeltaBuilder =
+                        createSyncDelta(buildConnectorObject(conf, columns, row.getValues()));
+                if (batchToken == null || batched == TOKEN_BATCH_SIZE) {
+                    batchToken = new SyncToken(tailToken.toString());
+                    batched = 0;
+                }
+                batched++;
+                syncDeltaBuilder.setToken(batchToken);
+                syncDeltaBuilder.setDeltaType(deleteColumn != -1 && Boolean.valueOf(row.getValue(deleteColumn))
+                        ? SyncDeltaType.DELETE
+                        : SyncDeltaType.CREATE_OR_UPDATE);
+
+                stopped[0] = !handler.handle(syncDeltaBuilder.build());
+                return !stopped[0];
+            }
+        });
+
+        if (!stopped[0] && !incomplete[0]) {
+            // trailing blank lines, if any, are synced as well
+            tailToken.put(file.getName(), new TailSyncToken.Entry(size, lastModified, end,
+                    end >= head.length ? headChecksum : TailSyncToken.checksum(head, end)));
+        }
+        return !stopped[0];
+    }
+
+    private boolean read(final File file, final ColumnIndex columns, final RecordHandler recordHandler)
+            throws IOException, SQLException {
+
+        if (conf.isNativeEngine()) {
+            return new FileScanner(conf).scan(file, null, new RowHandler() {
+
+                @Override
+                public boolean handle(final Row row) {
+                    return recordHandler.handle(row.getValues());
+                }
+            });
+        }
+
+        final ResultSet resultSet = conn.csvFile(file, "*", null, null, null);
+        try {
+            boolean handled = true;
+            while (handled && resultSet.next()) {
+                final String[] values = new String[columns.size()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = resultSet.getString(columns.getName(i));
+                }
+                handled = recordHandler.handle(values);
+            }
+            return handled;
+        } finally {
+            resultSet.close();
+        }
+    }
+
     private void buildSyncDelta(
             final ResultSet resultSet,
+            final KeyFilters.Scan scan,
             final SyncResultsHandler handler)
             throws SQLException {
 
+        final Deduplicator deduplicator = new Deduplicator(conf);
+
         boolean handled = true;
 
         try {
             while (resultSet.next() && handled) {
+                if (scan != null) {
+                    scan.add(resultSet);
+                }
+
+                if (deduplicator.isDuplicate(
+                        createUid(conf.getKeyColumnNames(), resultSet, conf.getKeyseparator()))) {
+                    continue;
+                }
+
                 final ConnectorObject connObject = buildConnectorObject(conf, resultSet);
 
                 final SyncDeltaBuilder syncDeltaBuilder = createSyncDelta(connObject);
                 choseRightDeltaType(resultSet, syncDeltaBuilder);
                 handled = handler.handle(syncDeltaBuilder.build());
             }
+            if (scan != null && handled) {
+                scan.commit();
+            }
         } finally {
             if (resultSet != null) {
                 resultSet.close();
@@ -167,4 +532,36 @@ public class CSVDirSync extends CommonOperation {
     private SyncToken getLatestSyncToken() {
         return new SyncToken(token);
     }
+
+    private static final class ScannedFile {
+
+        private final String name;
+
+        private final long size;
+
+        private final long lastModified;
+
+        private final Map<String, Long> rows = new HashMap<String, Long>();
+
+        ScannedFile(final File file) {
+            this.name = file.getName();
+            this.size = file.length();
+            this.lastModified = file.lastModified();
+        }
+    }
+
+    private static final class VanishedRow {
+
+        private final String fileName;
+
+        private final String key;
+
+        private final long fingerprint;
+
+        VanishedRow(final String fileName, final Map.Entry<String, Long> row) {
+            this.fileName = fileName;
+            this.key = row.getKey();
+            this.fingerprint = row.getValue();
+        }
+    }
 }
@@ -38,6 +38,12 @@ public class CSVDirTest {
         } catch (Exception e) {
             LOG.error(e, "error during test connection");
             throw new ConnectorException(e);
+        } finally {
+            try {
+                conn.closeConnection();
+            } catch (SQLException e) {
+                LOG.error(e, "Error closing connections");
+            }
         }
     }
 
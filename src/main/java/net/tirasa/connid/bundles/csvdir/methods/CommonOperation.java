@@ -15,6 +15,7 @@
  */
 package net.tirasa.connid.bundles.csvdir.methods;
 
+import java.io.File;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.HashMap;
@@ -22,6 +23,10 @@ import java.util.Map;
 import java.util.Set;
 import net.tirasa.connid.bundles.csvdir.CSVDirConfiguration;
 import net.tirasa.connid.bundles.csvdir.CSVDirConnection;
+import net.tirasa.connid.bundles.csvdir.database.ColumnIndex;
+import net.tirasa.connid.bundles.csvdir.database.FlightEvent;
+import net.tirasa.connid.bundles.csvdir.database.KeyFilters;
+import net.tirasa.connid.bundles.csvdir.database.Projection;
 import org.connid.bundles.csvdir.utilities.AttributeValue;
 import org.identityconnectors.common.StringUtil;
 import org.identityconnectors.framework.common.objects.Attribute;
@@ -38,28 +43,7 @@ public class CommonOperation {
             final CSVDirConnection conn, final CSVDirConfiguration conf)
             throws SQLException {
 
-        final ResultSet resultSet = conn.allCsvFiles();
-
-        final String[] keys = conf.getKeyColumnNames();
-        final String[] uidKeys = uidString.split(conf.getKeyseparator());
-        try {
-            boolean found = false;
-            boolean toBeContinued;
-            while (resultSet.next() && !found) {
-                toBeContinued = true;
-                for (int i = 0; i < keys.length && toBeContinued; i++) {
-                    final String value = resultSet.getString(keys[i]);
-                    if (!value.equalsIgnoreCase(uidKeys[i])) {
-                        toBeContinued = false;
-                    }
-                }
-                found = toBeContinued;
-            }
-
-            return found;
-        } finally {
-            resultSet.close();
-        }
+        return conn.userExists(uidString);
     }
 
     protected static String createUid(final String[] keys, final ResultSet rs, final String keySeparator)
@@ -79,6 +63,19 @@ public class CommonOperation {
         return uid.toString();
     }
 
+    protected static String createUid(final ColumnIndex columns, final String[] values, final String keySeparator) {
+        final StringBuilder uid = new StringBuilder();
+
+        for (int key : columns.getKeys()) {
+            if (uid.length() > 0) {
+                uid.append(keySeparator);
+            }
+            uid.append(values[key]);
+        }
+
+        return uid.toString();
+    }
+
     protected Map<String, String> getAttributeMap(
             final CSVDirConfiguration conf, final Set<Attribute> attrs, final Name name) {
 
@@ -117,29 +114,122 @@ public class CommonOperation {
     protected ConnectorObject buildConnectorObject(final CSVDirConfiguration conf, final ResultSet resultSet)
             throws SQLException {
 
+        return buildConnectorObject(conf, resultSet, null);
+    }
+
+    /**
+     * @param conf configuration
+     * @param resultSet result set positioned on the record to build
+     * @param projection columns to be returned, <tt>null</tt> for all
+     * @return connector object
+     * @throws SQLException if the result set cannot be read
+     */
+    protected ConnectorObject buildConnectorObject(
+            final CSVDirConfiguration conf, final ResultSet resultSet, final Projection projection)
+            throws SQLException {
+
         final ConnectorObjectBuilder bld = new ConnectorObjectBuilder();
 
         for (int i = 1; i <= resultSet.getMetaData().getColumnCount(); i++) {
             final String name = resultSet.getMetaData().getColumnName(i);
-            final String value = resultSet.getString(name);
+            if (!KeyFilters.FILE_COLUMN.equals(name) && (projection == null || projection.isReturned(name))) {
+                addAttribute(conf, bld, name, resultSet.getString(i));
+            }
+        }
+
+        final Uid uid = new Uid(createUid(conf.getKeyColumnNames(), resultSet, conf.getKeyseparator()));
 
-            if (name.equalsIgnoreCase(conf.getPasswordColumnName()) && StringUtil.isNotBlank(value)) {
-                bld.addAttribute(AttributeBuilder.buildPassword(value.toCharArray()));
-            } else if (name.equalsIgnoreCase(conf.getStatusColumn())) {
-                final boolean status = (StringUtil.isBlank(value)
-                        ? conf.getDefaultStatusValue() : value).equals(conf.getEnabledStatusValue());
+        bld.setUid(uid);
+        bld.setName(uid.getUidValue());
 
-                bld.addAttribute(AttributeBuilder.buildEnabled(status));
-            } else {
-                bld.addAttribute(name, new AttributeValue(value, conf.getMultivalueSeparator()).get());
+        return bld.build();
+    }
+
+    protected ConnectorObject buildConnectorObject(
+            final CSVDirConfiguration conf, final ColumnIndex columns, final String[] values) {
+
+        return buildConnectorObject(conf, columns, null, values);
+    }
+
+    /**
+     * @param conf configuration
+     * @param columns column positions
+     * @param projection columns to be returned, <tt>null</tt> for all
+     * @param values record values
+     * @return connector object
+     */
+    protected ConnectorObject buildConnectorObject(
+            final CSVDirConfiguration conf,
+            final ColumnIndex columns,
+            final Projection projection,
+            final String[] values) {
+
+        final ConnectorObjectBuilder bld = new ConnectorObjectBuilder();
+
+        for (int i = 0; i < columns.size(); i++) {
+            if (projection == null || projection.isReturned(i)) {
+                addAttribute(conf, bld, columns.getName(i), values[i]);
             }
         }
 
-        final Uid uid = new Uid(createUid(conf.getKeyColumnNames(), resultSet, conf.getKeyseparator()));
+        final Uid uid = new Uid(createUid(columns, values, conf.getKeyseparator()));
 
         bld.setUid(uid);
         bld.setName(uid.getUidValue());
 
         return bld.build();
     }
+
+    private void addAttribute(
+            final CSVDirConfiguration conf, final ConnectorObjectBuilder bld, final String name, final String value) {
+
+        if (name.equalsIgnoreCase(conf.getPasswordColumnName()) && StringUtil.isNotBlank(value)) {
+            bld.addAttribute(AttributeBuilder.buildPassword(value.toCharArray()));
+        } else if (name.equalsIgnoreCase(conf.getStatusColumn())) {
+            final boolean status = (StringUtil.isBlank(value)
+                    ? conf.getDefaultStatusValue() : value).equals(conf.getEnabledStatusValue());
+
+            bld.addAttribute(AttributeBuilder.buildEnabled(status));
+        } else {
+            bld.addAttribute(name, new AttributeValue(value, conf.getMultivalueSeparator()).get());
+        }
+    }
+
+    /**
+     * Reports the connector objects built from the records of each file as a single {@link FlightEvent#BUILD}
+     * event; records are expected file after file.
+     */
+    protected static final class BuildBatch {
+
+        private FlightEvent event;
+
+        private File file;
+
+        private long rows;
+
+        private long bytes;
+
+        /**
+         * @param file file the record was read from, <tt>null</tt> if not known
+         * @param length record length in bytes, 0 if not known
+         */
+        public void built(final File file, final long length) {
+            if (event == null || (file == null ? this.file != null : !file.equals(this.file))) {
+                commit();
+                this.file = file;
+                this.event = FlightEvent.begin(FlightEvent.BUILD);
+            }
+            rows++;
+            bytes += length;
+        }
+
+        public void commit() {
+            if (event != null) {
+                event.set("file", file == null ? null : file.getName()).set("rows", rows).set("bytes", bytes).commit();
+                event = null;
+                rows = 0;
+                bytes = 0;
+            }
+        }
+    }
 }
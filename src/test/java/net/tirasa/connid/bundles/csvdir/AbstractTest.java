@@ -19,16 +19,19 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Properties;
@@ -89,10 +92,27 @@ public abstract class AbstractTest {
         return config;
     }
 
+    protected static List<String> readLines(final File file) throws IOException {
+        final List<String> lines = new ArrayList<String>();
+        final BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+
     protected ConnectorFacade createFacade(final String mask) {
+        return createFacade(createConfiguration(mask));
+    }
+
+    protected ConnectorFacade createFacade(final CSVDirConfiguration cfg) {
         final ConnectorFacadeFactory factory = ConnectorFacadeFactory.getInstance();
 
-        final CSVDirConfiguration cfg = createConfiguration(mask);
         final APIConfiguration impl = TestHelpers.createTestConfiguration(CSVDirConnector.class, cfg);
         // TODO: remove the line below when using ConnId >= 1.4.0.1
         ((APIConfigurationImpl) impl).
@@ -0,0 +1,193 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Set;
+import net.tirasa.connid.bundles.csvdir.database.ChangeTracker;
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.AttributeBuilder;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.test.common.TestHelpers;
+import org.junit.Test;
+
+public class CSVDirChangeTrackerTests extends AbstractTest {
+
+    @Test
+    public void trackChanges() throws IOException {
+        createFile("changeTracker", TestAccountsValue.TEST_ACCOUNTS);
+
+        final CSVDirConfiguration conf = createConfiguration("changeTracker.*\\.csv");
+        conf.setReconcileInterval(3600);
+
+        final CSVDirConnector connector = new CSVDirConnector();
+        connector.init(conf);
+        try {
+            final int initial = TestAccountsValue.TEST_ACCOUNTS.size() - 1;
+            assertEquals(initial, TestHelpers.searchToList(connector, ObjectClass.ACCOUNT, null).size());
+
+            // file created by others: not seen until next reconcile
+            createFile("changeTracker", TestAccountsValue.TEST_ACCOUNTS2);
+            assertEquals(initial, TestHelpers.searchToList(connector, ObjectClass.ACCOUNT, null).size());
+
+            // user created by the connector: seen immediately
+            final Set<Attribute> attributes = buildTestAttributes(new Name("___tracked;pmassi"));
+            attributes.add(AttributeBuilder.build(TestAccountsValue.ACCOUNTID, "___tracked"));
+            connector.create(ObjectClass.ACCOUNT, attributes, null);
+            assertEquals(initial + 1, TestHelpers.searchToList(connector, ObjectClass.ACCOUNT, null).size());
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    @Test
+    public void liveLength() throws IOException {
+        final File file = createFile("trackerLength", TestAccountsValue.TEST_ACCOUNTS);
+
+        final CSVDirConfiguration conf = createConfiguration("trackerLength.*\\.csv");
+        conf.setReconcileInterval(3600);
+
+        final ChangeTracker tracker = ChangeTracker.getInstance(conf, new FileFilter() {
+
+            @Override
+            public boolean accept(final File pathname) {
+                return pathname.getName().startsWith("trackerLength");
+            }
+        });
+        try {
+            final File[] files = tracker.getFiles();
+            assertEquals(1, files.length);
+            final long tracked = files[0].length();
+
+            // file appended by others: tracked size is stale, current size is not
+            updateFile(file, TestAccountsValue.TEST_ACCOUNTS2);
+            assertEquals(tracked, files[0].length());
+            assertEquals(file.length(), ChangeTracker.length(files[0]));
+        } finally {
+            ChangeTracker.release(conf);
+        }
+    }
+
+    @Test
+    public void trackedExistence() throws IOException {
+        final File file = createFile("trackerExists", TestAccountsValue.TEST_ACCOUNTS);
+        final File other = createFile("trackerExists", TestAccountsValue.TEST_ACCOUNTS2);
+
+        final CSVDirConfiguration conf = createConfiguration("trackerExists.*\\.csv");
+        conf.setReconcileInterval(3600);
+
+        final ChangeTracker tracker = ChangeTracker.getInstance(conf, new FileFilter() {
+
+            @Override
+            public boolean accept(final File pathname) {
+                return pathname.getName().startsWith("trackerExists");
+            }
+        });
+        try {
+            assertEquals(2, tracker.getFiles().length);
+            assertTrue(ChangeTracker.exists(conf, file.getName()));
+
+            // file removed by others: still tracked until next reconcile
+            assertTrue(file.delete());
+            assertTrue(ChangeTracker.exists(conf, file.getName()));
+            tracker.invalidate();
+            assertEquals(1, tracker.getFiles().length);
+            assertFalse(ChangeTracker.exists(conf, file.getName()));
+
+            // file removed by the connector: known as removed right away
+            assertTrue(other.delete());
+            tracker.touched(other);
+            assertFalse(ChangeTracker.exists(conf, other.getName()));
+
+            // files unknown to the tracker are looked for on disk
+            assertFalse(ChangeTracker.exists(conf, "trackerExistsMissing.csv"));
+        } finally {
+            ChangeTracker.release(conf);
+        }
+    }
+
+    @Test
+    public void sharedAcrossLayouts() throws IOException {
+        createFile("trackerShared", TestAccountsValue.TEST_ACCOUNTS);
+
+        final FileFilter fileFilter = new FileFilter() {
+
+            @Override
+            public boolean accept(final File pathname) {
+                return pathname.getName().startsWith("trackerShared");
+            }
+        };
+
+        // same source path and file mask, different layouts
+        final CSVDirConfiguration conf = createConfiguration("trackerShared.*\\.csv");
+        conf.setReconcileInterval(3600);
+        final CSVDirConfiguration other = createConfiguration("trackerShared.*\\.csv");
+        other.setReconcileInterval(3600);
+        other.setKeyseparator("#");
+
+        ChangeTracker.acquire(conf);
+        ChangeTracker.acquire(other);
+        final ChangeTracker tracker = ChangeTracker.getInstance(conf, fileFilter);
+        try {
+            assertSame(tracker, ChangeTracker.getInstance(other, fileFilter));
+
+            // one layout gone: the tracker is still in use by the other one
+            ChangeTracker.release(conf);
+            assertSame(tracker, ChangeTracker.getInstance(other, fileFilter));
+        } finally {
+            ChangeTracker.release(other);
+        }
+        assertNotSame(tracker, ChangeTracker.getInstance(conf, fileFilter));
+        ChangeTracker.release(conf);
+    }
+
+    @Test
+    public void releaseOnDispose() throws IOException {
+        createFile("trackerRelease", TestAccountsValue.TEST_ACCOUNTS);
+
+        final CSVDirConfiguration conf = createConfiguration("trackerRelease.*\\.csv");
+        conf.setReconcileInterval(3600);
+
+        CSVDirConnector connector = new CSVDirConnector();
+        connector.init(conf);
+        final int initial = TestAccountsValue.TEST_ACCOUNTS.size() - 1;
+        try {
+            assertEquals(initial, TestHelpers.searchToList(connector, ObjectClass.ACCOUNT, null).size());
+        } finally {
+            connector.dispose();
+        }
+
+        // file created by others after the last connector was disposed: seen by the next one
+        createFile("trackerRelease", TestAccountsValue.TEST_ACCOUNTS2);
+        connector = new CSVDirConnector();
+        connector.init(conf);
+        try {
+            assertEquals(initial + TestAccountsValue.TEST_ACCOUNTS2.size(),
+                    TestHelpers.searchToList(connector, ObjectClass.ACCOUNT, null).size());
+        } finally {
+            connector.dispose();
+        }
+    }
+}
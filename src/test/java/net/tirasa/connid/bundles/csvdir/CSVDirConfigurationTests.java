@@ -85,6 +85,28 @@ public class CSVDirConfigurationTests extends AbstractTest {
         // fix field delimiter..
         config.setFieldDelimiter(',');
 
+        // test tombstones with syncs not seeing them..
+        config.setEngine(CSVDirConfiguration.NATIVE_ENGINE);
+        config.setTombstones(true);
+        config.validate();
+        config.setRowLevelSync(true);
+        try {
+            config.validate();
+            fail();
+        } catch (IllegalArgumentException ex) {
+            // should throw..
+        }
+        config.setRowLevelSync(false);
+        config.setTailSync(true);
+        try {
+            config.validate();
+            fail();
+        } catch (IllegalArgumentException ex) {
+            // should throw..
+        }
+        config.setTailSync(false);
+        config.setTombstones(false);
+
         // test blank unique attribute..
         try {
             config.setKeyColumnNames(new String[] {});
@@ -16,13 +16,22 @@
 package net.tirasa.connid.bundles.csvdir;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.File;
+import java.io.FileFilter;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import net.tirasa.connid.bundles.csvdir.database.Partitioner;
 import org.identityconnectors.common.security.GuardedString;
 import org.identityconnectors.framework.api.APIConfiguration;
 import org.identityconnectors.framework.api.ConnectorFacade;
@@ -219,6 +228,163 @@ public class CSVDirConnectorCreateTests extends AbstractTest {
         assertEquals("mrossi2@tirasa.net", value.get(1).toString());
     }
 
+    @Test
+    public void createAppendsLine() throws IOException {
+        final File file = createFile("createAppendTest", TestAccountsValue.TEST_ACCOUNTS);
+        final long length = file.length();
+
+        final CSVDirConnector connector = new CSVDirConnector();
+        connector.init(createConfiguration("createAppendTest.*\\.csv"));
+        try {
+            connector.create(ObjectClass.ACCOUNT, setAccountId(buildTestAttributes(new Name("___mperro123;pmassi"))),
+                    null);
+        } finally {
+            connector.dispose();
+        }
+
+        // existing records are left untouched, the new one is appended as a single line
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(length);
+            assertEquals("\"___mperro123\",\"pmassi\",\"mperrone\",\"massimiliano.perrone@test.it\",\"0\","
+                    + "\"password\",\"no\",\"true\"", raf.readLine());
+            assertNull(raf.readLine());
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void createAll() throws IOException {
+        createFile("createAllTest", TestAccountsValue.TEST_ACCOUNTS);
+
+        final CSVDirConnector connector = new CSVDirConnector();
+        connector.init(createConfiguration("createAllTest.*\\.csv"));
+        try {
+            final List<Set<Attribute>> accounts = new ArrayList<Set<Attribute>>();
+            for (int i = 0; i < 3; i++) {
+                final Set<Attribute> attributes = buildTestAttributes(new Name("___bulk" + i + ";pmassi"));
+                attributes.add(AttributeBuilder.build(TestAccountsValue.ACCOUNTID, "___bulk" + i));
+                attributes.remove(AttributeUtil.find(TestAccountsValue.LASTNAME, attributes));
+                attributes.add(AttributeBuilder.build(TestAccountsValue.LASTNAME, "Perrone, \"Max\" " + i));
+                accounts.add(attributes);
+            }
+
+            final List<Uid> uids = connector.createAll(ObjectClass.ACCOUNT, accounts, null);
+            assertEquals(3, uids.size());
+
+            final ConnectorFacade facade = createFacade("createAllTest.*\\.csv");
+            for (int i = 0; i < uids.size(); i++) {
+                assertEquals("___bulk" + i + ";pmassi", uids.get(i).getUidValue());
+
+                final ConnectorObject object = facade.getObject(ObjectClass.ACCOUNT, uids.get(i), null);
+                assertNotNull(object);
+                assertEquals("Perrone, \"Max\" " + i,
+                        object.getAttributeByName(TestAccountsValue.LASTNAME).getValue().get(0));
+            }
+
+            // nothing is created if any account already exists
+            final Set<Attribute> fresh = buildTestAttributes(new Name("___bulk3;pmassi"));
+            fresh.add(AttributeBuilder.build(TestAccountsValue.ACCOUNTID, "___bulk3"));
+            try {
+                connector.createAll(ObjectClass.ACCOUNT, Arrays.asList(fresh, accounts.get(0)), null);
+                fail();
+            } catch (ConnectorException e) {
+                assertNull(facade.getObject(ObjectClass.ACCOUNT, new Uid("___bulk3;pmassi"), null));
+            }
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    @Test
+    public void createAllRotates() throws IOException {
+        final File file = createFile("createRotateTest", Collections.<TestAccount>emptyList());
+        final String stem = file.getName().substring(0, file.getName().length() - ".csv".length());
+
+        final CSVDirConfiguration conf = createConfiguration("createRotateTest.*\\.csv");
+        conf.setRotationMaxRows(2);
+
+        final CSVDirConnector connector = new CSVDirConnector();
+        connector.init(conf);
+        try {
+            final List<Set<Attribute>> accounts = new ArrayList<Set<Attribute>>();
+            for (int i = 0; i < 5; i++) {
+                final Set<Attribute> attributes = buildTestAttributes(new Name("___rotate" + i + ";pmassi"));
+                attributes.add(AttributeBuilder.build(TestAccountsValue.ACCOUNTID, "___rotate" + i));
+                accounts.add(attributes);
+            }
+            final List<Uid> uids = connector.createAll(ObjectClass.ACCOUNT, accounts, null);
+            assertEquals(5, uids.size());
+        } finally {
+            connector.dispose();
+        }
+
+        // 2 accounts in the original file, then 2 and 1 in files named after it
+        final File[] rotated = testSourceDir.listFiles(new FileFilter() {
+
+            @Override
+            public boolean accept(final File candidate) {
+                return candidate.getName().matches(stem + "-\\d{14}(-\\d+)?\\.csv");
+            }
+        });
+        for (File each : rotated) {
+            each.deleteOnExit();
+        }
+        assertEquals(2, rotated.length);
+        assertEquals(2, readLines(file).size());
+
+        final ConnectorFacade facade = createFacade("createRotateTest.*\\.csv");
+        for (int i = 0; i < 5; i++) {
+            assertNotNull(facade.getObject(ObjectClass.ACCOUNT, new Uid("___rotate" + i + ";pmassi"), null));
+        }
+    }
+
+    @Test
+    public void createPartitioned() throws IOException {
+        // own source path, as bucket files are always picked up
+        final File sourceDir = new File(testSourceDir, "partitioned");
+        assertTrue(sourceDir.exists() ? sourceDir.isDirectory() : sourceDir.mkdir());
+        final File file = createFile("createPartitionTest", TestAccountsValue.TEST_ACCOUNTS);
+        assertTrue(file.renameTo(new File(sourceDir, file.getName())));
+
+        final CSVDirConfiguration conf = createConfiguration("createPartitionTest.*\\.csv");
+        conf.setSourcePath(sourceDir.getPath());
+        conf.setPartitions(4);
+
+        final CSVDirConnector connector = new CSVDirConnector();
+        connector.init(conf);
+        try {
+            assertTrue(connector.reshard() > 0);
+            assertFalse(new File(sourceDir, file.getName()).exists());
+            final ConnectorFacade facade = createFacade(conf);
+
+            final Set<Attribute> attributes = buildTestAttributes(new Name("___partition;pmassi"));
+            attributes.add(AttributeBuilder.build(TestAccountsValue.ACCOUNTID, "___partition"));
+            final Uid uid = connector.create(ObjectClass.ACCOUNT, attributes, null);
+
+            // the new account only went to its bucket, where it can be found and deleted
+            final Partitioner partitioner = new Partitioner(conf);
+            final File bucket = partitioner.getFile(partitioner.getBucket(uid.getUidValue()));
+            boolean found = false;
+            for (String line : readLines(bucket)) {
+                found |= line.startsWith("\"___partition\",\"pmassi\"");
+            }
+            assertTrue(found);
+
+            assertNotNull(facade.getObject(ObjectClass.ACCOUNT, new Uid("____jpc4323435;jPenelope"), null));
+            assertNotNull(facade.getObject(ObjectClass.ACCOUNT, new Uid("____jkb3234419;jKevin"), null));
+
+            connector.delete(ObjectClass.ACCOUNT, uid, null);
+            assertNull(facade.getObject(ObjectClass.ACCOUNT, uid, null));
+        } finally {
+            connector.dispose();
+            for (File each : sourceDir.listFiles()) {
+                each.delete();
+            }
+        }
+    }
+
     private Set<Attribute> setAccountId(final Set<Attribute> attributes) {
         attributes.add(AttributeBuilder.build(TestAccountsValue.ACCOUNTID, "___mperro123"));
         return attributes;
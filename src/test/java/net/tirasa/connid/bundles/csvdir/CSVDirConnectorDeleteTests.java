@@ -16,10 +16,15 @@
 package net.tirasa.connid.bundles.csvdir;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.File;
 import java.io.IOException;
+import net.tirasa.connid.bundles.csvdir.database.TombstoneLog;
 import org.identityconnectors.framework.api.ConnectorFacade;
 import org.identityconnectors.framework.common.exceptions.ConnectorException;
 import org.identityconnectors.framework.common.objects.ConnectorObject;
@@ -61,4 +66,70 @@ public class CSVDirConnectorDeleteTests extends AbstractTest {
         connector.delete(ObjectClass.ACCOUNT, uid, null);
         connector.dispose();
     }
+
+    @Test
+    public void deleteAfterFileChange() throws IOException {
+        final File file = createFile("deleteAfterFileChange", TestAccountsValue.TEST_ACCOUNTS);
+
+        final CSVDirConnector connector = new CSVDirConnector();
+        connector.init(createConfiguration("deleteAfterFileChange.*\\.csv"));
+        try {
+            connector.delete(ObjectClass.ACCOUNT, new Uid("____jpc4323435;jPenelope"), null);
+
+            // users added behind the connector are found
+            updateFile(file, TestAccountsValue.TEST_ACCOUNTS2);
+            connector.delete(ObjectClass.ACCOUNT, new Uid("___jpc4323435;jAl"), null);
+
+            // users deleted by the connector are not found anymore
+            try {
+                connector.delete(ObjectClass.ACCOUNT, new Uid("____jpc4323435;jPenelope"), null);
+                fail();
+            } catch (ConnectorException e) {
+                // expected
+            }
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    @Test
+    public void deleteWithTombstones() throws IOException {
+        // own source path, as the tombstone log is shared by all files in it
+        final File sourceDir = new File(testSourceDir, "tombstones");
+        assertTrue(sourceDir.exists() ? sourceDir.isDirectory() : sourceDir.mkdir());
+        final File created = createFile("deleteTombstone", TestAccountsValue.TEST_ACCOUNTS);
+        final File file = new File(sourceDir, created.getName());
+        assertTrue(created.renameTo(file));
+
+        final CSVDirConfiguration conf = createConfiguration("deleteTombstone.*\\.csv");
+        conf.setSourcePath(sourceDir.getPath());
+        conf.setEngine(CSVDirConfiguration.NATIVE_ENGINE);
+        conf.setTombstones(true);
+
+        final CSVDirConnector connector = new CSVDirConnector();
+        connector.init(conf);
+        try {
+            final ConnectorFacade facade = createFacade(conf);
+            final long length = file.length();
+
+            // the file is left untouched, yet the user is gone
+            final Uid uid = new Uid("____jpc4323435;jPenelope");
+            connector.delete(ObjectClass.ACCOUNT, uid, null);
+            assertEquals(length, file.length());
+            assertNull(facade.getObject(ObjectClass.ACCOUNT, uid, null));
+            assertNotNull(facade.getObject(ObjectClass.ACCOUNT, new Uid("____jkb3234416;jKevin"), null));
+
+            // compaction removes both the deleted user and the one flagged through the delete column
+            assertEquals(2, connector.compact());
+            assertEquals(TestAccountsValue.TEST_ACCOUNTS.size() - 2, readLines(file).size());
+            assertFalse(new File(sourceDir, TombstoneLog.FILE_NAME).exists());
+            assertNull(facade.getObject(ObjectClass.ACCOUNT, uid, null));
+            assertNotNull(facade.getObject(ObjectClass.ACCOUNT, new Uid("____jkb3234416;jKevin"), null));
+        } finally {
+            connector.dispose();
+            for (File each : sourceDir.listFiles()) {
+                each.delete();
+            }
+        }
+    }
 }
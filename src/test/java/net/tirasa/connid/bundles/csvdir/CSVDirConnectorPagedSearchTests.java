@@ -0,0 +1,180 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.AttributeBuilder;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
+import org.identityconnectors.framework.common.objects.SearchResult;
+import org.identityconnectors.framework.spi.SearchResultsHandler;
+import org.junit.Test;
+
+public class CSVDirConnectorPagedSearchTests extends AbstractTest {
+
+    private static final int PAGE_SIZE = 5;
+
+    private static class PageHandler implements SearchResultsHandler {
+
+        private final List<ConnectorObject> objects = new ArrayList<ConnectorObject>();
+
+        private SearchResult result;
+
+        @Override
+        public boolean handle(final ConnectorObject obj) {
+            return objects.add(obj);
+        }
+
+        @Override
+        public void handleResult(final SearchResult result) {
+            this.result = result;
+        }
+    }
+
+    private void pagedSearch(final String mask, final String engine) throws IOException {
+        createFile(mask + "A", TestAccountsValue.TEST_ACCOUNTS);
+        createFile(mask + "B", TestAccountsValue.TEST_ACCOUNTS2);
+        // same users of first file: not returned twice
+        createFile(mask + "C", TestAccountsValue.TEST_ACCOUNTS);
+
+        final CSVDirConfiguration conf = createConfiguration(mask + ".*\\.csv");
+        conf.setEngine(engine);
+
+        final CSVDirConnector connector = new CSVDirConnector();
+        connector.init(conf);
+        try {
+            final int expected = TestAccountsValue.TEST_ACCOUNTS.size() - 1 + TestAccountsValue.TEST_ACCOUNTS2.size();
+
+            final Set<String> uids = new HashSet<String>();
+            int pages = 0;
+            String cookie = null;
+            do {
+                final PageHandler handler = new PageHandler();
+                connector.executeQuery(ObjectClass.ACCOUNT, null, handler,
+                        new OperationOptionsBuilder().setPageSize(PAGE_SIZE).setPagedResultsCookie(cookie).build());
+                pages++;
+
+                assertTrue(handler.objects.size() <= PAGE_SIZE);
+                for (ConnectorObject obj : handler.objects) {
+                    assertTrue(uids.add(obj.getUid().getUidValue()));
+                }
+
+                cookie = handler.result.getPagedResultsCookie();
+                if (cookie != null) {
+                    assertEquals(PAGE_SIZE, handler.objects.size());
+                    assertTrue(handler.result.getRemainingPagedResults() > 0);
+                }
+            } while (cookie != null && pages <= expected);
+
+            assertEquals(expected, uids.size());
+            assertEquals((expected + PAGE_SIZE - 1) / PAGE_SIZE, pages);
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    @Test
+    public void hsqldb() throws IOException {
+        pagedSearch("pagedHsqldb", CSVDirConfiguration.HSQLDB_ENGINE);
+    }
+
+    @Test
+    public void nativeEngine() throws IOException {
+        pagedSearch("pagedNative", CSVDirConfiguration.NATIVE_ENGINE);
+    }
+
+    private void appendBetweenPages(final String mask, final String engine) throws IOException {
+        createFile(mask, TestAccountsValue.TEST_ACCOUNTS);
+
+        final CSVDirConfiguration conf = createConfiguration(mask + ".*\\.csv");
+        conf.setEngine(engine);
+
+        final CSVDirConnector connector = new CSVDirConnector();
+        connector.init(conf);
+        try {
+            final Set<String> uids = new HashSet<String>();
+            int pages = 0;
+            String cookie = null;
+            do {
+                final PageHandler handler = new PageHandler();
+                connector.executeQuery(ObjectClass.ACCOUNT, null, handler,
+                        new OperationOptionsBuilder().setPageSize(PAGE_SIZE).setPagedResultsCookie(cookie).build());
+                pages++;
+
+                for (ConnectorObject obj : handler.objects) {
+                    assertTrue(uids.add(obj.getUid().getUidValue()));
+                }
+
+                if (pages == 1) {
+                    // the cookie stays valid
+                    final Set<Attribute> attributes = buildTestAttributes(new Name("____zappended;pmassi"));
+                    attributes.add(AttributeBuilder.build(TestAccountsValue.ACCOUNTID, "____zappended"));
+                    connector.create(ObjectClass.ACCOUNT, attributes, null);
+                }
+
+                cookie = handler.result.getPagedResultsCookie();
+            } while (cookie != null && pages <= TestAccountsValue.TEST_ACCOUNTS.size());
+
+            for (TestAccount account : TestAccountsValue.TEST_ACCOUNTS) {
+                assertEquals(!Boolean.valueOf(account.getDeleted()),
+                        uids.contains(account.getAccountId() + ";" + account.getFirstName()));
+            }
+            assertTrue(uids.contains("____zappended;pmassi"));
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    @Test
+    public void hsqldbAppendBetweenPages() throws IOException {
+        appendBetweenPages("pagedAppendHsqldb", CSVDirConfiguration.HSQLDB_ENGINE);
+    }
+
+    @Test
+    public void nativeAppendBetweenPages() throws IOException {
+        appendBetweenPages("pagedAppendNative", CSVDirConfiguration.NATIVE_ENGINE);
+    }
+
+    @Test
+    public void pagedResultsOffset() throws IOException {
+        createFile("pagedOffset", TestAccountsValue.TEST_ACCOUNTS);
+
+        final CSVDirConnector connector = new CSVDirConnector();
+        connector.init(createConfiguration("pagedOffset.*\\.csv"));
+        try {
+            final PageHandler handler = new PageHandler();
+            connector.executeQuery(ObjectClass.ACCOUNT, null, handler,
+                    new OperationOptionsBuilder().setPageSize(PAGE_SIZE).setPagedResultsOffset(6).build());
+
+            // 8 users, starting from the 6th
+            assertEquals(3, handler.objects.size());
+            assertNull(handler.result.getPagedResultsCookie());
+        } finally {
+            connector.dispose();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.identityconnectors.framework.common.objects.AttributeUtil;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
+import org.identityconnectors.framework.common.objects.SearchResult;
+import org.identityconnectors.framework.common.objects.SortKey;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.identityconnectors.framework.spi.SearchResultsHandler;
+import org.junit.Test;
+
+public class CSVDirConnectorSortTests extends AbstractTest {
+
+    private static final int EXPECTED = TestAccountsValue.TEST_ACCOUNTS.size() - 1
+            + TestAccountsValue.TEST_ACCOUNTS2.size();
+
+    private static class PageHandler implements SearchResultsHandler {
+
+        private final List<ConnectorObject> objects = new ArrayList<ConnectorObject>();
+
+        private SearchResult result;
+
+        @Override
+        public boolean handle(final ConnectorObject obj) {
+            return objects.add(obj);
+        }
+
+        @Override
+        public void handleResult(final SearchResult result) {
+            this.result = result;
+        }
+    }
+
+    private CSVDirConnector init(final String mask, final String engine) throws IOException {
+        createFile(mask + "A", TestAccountsValue.TEST_ACCOUNTS);
+        createFile(mask + "B", TestAccountsValue.TEST_ACCOUNTS2);
+
+        final CSVDirConfiguration conf = createConfiguration(mask + ".*\\.csv");
+        conf.setEngine(engine);
+        // force spilling sorted runs to temporary files
+        conf.setSortBufferSize(2);
+
+        final CSVDirConnector connector = new CSVDirConnector();
+        connector.init(conf);
+        return connector;
+    }
+
+    private static int compare(final String value1, final String value2) {
+        if (value1 == null) {
+            return value2 == null ? 0 : -1;
+        }
+        return value2 == null ? 1 : value1.compareTo(value2);
+    }
+
+    private void sort(final String mask, final String engine) throws IOException {
+        final CSVDirConnector connector = init(mask, engine);
+        try {
+            final PageHandler handler = new PageHandler();
+            connector.executeQuery(ObjectClass.ACCOUNT, null, handler, new OperationOptionsBuilder().
+                    setSortKeys(new SortKey(TestAccountsValue.LASTNAME, false)).build());
+
+            assertEquals(EXPECTED, handler.objects.size());
+
+            String previous = null;
+            for (int i = 0; i < handler.objects.size(); i++) {
+                final String lastname = AttributeUtil.getStringValue(
+                        handler.objects.get(i).getAttributeByName(TestAccountsValue.LASTNAME));
+                if (i > 0) {
+                    assertTrue(compare(previous, lastname) >= 0);
+                }
+                previous = lastname;
+            }
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    @Test
+    public void hsqldb() throws IOException {
+        sort("sortHsqldb", CSVDirConfiguration.HSQLDB_ENGINE);
+    }
+
+    @Test
+    public void nativeEngine() throws IOException {
+        sort("sortNative", CSVDirConfiguration.NATIVE_ENGINE);
+    }
+
+    @Test
+    public void pagedSort() throws IOException {
+        final CSVDirConnector connector = init("sortPaged", CSVDirConfiguration.NATIVE_ENGINE);
+        try {
+            final List<String> uids = new ArrayList<String>();
+            final List<String> accountids = new ArrayList<String>();
+            int pages = 0;
+            String cookie = null;
+            do {
+                final PageHandler handler = new PageHandler();
+                connector.executeQuery(ObjectClass.ACCOUNT, null, handler, new OperationOptionsBuilder().
+                        setSortKeys(new SortKey(Uid.NAME, true)).setPageSize(4).setPagedResultsCookie(cookie).
+                        build());
+                pages++;
+
+                for (ConnectorObject obj : handler.objects) {
+                    assertFalse(uids.contains(obj.getUid().getUidValue()));
+                    uids.add(obj.getUid().getUidValue());
+                    accountids.add(AttributeUtil.getStringValue(
+                            obj.getAttributeByName(TestAccountsValue.ACCOUNTID)));
+                }
+                cookie = handler.result.getPagedResultsCookie();
+                assertEquals(EXPECTED - uids.size(), handler.result.getRemainingPagedResults());
+            } while (cookie != null && pages <= EXPECTED);
+
+            assertEquals(EXPECTED, uids.size());
+            // sorting on uid means sorting on key columns
+            for (int i = 1; i < accountids.size(); i++) {
+                assertTrue(compare(accountids.get(i - 1), accountids.get(i)) <= 0);
+            }
+        } finally {
+            connector.dispose();
+        }
+    }
+}
@@ -466,6 +466,26 @@ public class CSVDirConnectorSyncTests extends AbstractTest {
         connector.dispose();
     }
 
+    @Test
+    public void searchAfterFileChange() throws IOException {
+        final File toBeUpdated = createFile("searchAfterFileChange", TestAccountsValue.TEST_ACCOUNTS);
+
+        final CSVDirConnector connector = new CSVDirConnector();
+
+        connector.init(createConfiguration("searchAfterFileChange.*\\.csv"));
+
+        assertEquals(TestAccountsValue.TEST_ACCOUNTS.size() - 1,
+                TestHelpers.searchToList(connector, ObjectClass.ACCOUNT, null).size());
+
+        // the text table bound by the previous search must be bound again
+        updateFile(toBeUpdated, TestAccountsValue.TEST_ACCOUNTS2);
+
+        assertEquals(TestAccountsValue.TEST_ACCOUNTS.size() - 1 + TestAccountsValue.TEST_ACCOUNTS2.size(),
+                TestHelpers.searchToList(connector, ObjectClass.ACCOUNT, null).size());
+
+        connector.dispose();
+    }
+
     @Test
     public final void incrementalSync() throws IOException {
         createFile("deleted", TestAccountsValue.TEST_ACCOUNTS);
@@ -494,4 +514,44 @@ public class CSVDirConnectorSyncTests extends AbstractTest {
         assertTrue(found);
         connector.dispose();
     }
+
+    private String searchLastname(final String dedupPolicy, final Uid uid, final int expectedSize) {
+        final CSVDirConfiguration conf = createConfiguration("dedup.*\\.csv");
+        conf.setDedupPolicy(dedupPolicy);
+
+        final CSVDirConnector connector = new CSVDirConnector();
+        connector.init(conf);
+        try {
+            final List<ConnectorObject> results = TestHelpers.searchToList(connector, ObjectClass.ACCOUNT, null);
+            assertEquals(expectedSize, results.size());
+
+            String lastname = null;
+            for (ConnectorObject obj : results) {
+                if (uid.equals(obj.getUid())) {
+                    lastname = obj.getAttributeByName(TestAccountsValue.LASTNAME).getValue().get(0).toString();
+                }
+            }
+            return lastname;
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    @Test
+    public void dedupPolicy() throws IOException {
+        final File older = createFile("dedupA", TestAccountsValue.TEST_ACCOUNTS);
+        assertTrue(older.setLastModified(System.currentTimeMillis() - 60000));
+
+        final List<TestAccount> newer = new ArrayList<TestAccount>();
+        newer.add(new TestAccount("____jkb3234416", "jKevin", "jBaconNewer",
+                "jxKevin.Bacon@mail.com", "1", "password", "false"));
+        createFile("dedupB", newer);
+
+        final Uid uid = new Uid("____jkb3234416;jKevin");
+        final int users = TestAccountsValue.TEST_ACCOUNTS.size() - 1;
+
+        assertEquals("jBacon", searchLastname(CSVDirConfiguration.DEDUP_FIRST, uid, users));
+        assertEquals("jBaconNewer", searchLastname(CSVDirConfiguration.DEDUP_NEWEST, uid, users));
+        searchLastname(CSVDirConfiguration.DEDUP_NONE, uid, users + 1);
+    }
 }
@@ -17,10 +17,12 @@ package net.tirasa.connid.bundles.csvdir;
 
 import static org.junit.Assert.assertEquals;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import net.tirasa.connid.bundles.csvdir.database.Partitioner;
 import org.identityconnectors.framework.api.APIConfiguration;
 import org.identityconnectors.framework.api.ConnectorFacade;
 import org.identityconnectors.framework.api.ConnectorFacadeFactory;
@@ -78,6 +80,122 @@ public class CSVDirConnectorUpdateTests extends AbstractTest {
         return attributes;
     }
 
+    @Test
+    public void updateWithQuotes() throws IOException {
+        createFile("updateQuotes", TestAccountsValue.TEST_ACCOUNTS);
+
+        final CSVDirConnector connector = new CSVDirConnector();
+        connector.init(createConfiguration("updateQuotes.*\\.csv"));
+        try {
+            final Uid uid = new Uid("____jpc4323435;jPenelope");
+            final String lastname = "O'Brien";
+
+            for (String value : new String[] { "D'Arcy", lastname }) {
+                final Set<Attribute> attributes = new HashSet<Attribute>();
+                attributes.add(AttributeBuilder.build(TestAccountsValue.LASTNAME, value));
+                assertEquals(uid, connector.update(ObjectClass.ACCOUNT, uid, attributes, null));
+            }
+
+            final ConnectorObject object =
+                    createFacade("updateQuotes.*\\.csv").getObject(ObjectClass.ACCOUNT, uid, null);
+            Assert.assertNotNull(object);
+            assertEquals(lastname, object.getAttributeByName(TestAccountsValue.LASTNAME).getValue().get(0));
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    @Test
+    public void updateRewritesOnlyRecord() throws IOException {
+        final File file = createFile("updateRewrite", TestAccountsValue.TEST_ACCOUNTS);
+        final List<String> before = readLines(file);
+
+        final CSVDirConfiguration conf = createConfiguration("updateRewrite.*\\.csv");
+        conf.setEngine(CSVDirConfiguration.NATIVE_ENGINE);
+
+        final CSVDirConnector connector = new CSVDirConnector();
+        connector.init(conf);
+        try {
+            final Uid uid = new Uid("____jpc4323435;jPenelope");
+            connector.update(ObjectClass.ACCOUNT, uid, createSetOfAttributes(), null);
+
+            // same position, only the updated record changed
+            final List<String> after = readLines(file);
+            assertEquals(before.size(), after.size());
+            int changed = 0;
+            for (int i = 0; i < before.size(); i++) {
+                if (!before.get(i).equals(after.get(i))) {
+                    changed++;
+                    Assert.assertTrue(after.get(i).startsWith("\"____jpc4323435\",\"jPenelope\""));
+                    Assert.assertTrue(after.get(i).contains(NEWMAIL));
+                }
+            }
+            assertEquals(1, changed);
+
+            // following records are still found where the key index expects them
+            connector.delete(ObjectClass.ACCOUNT, uid, null);
+            assertEquals(before.size() - 1, readLines(file).size());
+            Assert.assertNull(createFacade("updateRewrite.*\\.csv").getObject(ObjectClass.ACCOUNT, uid, null));
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    @Test
+    public void updatePartitionedKey() throws IOException {
+        // own source path, as bucket files are always picked up
+        final File sourceDir = new File(testSourceDir, "partitionedUpdate");
+        Assert.assertTrue(sourceDir.exists() ? sourceDir.isDirectory() : sourceDir.mkdir());
+        final File file = createFile("updatePartitionTest", TestAccountsValue.TEST_ACCOUNTS);
+        Assert.assertTrue(file.renameTo(new File(sourceDir, file.getName())));
+
+        final CSVDirConfiguration conf = createConfiguration("updatePartitionTest.*\\.csv");
+        conf.setSourcePath(sourceDir.getPath());
+        conf.setPartitions(4);
+
+        final CSVDirConnector connector = new CSVDirConnector();
+        connector.init(conf);
+        try {
+            Assert.assertTrue(connector.reshard() > 0);
+            final ConnectorFacade facade = createFacade(conf);
+            final Partitioner partitioner = new Partitioner(conf);
+
+            final Uid uid = new Uid("____jpc4323435;jPenelope");
+            final int bucket = partitioner.getBucket(uid.getUidValue());
+            String accountId = null;
+            for (int i = 0; accountId == null; i++) {
+                if (partitioner.getBucket("___renamed" + i + ";jPenelope") != bucket) {
+                    accountId = "___renamed" + i;
+                }
+            }
+
+            final Set<Attribute> attributes = new HashSet<Attribute>();
+            attributes.add(AttributeBuilder.build(TestAccountsValue.ACCOUNTID, accountId));
+            connector.update(ObjectClass.ACCOUNT, uid, attributes, null);
+
+            // the record moved to the bucket of its new key, other values unchanged
+            final Uid renamed = new Uid(accountId + ";jPenelope");
+            Assert.assertNull(facade.getObject(ObjectClass.ACCOUNT, uid, null));
+            final ConnectorObject object = facade.getObject(ObjectClass.ACCOUNT, renamed, null);
+            Assert.assertNotNull(object);
+            assertEquals("jCruz", object.getAttributeByName(TestAccountsValue.LASTNAME).getValue().get(0));
+
+            for (String line : readLines(partitioner.getFile(bucket))) {
+                Assert.assertFalse(line.startsWith("\"____jpc4323435\",\"jPenelope\""));
+            }
+            boolean found = false;
+            for (String line : readLines(partitioner.getFile(partitioner.getBucket(renamed.getUidValue())))) {
+                found |= line.startsWith("\"" + accountId + "\",\"jPenelope\"");
+            }
+            Assert.assertTrue(found);
+        } finally {
+            connector.dispose();
+            for (File each : sourceDir.listFiles()) {
+                each.delete();
+            }
+        }
+    }
+
     @Test(expected = ConnectorException.class)
     public final void updateTestOfNotExistsUser()
             throws IOException {
@@ -0,0 +1,38 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import net.tirasa.connid.bundles.csvdir.database.FlightEvent;
+import org.junit.Test;
+
+public class CSVDirFlightEventTests extends AbstractTest {
+
+    @Test
+    public void disabledWithoutRecording() {
+        // no recording is running in tests
+        final FlightEvent event = FlightEvent.begin(FlightEvent.BIND);
+        assertFalse(event.isEnabled());
+        assertSame(event, FlightEvent.begin(FlightEvent.QUERY));
+
+        // fields, even unknown ones, and commit are ignored
+        assertSame(event, event.set("file", "flightEvent.csv").set("bytes", 1024L).set("unknown", null));
+        event.commit();
+        event.commit();
+    }
+}
@@ -0,0 +1,215 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import net.tirasa.connid.bundles.csvdir.database.FileIdentity;
+import net.tirasa.connid.bundles.csvdir.database.FileToDB;
+import net.tirasa.connid.bundles.csvdir.database.KeyFilter;
+import net.tirasa.connid.bundles.csvdir.database.KeyFilters;
+import net.tirasa.connid.bundles.csvdir.database.KeyIndexFile;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.AttributeBuilder;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.test.common.TestHelpers;
+import org.junit.Test;
+
+public class CSVDirKeyFilterTests extends AbstractTest {
+
+    /**
+     * Not read natively, hence looked up through key filters; no byte order mark, as records are appended.
+     */
+    private static final String ENCODING = "UTF-16BE";
+
+    private File createSourceDir(final String name) {
+        final File sourceDir = new File(testSourceDir, name);
+        assertTrue(sourceDir.exists() ? sourceDir.isDirectory() : sourceDir.mkdir());
+        return sourceDir;
+    }
+
+    private static void delete(final File sourceDir) {
+        final File sidecars = new File(sourceDir, KeyIndexFile.DIRECTORY);
+        for (File each : sidecars.exists() ? sidecars.listFiles() : new File[0]) {
+            each.delete();
+        }
+        sidecars.delete();
+        for (File each : sourceDir.listFiles()) {
+            each.delete();
+        }
+    }
+
+    private static File createFile(final File sourceDir, final String name, final List<TestAccount> accounts)
+            throws IOException {
+
+        final File file = new File(sourceDir, name + ".csv");
+        final PrintWriter wrt = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), ENCODING));
+        try {
+            for (TestAccount account : accounts) {
+                wrt.println(account.toLine(TestAccountsValue.FIELD_DELIMITER, TestAccountsValue.TEXT_QUALIFIER));
+            }
+        } finally {
+            wrt.close();
+        }
+        return file;
+    }
+
+    private CSVDirConfiguration createConfiguration(final File sourceDir, final String mask) {
+        final CSVDirConfiguration conf = createConfiguration(mask);
+        conf.setSourcePath(sourceDir.getPath());
+        conf.setEncoding(ENCODING);
+        conf.validate();
+        return conf;
+    }
+
+    private static TestAccount account(final String accountId) {
+        return new TestAccount(accountId, "pmassi", "mrossi", "pmassi@mail.com", "0", "password", "false");
+    }
+
+    private static File getSavedFilter(final File file) {
+        return new File(new File(file.getParentFile(), KeyIndexFile.DIRECTORY), file.getName() + ".bloom");
+    }
+
+    @Test
+    public void noFalseNegatives() {
+        final KeyFilter filter = new KeyFilter(1000);
+        for (int i = 0; i < 1000; i++) {
+            filter.add("KEY" + i);
+        }
+
+        int falsePositives = 0;
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(filter.mightContain("KEY" + i));
+            if (filter.mightContain("OTHER" + i)) {
+                falsePositives++;
+            }
+        }
+        // about 1% expected
+        assertTrue(falsePositives < 50);
+        assertFalse(filter.isSaturated());
+    }
+
+    @Test
+    public void savedFilter() throws IOException {
+        final File sourceDir = createSourceDir("keyFilterSaved");
+        try {
+            final File file = createFile(sourceDir, "keyFilterSaved", TestAccountsValue.TEST_ACCOUNTS);
+            final FileIdentity identity = new FileIdentity(file);
+
+            final KeyFilter filter = new KeyFilter(TestAccountsValue.TEST_ACCOUNTS.size());
+            filter.add("____JPC4323435;JPENELOPE");
+            filter.write(sourceDir, file.getName(), identity);
+            assertTrue(getSavedFilter(file).isFile());
+
+            // reloaded while the file is unchanged
+            final KeyFilter saved = KeyFilter.open(sourceDir, file.getName(), identity);
+            assertNotNull(saved);
+            assertTrue(saved.mightContain("____JPC4323435;JPENELOPE"));
+
+            // rejected once the file is changed
+            assertNull(KeyFilter.open(sourceDir, file.getName(),
+                    new FileIdentity(identity.getPath(), identity.getSize() + 2, identity.getLastModified())));
+            assertNull(KeyFilter.open(sourceDir, file.getName(),
+                    new FileIdentity(identity.getPath(), identity.getSize(), identity.getLastModified() + 1000)));
+
+            KeyFilter.delete(sourceDir, file.getName());
+            assertFalse(getSavedFilter(file).exists());
+            assertNull(KeyFilter.open(sourceDir, file.getName(), identity));
+        } finally {
+            delete(sourceDir);
+        }
+    }
+
+    @Test
+    public void lookupSkipsFiles() throws Exception {
+        final File sourceDir = createSourceDir("keyFilterLookup");
+        final CSVDirConfiguration conf = createConfiguration(sourceDir, "keyFilterLookup.*\\.csv");
+        FileToDB.acquire(conf);
+        try {
+            final File first = createFile(sourceDir, "keyFilterLookup1", TestAccountsValue.TEST_ACCOUNTS);
+            final File second = createFile(sourceDir, "keyFilterLookup2",
+                    Arrays.asList(account("___second1"), account("___second2")));
+            final File[] files = new File[] { first, second };
+
+            final KeyFilters keyFilters = FileToDB.getInstance(conf).getKeyFilters();
+            assertNotNull(keyFilters);
+
+            // keys are matched ignoring case
+            assertEquals(Arrays.asList(second), keyFilters.lookup("___SECOND1;pmassi", files));
+            assertEquals(Arrays.asList(first), keyFilters.lookup("____jpc4323435;jPenelope", files));
+            assertTrue(keyFilters.lookup("___missing;pmassi", files).isEmpty());
+
+            // saturated filters are dropped, hence the file is looked at, then built again at next lookup
+            for (int i = 0; i < 5; i++) {
+                keyFilters.added(second, "___added" + i + ";pmassi");
+            }
+            assertEquals(Arrays.asList(second), keyFilters.find("___missing;pmassi", files));
+            assertTrue(keyFilters.lookup("___missing;pmassi", files).isEmpty());
+        } finally {
+            FileToDB.release(conf);
+            delete(sourceDir);
+        }
+    }
+
+    @Test
+    public void filledBySearch() {
+        final File sourceDir = createSourceDir("keyFilterSearch");
+        final CSVDirConfiguration conf = createConfiguration(sourceDir, "keyFilterSearch.*\\.csv");
+        conf.setPersistentKeyIndex(true);
+
+        final CSVDirConnector connector = new CSVDirConnector();
+        try {
+            final File file = createFile(sourceDir, "keyFilterSearch", TestAccountsValue.TEST_ACCOUNTS);
+            connector.init(conf);
+
+            // all keys were read, hence the filter is built, and saved, with no further reads
+            assertEquals(TestAccountsValue.TEST_ACCOUNTS.size(),
+                    TestHelpers.searchToList(connector, ObjectClass.ACCOUNT, null).size());
+            assertTrue(getSavedFilter(file).isFile());
+
+            // keys written by create are added to the filter
+            final Set<Attribute> attributes = buildTestAttributes(new Name("___mperro123;pmassi"));
+            attributes.add(AttributeBuilder.build(TestAccountsValue.ACCOUNTID, "___mperro123"));
+            connector.create(ObjectClass.ACCOUNT, attributes, null);
+            try {
+                connector.create(ObjectClass.ACCOUNT, attributes, null);
+                fail("Created twice");
+            } catch (ConnectorException e) {
+                // expected
+            }
+        } catch (IOException e) {
+            fail(e.getMessage());
+        } finally {
+            connector.dispose();
+            delete(sourceDir);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
+import net.tirasa.connid.bundles.csvdir.database.KeyIndex;
+import net.tirasa.connid.bundles.csvdir.database.KeyIndexFile;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.AttributeBuilder;
+import org.identityconnectors.framework.common.objects.AttributeUtil;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.junit.Test;
+
+public class CSVDirKeyIndexTests extends AbstractTest {
+
+    private static TestAccount account(final String accountId) {
+        return new TestAccount(accountId, "pmassi", "mrossi", "pmassi@mail.com", "0", "password", "false");
+    }
+
+    @Test
+    public void changesOverSidecar() throws IOException {
+        // own source path, as sidecars are kept until files are gone
+        final File sourceDir = new File(testSourceDir, "keyIndexOverlay");
+        assertTrue(sourceDir.exists() ? sourceDir.isDirectory() : sourceDir.mkdir());
+        File file = createFile("keyIndexOverlay", TestAccountsValue.TEST_ACCOUNTS);
+        assertTrue(file.renameTo(new File(sourceDir, file.getName())));
+        file = new File(sourceDir, file.getName());
+        final File[] files = new File[] { file };
+
+        final CSVDirConfiguration conf = createConfiguration("keyIndexOverlay.*\\.csv");
+        conf.setSourcePath(sourceDir.getPath());
+        conf.setPersistentKeyIndex(true);
+
+        final File sidecars = new File(sourceDir, KeyIndexFile.DIRECTORY);
+        try {
+            // indexed and saved
+            KeyIndex keyIndex = new KeyIndex(conf);
+            assertEquals(1, keyIndex.lookup("____jpc4323435;jPenelope", files).size());
+            keyIndex.close();
+
+            // looked up through the sidecar: changes are recorded over it, the file is not scanned again, hence
+            // records not reported are not found
+            keyIndex = new KeyIndex(conf);
+            assertEquals(TestAccountsValue.TEST_ACCOUNTS.size(), keyIndex.count(file));
+
+            final long offset = file.length();
+            updateFile(file, Arrays.asList(account("___overlay"), account("___unreported")));
+            keyIndex.added(file, "___overlay;pmassi", offset);
+            keyIndex.removed(file, "____jpc4323435;jPenelope");
+
+            assertEquals(1, keyIndex.lookup("___overlay;pmassi", files).size());
+            assertEquals(offset, keyIndex.getOffset("___overlay;pmassi", file));
+            assertEquals(0, keyIndex.lookup("___unreported;pmassi", files).size());
+            assertEquals(0, keyIndex.lookup("____jpc4323435;jPenelope", files).size());
+            assertEquals(1, keyIndex.lookup("____jkb3234416;jKevin", files).size());
+            assertEquals(TestAccountsValue.TEST_ACCOUNTS.size(), keyIndex.count(file));
+            keyIndex.close();
+
+            // changes merged into the sidecar
+            keyIndex = new KeyIndex(conf);
+            assertEquals(1, keyIndex.lookup("___overlay;pmassi", files).size());
+            assertEquals(0, keyIndex.lookup("___unreported;pmassi", files).size());
+            assertEquals(0, keyIndex.lookup("____jpc4323435;jPenelope", files).size());
+            assertEquals(TestAccountsValue.TEST_ACCOUNTS.size(), keyIndex.count(file));
+            keyIndex.close();
+        } finally {
+            for (File each : sidecars.exists() ? sidecars.listFiles() : new File[0]) {
+                each.delete();
+            }
+            sidecars.delete();
+            for (File each : sourceDir.listFiles()) {
+                each.delete();
+            }
+        }
+    }
+
+    @Test
+    public void createWithPersistentKeyIndex() throws IOException {
+        // own source path, as sidecars are kept until files are gone
+        final File sourceDir = new File(testSourceDir, "persistentKeyIndex");
+        assertTrue(sourceDir.exists() ? sourceDir.isDirectory() : sourceDir.mkdir());
+        final File file = createFile("createKeyIndexTest", TestAccountsValue.TEST_ACCOUNTS);
+        assertTrue(file.renameTo(new File(sourceDir, file.getName())));
+
+        final CSVDirConfiguration conf = createConfiguration("createKeyIndexTest.*\\.csv");
+        conf.setSourcePath(sourceDir.getPath());
+        conf.setPersistentKeyIndex(true);
+
+        final File sidecars = new File(sourceDir, KeyIndexFile.DIRECTORY);
+        try {
+            CSVDirConnector connector = new CSVDirConnector();
+            connector.init(conf);
+            try {
+                final Set<Attribute> attributes = buildTestAttributes(new Name("___sidecar;pmassi"));
+                attributes.add(AttributeBuilder.build(TestAccountsValue.ACCOUNTID, "___sidecar"));
+                connector.create(ObjectClass.ACCOUNT, attributes, null);
+
+                // saved once indexed
+                assertEquals(1, sidecars.listFiles().length);
+            } finally {
+                // saved again, with the created account
+                connector.dispose();
+            }
+
+            // existing accounts, the created one included, are found through the sidecar
+            connector = new CSVDirConnector();
+            connector.init(conf);
+            try {
+                for (String existing : new String[] { "____jpc4323435;jPenelope", "___sidecar;pmassi" }) {
+                    final String[] keys = existing.split(";");
+                    final Set<Attribute> attributes = buildTestAttributes(new Name(existing));
+                    attributes.add(AttributeBuilder.build(TestAccountsValue.ACCOUNTID, keys[0]));
+                    attributes.remove(AttributeUtil.find(TestAccountsValue.FIRSTNAME, attributes));
+                    attributes.add(AttributeBuilder.build(TestAccountsValue.FIRSTNAME, keys[1]));
+                    try {
+                        connector.create(ObjectClass.ACCOUNT, attributes, null);
+                        fail();
+                    } catch (ConnectorException e) {
+                        // expected
+                    }
+                }
+            } finally {
+                connector.dispose();
+            }
+        } finally {
+            for (File each : sidecars.exists() ? sidecars.listFiles() : new File[0]) {
+                each.delete();
+            }
+            sidecars.delete();
+            for (File each : sourceDir.listFiles()) {
+                each.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.HashSet;
+import java.util.Set;
+import net.tirasa.connid.bundles.csvdir.database.Metrics;
+import net.tirasa.connid.bundles.csvdir.database.OperationStatistics;
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.AttributeBuilder;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.ResultsHandler;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.junit.Test;
+
+public class CSVDirMetricsTests extends AbstractTest {
+
+    @Test
+    public void updateRecordsMetrics() throws IOException {
+        createFile("updateMetrics", TestAccountsValue.TEST_ACCOUNTS);
+
+        final CSVDirConfiguration conf = createConfiguration("updateMetrics.*\\.csv");
+        final CSVDirConnector connector = new CSVDirConnector();
+        connector.init(conf);
+        try {
+            assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(Metrics.getObjectName(conf)));
+
+            // other tests share the same source path
+            final Metrics metrics = Metrics.getInstance(conf);
+            metrics.reset();
+
+            final Set<Attribute> attributes = new HashSet<Attribute>();
+            attributes.add(AttributeBuilder.build(TestAccountsValue.EMAIL, "newmail@newmail.com"));
+            connector.update(ObjectClass.ACCOUNT, new Uid("____jpc4323435;jPenelope"), attributes, null);
+
+            final int[] found = new int[1];
+            connector.executeQuery(ObjectClass.ACCOUNT, null, new ResultsHandler() {
+
+                @Override
+                public boolean handle(final ConnectorObject object) {
+                    found[0]++;
+                    return true;
+                }
+            }, null);
+
+            final OperationStatistics update = metrics.getOperations().get(Metrics.UPDATE);
+            assertEquals(1, update.getCount());
+            assertTrue(update.getFilesListed() > 0);
+            assertTrue(update.getBytesRead() > 0);
+
+            final OperationStatistics search = metrics.getOperations().get(Metrics.SEARCH);
+            assertEquals(1, search.getCount());
+            assertEquals(found[0], search.getRowsEmitted());
+            assertTrue(search.getMaxMicros() >= search.getMeanMicros());
+
+            metrics.reset();
+            assertTrue(metrics.getOperations().isEmpty());
+        } finally {
+            connector.dispose();
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.identityconnectors.framework.common.objects.AttributeBuilder;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
+import org.identityconnectors.framework.common.objects.OperationalAttributes;
+import org.identityconnectors.framework.common.objects.ResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncDelta;
+import org.identityconnectors.framework.common.objects.SyncDeltaType;
+import org.identityconnectors.framework.common.objects.SyncResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.identityconnectors.framework.common.objects.filter.Filter;
+import org.identityconnectors.framework.common.objects.filter.FilterBuilder;
+import org.identityconnectors.test.common.TestHelpers;
+import org.junit.Test;
+
+public class CSVDirNativeEngineTests extends AbstractTest {
+
+    private CSVDirConnector createConnector(final String mask, final String engine) {
+        final CSVDirConfiguration conf = createConfiguration(mask);
+        conf.setEngine(engine);
+        conf.validate();
+
+        final CSVDirConnector connector = new CSVDirConnector();
+        connector.init(conf);
+        return connector;
+    }
+
+    private Set<TestAccount> search(final CSVDirConnector connector, final Filter filter) {
+        final Set<TestAccount> actual = new HashSet<TestAccount>();
+        for (ConnectorObject obj : TestHelpers.searchToList(connector, ObjectClass.ACCOUNT, filter)) {
+            actual.add(new TestAccount(obj));
+        }
+        return actual;
+    }
+
+    @Test
+    public void search() throws IOException {
+        createFile("nativeSearch", TestAccountsValue.TEST_ACCOUNTS);
+
+        final CSVDirConnector connector = createConnector("nativeSearch.*\\.csv", CSVDirConfiguration.NATIVE_ENGINE);
+        try {
+            final Filter filter = FilterBuilder.or(
+                    FilterBuilder.startsWith(AttributeBuilder.build(TestAccountsValue.FIRSTNAME, "jPenelope")),
+                    FilterBuilder.equalTo(AttributeBuilder.build(TestAccountsValue.LASTNAME, "jBacon")));
+
+            assertEquals(4, search(connector, filter).size());
+
+            // deleted users are not returned
+            assertEquals(TestAccountsValue.TEST_ACCOUNTS.size() - 1, search(connector, null).size());
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    @Test
+    public void attributesToGet() throws IOException {
+        createFile("nativeProjection", TestAccountsValue.TEST_ACCOUNTS);
+
+        final CSVDirConnector connector =
+                createConnector("nativeProjection.*\\.csv", CSVDirConfiguration.NATIVE_ENGINE);
+        try {
+            // filter on a column not requested
+            final Filter filter = FilterBuilder.equalTo(
+                    AttributeBuilder.build(TestAccountsValue.LASTNAME, "jBacon"));
+
+            final List<ConnectorObject> objects = TestHelpers.searchToList(connector, ObjectClass.ACCOUNT, filter,
+                    new OperationOptionsBuilder().setAttributesToGet(TestAccountsValue.EMAIL).build());
+
+            assertEquals(search(connector, filter).size(), objects.size());
+            for (ConnectorObject obj : objects) {
+                assertNotNull(obj.getUid());
+                assertNotNull(obj.getAttributeByName(TestAccountsValue.EMAIL));
+                assertNull(obj.getAttributeByName(TestAccountsValue.LASTNAME));
+                assertNull(obj.getAttributeByName(TestAccountsValue.FIRSTNAME));
+            }
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    private static List<String> uids(final CSVDirConnector connector, final int limit) {
+        final List<String> uids = new ArrayList<String>();
+        connector.executeQuery(ObjectClass.ACCOUNT, null, new ResultsHandler() {
+
+            @Override
+            public boolean handle(final ConnectorObject obj) {
+                uids.add(obj.getUid().getUidValue());
+                return uids.size() < limit;
+            }
+        }, null);
+        return uids;
+    }
+
+    @Test
+    public void parallelScan() throws IOException {
+        createFile("nativeParallel", TestAccountsValue.TEST_ACCOUNTS);
+        createFile("nativeParallel", TestAccountsValue.TEST_ACCOUNTS2);
+        createFile("nativeParallel", TestAccountsValue.TEST_ACCOUNTS);
+
+        final CSVDirConnector sequential =
+                createConnector("nativeParallel.*\\.csv", CSVDirConfiguration.NATIVE_ENGINE);
+
+        final CSVDirConfiguration conf = createConfiguration("nativeParallel.*\\.csv");
+        conf.setEngine(CSVDirConfiguration.NATIVE_ENGINE);
+        conf.setScanThreads(4);
+        final CSVDirConnector parallel = new CSVDirConnector();
+        parallel.init(conf);
+        try {
+            // same results, in the same order
+            final List<String> expected = uids(sequential, Integer.MAX_VALUE);
+            assertEquals(TestAccountsValue.TEST_ACCOUNTS.size() - 1 + TestAccountsValue.TEST_ACCOUNTS2.size(),
+                    expected.size());
+            assertEquals(expected, uids(parallel, Integer.MAX_VALUE));
+
+            // early stop
+            assertEquals(expected.subList(0, 3), uids(parallel, 3));
+        } finally {
+            sequential.dispose();
+            parallel.dispose();
+        }
+    }
+
+    @Test
+    public void chunkedScan() throws IOException {
+        // quoted values spanning multiple lines, so that chunk boundaries fall within them
+        final File file = File.createTempFile("nativeChunked", ".csv", testSourceDir);
+        file.deleteOnExit();
+        final PrintWriter wrt = new PrintWriter(new FileWriter(file));
+        for (int i = 0; i < 500; i++) {
+            wrt.print("accountid" + i + ",\"first,\n\"\"name\"\"\r\n" + i + "\",lastname" + i
+                    + ",accountid" + i + "@tirasa.net," + i + ",password,,\n");
+        }
+        wrt.close();
+
+        final CSVDirConnector sequential =
+                createConnector("nativeChunked.*\\.csv", CSVDirConfiguration.NATIVE_ENGINE);
+
+        final CSVDirConfiguration conf = createConfiguration("nativeChunked.*\\.csv");
+        conf.setEngine(CSVDirConfiguration.NATIVE_ENGINE);
+        conf.setScanThreads(4);
+        conf.setScanChunkSize(100);
+        final CSVDirConnector chunked = new CSVDirConnector();
+        chunked.init(conf);
+        try {
+            // same results, in the same order
+            final List<String> expected = uids(sequential, Integer.MAX_VALUE);
+            assertEquals(500, expected.size());
+            assertEquals("accountid7;first,\n\"name\"\r\n7", expected.get(7));
+            assertEquals(expected, uids(chunked, Integer.MAX_VALUE));
+
+            // early stop
+            assertEquals(expected.subList(0, 3), uids(chunked, 3));
+        } finally {
+            sequential.dispose();
+            chunked.dispose();
+        }
+    }
+
+    @Test
+    public void sameResultsAsHsqldb() throws IOException {
+        createFile("nativeCompare", TestAccountsValue.TEST_ACCOUNTS);
+
+        final Filter filter = FilterBuilder.and(
+                FilterBuilder.not(FilterBuilder.equalTo(
+                        AttributeBuilder.build(TestAccountsValue.FIRSTNAME, "jKevin"))),
+                FilterBuilder.greaterThanOrEqualTo(
+                        AttributeBuilder.build(TestAccountsValue.CHANGE_NUMBER, "2")));
+
+        final CSVDirConnector hsqldb = createConnector("nativeCompare.*\\.csv", CSVDirConfiguration.HSQLDB_ENGINE);
+        final CSVDirConnector nativeEngine =
+                createConnector("nativeCompare.*\\.csv", CSVDirConfiguration.NATIVE_ENGINE);
+        try {
+            final Set<TestAccount> expected = search(hsqldb, filter);
+            assertFalse(expected.isEmpty());
+            assertEquals(expected, search(nativeEngine, filter));
+        } finally {
+            hsqldb.dispose();
+            nativeEngine.dispose();
+        }
+    }
+
+    @Test
+    public void memoryMapped() throws IOException {
+        createFile("nativeMapped", TestAccountsValue.TEST_ACCOUNTS);
+
+        final Filter filter = FilterBuilder.or(
+                FilterBuilder.equalTo(AttributeBuilder.build(TestAccountsValue.FIRSTNAME, "jKevin")),
+                FilterBuilder.startsWith(AttributeBuilder.build(TestAccountsValue.LASTNAME, "B")));
+
+        final CSVDirConnector streamed = createConnector("nativeMapped.*\\.csv", CSVDirConfiguration.NATIVE_ENGINE);
+
+        final CSVDirConfiguration conf = createConfiguration("nativeMapped.*\\.csv");
+        conf.setEngine(CSVDirConfiguration.NATIVE_ENGINE);
+        conf.setMemoryMapped(true);
+        final CSVDirConnector mapped = new CSVDirConnector();
+        mapped.init(conf);
+        try {
+            final Set<TestAccount> expected = search(streamed, filter);
+            assertFalse(expected.isEmpty());
+            assertEquals(expected, search(mapped, filter));
+            assertEquals(uids(streamed, Integer.MAX_VALUE), uids(mapped, Integer.MAX_VALUE));
+        } finally {
+            streamed.dispose();
+            mapped.dispose();
+        }
+    }
+
+    @Test
+    public void sync() throws IOException {
+        createFile("nativeSync", TestAccountsValue.TEST_ACCOUNTS);
+
+        final CSVDirConnector connector = createConnector("nativeSync.*\\.csv", CSVDirConfiguration.NATIVE_ENGINE);
+        try {
+            final List<SyncDelta> deltas = new ArrayList<SyncDelta>();
+            connector.sync(ObjectClass.ACCOUNT, new SyncToken(0), new SyncResultsHandler() {
+
+                @Override
+                public boolean handle(final SyncDelta delta) {
+                    return deltas.add(delta);
+                }
+            }, null);
+
+            assertEquals(TestAccountsValue.TEST_ACCOUNTS.size(), deltas.size());
+
+            int deleted = 0;
+            for (SyncDelta delta : deltas) {
+                if (delta.getDeltaType() == SyncDeltaType.DELETE) {
+                    deleted++;
+                    assertEquals("____deletedUser@bob.com;deletedUser", delta.getUid().getUidValue());
+                } else if ("____jpc4323435;jPenelope".equals(delta.getUid().getUidValue())) {
+                    assertFalse((Boolean) delta.getObject().
+                            getAttributeByName(OperationalAttributes.ENABLE_NAME).getValue().get(0));
+                } else {
+                    assertTrue((Boolean) delta.getObject().
+                            getAttributeByName(OperationalAttributes.ENABLE_NAME).getValue().get(0));
+                }
+            }
+            assertEquals(1, deleted);
+        } finally {
+            connector.dispose();
+        }
+    }
+}
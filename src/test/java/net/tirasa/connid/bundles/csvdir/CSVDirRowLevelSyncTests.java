@@ -0,0 +1,222 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import net.tirasa.connid.bundles.csvdir.database.KeyIndexFile;
+import net.tirasa.connid.bundles.csvdir.database.SyncSnapshot;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.SyncDelta;
+import org.identityconnectors.framework.common.objects.SyncDeltaType;
+import org.identityconnectors.framework.common.objects.SyncResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.junit.Test;
+
+public class CSVDirRowLevelSyncTests extends AbstractTest {
+
+    private static int count(final List<SyncDelta> deltas, final SyncDeltaType type) {
+        int count = 0;
+        for (SyncDelta delta : deltas) {
+            if (delta.getDeltaType() == type) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static List<SyncDelta> sync(final CSVDirConnector connector, final SyncToken token) {
+        final List<SyncDelta> deltas = new ArrayList<SyncDelta>();
+        connector.sync(ObjectClass.ACCOUNT, token, new SyncResultsHandler() {
+
+            @Override
+            public boolean handle(final SyncDelta delta) {
+                return deltas.add(delta);
+            }
+        }, null);
+        return deltas;
+    }
+
+    private static void rewrite(final File file, final List<TestAccount> accounts) throws IOException {
+        final PrintWriter wrt = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            for (TestAccount account : accounts) {
+                wrt.println(account.toLine(TestAccountsValue.FIELD_DELIMITER, TestAccountsValue.TEXT_QUALIFIER));
+            }
+        } finally {
+            wrt.close();
+        }
+    }
+
+    private void rowLevelSync(final String mask, final String engine) throws IOException {
+        final File file = createFile(mask, TestAccountsValue.TEST_ACCOUNTS);
+
+        final CSVDirConfiguration conf = createConfiguration(mask + ".*\\.csv");
+        conf.setEngine(engine);
+        conf.setRowLevelSync(true);
+
+        final SyncSnapshot snapshot = new SyncSnapshot(conf);
+        snapshot.clear();
+
+        final CSVDirConnector connector = new CSVDirConnector();
+        connector.init(conf);
+        try {
+            // first sync: everything is new
+            List<SyncDelta> deltas = sync(connector, new SyncToken(0));
+            assertEquals(TestAccountsValue.TEST_ACCOUNTS.size() - 1, count(deltas, SyncDeltaType.CREATE));
+            assertEquals(1, count(deltas, SyncDeltaType.DELETE));
+
+            final SyncToken first = connector.getLatestSyncToken(ObjectClass.ACCOUNT);
+            final File location = snapshot.getLocation(Long.valueOf(first.getValue().toString()));
+            assertTrue(location.isFile());
+            assertEquals(new File(testSourceDir, KeyIndexFile.DIRECTORY), location.getParentFile());
+
+            // nothing changed
+            assertEquals(Collections.<SyncDelta>emptyList(), sync(connector, first));
+            final SyncToken second = connector.getLatestSyncToken(ObjectClass.ACCOUNT);
+
+            // token 0 asks for a full resync
+            assertEquals(TestAccountsValue.TEST_ACCOUNTS.size(), sync(connector, new SyncToken(0)).size());
+
+            // one user removed, one changed, one added in a new file
+            final List<TestAccount> accounts = new ArrayList<TestAccount>(TestAccountsValue.TEST_ACCOUNTS);
+            accounts.remove(0);
+            accounts.set(0, new TestAccount("____jkb3234416", "jKevin", "jBacon",
+                    "changed@mail.com", "1", "password", "false"));
+            rewrite(file, accounts);
+
+            createFile(mask, Collections.singletonList(new TestAccount("____new0001", "jNew", "jNew",
+                    "new@mail.com", "0", "password", "false")));
+
+            deltas = sync(connector, second);
+            assertEquals(3, deltas.size());
+            assertEquals(1, count(deltas, SyncDeltaType.CREATE));
+            assertEquals(1, count(deltas, SyncDeltaType.UPDATE));
+            assertEquals(1, count(deltas, SyncDeltaType.DELETE));
+
+            // changes consumed from a token are still returned from another one
+            deltas = sync(connector, first);
+            assertEquals(3, deltas.size());
+        } finally {
+            connector.dispose();
+            snapshot.clear();
+        }
+    }
+
+    @Test
+    public void deletesNotHandled() throws IOException {
+        final File file = createFile("rowSyncDeletes", TestAccountsValue.TEST_ACCOUNTS);
+
+        final CSVDirConfiguration conf = createConfiguration("rowSyncDeletes.*\\.csv");
+        conf.setEngine(CSVDirConfiguration.NATIVE_ENGINE);
+        conf.setRowLevelSync(true);
+
+        final SyncSnapshot snapshot = new SyncSnapshot(conf);
+        snapshot.clear();
+
+        final CSVDirConnector connector = new CSVDirConnector();
+        connector.init(conf);
+        try {
+            sync(connector, new SyncToken(0));
+            final SyncToken first = connector.getLatestSyncToken(ObjectClass.ACCOUNT);
+
+            // two users removed
+            final List<TestAccount> accounts = new ArrayList<TestAccount>(TestAccountsValue.TEST_ACCOUNTS);
+            accounts.remove(2);
+            accounts.remove(1);
+            rewrite(file, accounts);
+
+            // handler stopping after the first delete..
+            final List<SyncDelta> deltas = new ArrayList<SyncDelta>();
+            connector.sync(ObjectClass.ACCOUNT, first, new SyncResultsHandler() {
+
+                @Override
+                public boolean handle(final SyncDelta delta) {
+                    deltas.add(delta);
+                    return false;
+                }
+            }, null);
+            assertEquals(1, deltas.size());
+            assertEquals(SyncDeltaType.DELETE, deltas.get(0).getDeltaType());
+
+            // ..gets the other one from the token of the last delta handled
+            final List<SyncDelta> next = sync(connector, deltas.get(0).getToken());
+            assertEquals(1, next.size());
+            assertEquals(SyncDeltaType.DELETE, next.get(0).getDeltaType());
+            assertFalse(deltas.get(0).getUid().equals(next.get(0).getUid()));
+
+            assertEquals(Collections.<SyncDelta>emptyList(),
+                    sync(connector, connector.getLatestSyncToken(ObjectClass.ACCOUNT)));
+        } finally {
+            connector.dispose();
+            snapshot.clear();
+        }
+    }
+
+    @Test
+    public void shadowedByUnchangedFile() throws IOException {
+        final TestAccount account = new TestAccount("____shadow0001", "jShadow", "jShadow",
+                "shadow@mail.com", "0", "password", "false");
+        createFile("rowSyncShadowA", Collections.singletonList(account));
+        final File file = createFile("rowSyncShadowB", TestAccountsValue.TEST_ACCOUNTS);
+
+        final CSVDirConfiguration conf = createConfiguration("rowSyncShadow.*\\.csv");
+        conf.setEngine(CSVDirConfiguration.NATIVE_ENGINE);
+        conf.setRowLevelSync(true);
+        conf.setDedupPolicy(CSVDirConfiguration.DEDUP_FIRST);
+
+        final SyncSnapshot snapshot = new SyncSnapshot(conf);
+        snapshot.clear();
+
+        final CSVDirConnector connector = new CSVDirConnector();
+        connector.init(conf);
+        try {
+            sync(connector, new SyncToken(0));
+            final SyncToken first = connector.getLatestSyncToken(ObjectClass.ACCOUNT);
+
+            // same key, other values, in a file read after the unchanged one holding it: shadowed, as by search
+            final List<TestAccount> accounts = new ArrayList<TestAccount>(TestAccountsValue.TEST_ACCOUNTS);
+            accounts.add(new TestAccount("____shadow0001", "jShadow", "jShadow",
+                    "changed@mail.com", "0", "password", "false"));
+            rewrite(file, accounts);
+
+            assertEquals(Collections.<SyncDelta>emptyList(), sync(connector, first));
+        } finally {
+            connector.dispose();
+            snapshot.clear();
+        }
+    }
+
+    @Test
+    public void hsqldb() throws IOException {
+        rowLevelSync("rowSyncHsqldb", CSVDirConfiguration.HSQLDB_ENGINE);
+    }
+
+    @Test
+    public void nativeEngine() throws IOException {
+        rowLevelSync("rowSyncNative", CSVDirConfiguration.NATIVE_ENGINE);
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright (C) 2011 ConnId (connid-dev@googlegroups.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.connid.bundles.csvdir;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.SyncDelta;
+import org.identityconnectors.framework.common.objects.SyncResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.junit.Test;
+
+public class CSVDirTailSyncTests extends AbstractTest {
+
+    private static List<SyncDelta> sync(final CSVDirConnector connector, final SyncToken token) {
+        final List<SyncDelta> deltas = new ArrayList<SyncDelta>();
+        connector.sync(ObjectClass.ACCOUNT, token, new SyncResultsHandler() {
+
+            @Override
+            public boolean handle(final SyncDelta delta) {
+                return deltas.add(delta);
+            }
+        }, null);
+        return deltas;
+    }
+
+    private static void write(final File file, final boolean append, final String text) throws IOException {
+        final Writer wrt = new OutputStreamWriter(new FileOutputStream(file, append), "UTF-8");
+        try {
+            wrt.write(text);
+        } finally {
+            wrt.close();
+        }
+    }
+
+    private static String line(final String accountId) {
+        return new TestAccount(accountId, "jTail", "jTail", "tail@mail.com", "0", "password", "false").
+                toLine(TestAccountsValue.FIELD_DELIMITER, TestAccountsValue.TEXT_QUALIFIER);
+    }
+
+    @Test
+    public void tailSync() throws IOException {
+        final File file = createFile("tailSync", TestAccountsValue.TEST_ACCOUNTS);
+
+        final CSVDirConfiguration conf = createConfiguration("tailSync.*\\.csv");
+        conf.setTailSync(true);
+        conf.validate();
+
+        final CSVDirConnector connector = new CSVDirConnector();
+        connector.init(conf);
+        try {
+            // first sync: whole file
+            assertEquals(TestAccountsValue.TEST_ACCOUNTS.size(), sync(connector, new SyncToken(0L)).size());
+            SyncToken token = connector.getLatestSyncToken(ObjectClass.ACCOUNT);
+
+            // nothing appended
+            assertEquals(0, sync(connector, token).size());
+
+            // two lines appended, plus one being written
+            write(file, true, line("____tail0001") + "\n" + line("____tail0002") + "\n" + "____tail00");
+            List<SyncDelta> deltas = sync(connector, token);
+            assertEquals(2, deltas.size());
+            assertEquals("____tail0001;jTail", deltas.get(0).getUid().getUidValue());
+            assertEquals("____tail0002;jTail", deltas.get(1).getUid().getUidValue());
+            // deltas of the same batch share the encoded token
+            assertEquals(deltas.get(0).getToken().getValue(), deltas.get(1).getToken().getValue());
+
+            // resuming from the first delta returns the second only
+            deltas = sync(connector, deltas.get(0).getToken());
+            assertEquals(1, deltas.size());
+            assertEquals("____tail0002;jTail", deltas.get(0).getUid().getUidValue());
+
+            // line completed
+            token = connector.getLatestSyncToken(ObjectClass.ACCOUNT);
+            write(file, true, line("____tail0003").substring("____tail00".length()) + "\n");
+            deltas = sync(connector, token);
+            assertEquals(1, deltas.size());
+            assertEquals("____tail0003;jTail", deltas.get(0).getUid().getUidValue());
+
+            // file rewritten: read again in full
+            token = connector.getLatestSyncToken(ObjectClass.ACCOUNT);
+            write(file, false, line("____tail0004") + "\n");
+            assertEquals(1, sync(connector, token).size());
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    @Test
+    public void tailSyncRecordBeingWritten() throws IOException {
+        final File file = createFile("tailMultiline", TestAccountsValue.TEST_ACCOUNTS);
+
+        final CSVDirConfiguration conf = createConfiguration("tailMultiline.*\\.csv");
+        conf.setTailSync(true);
+        conf.validate();
+
+        final CSVDirConnector connector = new CSVDirConnector();
+        connector.init(conf);
+        try {
+            assertEquals(TestAccountsValue.TEST_ACCOUNTS.size(), sync(connector, new SyncToken(0L)).size());
+            SyncToken token = connector.getLatestSyncToken(ObjectClass.ACCOUNT);
+
+            // record being written, whose quoted value spans lines: not returned yet..
+            final String record = line("____tail0005");
+            final int split = record.indexOf("tail@mail.com");
+            write(file, true, record.substring(0, split) + "\n");
+            assertEquals(0, sync(connector, token).size());
+            token = connector.getLatestSyncToken(ObjectClass.ACCOUNT);
+
+            // ..and returned alone once completed, with no need to read the file again
+            write(file, true, record.substring(split) + "\n");
+            final List<SyncDelta> deltas = sync(connector, token);
+            assertEquals(1, deltas.size());
+            assertEquals("____tail0005;jTail", deltas.get(0).getUid().getUidValue());
+        } finally {
+            connector.dispose();
+        }
+    }
+
+    @Test
+    public void tailSyncRecordRewritten() throws IOException {
+        final File file = createFile("tailRewrite", new ArrayList<TestAccount>());
+
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            text.append(line(String.format("____rewrite%04d", i))).append('\n');
+        }
+        write(file, false, text.toString());
+
+        final CSVDirConfiguration conf = createConfiguration("tailRewrite.*\\.csv");
+        conf.setTailSync(true);
+        conf.validate();
+
+        final CSVDirConnector connector = new CSVDirConnector();
+        connector.init(conf);
+        try {
+            assertEquals(300, sync(connector, new SyncToken(0L)).size());
+            final SyncToken token = connector.getLatestSyncToken(ObjectClass.ACCOUNT);
+
+            // record past the checksum window rewritten one byte longer: the synced offset is not a record boundary
+            final String rewritten = text.toString().replace("____rewrite0250", "____rewrite0250x");
+            write(file, false, rewritten);
+            assertEquals(300, sync(connector, token).size());
+        } finally {
+            connector.dispose();
+        }
+    }
+}